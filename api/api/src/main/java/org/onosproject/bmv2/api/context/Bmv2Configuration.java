@@ -38,6 +38,13 @@ public interface Bmv2Configuration {
      */
     JsonObject json();
 
+    /**
+     * Returns the JSON text backing this configuration, as sent to the device.
+     *
+     * @return a JSON-formatted string value
+     */
+    String jsonString();
+
     /**
      * Returns the header type associated with the given numeric ID, null if there's no such an ID in the configuration.
      *
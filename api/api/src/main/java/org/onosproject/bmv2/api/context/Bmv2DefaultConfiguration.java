@@ -16,6 +16,7 @@
 
 package org.onosproject.bmv2.api.context;
 
+import com.eclipsesource.json.Json;
 import com.eclipsesource.json.JsonArray;
 import com.eclipsesource.json.JsonObject;
 import com.google.common.annotations.Beta;
@@ -25,8 +26,15 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
 import org.onosproject.bmv2.api.runtime.Bmv2MatchParam;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -40,7 +48,11 @@ import static com.google.common.base.Preconditions.checkArgument;
 @Beta
 public final class Bmv2DefaultConfiguration implements Bmv2Configuration {
 
-    private final JsonObject json;
+    private static final int SNAPSHOT_MAGIC = 0x424D5632;
+    private static final int SNAPSHOT_VERSION = 1;
+
+    private final String jsonString;
+    private volatile JsonObject json;
     private final DualKeySortedMap<Bmv2HeaderTypeModel> headerTypes = new DualKeySortedMap<>();
     private final DualKeySortedMap<Bmv2HeaderModel> headers = new DualKeySortedMap<>();
     private final DualKeySortedMap<Bmv2ActionModel> actions = new DualKeySortedMap<>();
@@ -48,6 +60,12 @@ public final class Bmv2DefaultConfiguration implements Bmv2Configuration {
 
     private Bmv2DefaultConfiguration(JsonObject json) {
         this.json = JsonObject.unmodifiableObject(json);
+        this.jsonString = json.toString();
+    }
+
+    private Bmv2DefaultConfiguration(String jsonString) {
+        this.json = null;
+        this.jsonString = jsonString;
     }
 
     /**
@@ -126,23 +144,221 @@ public final class Bmv2DefaultConfiguration implements Bmv2Configuration {
         return ImmutableList.copyOf(tables.sortedMap().values());
     }
 
+    /**
+     * Returns a new BMv2 configuration object by reading the passed JSON text. The models are built while
+     * reading the text, and the JSON object is only built when {@link #json()} is called.
+     *
+     * @param json JSON text
+     * @return a new BMv2 configuration object
+     */
+    public static Bmv2DefaultConfiguration parse(String json) {
+        checkArgument(json != null, "json cannot be null");
+        Bmv2DefaultConfiguration configuration = new Bmv2DefaultConfiguration(json);
+        configuration.doRead(new Bmv2JsonReader(json));
+        return configuration;
+    }
+
+    /**
+     * Returns a new BMv2 configuration object by reading the passed UTF-8 JSON stream.
+     *
+     * @param stream JSON stream
+     * @return a new BMv2 configuration object
+     * @throws IOException if the stream cannot be read
+     */
+    public static Bmv2DefaultConfiguration parse(InputStream stream) throws IOException {
+        checkArgument(stream != null, "stream cannot be null");
+        return parse(new String(ByteStreams.toByteArray(stream), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Returns a BMv2 configuration object from a snapshot written by {@link #writeSnapshot(OutputStream)}. The
+     * JSON text is loaded but not read.
+     *
+     * @param stream snapshot stream
+     * @return a new BMv2 configuration object
+     * @throws IOException if the stream cannot be read or is not a snapshot
+     */
+    public static Bmv2DefaultConfiguration readSnapshot(InputStream stream) throws IOException {
+        checkArgument(stream != null, "stream cannot be null");
+        DataInputStream in = new DataInputStream(stream);
+        if (in.readInt() != SNAPSHOT_MAGIC) {
+            throw new IOException("Not a BMv2 configuration snapshot");
+        }
+        int version = in.readShort();
+        if (version != SNAPSHOT_VERSION) {
+            throw new IOException("Unsupported BMv2 configuration snapshot version " + version);
+        }
+        byte[] text = new byte[in.readInt()];
+        in.readFully(text);
+        Bmv2DefaultConfiguration configuration =
+                new Bmv2DefaultConfiguration(new String(text, StandardCharsets.UTF_8));
+
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String name = in.readUTF();
+            int id = in.readInt();
+            int fieldNum = in.readInt();
+            List<Bmv2FieldTypeModel> fieldTypes = Lists.newArrayListWithCapacity(fieldNum);
+            for (int j = 0; j < fieldNum; j++) {
+                fieldTypes.add(new Bmv2FieldTypeModel(in.readUTF(), in.readInt()));
+            }
+            configuration.headerTypes.put(name, id, new Bmv2HeaderTypeModel(name, id, fieldTypes));
+        }
+
+        count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String name = in.readUTF();
+            int id = in.readInt();
+            Bmv2HeaderTypeModel type = configuration.headerType(in.readUTF());
+            configuration.headers.put(name, id, new Bmv2HeaderModel(name, id, type, in.readBoolean()));
+        }
+
+        count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String name = in.readUTF();
+            int id = in.readInt();
+            int dataNum = in.readInt();
+            List<Bmv2RuntimeDataModel> runtimeDatas = Lists.newArrayListWithCapacity(dataNum);
+            for (int j = 0; j < dataNum; j++) {
+                runtimeDatas.add(new Bmv2RuntimeDataModel(in.readUTF(), in.readInt()));
+            }
+            configuration.actions.put(name, id, new Bmv2ActionModel(name, id, runtimeDatas));
+        }
+
+        count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String name = in.readUTF();
+            int id = in.readInt();
+            String matchType = in.readUTF();
+            String type = in.readUTF();
+            int maxSize = in.readInt();
+            boolean withCounters = in.readBoolean();
+            boolean supportTimeout = in.readBoolean();
+            int keyNum = in.readInt();
+            List<Bmv2TableKeyModel> keys = Lists.newArrayListWithCapacity(keyNum);
+            for (int j = 0; j < keyNum; j++) {
+                Bmv2MatchParam.Type keyType = Bmv2MatchParam.Type.valueOf(in.readUTF());
+                Bmv2HeaderModel header = configuration.header(in.readUTF());
+                keys.add(new Bmv2TableKeyModel(keyType,
+                        new Bmv2FieldModel(header, header.type().field(in.readUTF()))));
+            }
+            int actionNum = in.readInt();
+            Set<Bmv2ActionModel> actionzz = Sets.newHashSet();
+            for (int j = 0; j < actionNum; j++) {
+                actionzz.add(configuration.action(in.readUTF()));
+            }
+            configuration.tables.put(name, id, new Bmv2TableModel(name, id, matchType, type, maxSize,
+                    withCounters, supportTimeout, keys, actionzz));
+        }
+        return configuration;
+    }
+
+    /**
+     * Writes a binary snapshot of this configuration, holding the parsed models and the JSON text.
+     *
+     * @param stream output stream
+     * @throws IOException if the stream cannot be written
+     */
+    public void writeSnapshot(OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+        out.writeInt(SNAPSHOT_MAGIC);
+        out.writeShort(SNAPSHOT_VERSION);
+        byte[] text = jsonString.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(text.length);
+        out.write(text);
+
+        out.writeInt(headerTypes.sortedMap().size());
+        for (Bmv2HeaderTypeModel headerType : headerTypes.sortedMap().values()) {
+            out.writeUTF(headerType.name());
+            out.writeInt(headerType.id());
+            out.writeInt(headerType.fields().size());
+            for (Bmv2FieldTypeModel field : headerType.fields()) {
+                out.writeUTF(field.name());
+                out.writeInt(field.bitWidth());
+            }
+        }
+
+        out.writeInt(headers.sortedMap().size());
+        for (Bmv2HeaderModel header : headers.sortedMap().values()) {
+            out.writeUTF(header.name());
+            out.writeInt(header.id());
+            out.writeUTF(header.type().name());
+            out.writeBoolean(header.isMetadata());
+        }
+
+        out.writeInt(actions.sortedMap().size());
+        for (Bmv2ActionModel action : actions.sortedMap().values()) {
+            out.writeUTF(action.name());
+            out.writeInt(action.id());
+            out.writeInt(action.runtimeDatas().size());
+            for (Bmv2RuntimeDataModel runtimeData : action.runtimeDatas()) {
+                out.writeUTF(runtimeData.name());
+                out.writeInt(runtimeData.bitWidth());
+            }
+        }
+
+        out.writeInt(tables.sortedMap().size());
+        for (Bmv2TableModel table : tables.sortedMap().values()) {
+            out.writeUTF(table.name());
+            out.writeInt(table.id());
+            out.writeUTF(table.matchType());
+            out.writeUTF(table.type());
+            out.writeInt(table.maxSize());
+            out.writeBoolean(table.hasCounters());
+            out.writeBoolean(table.hasTimeouts());
+            out.writeInt(table.keys().size());
+            for (Bmv2TableKeyModel key : table.keys()) {
+                out.writeUTF(key.matchType().name());
+                out.writeUTF(key.field().header().name());
+                out.writeUTF(key.field().type().name());
+            }
+            out.writeInt(table.actions().size());
+            for (Bmv2ActionModel action : table.actions()) {
+                out.writeUTF(action.name());
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Returns the JSON object of this configuration. A configuration read from JSON text or from a snapshot
+     * builds the object on the first call.
+     *
+     * @return JSON object
+     */
     @Override
     public JsonObject json() {
-        return this.json;
+        JsonObject result = this.json;
+        if (result == null) {
+            synchronized (this) {
+                result = this.json;
+                if (result == null) {
+                    result = JsonObject.unmodifiableObject(Json.parse(jsonString).asObject());
+                    this.json = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public String jsonString() {
+        return jsonString;
     }
 
     /**
-     * Generates a hash code for this BMv2 configuration. The hash function is based solely on the JSON backing this
-     * configuration.
+     * Generates a hash code for this BMv2 configuration. The hash function is based solely on the JSON text backing
+     * this configuration, so the JSON object is not built.
      */
     @Override
     public int hashCode() {
-        return json.hashCode();
+        return jsonString.hashCode();
     }
 
     /**
      * Indicates whether some other BMv2 configuration is equal to this one.
-     * Equality is based solely on the low-level JSON representation.
+     * Equality is based solely on the JSON text, two configurations with the same JSON formatted differently are
+     * not equal.
      *
      * @param obj other object
      * @return true if equals, false elsewhere
@@ -156,13 +372,13 @@ public final class Bmv2DefaultConfiguration implements Bmv2Configuration {
             return false;
         }
         final Bmv2DefaultConfiguration other = (Bmv2DefaultConfiguration) obj;
-        return Objects.equal(this.json, other.json);
+        return Objects.equal(this.jsonString, other.jsonString);
     }
 
     @Override
     public String toString() {
         return MoreObjects.toStringHelper(this)
-                .add("jsonHash", json.hashCode())
+                .add("jsonHash", hashCode())
                 .toString();
     }
 
@@ -264,27 +480,7 @@ public final class Bmv2DefaultConfiguration implements Bmv2Configuration {
 
                     String matchTypeStr = jKey.asObject().get("match_type").asString();
 
-                    Bmv2MatchParam.Type matchType;
-
-                    switch (matchTypeStr) {
-                        case "ternary":
-                            matchType = Bmv2MatchParam.Type.TERNARY;
-                            break;
-                        case "exact":
-                            matchType = Bmv2MatchParam.Type.EXACT;
-                            break;
-                        case "lpm":
-                            matchType = Bmv2MatchParam.Type.LPM;
-                            break;
-                        case "valid":
-                            matchType = Bmv2MatchParam.Type.VALID;
-                            break;
-                        default:
-                            throw new RuntimeException(
-                                    "Unable to parse match type: " + matchTypeStr);
-                    }
-
-                    keys.add(new Bmv2TableKeyModel(matchType, field));
+                    keys.add(new Bmv2TableKeyModel(matchType(matchTypeStr), field));
                 });
 
                 // populate actions set
@@ -311,6 +507,319 @@ public final class Bmv2DefaultConfiguration implements Bmv2Configuration {
         });
     }
 
+    /**
+     * Read the JSON text and build the corresponding objects, as doParse does for a JSON object. Headers and
+     * tables refer to other objects by name, so they are built once the whole text has been read.
+     *
+     * @param reader JSON reader
+     */
+    private void doRead(Bmv2JsonReader reader) {
+        List<Runnable> headerTasks = Lists.newArrayList();
+        List<Runnable> tableTasks = Lists.newArrayList();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "header_types":
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        readHeaderType(reader);
+                    }
+                    reader.endArray();
+                    break;
+                case "headers":
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        headerTasks.add(readHeader(reader));
+                    }
+                    reader.endArray();
+                    break;
+                case "actions":
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        readAction(reader);
+                    }
+                    reader.endArray();
+                    break;
+                case "pipelines":
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        reader.beginObject();
+                        while (reader.hasNext()) {
+                            if (reader.nextName().equals("tables")) {
+                                reader.beginArray();
+                                while (reader.hasNext()) {
+                                    tableTasks.add(readTable(reader));
+                                }
+                                reader.endArray();
+                            } else {
+                                reader.skipValue();
+                            }
+                        }
+                        reader.endObject();
+                    }
+                    reader.endArray();
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+
+        headerTasks.forEach(Runnable::run);
+        tableTasks.forEach(Runnable::run);
+    }
+
+    private void readHeaderType(Bmv2JsonReader reader) {
+        String name = null;
+        int id = 0;
+        List<Bmv2FieldTypeModel> fieldTypes = Lists.newArrayList();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "name":
+                    name = reader.nextString();
+                    break;
+                case "id":
+                    id = reader.nextInt();
+                    break;
+                case "fields":
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        reader.beginArray();
+                        String fieldName = reader.nextString();
+                        reader.hasNext();
+                        if (reader.peekNumber()) {
+                            fieldTypes.add(new Bmv2FieldTypeModel(fieldName, reader.nextInt()));
+                        } else {
+                            reader.skipValue();
+                            fieldTypes.add(new Bmv2FieldTypeModel(fieldName, 800));
+                        }
+                        while (reader.hasNext()) {
+                            reader.skipValue();
+                        }
+                        reader.endArray();
+                    }
+                    reader.endArray();
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+
+        headerTypes.put(name, id, new Bmv2HeaderTypeModel(name, id, fieldTypes));
+    }
+
+    private Runnable readHeader(Bmv2JsonReader reader) {
+        String name = null;
+        int id = 0;
+        String typeName = null;
+        boolean metadata = false;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "name":
+                    name = reader.nextString();
+                    break;
+                case "id":
+                    id = reader.nextInt();
+                    break;
+                case "header_type":
+                    typeName = reader.nextString();
+                    break;
+                case "metadata":
+                    metadata = reader.nextBoolean();
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+
+        String headerName = name;
+        int headerId = id;
+        String headerTypeName = typeName;
+        boolean isMetadata = metadata;
+        return () -> headers.put(headerName, headerId,
+                new Bmv2HeaderModel(headerName, headerId, headerTypes.get(headerTypeName), isMetadata));
+    }
+
+    private void readAction(Bmv2JsonReader reader) {
+        String name = null;
+        int id = 0;
+        List<Bmv2RuntimeDataModel> runtimeDatas = Lists.newArrayList();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "name":
+                    name = reader.nextString();
+                    break;
+                case "id":
+                    id = reader.nextInt();
+                    break;
+                case "runtime_data":
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        String dataName = null;
+                        int bitWidth = 0;
+                        reader.beginObject();
+                        while (reader.hasNext()) {
+                            switch (reader.nextName()) {
+                                case "name":
+                                    dataName = reader.nextString();
+                                    break;
+                                case "bitwidth":
+                                    bitWidth = reader.nextInt();
+                                    break;
+                                default:
+                                    reader.skipValue();
+                                    break;
+                            }
+                        }
+                        reader.endObject();
+                        runtimeDatas.add(new Bmv2RuntimeDataModel(dataName, bitWidth));
+                    }
+                    reader.endArray();
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+
+        actions.put(name, id, new Bmv2ActionModel(name, id, runtimeDatas));
+    }
+
+    private Runnable readTable(Bmv2JsonReader reader) {
+        String name = null;
+        int id = 0;
+        String matchType = null;
+        String type = null;
+        int maxSize = 0;
+        boolean withCounters = false;
+        boolean supportTimeout = false;
+        List<String[]> keyTargets = Lists.newArrayList();
+        List<String> actionNames = Lists.newArrayList();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "name":
+                    name = reader.nextString();
+                    break;
+                case "id":
+                    id = reader.nextInt();
+                    break;
+                case "match_type":
+                    matchType = reader.nextString();
+                    break;
+                case "type":
+                    type = reader.nextString();
+                    break;
+                case "max_size":
+                    maxSize = reader.nextInt();
+                    break;
+                case "with_counters":
+                    withCounters = reader.nextBoolean();
+                    break;
+                case "support_timeout":
+                    supportTimeout = reader.nextBoolean();
+                    break;
+                case "key":
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        String[] target = new String[3];
+                        reader.beginObject();
+                        while (reader.hasNext()) {
+                            switch (reader.nextName()) {
+                                case "match_type":
+                                    target[0] = reader.nextString();
+                                    break;
+                                case "target":
+                                    reader.beginArray();
+                                    target[1] = reader.nextString();
+                                    reader.hasNext();
+                                    target[2] = reader.nextString();
+                                    reader.endArray();
+                                    break;
+                                default:
+                                    reader.skipValue();
+                                    break;
+                            }
+                        }
+                        reader.endObject();
+                        keyTargets.add(target);
+                    }
+                    reader.endArray();
+                    break;
+                case "actions":
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        actionNames.add(reader.nextString());
+                    }
+                    reader.endArray();
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+
+        String tableName = name;
+        int tableId = id;
+        String tableMatchType = matchType;
+        String tableType = type;
+        int tableMaxSize = maxSize;
+        boolean tableWithCounters = withCounters;
+        boolean tableSupportTimeout = supportTimeout;
+        return () -> {
+            List<Bmv2TableKeyModel> keys = Lists.newArrayList();
+            keyTargets.forEach(target -> {
+                Bmv2HeaderModel header = header(target[1]);
+                Bmv2FieldModel field = new Bmv2FieldModel(header, header.type().field(target[2]));
+                keys.add(new Bmv2TableKeyModel(matchType(target[0]), field));
+            });
+
+            Set<Bmv2ActionModel> actionzz = Sets.newHashSet();
+            actionNames.forEach(actionName -> actionzz.add(action(actionName)));
+
+            tables.put(tableName, tableId, new Bmv2TableModel(tableName,
+                    tableId,
+                    tableMatchType,
+                    tableType,
+                    tableMaxSize,
+                    tableWithCounters,
+                    tableSupportTimeout,
+                    keys,
+                    actionzz));
+        };
+    }
+
+    private static Bmv2MatchParam.Type matchType(String matchTypeStr) {
+        switch (matchTypeStr) {
+            case "ternary":
+                return Bmv2MatchParam.Type.TERNARY;
+            case "exact":
+                return Bmv2MatchParam.Type.EXACT;
+            case "lpm":
+                return Bmv2MatchParam.Type.LPM;
+            case "valid":
+                return Bmv2MatchParam.Type.VALID;
+            default:
+                throw new RuntimeException(
+                        "Unable to parse match type: " + matchTypeStr);
+        }
+    }
+
     /**
      * Handy class for a map indexed by two keys, a string and an integer.
      *
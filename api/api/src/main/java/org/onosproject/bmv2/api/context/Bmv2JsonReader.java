@@ -0,0 +1,297 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.bmv2.api.context;
+
+/**
+ * Pull reader of JSON text, which reads values in place without building a
+ * DOM. Skipped values are only scanned for their brackets.
+ */
+final class Bmv2JsonReader {
+
+    private final String text;
+    private int pos;
+
+    /**
+     * Creates a new reader of the given JSON text.
+     *
+     * @param text JSON text
+     */
+    Bmv2JsonReader(String text) {
+        this.text = text;
+        this.pos = 0;
+    }
+
+    void beginObject() {
+        expect('{');
+    }
+
+    void endObject() {
+        expect('}');
+    }
+
+    void beginArray() {
+        expect('[');
+    }
+
+    void endArray() {
+        expect(']');
+    }
+
+    /**
+     * Returns true if the current object or array has another element, after the comma separating it from the
+     * previous one.
+     *
+     * @return a boolean value
+     */
+    boolean hasNext() {
+        char c = peek();
+        char previous = previous();
+        if (c == '}' || c == ']') {
+            if (previous == ',') {
+                throw error("a value");
+            }
+            return false;
+        }
+        // An element follows the opening bracket or a comma, any other element must be separated by a comma.
+        if (previous != '{' && previous != '[' && previous != ',') {
+            expect(',');
+            c = peek();
+            if (c == '}' || c == ']') {
+                throw error("a value");
+            }
+        }
+        return true;
+    }
+
+    private char previous() {
+        int index = pos - 1;
+        while (index >= 0) {
+            char c = text.charAt(index);
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                return c;
+            }
+            index--;
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the name of the next object member.
+     *
+     * @return a string value
+     */
+    String nextName() {
+        String name = nextString();
+        expect(':');
+        return name;
+    }
+
+    /**
+     * Returns the next string value.
+     *
+     * @return a string value
+     */
+    String nextString() {
+        expect('"');
+        StringBuilder builder = null;
+        int start = pos;
+        while (true) {
+            char c = charAt(pos++);
+            if (c == '"') {
+                if (builder == null) {
+                    return text.substring(start, pos - 1);
+                }
+                return builder.append(text, start, pos - 1).toString();
+            }
+            if (c == '\\') {
+                if (builder == null) {
+                    builder = new StringBuilder();
+                }
+                builder.append(text, start, pos - 1).append(unescape());
+                start = pos;
+            }
+        }
+    }
+
+    /**
+     * Returns the next value as an integer.
+     *
+     * @return an integer value
+     */
+    int nextInt() {
+        return Integer.parseInt(nextNumber());
+    }
+
+    /**
+     * Returns the next boolean value.
+     *
+     * @return a boolean value
+     */
+    boolean nextBoolean() {
+        if (consumeLiteral("true")) {
+            return true;
+        }
+        if (consumeLiteral("false")) {
+            return false;
+        }
+        throw error("boolean");
+    }
+
+    /**
+     * Consumes the next value if it is null.
+     *
+     * @return true if a null value has been consumed, false otherwise
+     */
+    boolean nextNull() {
+        return consumeLiteral("null");
+    }
+
+    /**
+     * Returns true if the next value is a number.
+     *
+     * @return a boolean value
+     */
+    boolean peekNumber() {
+        char c = peek();
+        return c == '-' || (c >= '0' && c <= '9');
+    }
+
+    /**
+     * Skips the next value, whatever its type.
+     */
+    void skipValue() {
+        char c = peek();
+        switch (c) {
+            case '"':
+                nextString();
+                break;
+            case '{':
+            case '[':
+                skipContainer();
+                break;
+            case 't':
+            case 'f':
+                nextBoolean();
+                break;
+            case 'n':
+                if (!nextNull()) {
+                    throw error("null");
+                }
+                break;
+            default:
+                nextNumber();
+                break;
+        }
+    }
+
+    private void skipContainer() {
+        int depth = 0;
+        do {
+            char c = charAt(pos);
+            if (c == '"') {
+                nextString();
+                continue;
+            }
+            if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                depth--;
+            }
+            pos++;
+        } while (depth > 0);
+    }
+
+    private String nextNumber() {
+        peek();
+        int start = pos;
+        while (pos < text.length()) {
+            char c = text.charAt(pos);
+            if ((c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E') {
+                pos++;
+            } else {
+                break;
+            }
+        }
+        if (start == pos) {
+            throw error("number");
+        }
+        return text.substring(start, pos);
+    }
+
+    private char unescape() {
+        char c = charAt(pos++);
+        switch (c) {
+            case 'b':
+                return '\b';
+            case 'f':
+                return '\f';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            case 'u':
+                if (pos + 4 > text.length()) {
+                    throw error("unicode escape");
+                }
+                char u = (char) Integer.parseInt(text.substring(pos, pos + 4), 16);
+                pos += 4;
+                return u;
+            default:
+                return c;
+        }
+    }
+
+    private boolean consumeLiteral(String literal) {
+        peek();
+        if (text.startsWith(literal, pos)) {
+            pos += literal.length();
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(char expected) {
+        if (peek() != expected) {
+            throw error("'" + expected + "'");
+        }
+        pos++;
+    }
+
+    private char peek() {
+        while (pos < text.length()) {
+            char c = text.charAt(pos);
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                return c;
+            }
+            pos++;
+        }
+        throw error("a value");
+    }
+
+    private char charAt(int index) {
+        if (index >= text.length()) {
+            throw error("more input");
+        }
+        return text.charAt(index);
+    }
+
+    private IllegalArgumentException error(String expected) {
+        return new IllegalArgumentException("Malformed JSON, expected " + expected + " at offset " + pos);
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2016-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.bmv2.api.runtime;
+
+import com.google.common.annotations.Beta;
+import org.onosproject.net.DeviceId;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * An agent to operate on the tables of a BMv2 device without waiting for each reply. Many operations can be in
+ * flight at the same time, futures are completed exceptionally with a {@link Bmv2RuntimeException} if an error
+ * occurs.
+ */
+@Beta
+public interface Bmv2AsyncDeviceAgent {
+
+    /**
+     * Returns the device ID of this agent.
+     *
+     * @return a device id
+     */
+    DeviceId deviceId();
+
+    /**
+     * Adds a new table entry. If successful the future returns a table-specific identifier of the installed entry.
+     *
+     * @param entry a table entry
+     * @return a future of a long value
+     */
+    CompletableFuture<Long> addTableEntry(Bmv2TableEntry entry);
+
+    /**
+     * Modifies an existing entry at by updating its action.
+     *
+     * @param tableName a string value
+     * @param entryId   a long value
+     * @param action    an action
+     * @return a future completed once the entry is modified
+     */
+    CompletableFuture<Void> modifyTableEntry(String tableName, long entryId, Bmv2Action action);
+
+    /**
+     * Deletes currently installed entry.
+     *
+     * @param tableName a string value
+     * @param entryId   a long value
+     * @return a future completed once the entry is deleted
+     */
+    CompletableFuture<Void> deleteTableEntry(String tableName, long entryId);
+}
@@ -18,6 +18,7 @@ package org.onosproject.bmv2.api.runtime;
 
 import com.google.common.annotations.Beta;
 import org.apache.commons.lang3.tuple.Pair;
+import org.apache.commons.lang3.tuple.Triple;
 import org.onlab.util.ImmutableByteSequence;
 import org.onosproject.net.DeviceId;
 
@@ -72,6 +73,39 @@ public interface Bmv2DeviceAgent {
      */
     void deleteTableEntry(String tableName, long entryId) throws Bmv2RuntimeException;
 
+    /**
+     * Adds many table entries, sending the requests back-to-back without waiting for each reply. The entries are
+     * all attempted, a failure does not stop the following ones.
+     * <p>
+     * The timeouts are set once all the adds are done, in a second batch over the same connection. An entry whose
+     * timeout cannot be set is removed and fails. If it cannot be removed either, its result is a failure which
+     * still gives the identifier of the entry left on the device.
+     *
+     * @param entries a list of table entries
+     * @return a list of results, one per entry in the same order, with the identifier of each installed entry
+     */
+    List<Bmv2TableEntryResult> addTableEntries(List<Bmv2TableEntry> entries);
+
+    /**
+     * Modifies many existing entries by updating their action, sending the requests back-to-back without waiting
+     * for each reply. The entries are all attempted, a failure does not stop the following ones.
+     * Calls on the same entry, bulk or not, are executed in the order they are issued.
+     *
+     * @param entries a list of table names, entry ids and actions
+     * @return a list of results, one per entry in the same order
+     */
+    List<Bmv2TableEntryResult> modifyTableEntries(List<Triple<String, Long, Bmv2Action>> entries);
+
+    /**
+     * Deletes many currently installed entries, sending the requests back-to-back without waiting for each reply.
+     * The entries are all attempted, a failure does not stop the following ones.
+     * Calls on the same entry, bulk or not, are executed in the order they are issued.
+     *
+     * @param entries a list of pairs of table names and entry ids
+     * @return a list of results, one per entry in the same order
+     */
+    List<Bmv2TableEntryResult> deleteTableEntries(List<Pair<String, Long>> entries);
+
     /**
      * Sets a default action for the given table.
      *
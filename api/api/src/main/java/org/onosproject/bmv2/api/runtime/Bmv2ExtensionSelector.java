@@ -32,6 +32,7 @@ import org.onosproject.net.flow.criteria.ExtensionSelectorType;
 import org.onosproject.store.serializers.KryoNamespaces;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Map;
 
@@ -56,6 +57,9 @@ public final class Bmv2ExtensionSelector extends AbstractExtension implements Ex
             .build();
 
     private Map<String, Bmv2MatchParam> parameterMap;
+    // Set instead of the map by of(String[], Bmv2MatchParam[]), the map is then built on demand.
+    private String[] keys;
+    private Bmv2MatchParam[] params;
 
     /**
      * Creates a new BMv2 extension selector for the given match parameters map.
@@ -66,6 +70,17 @@ public final class Bmv2ExtensionSelector extends AbstractExtension implements Ex
         this.parameterMap = paramMap;
     }
 
+    /**
+     * Creates a new BMv2 extension selector for the given keys and match parameters.
+     *
+     * @param keys   field names
+     * @param params match parameters, in the order of the keys
+     */
+    private Bmv2ExtensionSelector(String[] keys, Bmv2MatchParam[] params) {
+        this.keys = keys;
+        this.params = params;
+    }
+
     /**
      * Returns a new, empty BMv2 extension selector.
      *
@@ -75,6 +90,35 @@ public final class Bmv2ExtensionSelector extends AbstractExtension implements Ex
         return new Bmv2ExtensionSelector(Collections.emptyMap());
     }
 
+    /**
+     * Returns a new BMv2 extension selector for the given match parameters map, without checking it against a
+     * configuration. Match parameters must be already fitted to the bit-width of their fields, e.g. by a
+     * pre-compiled template, and keys must be in the form "header.field".
+     *
+     * @param paramMap a map
+     * @return a BMv2 extension selector
+     */
+    public static Bmv2ExtensionSelector of(Map<String, Bmv2MatchParam> paramMap) {
+        return new Bmv2ExtensionSelector(checkNotNull(paramMap, "parameter map cannot be null"));
+    }
+
+    /**
+     * Returns a new BMv2 extension selector for the given keys and match parameters, without checking them against a
+     * configuration nor copying the arrays. This is {@link #of(Map)} for callers that build many selectors for the
+     * same fields: the keys array is meant to be shared between them, and the parameter map is only built if
+     * {@link #parameterMap()} or {@link #serialize()} is called.
+     *
+     * @param keys   field names in the form "header.field", distinct
+     * @param params match parameters already fitted to their fields, in the order of the keys
+     * @return a BMv2 extension selector
+     */
+    public static Bmv2ExtensionSelector of(String[] keys, Bmv2MatchParam[] params) {
+        checkNotNull(keys, "keys cannot be null");
+        checkNotNull(params, "parameters cannot be null");
+        checkArgument(keys.length == params.length, "%s keys but %s parameters", keys.length, params.length);
+        return new Bmv2ExtensionSelector(keys, params);
+    }
+
     /**
      * Returns a new builder of BMv2 extension selectors.
      *
@@ -90,7 +134,15 @@ public final class Bmv2ExtensionSelector extends AbstractExtension implements Ex
      * @return a match parameter map
      */
     public Map<String, Bmv2MatchParam> parameterMap() {
-        return parameterMap;
+        Map<String, Bmv2MatchParam> map = parameterMap;
+        if (map == null) {
+            map = Maps.newHashMapWithExpectedSize(keys.length);
+            for (int i = 0; i < keys.length; i++) {
+                map.put(keys[i], params[i]);
+            }
+            parameterMap = map;
+        }
+        return map;
     }
 
     @Override
@@ -100,17 +152,27 @@ public final class Bmv2ExtensionSelector extends AbstractExtension implements Ex
 
     @Override
     public byte[] serialize() {
-        return APP_KRYO.serialize(parameterMap);
+        return APP_KRYO.serialize(parameterMap());
     }
 
     @Override
     public void deserialize(byte[] data) {
         this.parameterMap = APP_KRYO.deserialize(data);
+        this.keys = null;
+        this.params = null;
     }
 
     @Override
     public int hashCode() {
-        return Objects.hashCode(parameterMap);
+        if (keys == null) {
+            return Objects.hashCode(parameterMap);
+        }
+        // Same as the hash code of the map.
+        int hash = 0;
+        for (int i = 0; i < keys.length; i++) {
+            hash += keys[i].hashCode() ^ params[i].hashCode();
+        }
+        return hash;
     }
 
     @Override
@@ -122,13 +184,16 @@ public final class Bmv2ExtensionSelector extends AbstractExtension implements Ex
             return false;
         }
         final Bmv2ExtensionSelector other = (Bmv2ExtensionSelector) obj;
-        return Objects.equal(this.parameterMap, other.parameterMap);
+        if (this.keys != null && this.keys == other.keys) {
+            return Arrays.equals(this.params, other.params);
+        }
+        return Objects.equal(this.parameterMap(), other.parameterMap());
     }
 
     @Override
     public String toString() {
         MoreObjects.ToStringHelper helper = MoreObjects.toStringHelper(this);
-        parameterMap.forEach((name, param) -> {
+        parameterMap().forEach((name, param) -> {
             switch (param.type()) {
                 case EXACT:
                     Bmv2ExactMatchParam e = (Bmv2ExactMatchParam) param;
@@ -83,6 +83,21 @@ public final class Bmv2ExtensionTreatment extends AbstractExtension implements E
         return new Bmv2ExtensionTreatment(null, Collections.emptyList());
     }
 
+    /**
+     * Returns a new BMv2 extension treatment for the given action, without checking it against a configuration.
+     * Action parameters must be already fitted to the bit-width of their runtime data, e.g. by a pre-compiled
+     * template, and be given in the same order as their names.
+     *
+     * @param action         an action
+     * @param parameterNames a list of strings
+     * @return a BMv2 extension treatment
+     */
+    public static Bmv2ExtensionTreatment of(Bmv2Action action, List<String> parameterNames) {
+        checkNotNull(action, "action cannot be null");
+        checkArgument(action.parameters().size() == parameterNames.size(), "invalid number of parameter names");
+        return new Bmv2ExtensionTreatment(action, parameterNames);
+    }
+
     /**
      * Returns a new BMv2 extension treatment builder.
      *
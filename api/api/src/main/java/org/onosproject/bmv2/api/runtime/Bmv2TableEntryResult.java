@@ -0,0 +1,105 @@
+/*
+ * Copyright 2016-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.bmv2.api.runtime;
+
+import com.google.common.annotations.Beta;
+import com.google.common.base.MoreObjects;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Result of an operation on one table entry of a bulk operation.
+ */
+@Beta
+public final class Bmv2TableEntryResult {
+
+    private final long entryId;
+    private final Bmv2RuntimeException exception;
+
+    private Bmv2TableEntryResult(long entryId, Bmv2RuntimeException exception) {
+        this.entryId = entryId;
+        this.exception = exception;
+    }
+
+    /**
+     * Returns the result of a successful operation on the given entry.
+     *
+     * @param entryId a table-specific identifier of the entry
+     * @return a table entry result
+     */
+    public static Bmv2TableEntryResult success(long entryId) {
+        return new Bmv2TableEntryResult(entryId, null);
+    }
+
+    /**
+     * Returns the result of a failed operation.
+     *
+     * @param exception the cause of the failure
+     * @return a table entry result
+     */
+    public static Bmv2TableEntryResult failure(Bmv2RuntimeException exception) {
+        return failure(-1, exception);
+    }
+
+    /**
+     * Returns the result of a failed operation which left the given entry installed on the device, e.g. an entry
+     * added whose timeout could not be set nor the entry removed.
+     *
+     * @param entryId   a table-specific identifier of the entry left installed, or -1 if none
+     * @param exception the cause of the failure
+     * @return a table entry result
+     */
+    public static Bmv2TableEntryResult failure(long entryId, Bmv2RuntimeException exception) {
+        return new Bmv2TableEntryResult(entryId, checkNotNull(exception));
+    }
+
+    /**
+     * Returns true if the operation was successful, false otherwise.
+     *
+     * @return a boolean value
+     */
+    public boolean isSuccess() {
+        return exception == null;
+    }
+
+    /**
+     * Returns the table-specific identifier of the entry. If the operation failed, returns the identifier of the entry
+     * left installed on the device, if any, or -1.
+     *
+     * @return a long value
+     */
+    public long entryId() {
+        return entryId;
+    }
+
+    /**
+     * Returns the cause of the failure, or null if the operation was successful.
+     *
+     * @return a BMv2 runtime exception
+     */
+    public Bmv2RuntimeException exception() {
+        return exception;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("entryId", entryId)
+                .add("exception", exception)
+                .toString();
+    }
+}
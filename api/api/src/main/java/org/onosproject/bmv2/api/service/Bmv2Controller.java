@@ -17,6 +17,7 @@
 package org.onosproject.bmv2.api.service;
 
 import com.google.common.annotations.Beta;
+import org.onosproject.bmv2.api.runtime.Bmv2AsyncDeviceAgent;
 import org.onosproject.bmv2.api.runtime.Bmv2DeviceAgent;
 import org.onosproject.bmv2.api.runtime.Bmv2RuntimeException;
 import org.onosproject.net.DeviceId;
@@ -41,6 +42,15 @@ public interface Bmv2Controller {
      */
     Bmv2DeviceAgent getAgent(DeviceId deviceId) throws Bmv2RuntimeException;
 
+    /**
+     * Return an agent to operate on the tables of the given device without waiting for each reply.
+     *
+     * @param deviceId a device ID
+     * @return a BMv2 asynchronous agent
+     * @throws Bmv2RuntimeException if the agent is not available
+     */
+    Bmv2AsyncDeviceAgent getAsyncAgent(DeviceId deviceId) throws Bmv2RuntimeException;
+
     /**
      * Returns true if the given device is reachable from this controller, false otherwise.
      *
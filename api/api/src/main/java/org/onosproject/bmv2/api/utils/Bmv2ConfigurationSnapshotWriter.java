@@ -0,0 +1,64 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.bmv2.api.utils;
+
+import com.google.common.annotations.Beta;
+import org.onosproject.bmv2.api.context.Bmv2DefaultConfiguration;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Build-time tool writing the snapshot of a BMv2 JSON configuration, so that applications can load their
+ * configuration with {@link Bmv2DefaultConfiguration#readSnapshot(InputStream)} instead of parsing it.
+ */
+@Beta
+public final class Bmv2ConfigurationSnapshotWriter {
+
+    private Bmv2ConfigurationSnapshotWriter() {
+        // Ban constructor.
+    }
+
+    /**
+     * Writes the snapshot of a JSON configuration file.
+     *
+     * @param args path of the JSON configuration and path of the snapshot
+     * @throws IOException if a file cannot be read or written
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            throw new IllegalArgumentException("Usage: Bmv2ConfigurationSnapshotWriter <config.json> <snapshot>");
+        }
+        Bmv2DefaultConfiguration configuration;
+        try (InputStream stream = new FileInputStream(args[0])) {
+            configuration = Bmv2DefaultConfiguration.parse(stream);
+        }
+        File snapshot = new File(args[1]);
+        File parent = snapshot.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Unable to create " + parent);
+        }
+        try (OutputStream stream = new BufferedOutputStream(new FileOutputStream(snapshot))) {
+            configuration.writeSnapshot(stream);
+        }
+    }
+}
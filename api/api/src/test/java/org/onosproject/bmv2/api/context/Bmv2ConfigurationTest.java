@@ -25,12 +25,15 @@ import org.junit.Test;
 import org.onosproject.bmv2.api.runtime.Bmv2MatchParam;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.InputStreamReader;
 
 import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.hasSize;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
 import static org.hamcrest.core.IsEqual.equalTo;
 
 /**
@@ -159,4 +162,52 @@ public class Bmv2ConfigurationTest {
         assertThat("Incorrect value for table key header type",
                 table0.keys().get(0).field().header().type(), is(equalTo(stdMetaT)));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testStreamingParse() throws Exception {
+        Bmv2Configuration config = Bmv2DefaultConfiguration.parse(json);
+        Bmv2Configuration streamed = Bmv2DefaultConfiguration.parse(
+                this.getClass().getResourceAsStream("/simple.json"));
+
+        assertSameModels(streamed, config);
+        // Equality is on the JSON text, the streamed configuration keeps the formatting of the file.
+        assertThat("Incorrect JSON", streamed.json(), is(equalTo(config.json())));
+        assertThat("Incorrect JSON text", streamed.jsonString(), is(not(equalTo(config.jsonString()))));
+        new EqualsTester()
+                .addEqualityGroup(config, Bmv2DefaultConfiguration.parse(config.jsonString()))
+                .addEqualityGroup(streamed)
+                .testEquals();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMissingComma() {
+        Bmv2DefaultConfiguration.parse("{\"header_types\": [] \"headers\": []}");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTrailingComma() {
+        Bmv2DefaultConfiguration.parse("{\"header_types\": [], \"headers\": [],}");
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        Bmv2DefaultConfiguration config = Bmv2DefaultConfiguration.parse(json);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        config.writeSnapshot(out);
+        Bmv2Configuration loaded = Bmv2DefaultConfiguration.readSnapshot(
+                new ByteArrayInputStream(out.toByteArray()));
+
+        assertSameModels(loaded, config);
+        new EqualsTester()
+                .addEqualityGroup(config, loaded)
+                .testEquals();
+    }
+
+    private static void assertSameModels(Bmv2Configuration actual, Bmv2Configuration expected) {
+        assertThat("Incorrect header types", actual.headerTypes(), is(equalTo(expected.headerTypes())));
+        assertThat("Incorrect headers", actual.headers(), is(equalTo(expected.headers())));
+        assertThat("Incorrect actions", actual.actions(), is(equalTo(expected.actions())));
+        assertThat("Incorrect tables", actual.tables(), is(equalTo(expected.tables())));
+    }
+}
@@ -118,6 +118,36 @@ public class Bmv2ExtensionsTest {
                 .testEquals();
     }
 
+    @Test
+    public void testExtensionSelectorOfArrays() throws Exception {
+
+        Bmv2ExtensionSelector original = Bmv2ExtensionSelector.builder()
+                .forConfiguration(config)
+                .matchExact("standard_metadata", "ingress_port", (short) 255)
+                .matchTernary("ethernet", "dstAddr", 1024L, 512L)
+                .build();
+
+        String[] keys = original.parameterMap().keySet().toArray(new String[0]);
+        Bmv2MatchParam[] params = new Bmv2MatchParam[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            params[i] = original.parameterMap().get(keys[i]);
+        }
+        Bmv2ExtensionSelector fromArrays = Bmv2ExtensionSelector.of(keys, params);
+        Bmv2ExtensionSelector sameKeys = Bmv2ExtensionSelector.of(keys, params.clone());
+        Bmv2ExtensionSelector deserialized = Bmv2ExtensionSelector.empty();
+        deserialized.deserialize(fromArrays.serialize());
+
+        Bmv2MatchParam[] otherParams = params.clone();
+        otherParams[0] = otherParams[1];
+        Bmv2ExtensionSelector other = Bmv2ExtensionSelector.of(keys, otherParams);
+
+        new EqualsTester()
+                .addEqualityGroup(original, fromArrays, sameKeys, deserialized)
+                .addEqualityGroup(other)
+                .testEquals();
+        assertThat(fromArrays.parameterMap(), is(original.parameterMap()));
+    }
+
     @Test
     public void testExtensionTreatmentSerialization() throws Exception {
 
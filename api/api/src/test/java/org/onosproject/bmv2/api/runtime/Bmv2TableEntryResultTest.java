@@ -0,0 +1,62 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.bmv2.api.runtime;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+
+/**
+ * Tests for {@link Bmv2TableEntryResult}.
+ */
+public class Bmv2TableEntryResultTest {
+
+    private final Bmv2RuntimeException exception =
+            new Bmv2RuntimeException(Bmv2RuntimeException.Code.TABLE_INVALID_HANDLE);
+
+    @Test
+    public void testSuccess() {
+        Bmv2TableEntryResult result = Bmv2TableEntryResult.success(42);
+        assertThat(result.isSuccess(), is(true));
+        assertThat(result.entryId(), is(42L));
+        assertThat(result.exception(), is(nullValue()));
+    }
+
+    @Test
+    public void testFailure() {
+        Bmv2TableEntryResult result = Bmv2TableEntryResult.failure(exception);
+        assertThat(result.isSuccess(), is(false));
+        assertThat(result.entryId(), is(-1L));
+        assertThat(result.exception(), is(sameInstance(exception)));
+    }
+
+    @Test
+    public void testFailureWithEntryLeft() {
+        Bmv2TableEntryResult result = Bmv2TableEntryResult.failure(42, exception);
+        assertThat(result.isSuccess(), is(false));
+        assertThat(result.entryId(), is(42L));
+        assertThat(result.exception(), is(sameInstance(exception)));
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testFailureWithoutException() {
+        Bmv2TableEntryResult.failure(null);
+    }
+}
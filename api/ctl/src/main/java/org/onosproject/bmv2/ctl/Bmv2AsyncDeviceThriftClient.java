@@ -0,0 +1,496 @@
+/*
+ * Copyright 2016-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.bmv2.ctl;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TMultiplexedProtocol;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.TTransportException;
+import org.onosproject.bmv2.api.runtime.Bmv2Action;
+import org.onosproject.bmv2.api.runtime.Bmv2AsyncDeviceAgent;
+import org.onosproject.bmv2.api.runtime.Bmv2Device;
+import org.onosproject.bmv2.api.runtime.Bmv2RuntimeException;
+import org.onosproject.bmv2.api.runtime.Bmv2TableEntry;
+import org.onosproject.bmv2.thriftapi.BmAddEntryOptions;
+import org.onosproject.bmv2.thriftapi.BmMatchParam;
+import org.onosproject.bmv2.thriftapi.Standard;
+import org.onosproject.net.DeviceId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+import static org.onlab.util.Tools.groupedThreads;
+import static org.onosproject.bmv2.ctl.Bmv2DeviceThriftClient.buildActionParamsList;
+import static org.onosproject.bmv2.ctl.Bmv2DeviceThriftClient.buildMatchParamsList;
+import static org.onosproject.bmv2.ctl.Bmv2TExceptionParser.parseTException;
+
+/**
+ * Implementation of an asynchronous Thrift client to operate on the tables of a BMv2 device. Calls are pipelined
+ * over a connection of their own: requests are written back-to-back without waiting for the replies, which a
+ * receiver thread reads in the same order, as BMv2 serves the requests of a connection one after the other.
+ * Calls fail fast while the circuit breaker of the device is open.
+ */
+public final class Bmv2AsyncDeviceThriftClient implements Bmv2AsyncDeviceAgent {
+
+    // FIXME: make context_id arbitrary for each call
+    // See: https://github.com/p4lang/behavioral-model/blob/master/modules/bm_sim/include/bm_sim/context.h
+    private static final int CONTEXT_ID = 0;
+    // Calls in flight on the connection, beyond which callers wait for a reply.
+    static final int MAX_IN_FLIGHT = 128;
+    // Time to wait for the device to accept the connection, or to send the next reply, in milliseconds.
+    private static final int SOCKET_TIMEOUT = 5000;
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+    private final DeviceId deviceId;
+    private final Bmv2Device device;
+    private final SafeThriftClient.CircuitBreaker breaker;
+    private final Semaphore window = new Semaphore(MAX_IN_FLIGHT);
+    // Reads the replies of the current connection, there is at most one reader per connection.
+    private final ExecutorService receivers;
+    // Completes the futures, so that callers chaining new calls do not hold the reader.
+    private final ExecutorService completer;
+    private Channel channel;
+    // Connection being opened, callers wait for it rather than opening their own.
+    private CompletableFuture<Channel> connecting;
+    private boolean closed;
+
+    /**
+     * Creates a new client for the given device. The connection is opened on the first call.
+     *
+     * @param deviceId a device ID
+     * @param breaker  circuit breaker of the device
+     */
+    public Bmv2AsyncDeviceThriftClient(DeviceId deviceId, SafeThriftClient.CircuitBreaker breaker) {
+        this.deviceId = deviceId;
+        this.device = Bmv2Device.of(deviceId);
+        this.breaker = breaker;
+        this.receivers = Executors.newCachedThreadPool(groupedThreads("onos/bmv2", "async-receiver-%d", log));
+        this.completer = Executors.newSingleThreadExecutor(groupedThreads("onos/bmv2", "async-completer-%d", log));
+    }
+
+    @Override
+    public DeviceId deviceId() {
+        return deviceId;
+    }
+
+    @Override
+    public CompletableFuture<Long> addTableEntry(Bmv2TableEntry entry) {
+
+        log.debug("Adding table entry... > deviceId={}, entry={}", deviceId, entry);
+
+        BmAddEntryOptions options = new BmAddEntryOptions();
+        if (entry.hasPriority()) {
+            options.setPriority(entry.priority());
+        }
+        List<BmMatchParam> matchParams = buildMatchParamsList(entry.matchKey());
+        List<ByteBuffer> actionParams = buildActionParamsList(entry.action());
+
+        CompletableFuture<Long> added = call(
+                client -> client.send_bm_mt_add_entry(
+                        CONTEXT_ID,
+                        entry.tableName(),
+                        matchParams,
+                        entry.action().name(),
+                        actionParams,
+                        options),
+                Standard.Client::recv_bm_mt_add_entry);
+        if (!entry.hasTimeout()) {
+            return added;
+        }
+
+        /* bmv2 accepts timeouts in milliseconds */
+        int msTimeout = (int) Math.round(entry.timeout() * 1_000);
+        return added.thenCompose(entryId -> this.<Long>call(
+                client -> client.send_bm_mt_set_entry_ttl(CONTEXT_ID, entry.tableName(), entryId, msTimeout),
+                client -> {
+                    client.recv_bm_mt_set_entry_ttl();
+                    return entryId;
+                }).whenComplete((result, e) -> {
+                    if (e != null) {
+                        // entry is in inconsistent state (unable to add timeout), remove it
+                        deleteTableEntry(entry.tableName(), entryId).whenComplete((v, e1) -> {
+                            if (e1 != null) {
+                                log.warn("Unable to remove table entry after failing to set its timeout: {} > "
+                                        + "deviceId={}, entryId={}/{}", e1, deviceId, entry.tableName(), entryId);
+                            }
+                        });
+                    }
+                }));
+    }
+
+    @Override
+    public CompletableFuture<Void> modifyTableEntry(String tableName, long entryId, Bmv2Action action) {
+
+        log.debug("Modifying table entry... > deviceId={}, entryId={}/{}", deviceId, tableName, entryId);
+
+        List<ByteBuffer> actionParams = buildActionParamsList(action);
+        return call(
+                client -> client.send_bm_mt_modify_entry(
+                        CONTEXT_ID,
+                        tableName,
+                        entryId,
+                        action.name(),
+                        actionParams),
+                client -> {
+                    client.recv_bm_mt_modify_entry();
+                    return null;
+                });
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteTableEntry(String tableName, long entryId) {
+
+        log.debug("Deleting table entry... > deviceId={}, entryId={}/{}", deviceId, tableName, entryId);
+
+        return call(
+                client -> client.send_bm_mt_delete_entry(CONTEXT_ID, tableName, entryId),
+                client -> {
+                    client.recv_bm_mt_delete_entry();
+                    return null;
+                });
+    }
+
+    /**
+     * Closes the connection and stops the threads of this client. Calls in flight fail.
+     */
+    public void close() {
+        Channel current;
+        synchronized (this) {
+            closed = true;
+            current = channel;
+            channel = null;
+        }
+        if (current != null) {
+            current.close();
+        }
+        receivers.shutdown();
+        completer.shutdown();
+    }
+
+    /**
+     * Sends a request, the future is completed once the reply is read.
+     *
+     * @param request  writes the request
+     * @param reply    reads the reply
+     * @param <T>      type of the result
+     * @return a future of the result
+     */
+    private <T> CompletableFuture<T> call(Request request, Reply<T> reply) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            window.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.completeExceptionally(new Bmv2RuntimeException(e));
+            return future;
+        }
+
+        Channel current = null;
+        try {
+            // Fail fast while the device is being reconnected.
+            breaker.checkCall();
+            current = channel();
+            current.send(request, reply, future);
+        } catch (TException e) {
+            log.debug("Exception while sending request: {} > deviceId={}", e, deviceId);
+            window.release();
+            if (current != null) {
+                // A request may be partially written, the connection is out of sync.
+                drop(current);
+            }
+            future.completeExceptionally(parseTException(e));
+        }
+        return future;
+    }
+
+    private void complete(Runnable completion) {
+        try {
+            completer.execute(completion);
+        } catch (RejectedExecutionException e) {
+            // The client is closed, the last calls fail on the receiver thread.
+            completion.run();
+        }
+    }
+
+    /**
+     * Returns the current connection, opening it if needed. The socket is opened outside of the monitor of this
+     * client, and callers arriving meanwhile wait for the same attempt rather than each opening their own.
+     */
+    private Channel channel() throws TTransportException {
+        CompletableFuture<Channel> attempt;
+        boolean connect = false;
+        synchronized (this) {
+            if (closed) {
+                throw new TTransportException(TTransportException.NOT_OPEN, "Client is closed");
+            }
+            if (channel != null) {
+                return channel;
+            }
+            if (connecting == null) {
+                connecting = new CompletableFuture<>();
+                connect = true;
+            }
+            attempt = connecting;
+        }
+        if (connect) {
+            connect(attempt);
+        }
+        try {
+            return attempt.get();
+        } catch (ExecutionException e) {
+            throw (TTransportException) e.getCause();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TTransportException(TTransportException.UNKNOWN, e);
+        }
+    }
+
+    private void connect(CompletableFuture<Channel> attempt) {
+        log.debug("Opening pipelined connection... > deviceId={}", deviceId);
+        Channel opened = new Channel(new TSocket(device.thriftServerHost(), device.thriftServerPort(),
+                SOCKET_TIMEOUT));
+        try {
+            opened.transport.open();
+        } catch (TTransportException e) {
+            synchronized (this) {
+                connecting = null;
+            }
+            attempt.completeExceptionally(e);
+            return;
+        }
+        boolean added;
+        synchronized (this) {
+            connecting = null;
+            added = !closed;
+            if (added) {
+                channel = opened;
+                receivers.execute(opened::receive);
+            }
+        }
+        if (added) {
+            attempt.complete(opened);
+        } else {
+            opened.close();
+            attempt.completeExceptionally(new TTransportException(TTransportException.NOT_OPEN, "Client is closed"));
+        }
+    }
+
+    /**
+     * Drops the given connection, the next call opens a new one.
+     */
+    private void drop(Channel dropped) {
+        synchronized (this) {
+            if (channel == dropped) {
+                channel = null;
+            }
+        }
+        dropped.close();
+    }
+
+    /**
+     * Writes a request.
+     */
+    @FunctionalInterface
+    private interface Request {
+        void write(PipelinedClient client) throws TException;
+    }
+
+    /**
+     * Reads the reply of a request.
+     *
+     * @param <T> type of the result
+     */
+    @FunctionalInterface
+    private interface Reply<T> {
+        T read(PipelinedClient client) throws TException;
+    }
+
+    /**
+     * A request waiting for its reply.
+     *
+     * @param <T> type of the result
+     */
+    private static final class PendingCall<T> {
+        private final int sequenceId;
+        private final Reply<T> reply;
+        private final CompletableFuture<T> future;
+
+        PendingCall(int sequenceId, Reply<T> reply, CompletableFuture<T> future) {
+            this.sequenceId = sequenceId;
+            this.reply = reply;
+            this.future = future;
+        }
+    }
+
+    /**
+     * A standard client whose replies are read by another client than the one sending the requests.
+     */
+    private static final class PipelinedClient extends Standard.Client {
+
+        PipelinedClient(TProtocol in, TProtocol out) {
+            super(in, out);
+        }
+
+        /**
+         * Returns the sequence ID of the last request written.
+         */
+        int sequenceId() {
+            return seqid_;
+        }
+
+        /**
+         * Sets the sequence ID of the next reply to read.
+         */
+        void expect(int sequenceId) {
+            seqid_ = sequenceId;
+        }
+    }
+
+    /**
+     * A pipelined connection. Requests and replies use their own protocols over the same socket, so that the
+     * sender and the receiver do not share any state.
+     */
+    private final class Channel {
+        private final TTransport transport;
+        private final PipelinedClient sender;
+        private final PipelinedClient receiver;
+        private final BlockingQueue<PendingCall<?>> pending = new LinkedBlockingQueue<>();
+        private final PendingCall<?> closeMarker = new PendingCall<>(-1, null, null);
+        private volatile boolean open = true;
+
+        Channel(TTransport transport) {
+            this.transport = transport;
+            TProtocol out = new TMultiplexedProtocol(new TBinaryProtocol(transport), "standard");
+            this.sender = new PipelinedClient(new TBinaryProtocol(transport), out);
+            this.receiver = new PipelinedClient(new TBinaryProtocol(transport), out);
+        }
+
+        /**
+         * Writes a request and queues its call. Requests are written one at a time, and queued in the order they
+         * are written.
+         */
+        synchronized <T> void send(Request request, Reply<T> reply, CompletableFuture<T> future) throws TException {
+            if (!open) {
+                throw new TTransportException(TTransportException.NOT_OPEN, "Connection closed");
+            }
+            try {
+                request.write(sender);
+            } catch (RuntimeException e) {
+                // The transport may be closed under the writer, by the receiver or by close().
+                throw new TTransportException(TTransportException.UNKNOWN, e);
+            }
+            pending.add(new PendingCall<>(sender.sequenceId(), reply, future));
+        }
+
+        /**
+         * Reads the replies in the order the requests were written, until the connection is closed or broken.
+         */
+        void receive() {
+            while (true) {
+                PendingCall<?> call;
+                try {
+                    call = pending.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    fail(new TTransportException(TTransportException.NOT_OPEN, "Receiver interrupted"));
+                    return;
+                }
+                if (call == closeMarker) {
+                    fail(new TTransportException(TTransportException.NOT_OPEN, "Connection closed"));
+                    return;
+                }
+                if (!read(call)) {
+                    return;
+                }
+            }
+        }
+
+        private <T> boolean read(PendingCall<T> call) {
+            T result;
+            try {
+                receiver.expect(call.sequenceId);
+                result = call.reply.read(receiver);
+            } catch (Exception e) {
+                window.release();
+                if (!SafeThriftClient.isBroken(e)) {
+                    complete(() -> call.future.completeExceptionally(parseTException((TException) e)));
+                    return true;
+                }
+                log.debug("Exception while reading reply: {} > deviceId={}", e, deviceId);
+                drop(this);
+                TException cause = e instanceof TException ? (TException) e : new TException(e);
+                complete(() -> call.future.completeExceptionally(parseTException(cause)));
+                fail(cause);
+                return false;
+            }
+            window.release();
+            complete(() -> call.future.complete(result));
+            return true;
+        }
+
+        /**
+         * Fails the calls still waiting for a reply. No call is queued any more once the channel is closed.
+         */
+        private void fail(TException cause) {
+            PendingCall<?> call;
+            while ((call = pending.poll()) != null) {
+                if (call != closeMarker) {
+                    window.release();
+                    CompletableFuture<?> future = call.future;
+                    complete(() -> future.completeExceptionally(parseTException(cause)));
+                }
+            }
+        }
+
+        /**
+         * Closes the connection, the calls in flight fail once the receiver reaches them.
+         */
+        void close() {
+            open = false;
+            // Closing the transport first unblocks a writer waiting for the device.
+            closeTransport();
+            synchronized (this) {
+                // Queued after the calls already written, none is written after it.
+                pending.add(closeMarker);
+            }
+        }
+
+        private void closeTransport() {
+            try {
+                if (transport.isOpen()) {
+                    transport.close();
+                }
+            } catch (Exception e) {
+                // Thrift seems to have a bug where if the transport is already closed a SocketException is thrown.
+                log.debug("Exception while closing transport", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2016-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.bmv2.ctl;
+
+import com.google.common.collect.ImmutableList;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TMultiplexedProtocol;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.TTransportException;
+import org.onosproject.bmv2.api.runtime.Bmv2Device;
+import org.onosproject.bmv2.thriftapi.SimpleSwitch;
+import org.onosproject.bmv2.thriftapi.Standard;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Pool of Thrift connections to a BMv2 device. Each connection has its own transport, hence calls over different
+ * connections do not wait for each other. Calls on the same table entry always use the same connection, so that they
+ * are executed in the order they are issued.
+ */
+final class Bmv2ClientPool {
+
+    private final ImmutableList<SafeThriftClient.Connection> connections;
+    private final ImmutableList<Standard.Iface> standardClients;
+    private final ImmutableList<SimpleSwitch.Iface> simpleSwitchClients;
+    private final SafeThriftClient.CircuitBreaker breaker;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * Creates a new pool of connections to the given device. Connections are opened on the first call.
+     *
+     * @param device  a BMv2 device
+     * @param size    number of connections
+     * @param breaker circuit breaker of the device, shared by all the connections
+     */
+    Bmv2ClientPool(Bmv2Device device, int size, SafeThriftClient.CircuitBreaker breaker) {
+        checkArgument(size > 0, "pool size must be positive");
+        ImmutableList.Builder<SafeThriftClient.Connection> connectionBuilder = ImmutableList.builder();
+        ImmutableList.Builder<Standard.Iface> standardBuilder = ImmutableList.builder();
+        ImmutableList.Builder<SimpleSwitch.Iface> simpleSwitchBuilder = ImmutableList.builder();
+        for (int i = 0; i < size; i++) {
+            TTransport transport = new TSocket(device.thriftServerHost(), device.thriftServerPort());
+            TProtocol protocol = new TBinaryProtocol(transport);
+            // Clients of the same connection automatically have synchronization and resiliency to connectivity errors
+            SafeThriftClient.Connection connection = new SafeThriftClient.Connection(transport, breaker);
+            // Our BMv2 device implements multiple Thrift services, create a client for each one on the same transport.
+            connectionBuilder.add(connection);
+            standardBuilder.add(SafeThriftClient.standardClient(
+                    new TMultiplexedProtocol(protocol, "standard"), connection));
+            simpleSwitchBuilder.add(SafeThriftClient.simpleSwitchClient(
+                    new TMultiplexedProtocol(protocol, "simple_switch"), connection));
+        }
+        this.connections = connectionBuilder.build();
+        this.standardClients = standardBuilder.build();
+        this.simpleSwitchClients = simpleSwitchBuilder.build();
+        this.breaker = breaker;
+    }
+
+    /**
+     * Returns the number of connections of this pool.
+     *
+     * @return an integer value
+     */
+    int size() {
+        return connections.size();
+    }
+
+    /**
+     * Returns the standard client of the next connection, in round-robin order.
+     *
+     * @return a standard client
+     */
+    Standard.Iface standardClient() {
+        return standardClients.get(nextIndex());
+    }
+
+    /**
+     * Returns the standard client of the connection serving the given table entry.
+     *
+     * @param tableName a table name
+     * @param entryId   an entry id
+     * @return a standard client
+     */
+    Standard.Iface standardClient(String tableName, long entryId) {
+        return standardClients.get(entryIndex(tableName, entryId));
+    }
+
+    /**
+     * Returns the simple switch client of the next connection, in round-robin order.
+     *
+     * @return a simple switch client
+     */
+    SimpleSwitch.Iface simpleSwitchClient() {
+        return simpleSwitchClients.get(nextIndex());
+    }
+
+    /**
+     * Executes the given calls pipelined over the connection at the given index, see
+     * {@link SafeThriftClient#pipeline(Standard.Iface, List)}.
+     *
+     * @param index index of a connection, as returned by {@link #nextIndex()} or {@link #entryIndex(String, long)}
+     * @param calls a list of calls
+     * @return the exception of each call, in the same order, or null if the call was successful
+     * @throws TTransportException if the transport cannot be opened, no call has been executed
+     */
+    List<TException> pipeline(int index, List<? extends SafeThriftClient.PipelinedCall> calls)
+            throws TTransportException {
+        return SafeThriftClient.pipeline(standardClients.get(index), calls);
+    }
+
+    /**
+     * Closes the connections of this pool.
+     */
+    void close() {
+        connections.forEach(connection -> {
+            breaker.cancel(connection);
+            connection.close();
+        });
+    }
+
+    /**
+     * Returns the index of the next connection, in round-robin order.
+     *
+     * @return an integer value
+     */
+    int nextIndex() {
+        return Math.floorMod(next.getAndIncrement(), connections.size());
+    }
+
+    /**
+     * Returns the index of the connection serving the given table entry.
+     *
+     * @param tableName a table name
+     * @param entryId   an entry id
+     * @return an integer value
+     */
+    int entryIndex(String tableName, long entryId) {
+        return Math.floorMod(Objects.hash(tableName, entryId), connections.size());
+    }
+}
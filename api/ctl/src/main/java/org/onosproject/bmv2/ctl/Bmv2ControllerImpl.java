@@ -16,29 +16,32 @@
 
 package org.onosproject.bmv2.ctl;
 
+import com.codahale.metrics.Gauge;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 import com.google.common.cache.RemovalListener;
 import com.google.common.cache.RemovalNotification;
 import com.google.common.collect.Maps;
-import org.apache.commons.lang3.tuple.Pair;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.ReferenceCardinality;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.thrift.TException;
 import org.apache.thrift.TProcessor;
-import org.apache.thrift.protocol.TBinaryProtocol;
-import org.apache.thrift.protocol.TMultiplexedProtocol;
 import org.apache.thrift.protocol.TProtocol;
 import org.apache.thrift.transport.TFramedTransport;
-import org.apache.thrift.transport.TSocket;
 import org.apache.thrift.transport.TTransport;
 import org.apache.thrift.transport.TTransportException;
+import org.onlab.metrics.MetricsComponent;
+import org.onlab.metrics.MetricsFeature;
+import org.onlab.metrics.MetricsService;
 import org.onlab.util.ImmutableByteSequence;
+import org.onosproject.bmv2.api.runtime.Bmv2AsyncDeviceAgent;
 import org.onosproject.bmv2.api.runtime.Bmv2Device;
 import org.onosproject.bmv2.api.runtime.Bmv2DeviceAgent;
 import org.onosproject.bmv2.api.runtime.Bmv2RuntimeException;
@@ -47,15 +50,16 @@ import org.onosproject.bmv2.api.service.Bmv2DeviceListener;
 import org.onosproject.bmv2.api.service.Bmv2PacketListener;
 import org.onosproject.bmv2.thriftapi.BmConfig;
 import org.onosproject.bmv2.thriftapi.ControlPlaneService;
-import org.onosproject.bmv2.thriftapi.SimpleSwitch;
-import org.onosproject.bmv2.thriftapi.Standard;
+import org.onosproject.cfg.ComponentConfigService;
 import org.onosproject.core.CoreService;
 import org.onosproject.net.DeviceId;
+import org.osgi.service.component.ComponentContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.InetAddress;
 import java.nio.ByteBuffer;
+import java.util.Dictionary;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
@@ -66,6 +70,8 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Strings.isNullOrEmpty;
+import static org.onlab.util.Tools.get;
 import static org.onlab.util.Tools.groupedThreads;
 import static org.onosproject.bmv2.thriftapi.ControlPlaneService.Processor;
 
@@ -84,20 +90,26 @@ public class Bmv2ControllerImpl implements Bmv2Controller {
     private static final int NUM_CONNECTION_RETRIES = 2;
     // Time between retries in milliseconds.
     private static final int TIME_BETWEEN_RETRIES = 10;
+    // Maximum time between background reconnects in milliseconds, while a device is unreachable.
+    private static final int MAX_TIME_BETWEEN_RETRIES = 5000;
+    // Number of Thrift connections opened to each device, unless set by the component configuration.
+    private static final int DEFAULT_POOL_SIZE = 4;
+    private static final String SERVER_PORT = "serverPort";
+    private static final String POOL_SIZE = "poolSize";
 
     private final Logger log = LoggerFactory.getLogger(this.getClass());
 
     // Cache where clients are removed after a predefined timeout.
-    private final LoadingCache<DeviceId, Pair<TTransport, Bmv2DeviceThriftClient>> agentCache =
+    private final LoadingCache<DeviceId, Bmv2DeviceThriftClient> agentCache =
             CacheBuilder.newBuilder()
                     .expireAfterAccess(CLIENT_CACHE_TIMEOUT, TimeUnit.SECONDS)
                     .removalListener(new ClientRemovalListener())
                     .build(new ClientLoader());
 
-    private final TProcessor trackingProcessor = new TrackingProcessor();
+    // Circuit breakers are kept per device across clients, so that their metrics add up.
+    private final ConcurrentMap<DeviceId, SafeThriftClient.CircuitBreaker> breakers = Maps.newConcurrentMap();
 
-    private final ExecutorService executorService = Executors
-            .newFixedThreadPool(32, groupedThreads("onos/bmv2", "controller", log));
+    private final TProcessor trackingProcessor = new TrackingProcessor();
 
     private final Set<Bmv2DeviceListener> deviceListeners = new CopyOnWriteArraySet<>();
     private final Set<Bmv2PacketListener> packetListeners = new CopyOnWriteArraySet<>();
@@ -105,25 +117,84 @@ public class Bmv2ControllerImpl implements Bmv2Controller {
     @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
     protected CoreService coreService;
 
-    private Bmv2ControlPlaneThriftServer server;
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    protected MetricsService metricsService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    protected ComponentConfigService cfgService;
 
-    // TODO: make it configurable trough component config
+    @Property(name = SERVER_PORT, intValue = DEFAULT_PORT,
+            label = "Port of the Thrift server receiving the hellos and packet-ins of BMv2 devices")
     private int serverPort = DEFAULT_PORT;
 
+    @Property(name = POOL_SIZE, intValue = DEFAULT_POOL_SIZE,
+            label = "Number of Thrift connections opened to each BMv2 device, for the clients created afterwards")
+    private volatile int poolSize = DEFAULT_POOL_SIZE;
+
+    private MetricsComponent metricsComponent;
+    private MetricsFeature breakerFeature;
+
+    private Bmv2ControlPlaneThriftServer server;
+    private ExecutorService executorService;
+
     @Activate
-    public void activate() {
+    public void activate(ComponentContext context) {
+        cfgService.registerProperties(getClass());
         coreService.registerApplication(APP_ID);
+        metricsComponent = metricsService.registerComponent("Bmv2Controller");
+        breakerFeature = metricsComponent.registerFeature("CircuitBreaker");
+        readComponentConfiguration(context);
         startServer(serverPort);
         log.info("Activated");
     }
 
+    @Modified
+    public void modified(ComponentContext context) {
+        int oldServerPort = serverPort;
+        readComponentConfiguration(context);
+        if (serverPort != oldServerPort) {
+            stopServer();
+            startServer(serverPort);
+        }
+    }
+
     @Deactivate
     public void deactivate() {
+        cfgService.unregisterProperties(getClass(), false);
         stopServer();
+        agentCache.invalidateAll();
+        breakers.keySet().forEach(this::unregisterBreakerMetrics);
+        breakers.clear();
         log.info("Deactivated");
     }
 
+    private void readComponentConfiguration(ComponentContext context) {
+        Dictionary<?, ?> properties = context.getProperties();
+        serverPort = getPositiveInt(properties, SERVER_PORT, serverPort);
+        poolSize = getPositiveInt(properties, POOL_SIZE, poolSize);
+        log.info("Configured. serverPort={}, poolSize={}", serverPort, poolSize);
+    }
+
+    private int getPositiveInt(Dictionary<?, ?> properties, String name, int current) {
+        String value = get(properties, name);
+        if (isNullOrEmpty(value)) {
+            return current;
+        }
+        try {
+            int parsed = Integer.parseInt(value.trim());
+            if (parsed > 0) {
+                return parsed;
+            }
+        } catch (NumberFormatException e) {
+            // Logged below.
+        }
+        log.warn("Invalid {} {}, keeping {}", name, value, current);
+        return current;
+    }
+
     private void startServer(int port) {
+        // Stopping the server shuts its executor down, each server gets a new one.
+        executorService = Executors.newFixedThreadPool(32, groupedThreads("onos/bmv2", "controller", log));
         try {
             log.info("Starting server on port {}...", port);
             this.server = new Bmv2ControlPlaneThriftServer(port, trackingProcessor, executorService);
@@ -135,9 +206,10 @@ public class Bmv2ControllerImpl implements Bmv2Controller {
 
     private void stopServer() {
         // Stop the server if running...
-        if (server != null && !server.isServing()) {
+        if (server != null) {
             server.setShouldStop(true);
             server.stop();
+            server = null;
         }
         try {
             executorService.shutdown();
@@ -152,7 +224,17 @@ public class Bmv2ControllerImpl implements Bmv2Controller {
     public Bmv2DeviceAgent getAgent(DeviceId deviceId) throws Bmv2RuntimeException {
         try {
             checkNotNull(deviceId, "deviceId cannot be null");
-            return agentCache.get(deviceId).getRight();
+            return agentCache.get(deviceId);
+        } catch (ExecutionException e) {
+            throw new Bmv2RuntimeException(e);
+        }
+    }
+
+    @Override
+    public Bmv2AsyncDeviceAgent getAsyncAgent(DeviceId deviceId) throws Bmv2RuntimeException {
+        try {
+            checkNotNull(deviceId, "deviceId cannot be null");
+            return agentCache.get(deviceId).asyncClient();
         } catch (ExecutionException e) {
             throw new Bmv2RuntimeException(e);
         }
@@ -162,7 +244,7 @@ public class Bmv2ControllerImpl implements Bmv2Controller {
     public boolean isReacheable(DeviceId deviceId) {
         try {
             Bmv2DeviceThriftClient client = (Bmv2DeviceThriftClient) getAgent(deviceId);
-            BmConfig config = client.standardClient.bm_mgmt_get_info();
+            BmConfig config = client.pool().standardClient().bm_mgmt_get_info();
             // The BMv2 instance running at this thrift IP and port might have a different BMv2 internal ID.
             return config.getDevice_id() == Integer.valueOf(deviceId.uri().getFragment());
         } catch (Bmv2RuntimeException | TException e) {
@@ -194,23 +276,38 @@ public class Bmv2ControllerImpl implements Bmv2Controller {
         packetListeners.remove(listener);
     }
 
+    private SafeThriftClient.CircuitBreaker createBreaker(DeviceId deviceId) {
+        SafeThriftClient.CircuitBreaker breaker = new SafeThriftClient.CircuitBreaker(new SafeThriftClient.Options(
+                NUM_CONNECTION_RETRIES, TIME_BETWEEN_RETRIES, MAX_TIME_BETWEEN_RETRIES));
+        registerBreakerMetric(deviceId, "state", () -> breaker.state().name());
+        registerBreakerMetric(deviceId, "trips", breaker::trips);
+        registerBreakerMetric(deviceId, "reconnectAttempts", breaker::reconnectAttempts);
+        registerBreakerMetric(deviceId, "reconnects", breaker::reconnects);
+        registerBreakerMetric(deviceId, "rejectedCalls", breaker::rejectedCalls);
+        return breaker;
+    }
+
+    private <T> void registerBreakerMetric(DeviceId deviceId, String name, Gauge<T> gauge) {
+        metricsService.registerMetric(metricsComponent, breakerFeature, deviceId + "." + name, gauge);
+    }
+
+    private void unregisterBreakerMetrics(DeviceId deviceId) {
+        for (String name : new String[]{"state", "trips", "reconnectAttempts", "reconnects", "rejectedCalls"}) {
+            metricsService.removeMetric(metricsComponent, breakerFeature, deviceId + "." + name);
+        }
+    }
+
     /**
-     * Client cache removal listener. Close the connection on cache removal.
+     * Client cache removal listener. Close the connections on cache removal.
      */
     private static class ClientRemovalListener implements
-            RemovalListener<DeviceId, Pair<TTransport, Bmv2DeviceThriftClient>> {
+            RemovalListener<DeviceId, Bmv2DeviceThriftClient> {
 
         @Override
-        public void onRemoval(RemovalNotification<DeviceId, Pair<TTransport, Bmv2DeviceThriftClient>> notification) {
-            // close the transport connection
-            Bmv2DeviceThriftClient client = notification.getValue().getRight();
-            TTransport transport = notification.getValue().getLeft();
-            // Locking here is ugly, but needed (see SafeThriftClient).
-            synchronized (transport) {
-                if (transport.isOpen()) {
-                    transport.close();
-                }
-            }
+        public void onRemoval(RemovalNotification<DeviceId, Bmv2DeviceThriftClient> notification) {
+            // close the transport connections
+            notification.getValue().pool().close();
+            notification.getValue().asyncClient().close();
         }
     }
 
@@ -291,36 +388,18 @@ public class Bmv2ControllerImpl implements Bmv2Controller {
     /**
      * Cache loader of BMv2 Thrift clients.
      */
-    private class ClientLoader extends CacheLoader<DeviceId, Pair<TTransport, Bmv2DeviceThriftClient>> {
-
-        private final SafeThriftClient.Options options = new SafeThriftClient.Options(NUM_CONNECTION_RETRIES,
-                TIME_BETWEEN_RETRIES);
+    private class ClientLoader extends CacheLoader<DeviceId, Bmv2DeviceThriftClient> {
 
         @Override
-        public Pair<TTransport, Bmv2DeviceThriftClient> load(DeviceId deviceId)
-                throws TTransportException {
-            log.debug("Instantiating new client... > deviceId={}", deviceId);
+        public Bmv2DeviceThriftClient load(DeviceId deviceId) {
+            log.debug("Instantiating new client... > deviceId={}, poolSize={}", deviceId, poolSize);
             // Make the expensive call
             Bmv2Device device = Bmv2Device.of(deviceId);
-            TTransport transport = new TSocket(device.thriftServerHost(), device.thriftServerPort());
-            TProtocol protocol = new TBinaryProtocol(transport);
-            // Our BMv2 device implements multiple Thrift services, create a client for each one on the same transport.
-            Standard.Client standardClient = new Standard.Client(
-                    new TMultiplexedProtocol(protocol, "standard"));
-            SimpleSwitch.Client simpleSwitch = new SimpleSwitch.Client(
-                    new TMultiplexedProtocol(protocol, "simple_switch"));
-            // Wrap clients so to automatically have synchronization and resiliency to connectivity errors
-            Standard.Iface safeStandardClient = SafeThriftClient.wrap(standardClient,
-                    Standard.Iface.class,
-                    options);
-            SimpleSwitch.Iface safeSimpleSwitchClient = SafeThriftClient.wrap(simpleSwitch,
-                    SimpleSwitch.Iface.class,
-                    options);
-            Bmv2DeviceThriftClient client = new Bmv2DeviceThriftClient(deviceId,
-                    transport,
-                    safeStandardClient,
-                    safeSimpleSwitchClient);
-            return Pair.of(transport, client);
+            SafeThriftClient.CircuitBreaker breaker = breakers.computeIfAbsent(deviceId,
+                    Bmv2ControllerImpl.this::createBreaker);
+            // Calls are dispatched across a pool of connections, so that they do not all queue behind one socket.
+            return new Bmv2DeviceThriftClient(deviceId, new Bmv2ClientPool(device, poolSize, breaker),
+                    new Bmv2AsyncDeviceThriftClient(deviceId, breaker));
         }
     }
 }
@@ -207,14 +207,15 @@ public class Bmv2DeviceContextServiceImpl implements Bmv2DeviceContextService {
             try {
                 // FIXME: JSON dump is heavy, can we use the JSON MD5 to check the running configuration?
                 String jsonString = controller.getAgent(deviceId).dumpJsonConfig();
-                Bmv2Configuration deviceConfiguration = parse(Json.parse(jsonString).asObject());
+                Bmv2Configuration storedConfiguration = storedContext.configuration();
 
-                if (!storedContext.configuration().equals(deviceConfiguration)) {
+                // The text is compared first, the device may only format the same JSON differently.
+                if (!storedConfiguration.jsonString().equals(jsonString)
+                        && !storedConfiguration.json().equals(Json.parse(jsonString).asObject())) {
                     log.info("Triggering configuration swap on {}...", deviceId);
                     try {
                         Bmv2DeviceAgent agent = controller.getAgent(deviceId);
-                        String newJsonString = storedContext.configuration().json().toString();
-                        agent.uploadNewJsonConfig(newJsonString);
+                        agent.uploadNewJsonConfig(storedConfiguration.jsonString());
                         agent.swapJsonConfig();
                     } catch (Bmv2RuntimeException e) {
                         log.error("Unable to swap configuration on {}: {}", deviceId, e.explain());
@@ -263,7 +264,7 @@ public class Bmv2DeviceContextServiceImpl implements Bmv2DeviceContextService {
 
         @Override
         public void write(Kryo kryo, Output output, Bmv2DeviceContext context) {
-            kryo.writeObject(output, context.configuration().json().toString());
+            kryo.writeObject(output, context.configuration().jsonString());
             kryo.writeObject(output, context.interpreter().getClass().getName());
         }
 
@@ -271,7 +272,7 @@ public class Bmv2DeviceContextServiceImpl implements Bmv2DeviceContextService {
         public Bmv2DeviceContext read(Kryo kryo, Input input, Class<Bmv2DeviceContext> type) {
             String jsonStr = kryo.readObject(input, String.class);
             String interpreterClassName = kryo.readObject(input, String.class);
-            Bmv2Configuration configuration = parse(Json.parse(jsonStr).asObject());
+            Bmv2Configuration configuration = parse(jsonStr);
             ClassLoader loader = interpreterClassLoaders.get(interpreterClassName);
             if (loader == null) {
                 throw new IllegalStateException("No class loader registered for interpreter: " + interpreterClassName);
@@ -17,9 +17,10 @@
 package org.onosproject.bmv2.ctl;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import org.apache.commons.lang3.tuple.Pair;
+import org.apache.commons.lang3.tuple.Triple;
 import org.apache.thrift.TException;
-import org.apache.thrift.transport.TTransport;
 import org.onlab.util.ImmutableByteSequence;
 import org.onosproject.bmv2.api.runtime.Bmv2Action;
 import org.onosproject.bmv2.api.runtime.Bmv2DeviceAgent;
@@ -31,6 +32,7 @@ import org.onosproject.bmv2.api.runtime.Bmv2ParsedTableEntry;
 import org.onosproject.bmv2.api.runtime.Bmv2PortInfo;
 import org.onosproject.bmv2.api.runtime.Bmv2RuntimeException;
 import org.onosproject.bmv2.api.runtime.Bmv2TableEntry;
+import org.onosproject.bmv2.api.runtime.Bmv2TableEntryResult;
 import org.onosproject.bmv2.api.runtime.Bmv2TernaryMatchParam;
 import org.onosproject.bmv2.api.runtime.Bmv2ValidMatchParam;
 import org.onosproject.bmv2.thriftapi.BmActionEntry;
@@ -50,8 +52,12 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.function.IntFunction;
 import java.util.stream.Collectors;
 
 import static org.onlab.util.ImmutableByteSequence.copyFrom;
@@ -65,19 +71,35 @@ public final class Bmv2DeviceThriftClient implements Bmv2DeviceAgent {
     // FIXME: make context_id arbitrary for each call
     // See: https://github.com/p4lang/behavioral-model/blob/master/modules/bm_sim/include/bm_sim/context.h
     private static final int CONTEXT_ID = 0;
-    protected final Standard.Iface standardClient;
     private final Logger log = LoggerFactory.getLogger(this.getClass());
-    private final SimpleSwitch.Iface simpleSwitchClient;
-    private final TTransport transport;
+    private final Bmv2ClientPool pool;
+    private final Bmv2AsyncDeviceThriftClient asyncClient;
     private final DeviceId deviceId;
 
     // ban constructor
-    protected Bmv2DeviceThriftClient(DeviceId deviceId, TTransport transport, Standard.Iface standardClient,
-                                     SimpleSwitch.Iface simpleSwitchClient) {
+    protected Bmv2DeviceThriftClient(DeviceId deviceId, Bmv2ClientPool pool,
+                                     Bmv2AsyncDeviceThriftClient asyncClient) {
         this.deviceId = deviceId;
-        this.transport = transport;
-        this.standardClient = standardClient;
-        this.simpleSwitchClient = simpleSwitchClient;
+        this.pool = pool;
+        this.asyncClient = asyncClient;
+    }
+
+    /**
+     * Returns the pool of connections used by this client.
+     *
+     * @return a client pool
+     */
+    Bmv2ClientPool pool() {
+        return pool;
+    }
+
+    /**
+     * Returns the pipelined asynchronous client of the device, owned by this client.
+     *
+     * @return an asynchronous client
+     */
+    Bmv2AsyncDeviceThriftClient asyncClient() {
+        return asyncClient;
     }
 
     /**
@@ -86,7 +108,7 @@ public final class Bmv2DeviceThriftClient implements Bmv2DeviceAgent {
      * @param matchKey a bmv2 matchKey
      * @return list of thrift-compatible bm match parameters
      */
-    private static List<BmMatchParam> buildMatchParamsList(Bmv2MatchKey matchKey) {
+    static List<BmMatchParam> buildMatchParamsList(Bmv2MatchKey matchKey) {
         List<BmMatchParam> paramsList = Lists.newArrayList();
         matchKey.matchParams().forEach(x -> {
             ByteBuffer value;
@@ -132,7 +154,7 @@ public final class Bmv2DeviceThriftClient implements Bmv2DeviceAgent {
      * @param action an action object
      * @return list of ByteBuffers
      */
-    private static List<ByteBuffer> buildActionParamsList(Bmv2Action action) {
+    static List<ByteBuffer> buildActionParamsList(Bmv2Action action) {
         List<ByteBuffer> buffers = Lists.newArrayList();
         action.parameters().forEach(p -> buffers.add(ByteBuffer.wrap(p.asArray())));
         return buffers;
@@ -146,7 +168,7 @@ public final class Bmv2DeviceThriftClient implements Bmv2DeviceAgent {
     @Override
     public boolean ping() {
         try {
-            return this.simpleSwitchClient.ping();
+            return pool.simpleSwitchClient().ping();
         } catch (TException e) {
             return false;
         }
@@ -158,6 +180,8 @@ public final class Bmv2DeviceThriftClient implements Bmv2DeviceAgent {
         log.debug("Adding table entry... > deviceId={}, entry={}", deviceId, entry);
 
         long entryId = -1;
+        // Entries do not have an id yet, hence any connection would do.
+        Standard.Iface standardClient = pool.standardClient();
 
         try {
             BmAddEntryOptions options = new BmAddEntryOptions();
@@ -209,7 +233,7 @@ public final class Bmv2DeviceThriftClient implements Bmv2DeviceAgent {
         log.debug("Modifying table entry... > deviceId={}, entryId={}/{}", deviceId, tableName, entryId);
 
         try {
-            standardClient.bm_mt_modify_entry(
+            pool.standardClient(tableName, entryId).bm_mt_modify_entry(
                     CONTEXT_ID,
                     tableName,
                     entryId,
@@ -230,7 +254,7 @@ public final class Bmv2DeviceThriftClient implements Bmv2DeviceAgent {
         log.debug("Deleting table entry... > deviceId={}, entryId={}/{}", deviceId, tableName, entryId);
 
         try {
-            standardClient.bm_mt_delete_entry(CONTEXT_ID, tableName, entryId);
+            pool.standardClient(tableName, entryId).bm_mt_delete_entry(CONTEXT_ID, tableName, entryId);
             log.debug("Table entry deleted! > deviceId={}, entryId={}/{}", deviceId, tableName, entryId);
         } catch (TException e) {
             log.debug("Exception while deleting table entry: {} > deviceId={}, entryId={}/{}",
@@ -239,6 +263,181 @@ public final class Bmv2DeviceThriftClient implements Bmv2DeviceAgent {
         }
     }
 
+    @Override
+    public List<Bmv2TableEntryResult> addTableEntries(List<Bmv2TableEntry> entries) {
+
+        log.debug("Adding table entries... > deviceId={}, entries={}", deviceId, entries.size());
+
+        Bmv2TableEntryResult[] results = new Bmv2TableEntryResult[entries.size()];
+        List<EntryCall> adds = Lists.newArrayList();
+        for (int i = 0; i < entries.size(); i++) {
+            try {
+                adds.add(addCall(i, entries.get(i)));
+            } catch (RuntimeException e) {
+                // e.g. an entry which cannot be encoded, fails on its own.
+                results[i] = Bmv2TableEntryResult.failure(new Bmv2RuntimeException(e));
+            }
+        }
+
+        // Entries do not have an id yet, hence any connection would do. All the phases use the same one.
+        int connection = pool.nextIndex();
+        execute(connection, adds, results);
+
+        // Then the timeouts of the entries added, which need their ids.
+        List<EntryCall> ttls = adds.stream()
+                .filter(add -> results[add.index].isSuccess() && entries.get(add.index).hasTimeout())
+                .map(add -> ttlCall(add, entries.get(add.index).timeout()))
+                .collect(Collectors.toList());
+        execute(connection, ttls, results);
+
+        // Then the removal of the entries whose timeout could not be set, they are in an inconsistent state.
+        List<EntryCall> rollbacks = ttls.stream()
+                .filter(ttl -> !results[ttl.index].isSuccess())
+                .map(ttl -> deleteCall(ttl.index, ttl.tableName, ttl.entryId))
+                .collect(Collectors.toList());
+        List<Bmv2RuntimeException> exceptions = pipeline(connection, rollbacks);
+        for (int i = 0; i < rollbacks.size(); i++) {
+            EntryCall rollback = rollbacks.get(i);
+            if (exceptions.get(i) != null) {
+                log.warn("Unable to remove table entry after failing to set its timeout: {} > deviceId={}, "
+                        + "entryId={}/{}", exceptions.get(i), deviceId, rollback.tableName, rollback.entryId);
+                results[rollback.index] = Bmv2TableEntryResult.failure(
+                        rollback.entryId, results[rollback.index].exception());
+            }
+        }
+
+        return done(results);
+    }
+
+    @Override
+    public List<Bmv2TableEntryResult> modifyTableEntries(List<Triple<String, Long, Bmv2Action>> entries) {
+
+        log.debug("Modifying table entries... > deviceId={}, entries={}", deviceId, entries.size());
+
+        return executeByEntry(entries.size(), i -> {
+            Triple<String, Long, Bmv2Action> entry = entries.get(i);
+            return modifyCall(i, entry.getLeft(), entry.getMiddle(), entry.getRight());
+        });
+    }
+
+    @Override
+    public List<Bmv2TableEntryResult> deleteTableEntries(List<Pair<String, Long>> entries) {
+
+        log.debug("Deleting table entries... > deviceId={}, entries={}", deviceId, entries.size());
+
+        return executeByEntry(entries.size(), i -> deleteCall(i, entries.get(i).getLeft(), entries.get(i).getRight()));
+    }
+
+    /**
+     * Executes the calls of existing entries, pipelined over the connection serving each entry, so that they are
+     * ordered with the single-entry calls on the same entries.
+     *
+     * @param size      number of entries
+     * @param operation builds the call of the entry at the given index
+     * @return a list of results, one per entry in the same order
+     */
+    private List<Bmv2TableEntryResult> executeByEntry(int size, IntFunction<EntryCall> operation) {
+        Bmv2TableEntryResult[] results = new Bmv2TableEntryResult[size];
+        Map<Integer, List<EntryCall>> callsByConnection = Maps.newTreeMap();
+        for (int i = 0; i < size; i++) {
+            try {
+                EntryCall call = operation.apply(i);
+                callsByConnection.computeIfAbsent(pool.entryIndex(call.tableName, call.entryId),
+                        k -> Lists.newArrayList()).add(call);
+            } catch (RuntimeException e) {
+                // e.g. an entry which cannot be encoded, fails on its own.
+                results[i] = Bmv2TableEntryResult.failure(new Bmv2RuntimeException(e));
+            }
+        }
+        callsByConnection.forEach((connection, calls) -> execute(connection, calls, results));
+        return done(results);
+    }
+
+    /**
+     * Executes the given calls pipelined over a connection, then sets the result of each one.
+     */
+    private void execute(int connection, List<EntryCall> calls, Bmv2TableEntryResult[] results) {
+        List<Bmv2RuntimeException> exceptions = pipeline(connection, calls);
+        for (int i = 0; i < calls.size(); i++) {
+            EntryCall call = calls.get(i);
+            results[call.index] = exceptions.get(i) == null ?
+                    Bmv2TableEntryResult.success(call.entryId) : Bmv2TableEntryResult.failure(exceptions.get(i));
+        }
+    }
+
+    /**
+     * Executes the given calls pipelined over a connection.
+     *
+     * @return the exception of each call, in the same order, or null if the call was successful
+     */
+    private List<Bmv2RuntimeException> pipeline(int connection, List<EntryCall> calls) {
+        if (calls.isEmpty()) {
+            return Collections.emptyList();
+        }
+        try {
+            return pool.pipeline(connection, calls).stream()
+                    .map(e -> e == null ? null : parseTException(e))
+                    .collect(Collectors.toList());
+        } catch (TException e) {
+            log.debug("Exception while executing table entry calls: {} > deviceId={}", e, deviceId);
+            return Collections.nCopies(calls.size(), parseTException(e));
+        }
+    }
+
+    private List<Bmv2TableEntryResult> done(Bmv2TableEntryResult[] results) {
+        log.debug("Table entries done! > deviceId={}, failed={}", deviceId,
+                Arrays.stream(results).filter(r -> !r.isSuccess()).count());
+        return Arrays.asList(results);
+    }
+
+    private static EntryCall addCall(int index, Bmv2TableEntry entry) {
+        BmAddEntryOptions options = new BmAddEntryOptions();
+        if (entry.hasPriority()) {
+            options.setPriority(entry.priority());
+        }
+        List<BmMatchParam> matchParams = buildMatchParamsList(entry.matchKey());
+        List<ByteBuffer> actionParams = buildActionParamsList(entry.action());
+        return new EntryCall(index, entry.tableName(), -1,
+                client -> client.send_bm_mt_add_entry(
+                        CONTEXT_ID,
+                        entry.tableName(),
+                        matchParams,
+                        entry.action().name(),
+                        actionParams,
+                        options),
+                Standard.Client::recv_bm_mt_add_entry);
+    }
+
+    private static EntryCall ttlCall(EntryCall add, double timeout) {
+        /* bmv2 accepts timeouts in milliseconds */
+        int msTimeout = (int) Math.round(timeout * 1_000);
+        return new EntryCall(add.index, add.tableName, add.entryId,
+                client -> client.send_bm_mt_set_entry_ttl(CONTEXT_ID, add.tableName, add.entryId, msTimeout),
+                client -> {
+                    client.recv_bm_mt_set_entry_ttl();
+                    return add.entryId;
+                });
+    }
+
+    private static EntryCall modifyCall(int index, String tableName, long entryId, Bmv2Action action) {
+        List<ByteBuffer> actionParams = buildActionParamsList(action);
+        return new EntryCall(index, tableName, entryId,
+                client -> client.send_bm_mt_modify_entry(CONTEXT_ID, tableName, entryId, action.name(), actionParams),
+                client -> {
+                    client.recv_bm_mt_modify_entry();
+                    return entryId;
+                });
+    }
+
+    private static EntryCall deleteCall(int index, String tableName, long entryId) {
+        return new EntryCall(index, tableName, entryId,
+                client -> client.send_bm_mt_delete_entry(CONTEXT_ID, tableName, entryId),
+                client -> {
+                    client.recv_bm_mt_delete_entry();
+                    return entryId;
+                });
+    }
+
     @Override
     public final void setTableDefaultAction(String tableName, Bmv2Action action)
             throws Bmv2RuntimeException {
@@ -246,7 +445,7 @@ public final class Bmv2DeviceThriftClient implements Bmv2DeviceAgent {
         log.debug("Setting table default... > deviceId={}, tableName={}, action={}", deviceId, tableName, action);
 
         try {
-            standardClient.bm_mt_set_default_action(
+            pool.standardClient().bm_mt_set_default_action(
                     CONTEXT_ID,
                     tableName,
                     action.name(),
@@ -265,7 +464,7 @@ public final class Bmv2DeviceThriftClient implements Bmv2DeviceAgent {
         log.debug("Retrieving port info... > deviceId={}", deviceId);
 
         try {
-            return standardClient.bm_dev_mgr_show_ports().stream()
+            return pool.standardClient().bm_dev_mgr_show_ports().stream()
                     .map(p -> new Bmv2PortInfo(p.getIface_name(), p.getPort_num(), p.isIs_up()))
                     .collect(Collectors.toList());
         } catch (TException e) {
@@ -281,7 +480,7 @@ public final class Bmv2DeviceThriftClient implements Bmv2DeviceAgent {
 
         List<BmMtEntry> bmEntries;
         try {
-            bmEntries = standardClient.bm_mt_get_entries(CONTEXT_ID, tableName);
+            bmEntries = pool.standardClient().bm_mt_get_entries(CONTEXT_ID, tableName);
         } catch (TException e) {
             log.debug("Exception while retrieving table entries: {} > deviceId={}, tableName={}",
                     e, deviceId, tableName);
@@ -349,7 +548,7 @@ public final class Bmv2DeviceThriftClient implements Bmv2DeviceAgent {
 
         try {
 
-            simpleSwitchClient.packet_out(portNumber, ByteBuffer.wrap(packet.asArray()));
+            pool.simpleSwitchClient().packet_out(portNumber, ByteBuffer.wrap(packet.asArray()));
             log.debug("Packet transmission requested! > portNumber={}, packetSize={}", portNumber, packet.size());
         } catch (TException e) {
             log.debug("Exception while requesting packet transmission: {} > portNumber={}, packetSize={}",
@@ -364,7 +563,7 @@ public final class Bmv2DeviceThriftClient implements Bmv2DeviceAgent {
         log.debug("Resetting device state... > deviceId={}", deviceId);
 
         try {
-            standardClient.bm_reset_state();
+            pool.standardClient().bm_reset_state();
             log.debug("Device state reset! > deviceId={}", deviceId);
         } catch (TException e) {
             log.debug("Exception while resetting device state: {} > deviceId={}", e, deviceId);
@@ -378,7 +577,7 @@ public final class Bmv2DeviceThriftClient implements Bmv2DeviceAgent {
         log.debug("Dumping device config... > deviceId={}", deviceId);
 
         try {
-            String config = standardClient.bm_get_config();
+            String config = pool.standardClient().bm_get_config();
             log.debug("Device config dumped! > deviceId={}, configLength={}", deviceId, config.length());
             return config;
         } catch (TException e) {
@@ -394,7 +593,8 @@ public final class Bmv2DeviceThriftClient implements Bmv2DeviceAgent {
                 deviceId, tableName, entryId);
 
         try {
-            BmCounterValue counterValue = standardClient.bm_mt_read_counter(CONTEXT_ID, tableName, entryId);
+            BmCounterValue counterValue = pool.standardClient(tableName, entryId)
+                    .bm_mt_read_counter(CONTEXT_ID, tableName, entryId);
             log.debug("Table entry counters retrieved! > deviceId={}, tableName={}, entryId={}, bytes={}, packets={}",
                     deviceId, tableName, entryId, counterValue.bytes, counterValue.packets);
             return Pair.of(counterValue.bytes, counterValue.packets);
@@ -412,7 +612,7 @@ public final class Bmv2DeviceThriftClient implements Bmv2DeviceAgent {
                 deviceId, counterName, index);
 
         try {
-            BmCounterValue counterValue = standardClient.bm_counter_read(CONTEXT_ID, counterName, index);
+            BmCounterValue counterValue = pool.standardClient().bm_counter_read(CONTEXT_ID, counterName, index);
             log.debug("Table entry counters retrieved! >deviceId={}, counterName={}, index={}, bytes={}, packets={}",
                     deviceId, counterName, index, counterValue.bytes, counterValue.packets);
             return Pair.of(counterValue.bytes, counterValue.packets);
@@ -427,7 +627,7 @@ public final class Bmv2DeviceThriftClient implements Bmv2DeviceAgent {
     public int getProcessInstanceId() throws Bmv2RuntimeException {
         log.debug("Getting process instance ID... > deviceId={}", deviceId);
         try {
-            int instanceId = simpleSwitchClient.get_process_instance_id();
+            int instanceId = pool.simpleSwitchClient().get_process_instance_id();
             log.debug("TProcess instance ID retrieved! > deviceId={}, instanceId={}",
                     deviceId, instanceId);
             return instanceId;
@@ -443,7 +643,7 @@ public final class Bmv2DeviceThriftClient implements Bmv2DeviceAgent {
         log.debug("Getting device config md5... > deviceId={}", deviceId);
 
         try {
-            String md5 = standardClient.bm_get_config_md5();
+            String md5 = pool.standardClient().bm_get_config_md5();
             log.debug("Device config md5 received! > deviceId={}, configMd5={}", deviceId, md5);
             return md5;
         } catch (TException e) {
@@ -459,7 +659,7 @@ public final class Bmv2DeviceThriftClient implements Bmv2DeviceAgent {
                 deviceId, jsonString.length());
 
         try {
-            standardClient.bm_load_new_config(jsonString);
+            pool.standardClient().bm_load_new_config(jsonString);
             log.debug("JSON config loaded! > deviceId={}", deviceId);
         } catch (TException e) {
             log.debug("Exception while loading JSON config: {} > deviceId={}", e, deviceId);
@@ -473,12 +673,58 @@ public final class Bmv2DeviceThriftClient implements Bmv2DeviceAgent {
         log.debug("Swapping JSON config on device... > deviceId={}", deviceId);
 
         try {
-            standardClient.bm_swap_configs();
-            simpleSwitchClient.force_swap();
+            pool.standardClient().bm_swap_configs();
+            pool.simpleSwitchClient().force_swap();
             log.debug("JSON config swapped! > deviceId={}", deviceId);
         } catch (TException e) {
             log.debug("Exception while swapping JSON config: {} > deviceId={}", e, deviceId);
             throw parseTException(e);
         }
     }
+
+    /**
+     * Sends the request of an entry call.
+     */
+    @FunctionalInterface
+    private interface Request {
+        void send(Standard.Client client) throws TException;
+    }
+
+    /**
+     * Receives the reply of an entry call, returns the id of the entry.
+     */
+    @FunctionalInterface
+    private interface Reply {
+        long receive(Standard.Client client) throws TException;
+    }
+
+    /**
+     * Call on one table entry of a bulk operation.
+     */
+    private static final class EntryCall implements SafeThriftClient.PipelinedCall {
+        // Index of the entry in the bulk operation.
+        private final int index;
+        private final String tableName;
+        private final Request request;
+        private final Reply reply;
+        private long entryId;
+
+        private EntryCall(int index, String tableName, long entryId, Request request, Reply reply) {
+            this.index = index;
+            this.tableName = tableName;
+            this.entryId = entryId;
+            this.request = request;
+            this.reply = reply;
+        }
+
+        @Override
+        public void send(Standard.Client client) throws TException {
+            request.send(client);
+        }
+
+        @Override
+        public void receive(Standard.Client client) throws TException {
+            entryId = reply.receive(client);
+        }
+    }
 }
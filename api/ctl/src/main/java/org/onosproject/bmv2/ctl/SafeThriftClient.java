@@ -22,21 +22,42 @@
 package org.onosproject.bmv2.ctl;
 
 import com.google.common.collect.ImmutableSet;
-import org.apache.thrift.TServiceClient;
+import com.google.common.collect.Maps;
+import org.apache.thrift.TApplicationException;
+import org.apache.thrift.TBase;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolException;
+import org.apache.thrift.transport.TSocket;
 import org.apache.thrift.transport.TTransport;
 import org.apache.thrift.transport.TTransportException;
+import org.onlab.util.SharedScheduledExecutors;
+import org.onosproject.bmv2.thriftapi.SimpleSwitch;
+import org.onosproject.bmv2.thriftapi.Standard;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.lang.reflect.InvocationHandler;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.lang.reflect.Proxy;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * Thrift client wrapper that attempts a few reconnects before giving up a method call execution. It also provides
- * synchronization between calls over the same transport.
+ * Thrift clients that attempt a few reconnects before giving up a method call execution. They also provide
+ * synchronization between calls over the same transport. If the reconnects fail, a circuit breaker is tripped: calls
+ * fail fast while the transport is reconnected in the background, and go through again once it is back.
+ * <p>
+ * The clients extend the generated ones and hook where every generated call sends its request and receives its reply,
+ * hence calls are dispatched without reflection.
  */
 public final class SafeThriftClient {
 
@@ -50,98 +71,130 @@ public final class SafeThriftClient {
             TTransportException.TIMED_OUT,
             TTransportException.UNKNOWN);
 
+    /**
+     * Maximum number of times the time between background reconnects is doubled.
+     */
+    private static final int MAX_BACKOFF_SHIFT = 20;
+
     private SafeThriftClient() {
         // ban constructor.
     }
 
     /**
-     * Reflectively wraps an already existing Thrift client.
+     * Returns a client of the standard BMv2 service over the given connection.
      *
-     * @param baseClient      the client to wrap
-     * @param clientInterface the interface that the client implements
-     * @param options         options that control behavior of the reconnecting client
-     * @param <T>
-     * @param <C>
-     * @return
+     * @param protocol   protocol of the service, over the transport of the connection
+     * @param connection a connection
+     * @return a standard client
      */
-    public static <T extends TServiceClient, C> C wrap(T baseClient, Class<C> clientInterface, Options options) {
-        Object proxyObject = Proxy.newProxyInstance(clientInterface.getClassLoader(),
-                new Class<?>[]{clientInterface},
-                new ReconnectingClientProxy<T>(baseClient,
-                        options.getNumRetries(),
-                        options.getTimeBetweenRetries()));
-
-        return (C) proxyObject;
+    public static Standard.Iface standardClient(TProtocol protocol, Connection connection) {
+        return new StandardClient(protocol, connection);
     }
 
     /**
-     * Reflectively wraps an already existing Thrift client.
+     * Returns a client of the simple switch BMv2 service over the given connection.
      *
-     * @param baseClient the client to wrap
-     * @param options    options that control behavior of the reconnecting client
-     * @param <T>
-     * @param <C>
-     * @return
+     * @param protocol   protocol of the service, over the transport of the connection
+     * @param connection a connection
+     * @return a simple switch client
      */
-    public static <T extends TServiceClient, C> C wrap(T baseClient, Options options) {
-        Class<?>[] interfaces = baseClient.getClass().getInterfaces();
-
-        for (Class<?> iface : interfaces) {
-            if (iface.getSimpleName().equals("Iface")
-                    && iface.getEnclosingClass().equals(baseClient.getClass().getEnclosingClass())) {
-                return (C) wrap(baseClient, iface, options);
-            }
-        }
+    public static SimpleSwitch.Iface simpleSwitchClient(TProtocol protocol, Connection connection) {
+        return new SimpleSwitchClient(protocol, connection);
+    }
 
-        throw new RuntimeException("Class needs to implement Iface directly. Use wrap(TServiceClient, Class) instead.");
+    /**
+     * Executes the given calls over the connection of the given standard client, sending all the requests before
+     * receiving the replies. The connection is held for the whole pipeline, hence calls from other threads are
+     * executed either before or after it. If the transport fails before any request is written, it is reconnected and
+     * the whole pipeline is sent again, once. Once a request is written, the device may have executed it, hence the
+     * calls whose reply is not received fail and are never sent again.
+     *
+     * @param client a standard client returned by {@link #standardClient(TProtocol, Connection)}
+     * @param calls  a list of calls
+     * @return the exception of each call, in the same order, or null if the call was successful
+     * @throws TTransportException if the transport cannot be opened, no call has been executed
+     */
+    static List<TException> pipeline(Standard.Iface client, List<? extends PipelinedCall> calls)
+            throws TTransportException {
+        StandardClient standardClient = (StandardClient) client;
+        return standardClient.connection.pipeline(standardClient, calls);
     }
 
     /**
-     * Reflectively wraps an already existing Thrift client.
+     * Whether an exception leaves a transport out of sync, so that the following replies cannot be read.
      *
-     * @param baseClient      the client to wrap
-     * @param clientInterface the interface that the client implements
-     * @param <T>
-     * @param <C>
-     * @return
+     * @param e an exception
+     * @return true if the transport is out of sync, false otherwise
      */
-    public static <T extends TServiceClient, C> C wrap(T baseClient, Class<C> clientInterface) {
-        return wrap(baseClient, clientInterface, Options.defaults());
+    static boolean isBroken(Exception e) {
+        return e instanceof TTransportException || e instanceof TProtocolException
+                || e instanceof TApplicationException
+                && ((TApplicationException) e).getType() == TApplicationException.BAD_SEQUENCE_ID
+                || !(e instanceof TException);
     }
 
     /**
-     * Reflectively wraps an already existing Thrift client.
+     * Closes the given transport if open, then opens it again.
      *
-     * @param baseClient the client to wrap
-     * @param <T>
-     * @param <C>
-     * @return
+     * @param transport a transport
+     * @return true if the transport is open, false otherwise
      */
-    public static <T extends TServiceClient, C> C wrap(T baseClient) {
-        return wrap(baseClient, Options.defaults());
+    private static boolean reopen(TTransport transport) {
+        try {
+            if (transport.isOpen()) {
+                transport.close();
+            }
+        } catch (Exception e) {
+            // Thrift seems to have a bug where if the transport is already closed a SocketException is thrown.
+            // However, such an exception is not advertised by .close(), hence the general-purpose catch.
+            LOG.debug("Exception while closing transport", e);
+        }
+        try {
+            LOG.debug("Attempting to reconnect...");
+            transport.open();
+            LOG.debug("Reconnection successful");
+            return true;
+        } catch (TTransportException e) {
+            LOG.debug("Error while reconnecting:", e);
+            return false;
+        }
     }
 
     /**
      * Reconnection options for {@link SafeThriftClient}.
      */
     public static class Options {
+        private static final long DEFAULT_MAX_TIME_BETWEEN_RETRIES = 30000L;
+
         private int numRetries;
         private long timeBetweenRetries;
+        private long maxTimeBetweenRetries;
 
         /**
          * Creates new options with the given parameters.
          *
-         * @param numRetries         the maximum number of times to try reconnecting before giving up and throwing an
-         *                           exception
-         * @param timeBetweenRetries the number of milliseconds to wait in between reconnection attempts.
+         * @param numRetries         the maximum number of times the calling thread tries reconnecting before
+         *                           tripping the circuit breaker and throwing an exception
+         * @param timeBetweenRetries the number of milliseconds to wait before the first background reconnect, doubled
+         *                           after each failed one.
          */
         public Options(int numRetries, long timeBetweenRetries) {
-            this.numRetries = numRetries;
-            this.timeBetweenRetries = timeBetweenRetries;
+            this(numRetries, timeBetweenRetries, Math.max(timeBetweenRetries, DEFAULT_MAX_TIME_BETWEEN_RETRIES));
         }
 
-        private static Options defaults() {
-            return new Options(5, 10000L);
+        /**
+         * Creates new options with the given parameters.
+         *
+         * @param numRetries            the maximum number of times the calling thread tries reconnecting before
+         *                              tripping the circuit breaker and throwing an exception
+         * @param timeBetweenRetries    the number of milliseconds to wait before the first background reconnect,
+         *                              doubled after each failed one.
+         * @param maxTimeBetweenRetries the maximum number of milliseconds to wait in between background reconnects.
+         */
+        public Options(int numRetries, long timeBetweenRetries, long maxTimeBetweenRetries) {
+            this.numRetries = numRetries;
+            this.timeBetweenRetries = timeBetweenRetries;
+            this.maxTimeBetweenRetries = maxTimeBetweenRetries;
         }
 
         private int getNumRetries() {
@@ -151,100 +204,494 @@ public final class SafeThriftClient {
         private long getTimeBetweenRetries() {
             return timeBetweenRetries;
         }
+
+        private long getMaxTimeBetweenRetries() {
+            return maxTimeBetweenRetries;
+        }
     }
 
     /**
-     * Helper proxy class. Attempts to call method on proxy object wrapped in try/catch. If it fails, it attempts a
-     * reconnect and tries the method again.
-     *
-     * @param <T>
+     * Circuit breaker of a device. It is tripped when a transport to the device cannot be reconnected by the calling
+     * thread. While open, calls fail fast and the transports are reconnected in the background, with exponential
+     * backoff and jitter. The breaker closes once all of them are reconnected.
      */
-    private static class ReconnectingClientProxy<T extends TServiceClient> implements InvocationHandler {
-        private final T baseClient;
+    public static final class CircuitBreaker {
+
+        /**
+         * State of a circuit breaker.
+         */
+        public enum State {
+            /**
+             * Calls go through.
+             */
+            CLOSED,
+            /**
+             * Calls fail fast, the device is being reconnected.
+             */
+            OPEN
+        }
+
+        private final Options options;
+        // Connections being reconnected in the background, with their next attempt.
+        private final Map<Connection, ScheduledFuture<?>> reconnecting = Maps.newHashMap();
+        private volatile State state = State.CLOSED;
+
+        private final AtomicLong trips = new AtomicLong();
+        private final AtomicLong reconnectAttempts = new AtomicLong();
+        private final AtomicLong reconnects = new AtomicLong();
+        private final AtomicLong rejectedCalls = new AtomicLong();
+
+        /**
+         * Creates a new closed circuit breaker.
+         *
+         * @param options options that control the reconnects
+         */
+        public CircuitBreaker(Options options) {
+            this.options = options;
+        }
+
+        /**
+         * Returns the current state of this breaker.
+         *
+         * @return a state
+         */
+        public State state() {
+            return state;
+        }
+
+        /**
+         * Returns the number of times this breaker has been tripped.
+         *
+         * @return a long value
+         */
+        public long trips() {
+            return trips.get();
+        }
+
+        /**
+         * Returns the number of reconnects attempted in the background.
+         *
+         * @return a long value
+         */
+        public long reconnectAttempts() {
+            return reconnectAttempts.get();
+        }
+
+        /**
+         * Returns the number of successful reconnects in the background.
+         *
+         * @return a long value
+         */
+        public long reconnects() {
+            return reconnects.get();
+        }
+
+        /**
+         * Returns the number of calls failed fast while this breaker was open.
+         *
+         * @return a long value
+         */
+        public long rejectedCalls() {
+            return rejectedCalls.get();
+        }
+
+        /**
+         * Stops reconnecting the given connection, e.g. before closing it for good.
+         *
+         * @param connection a connection
+         */
+        synchronized void cancel(Connection connection) {
+            ScheduledFuture<?> attempt = reconnecting.remove(connection);
+            if (attempt != null) {
+                attempt.cancel(false);
+                closeIfDone();
+            }
+        }
+
+        /**
+         * Throws if this breaker is open, so that calls fail fast while the device is being reconnected.
+         *
+         * @throws TTransportException if the breaker is open
+         */
+        void checkCall() throws TTransportException {
+            if (state == State.OPEN) {
+                rejectedCalls.incrementAndGet();
+                throw new TTransportException(TTransportException.NOT_OPEN, "Device unreachable, reconnecting");
+            }
+        }
+
+        private synchronized void trip(Connection connection) {
+            if (reconnecting.containsKey(connection)) {
+                return;
+            }
+            if (state == State.CLOSED) {
+                state = State.OPEN;
+                trips.incrementAndGet();
+                LOG.warn("Circuit breaker open, reconnecting in the background");
+            }
+            schedule(connection, 0);
+        }
+
+        private void schedule(Connection connection, int attempt) {
+            reconnecting.put(connection, SharedScheduledExecutors.getPoolThreadExecutor().schedule(
+                    () -> reconnect(connection, attempt), backoff(attempt), TimeUnit.MILLISECONDS));
+        }
+
+        private void reconnect(Connection connection, int attempt) {
+            reconnectAttempts.incrementAndGet();
+            // Callers fail fast meanwhile, hence the lock is only contended by the closing of the connection.
+            connection.lock.lock();
+            try {
+                boolean open = reopen(connection.transport);
+                synchronized (this) {
+                    if (!reconnecting.containsKey(connection)) {
+                        // Cancelled while reconnecting.
+                        if (open) {
+                            connection.transport.close();
+                        }
+                        return;
+                    }
+                    if (!open) {
+                        schedule(connection, attempt + 1);
+                        return;
+                    }
+                    reconnecting.remove(connection);
+                    reconnects.incrementAndGet();
+                    closeIfDone();
+                }
+            } finally {
+                connection.lock.unlock();
+            }
+        }
+
+        private void closeIfDone() {
+            if (reconnecting.isEmpty() && state == State.OPEN) {
+                state = State.CLOSED;
+                LOG.info("Circuit breaker closed, device reconnected");
+            }
+        }
+
+        private long backoff(int attempt) {
+            long ceiling = Math.min(options.getMaxTimeBetweenRetries(),
+                    options.getTimeBetweenRetries() << Math.min(attempt, MAX_BACKOFF_SHIFT));
+            // Keep half of the delay and randomize the rest, so that transports do not all retry at the same time.
+            return ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+        }
+    }
+
+    /**
+     * Transport shared by the clients of the services of a device. Calls over it are serialized: a call holds the lock
+     * from the moment its request is sent until its reply is received. If the transport fails, it is reconnected and
+     * the call is tried again, once.
+     */
+    public static final class Connection {
         private final TTransport transport;
-        private final int maxRetries;
-        private final long timeBetweenRetries;
+        private final CircuitBreaker breaker;
+        // Thrift transport layer is not thread-safe (it's a wrapper on a socket), hence we need locking.
+        private final ReentrantLock lock = new ReentrantLock();
 
-        public ReconnectingClientProxy(T baseClient, int maxRetries, long timeBetweenRetries) {
-            this.baseClient = baseClient;
-            this.transport = baseClient.getInputProtocol().getTransport();
-            this.maxRetries = maxRetries;
-            this.timeBetweenRetries = timeBetweenRetries;
+        // Request of the call holding the lock, sent again if the transport fails before the reply is received.
+        private String methodName;
+        private TBase<?, ?> args;
+        private boolean retried;
+        // Set by the thread holding the lock while it executes a pipeline, which handles the failures itself.
+        private boolean pipelining;
+
+        /**
+         * Creates a new connection over the given transport. The transport is opened on the first call.
+         *
+         * @param transport a transport
+         * @param breaker   circuit breaker of the device, it can be shared by many connections
+         */
+        public Connection(TTransport transport, CircuitBreaker breaker) {
+            this.transport = transport;
+            this.breaker = breaker;
         }
 
-        private void reconnectOrThrowException()
-                throws TTransportException {
-            int errors = 0;
+        /**
+         * Closes the transport of this connection, waiting for the call in progress if any.
+         */
+        void close() {
+            lock.lock();
             try {
                 if (transport.isOpen()) {
                     transport.close();
                 }
-            } catch (Exception e) {
-                // Thrift seems to have a bug where if the transport is already closed a SocketException is thrown.
-                // However, such an exception is not advertised by .close(), hence the general-purpose catch.
-                LOG.debug("Exception while closing transport", e);
+            } finally {
+                lock.unlock();
             }
+        }
 
-            while (errors < maxRetries) {
+        private void send(Exchange client, String methodName, TBase<?, ?> args) throws TException {
+            if (pipelining && lock.isHeldByCurrentThread()) {
+                client.sendRaw(methodName, args);
+                return;
+            }
+            // Fail fast while the device is being reconnected.
+            breaker.checkCall();
+            lock.lock();
+            boolean sent = false;
+            try {
+                retried = false;
                 try {
-                    LOG.debug("Attempting to reconnect...");
-                    transport.open();
-                    LOG.debug("Reconnection successful");
-                    break;
+                    client.sendRaw(methodName, args);
                 } catch (TTransportException e) {
-                    LOG.debug("Error while reconnecting:", e);
-                    errors++;
-
-                    if (errors < maxRetries) {
-                        try {
-                            LOG.debug("Sleeping for {} milliseconds before retrying", timeBetweenRetries);
-                            Thread.sleep(timeBetweenRetries);
-                        } catch (InterruptedException e2) {
-                            Thread.currentThread().interrupt();
-                            throw new RuntimeException(e);
-                        }
-                    }
+                    // Try to reconnect. If fail, a TTransportException will be thrown.
+                    reconnectOrThrowException(e);
+                    client.sendRaw(methodName, args);
+                }
+                this.methodName = methodName;
+                this.args = args;
+                sent = true;
+            } finally {
+                // Keep the lock until the reply is received.
+                if (!sent) {
+                    lock.unlock();
                 }
             }
+        }
 
-            if (errors >= maxRetries) {
-                throw new TTransportException("Failed to reconnect");
+        private void receive(Exchange client, TBase<?, ?> result, String methodName) throws TException {
+            if (pipelining && lock.isHeldByCurrentThread()) {
+                client.receiveRaw(result, methodName);
+                return;
+            }
+            try {
+                try {
+                    client.receiveRaw(result, methodName);
+                } catch (TTransportException e) {
+                    if (retried) {
+                        LOG.debug("Exception: {}", e);
+                        throw e;
+                    }
+                    reconnectOrThrowException(e);
+                    // If here, transport has been successfully open, hence new exceptions will be thrown.
+                    client.sendRaw(this.methodName, args);
+                    client.receiveRaw(result, methodName);
+                }
+            } finally {
+                this.methodName = null;
+                this.args = null;
+                lock.unlock();
             }
         }
 
-        @Override
-        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-
-            // Thrift transport layer is not thread-safe (it's a wrapper on a socket), hence we need locking.
-            synchronized (transport) {
-
-                LOG.debug("Invoking method... > fromThread={}, method={}, args={}",
-                        Thread.currentThread().getId(), method.getName(), args);
+        private List<TException> pipeline(StandardClient client, List<? extends PipelinedCall> calls)
+                throws TTransportException {
+            // Fail fast while the device is being reconnected.
+            breaker.checkCall();
+            lock.lock();
+            pipelining = true;
+            try {
+                retried = false;
+                // A request written to a transport closed by the device would be lost, and could not be sent again.
+                if (!transport.isOpen() || isClosedByPeer()) {
+                    reconnectOrThrowException(new TTransportException(TTransportException.NOT_OPEN));
+                }
+                try {
+                    return exchange(client, calls, true);
+                } catch (TTransportException e) {
+                    // Nothing was written, the device has not seen any of the calls.
+                    reconnectOrThrowException(e);
+                    return exchange(client, calls, false);
+                }
+            } finally {
+                pipelining = false;
+                lock.unlock();
+            }
+        }
 
+        /**
+         * Whether the device closed the socket of the transport since the last call. No reply is pending between two
+         * calls, hence a read which does not time out at once finds the end of the stream.
+         */
+        private boolean isClosedByPeer() {
+            if (!(transport instanceof TSocket)) {
+                return false;
+            }
+            Socket socket = ((TSocket) transport).getSocket();
+            try {
+                int timeout = socket.getSoTimeout();
+                socket.setSoTimeout(1);
                 try {
+                    // Any byte read here is out of sync with the next replies anyway.
+                    socket.getInputStream().read();
+                    return true;
+                } catch (SocketTimeoutException e) {
+                    return false;
+                } finally {
+                    socket.setSoTimeout(timeout);
+                }
+            } catch (IOException e) {
+                return true;
+            }
+        }
 
-                    return method.invoke(baseClient, args);
-                } catch (InvocationTargetException e) {
-                    if (e.getTargetException() instanceof TTransportException) {
-                        TTransportException cause = (TTransportException) e.getTargetException();
-
-                        if (RESTARTABLE_CAUSES.contains(cause.getType())) {
-                            // Try to reconnect. If fail, a TTransportException will be thrown.
-                            reconnectOrThrowException();
-                            try {
-                                // If here, transport has been successfully open, hence new exceptions will be thrown.
-                                return method.invoke(baseClient, args);
-                            } catch (InvocationTargetException e1) {
-                                LOG.debug("Exception: {}", e1.getTargetException());
-                                throw e1.getTargetException();
-                            }
+        /**
+         * Sends the requests of all the calls, then receives the replies in order. A call failing with an exception
+         * which leaves the transport out of sync fails all the following ones, and the transport is closed. The
+         * transport exception is thrown only if no request was written, if allowed.
+         */
+        private List<TException> exchange(StandardClient client, List<? extends PipelinedCall> calls,
+                                          boolean mayRetry) throws TTransportException {
+            List<TException> exceptions = new ArrayList<>(Collections.nCopies(calls.size(), null));
+            int[] sequenceIds = new int[calls.size()];
+            int written = 0;
+            int received = 0;
+            try {
+                for (; written < calls.size(); written++) {
+                    // Each request is flushed as it is sent.
+                    calls.get(written).send(client);
+                    sequenceIds[written] = client.sequenceId();
+                }
+                for (; received < calls.size(); received++) {
+                    client.expect(sequenceIds[received]);
+                    try {
+                        calls.get(received).receive(client);
+                    } catch (TException e) {
+                        if (isBroken(e)) {
+                            throw e;
                         }
+                        exceptions.set(received, e);
                     }
-                    // Target exception is neither a TTransportException nor a restartable cause.
-                    LOG.debug("Exception: {}", e.getTargetException());
-                    throw e.getTargetException();
+                }
+            } catch (TException | RuntimeException e) {
+                LOG.debug("Exception while executing pipeline: {}", e);
+                if (transport.isOpen()) {
+                    transport.close();
+                }
+                if (mayRetry && written == 0 && e instanceof TTransportException) {
+                    throw (TTransportException) e;
+                }
+                TException cause = e instanceof TException ? (TException) e : new TException(e);
+                for (int i = received; i < calls.size(); i++) {
+                    exceptions.set(i, cause);
                 }
             }
+            return exceptions;
+        }
+
+        private void reconnectOrThrowException(TTransportException cause) throws TTransportException {
+            if (!RESTARTABLE_CAUSES.contains(cause.getType())) {
+                LOG.debug("Exception: {}", cause);
+                throw cause;
+            }
+            retried = true;
+            for (int i = 0; i < breaker.options.getNumRetries(); i++) {
+                if (reopen(transport)) {
+                    return;
+                }
+            }
+            // Do not wait here for the device to come back, other callers would stall behind the lock.
+            breaker.trip(this);
+            throw new TTransportException("Failed to reconnect");
+        }
+    }
+
+    /**
+     * A call of a pipeline, see {@link #pipeline(Standard.Iface, List)}.
+     */
+    interface PipelinedCall {
+
+        /**
+         * Sends the request of this call.
+         *
+         * @param client a standard client
+         * @throws TException if the request cannot be sent
+         */
+        void send(Standard.Client client) throws TException;
+
+        /**
+         * Receives the reply of this call.
+         *
+         * @param client a standard client
+         * @throws TException if the call failed
+         */
+        void receive(Standard.Client client) throws TException;
+    }
+
+    /**
+     * Access to the base implementation of the hooks of a client.
+     */
+    private interface Exchange {
+
+        void sendRaw(String methodName, TBase<?, ?> args) throws TException;
+
+        void receiveRaw(TBase<?, ?> result, String methodName) throws TException;
+    }
+
+    /**
+     * Standard client whose calls go through a connection.
+     */
+    private static final class StandardClient extends Standard.Client implements Exchange {
+        private final Connection connection;
+
+        private StandardClient(TProtocol protocol, Connection connection) {
+            super(protocol);
+            this.connection = connection;
+        }
+
+        @Override
+        protected void sendBase(String methodName, TBase<?, ?> args) throws TException {
+            connection.send(this, methodName, args);
+        }
+
+        @Override
+        protected void receiveBase(TBase<?, ?> result, String methodName) throws TException {
+            connection.receive(this, result, methodName);
+        }
+
+        @Override
+        public void sendRaw(String methodName, TBase<?, ?> args) throws TException {
+            super.sendBase(methodName, args);
+        }
+
+        @Override
+        public void receiveRaw(TBase<?, ?> result, String methodName) throws TException {
+            super.receiveBase(result, methodName);
+        }
+
+        private int sequenceId() {
+            return seqid_;
+        }
+
+        /**
+         * Sets the sequence id of the next reply received, pipelined requests are all sent beforehand.
+         */
+        private void expect(int sequenceId) {
+            seqid_ = sequenceId;
+        }
+    }
+
+    /**
+     * Simple switch client whose calls go through a connection.
+     */
+    private static final class SimpleSwitchClient extends SimpleSwitch.Client implements Exchange {
+        private final Connection connection;
+
+        private SimpleSwitchClient(TProtocol protocol, Connection connection) {
+            super(protocol);
+            this.connection = connection;
+        }
+
+        @Override
+        protected void sendBase(String methodName, TBase<?, ?> args) throws TException {
+            connection.send(this, methodName, args);
+        }
+
+        @Override
+        protected void receiveBase(TBase<?, ?> result, String methodName) throws TException {
+            connection.receive(this, result, methodName);
+        }
+
+        @Override
+        public void sendRaw(String methodName, TBase<?, ?> args) throws TException {
+            super.sendBase(methodName, args);
+        }
+
+        @Override
+        public void receiveRaw(TBase<?, ?> result, String methodName) throws TException {
+            super.receiveBase(result, methodName);
         }
     }
 }
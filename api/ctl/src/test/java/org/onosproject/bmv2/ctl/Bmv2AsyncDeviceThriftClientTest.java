@@ -0,0 +1,287 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.bmv2.ctl;
+
+import com.google.common.collect.Lists;
+import org.apache.thrift.TException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.onlab.util.ImmutableByteSequence;
+import org.onosproject.bmv2.api.runtime.Bmv2Action;
+import org.onosproject.bmv2.api.runtime.Bmv2Device;
+import org.onosproject.bmv2.api.runtime.Bmv2ExactMatchParam;
+import org.onosproject.bmv2.api.runtime.Bmv2MatchKey;
+import org.onosproject.bmv2.api.runtime.Bmv2RuntimeException;
+import org.onosproject.bmv2.api.runtime.Bmv2TableEntry;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link Bmv2AsyncDeviceThriftClient}, against a mock of the BMv2 Thrift server.
+ */
+public class Bmv2AsyncDeviceThriftClientTest {
+
+    private static final String TABLE = "table0";
+    private static final long TIMEOUT = 5;
+
+    private final Bmv2TableEntry entry = Bmv2TableEntry.builder()
+            .withTableName(TABLE)
+            .withMatchKey(Bmv2MatchKey.builder()
+                    .add(new Bmv2ExactMatchParam(ImmutableByteSequence.copyFrom(1)))
+                    .build())
+            .withAction(Bmv2Action.builder().withName("nop").build())
+            .build();
+
+    private MockBmv2Server server;
+    private SafeThriftClient.CircuitBreaker breaker;
+    private Bmv2AsyncDeviceThriftClient client;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MockBmv2Server();
+        breaker = new SafeThriftClient.CircuitBreaker(new SafeThriftClient.Options(0, 60000));
+        client = new Bmv2AsyncDeviceThriftClient(
+                new Bmv2Device("127.0.0.1", server.getPort(), 0).asDeviceId(), breaker);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.releaseReplies();
+        client.close();
+        server.close();
+    }
+
+    private static <T> T get(CompletableFuture<T> future) throws Exception {
+        return future.get(TIMEOUT, TimeUnit.SECONDS);
+    }
+
+    private static void assertFails(CompletableFuture<?> future) throws Exception {
+        try {
+            get(future);
+            fail("call did not fail");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), is(instanceOf(Bmv2RuntimeException.class)));
+        }
+    }
+
+    @Test
+    public void testRepliesMatchCalls() throws Exception {
+        List<CompletableFuture<Long>> futures = Lists.newArrayList();
+        for (int i = 0; i < 3 * Bmv2AsyncDeviceThriftClient.MAX_IN_FLIGHT; i++) {
+            futures.add(client.addTableEntry(entry));
+            // Replies of other calls in between do not shift the handles.
+            client.deleteTableEntry(TABLE, i);
+        }
+        // The mock numbers the handles in the order it serves the adds.
+        for (int i = 0; i < futures.size(); i++) {
+            assertThat(get(futures.get(i)), is(i + 1L));
+        }
+        assertThat(server.getConnectionCount(), is(1));
+    }
+
+    @Test
+    public void testOutOfSequenceReply() throws Exception {
+        server.holdReplies();
+        server.setSequenceIdOffset(1);
+        List<CompletableFuture<Long>> futures = Lists.newArrayList();
+        for (int i = 0; i < 10; i++) {
+            futures.add(client.addTableEntry(entry));
+        }
+        server.releaseReplies();
+
+        // The connection is out of sync, every call in flight fails.
+        for (CompletableFuture<Long> future : futures) {
+            assertFails(future);
+        }
+
+        server.setSequenceIdOffset(0);
+        get(client.addTableEntry(entry));
+        assertThat(server.getConnectionCount(), is(2));
+    }
+
+    @Test
+    public void testInFlightWindow() throws Exception {
+        server.holdReplies();
+        int calls = Bmv2AsyncDeviceThriftClient.MAX_IN_FLIGHT + 1;
+        List<CompletableFuture<Void>> futures = Lists.newCopyOnWriteArrayList();
+        AtomicInteger sent = new AtomicInteger();
+        Thread caller = new Thread(() -> {
+            for (int i = 0; i < calls; i++) {
+                futures.add(client.modifyTableEntry(TABLE, i, entry.action()));
+                sent.incrementAndGet();
+            }
+        });
+        caller.start();
+
+        // The last call waits for a reply.
+        caller.join(TimeUnit.SECONDS.toMillis(1));
+        assertThat(caller.isAlive(), is(true));
+        assertThat(sent.get(), is(Bmv2AsyncDeviceThriftClient.MAX_IN_FLIGHT));
+
+        server.releaseReplies();
+        caller.join(TimeUnit.SECONDS.toMillis(TIMEOUT));
+        assertThat(sent.get(), is(calls));
+        for (CompletableFuture<Void> future : futures) {
+            get(future);
+        }
+    }
+
+    @Test
+    public void testBrokenConnection() throws Exception {
+        get(client.deleteTableEntry(TABLE, 0));
+
+        server.holdReplies();
+        List<CompletableFuture<Void>> futures = Lists.newArrayList();
+        for (int i = 0; i < 10; i++) {
+            futures.add(client.deleteTableEntry(TABLE, i));
+        }
+        server.disconnect();
+        for (CompletableFuture<Void> future : futures) {
+            assertFails(future);
+        }
+
+        // The next call opens a new connection, the window is back to its size.
+        server.releaseReplies();
+        futures.clear();
+        for (int i = 0; i < Bmv2AsyncDeviceThriftClient.MAX_IN_FLIGHT; i++) {
+            futures.add(client.deleteTableEntry(TABLE, i));
+        }
+        for (CompletableFuture<Void> future : futures) {
+            get(future);
+        }
+        assertThat(server.getConnectionCount(), is(2));
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        server.holdReplies();
+        List<CompletableFuture<Void>> futures = Lists.newArrayList();
+        for (int i = 0; i < 10; i++) {
+            futures.add(client.deleteTableEntry(TABLE, i));
+        }
+        client.close();
+        for (CompletableFuture<Void> future : futures) {
+            assertFails(future);
+        }
+
+        CompletableFuture<Void> future = client.deleteTableEntry(TABLE, 0);
+        assertThat(future.isCompletedExceptionally(), is(true));
+        assertThat(server.getConnectionCount(), is(1));
+    }
+
+    @Test
+    public void testUnreachableDevice() throws Exception {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            port = socket.getLocalPort();
+        }
+        Bmv2AsyncDeviceThriftClient unreachable = new Bmv2AsyncDeviceThriftClient(
+                new Bmv2Device("127.0.0.1", port, 0).asDeviceId(), breaker);
+        try {
+            assertFails(unreachable.deleteTableEntry(TABLE, 0));
+        } finally {
+            unreachable.close();
+        }
+    }
+
+    @Test
+    public void testOpenBreaker() throws Exception {
+        // Trip the breaker through a pool which cannot reach the device.
+        int port;
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            port = socket.getLocalPort();
+        }
+        Bmv2ClientPool pool = new Bmv2ClientPool(new Bmv2Device("127.0.0.1", port, 0), 1, breaker);
+        try {
+            pool.standardClient().bm_mt_delete_entry(0, TABLE, 0);
+            fail("call did not fail");
+        } catch (TException e) {
+            assertThat(breaker.state(), is(SafeThriftClient.CircuitBreaker.State.OPEN));
+        }
+
+        try {
+            CompletableFuture<Void> future = client.deleteTableEntry(TABLE, 0);
+            assertThat(future.isCompletedExceptionally(), is(true));
+            assertThat(server.getConnectionCount(), is(0));
+            assertThat(breaker.rejectedCalls(), is(1L));
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testBreakerRecovers() throws Exception {
+        // The port of the device is bound without listening while it is down, so that no client can connect to
+        // itself through it.
+        Socket down = new Socket();
+        down.setReuseAddress(true);
+        down.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        int port = down.getLocalPort();
+        SafeThriftClient.CircuitBreaker recovering = new SafeThriftClient.CircuitBreaker(
+                new SafeThriftClient.Options(1, 10, 50));
+        Bmv2ClientPool pool = new Bmv2ClientPool(new Bmv2Device("127.0.0.1", port, 0), 1, recovering);
+        try {
+            try {
+                pool.standardClient().bm_mt_delete_entry(0, TABLE, 0);
+                fail("call did not fail");
+            } catch (TException e) {
+                assertThat(recovering.state(), is(SafeThriftClient.CircuitBreaker.State.OPEN));
+            }
+            // The device is restarted once the breaker failed to reconnect in the background.
+            awaitCondition(() -> recovering.reconnectAttempts() > 0);
+            assertThat(recovering.state(), is(SafeThriftClient.CircuitBreaker.State.OPEN));
+            down.close();
+            server.close();
+            server = new MockBmv2Server(port);
+
+            awaitCondition(() -> recovering.state() == SafeThriftClient.CircuitBreaker.State.CLOSED);
+            assertThat(recovering.trips(), is(1L));
+            assertThat(recovering.reconnects(), is(1L));
+            assertThat(recovering.reconnectAttempts() > recovering.reconnects(), is(true));
+
+            // Calls go through again, over the reconnected transport.
+            pool.standardClient().bm_mt_delete_entry(0, TABLE, 0);
+            assertThat(server.getConnectionCount(), is(1));
+        } finally {
+            down.close();
+            pool.close();
+        }
+    }
+
+    private static void awaitCondition(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT);
+        while (!condition.getAsBoolean() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+}
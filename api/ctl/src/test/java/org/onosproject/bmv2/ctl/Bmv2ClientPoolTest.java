@@ -0,0 +1,92 @@
+/*
+ * Copyright 2016-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.bmv2.ctl;
+
+import com.google.common.collect.Sets;
+import org.junit.After;
+import org.junit.Test;
+import org.onosproject.bmv2.api.runtime.Bmv2Device;
+import org.onosproject.bmv2.thriftapi.Standard;
+
+import java.util.Set;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * Tests for {@link Bmv2ClientPool}. Connections are only opened on the first call, so no device is needed.
+ */
+public class Bmv2ClientPoolTest {
+
+    private static final int SIZE = 4;
+
+    private final Bmv2Device device = new Bmv2Device("127.0.0.1", 1, 0);
+    private final SafeThriftClient.CircuitBreaker breaker = new SafeThriftClient.CircuitBreaker(
+            new SafeThriftClient.Options(0, 0));
+    private final Bmv2ClientPool pool = new Bmv2ClientPool(device, SIZE, breaker);
+
+    @After
+    public void tearDown() {
+        pool.close();
+    }
+
+    @Test
+    public void testEntryAffinity() {
+        for (long entryId = 0; entryId < 100; entryId++) {
+            Standard.Iface client = pool.standardClient("table0", entryId);
+            // Calls interleaved on other connections do not move an entry.
+            pool.standardClient();
+            pool.standardClient("table1", entryId);
+            assertThat(pool.standardClient("table0", entryId), is(sameInstance(client)));
+        }
+    }
+
+    @Test
+    public void testEntriesSpreadAcrossConnections() {
+        Set<Standard.Iface> clients = Sets.newIdentityHashSet();
+        for (long entryId = 0; entryId < 100; entryId++) {
+            clients.add(pool.standardClient("table0", entryId));
+        }
+        assertThat(clients.size(), is(SIZE));
+    }
+
+    @Test
+    public void testRoundRobin() {
+        Set<Standard.Iface> clients = Sets.newIdentityHashSet();
+        Standard.Iface first = pool.standardClient();
+        clients.add(first);
+        for (int i = 1; i < SIZE; i++) {
+            clients.add(pool.standardClient());
+        }
+        assertThat(clients.size(), is(SIZE));
+        assertThat(pool.standardClient(), is(sameInstance(first)));
+    }
+
+    @Test
+    public void testSingleConnection() {
+        Bmv2ClientPool single = new Bmv2ClientPool(device, 1, breaker);
+        try {
+            Standard.Iface client = single.standardClient();
+            assertThat(single.size(), is(1));
+            assertThat(single.standardClient("table0", 42), is(sameInstance(client)));
+            assertThat(single.standardClient(), is(sameInstance(client)));
+        } finally {
+            single.close();
+        }
+    }
+}
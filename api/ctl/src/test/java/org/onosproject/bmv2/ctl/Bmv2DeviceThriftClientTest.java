@@ -0,0 +1,272 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.bmv2.ctl;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.commons.lang3.tuple.Triple;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.onlab.util.ImmutableByteSequence;
+import org.onosproject.bmv2.api.runtime.Bmv2Action;
+import org.onosproject.bmv2.api.runtime.Bmv2Device;
+import org.onosproject.bmv2.api.runtime.Bmv2ExactMatchParam;
+import org.onosproject.bmv2.api.runtime.Bmv2MatchKey;
+import org.onosproject.bmv2.api.runtime.Bmv2TableEntry;
+import org.onosproject.bmv2.api.runtime.Bmv2TableEntryResult;
+import org.onosproject.net.DeviceId;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.onosproject.bmv2.api.runtime.Bmv2RuntimeException.Code.TABLE_INVALID_HANDLE;
+import static org.onosproject.bmv2.api.runtime.Bmv2RuntimeException.Code.TABLE_INVALID_TABLE_NAME;
+
+/**
+ * Tests for the bulk operations of {@link Bmv2DeviceThriftClient}, against a mock of the BMv2 Thrift server.
+ */
+public class Bmv2DeviceThriftClientTest {
+
+    private static final String TABLE = "table0";
+    private static final String BAD_TABLE = "table1";
+    private static final String ADD_ENTRY = "bm_mt_add_entry";
+    private static final String SET_ENTRY_TTL = "bm_mt_set_entry_ttl";
+    private static final String DELETE_ENTRY = "bm_mt_delete_entry";
+    private static final String MODIFY_ENTRY = "bm_mt_modify_entry";
+    private static final int POOL_SIZE = 4;
+
+    private final Bmv2Action action = Bmv2Action.builder().withName("nop").build();
+
+    private MockBmv2Server server;
+    private Bmv2ClientPool pool;
+    private Bmv2AsyncDeviceThriftClient asyncClient;
+    private Bmv2DeviceThriftClient client;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MockBmv2Server();
+        client = newClient(server.getPort());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        pool.close();
+        asyncClient.close();
+        server.close();
+    }
+
+    private Bmv2DeviceThriftClient newClient(int port) {
+        Bmv2Device device = new Bmv2Device("127.0.0.1", port, 0);
+        DeviceId deviceId = device.asDeviceId();
+        // Connections are opened by the first call, through a reconnect.
+        SafeThriftClient.CircuitBreaker breaker = new SafeThriftClient.CircuitBreaker(
+                new SafeThriftClient.Options(1, 60000));
+        pool = new Bmv2ClientPool(device, POOL_SIZE, breaker);
+        asyncClient = new Bmv2AsyncDeviceThriftClient(deviceId, breaker);
+        return new Bmv2DeviceThriftClient(deviceId, pool, asyncClient);
+    }
+
+    private Bmv2TableEntry entry(String tableName, int key, double timeout) {
+        Bmv2TableEntry.Builder builder = Bmv2TableEntry.builder()
+                .withTableName(tableName)
+                .withMatchKey(Bmv2MatchKey.builder()
+                        .add(new Bmv2ExactMatchParam(ImmutableByteSequence.copyFrom(key)))
+                        .build())
+                .withAction(action);
+        if (timeout > 0) {
+            builder.withTimeout(timeout);
+        }
+        return builder.build();
+    }
+
+    private List<String> methods() {
+        return server.getCalls().stream().map(MockBmv2Server.Call::method).collect(Collectors.toList());
+    }
+
+    @Test
+    public void testAddTableEntries() {
+        server.failCalls(ADD_ENTRY, BAD_TABLE, MockBmv2Server.INVALID_TABLE_NAME);
+        server.recordCalls();
+        List<Bmv2TableEntryResult> results = client.addTableEntries(Lists.newArrayList(
+                entry(TABLE, 1, 0), entry(BAD_TABLE, 2, 0), entry(TABLE, 3, 0)));
+
+        // A failed entry does not stop the following ones.
+        assertThat(results.size(), is(3));
+        assertThat(results.get(0).isSuccess(), is(true));
+        assertThat(results.get(0).entryId(), is(1L));
+        assertThat(results.get(1).isSuccess(), is(false));
+        assertThat(results.get(1).entryId(), is(-1L));
+        assertThat(results.get(1).exception().getCode(), is(TABLE_INVALID_TABLE_NAME));
+        assertThat(results.get(2).isSuccess(), is(true));
+        assertThat(results.get(2).entryId(), is(2L));
+
+        // All the entries go over one connection.
+        assertThat(server.getCalls().stream().map(MockBmv2Server.Call::connection).distinct().count(), is(1L));
+    }
+
+    @Test
+    public void testTimeoutsAfterAdds() {
+        server.recordCalls();
+        List<Bmv2TableEntryResult> results = client.addTableEntries(Lists.newArrayList(
+                entry(TABLE, 1, 1.5), entry(TABLE, 2, 0), entry(TABLE, 3, 2)));
+
+        for (Bmv2TableEntryResult result : results) {
+            assertThat(result.isSuccess(), is(true));
+        }
+        // The timeouts are set in a second batch, with the ids of the entries.
+        assertThat(methods(), is(Lists.newArrayList(ADD_ENTRY, ADD_ENTRY, ADD_ENTRY, SET_ENTRY_TTL, SET_ENTRY_TTL)));
+        assertThat(server.getCalls().get(3).entryId(), is(results.get(0).entryId()));
+        assertThat(server.getCalls().get(4).entryId(), is(results.get(2).entryId()));
+    }
+
+    @Test
+    public void testTimeoutRollback() {
+        server.failCalls(SET_ENTRY_TTL, TABLE, MockBmv2Server.INVALID_HANDLE);
+        server.recordCalls();
+        List<Bmv2TableEntryResult> results = client.addTableEntries(Lists.newArrayList(
+                entry(TABLE, 1, 1), entry(TABLE, 2, 0)));
+
+        // The entry whose timeout cannot be set is removed.
+        assertThat(results.get(0).isSuccess(), is(false));
+        assertThat(results.get(0).entryId(), is(-1L));
+        assertThat(results.get(0).exception().getCode(), is(TABLE_INVALID_HANDLE));
+        assertThat(results.get(1).isSuccess(), is(true));
+        assertThat(methods(), is(Lists.newArrayList(ADD_ENTRY, ADD_ENTRY, SET_ENTRY_TTL, DELETE_ENTRY)));
+        assertThat(server.getCalls().get(3).entryId(), is(1L));
+    }
+
+    @Test
+    public void testTimeoutRollbackFailure() {
+        server.failCalls(SET_ENTRY_TTL, TABLE, MockBmv2Server.INVALID_HANDLE);
+        server.failCalls(DELETE_ENTRY, TABLE, MockBmv2Server.INVALID_HANDLE);
+        List<Bmv2TableEntryResult> results = client.addTableEntries(Lists.newArrayList(entry(TABLE, 1, 1)));
+
+        // The entry left on the device is reported.
+        assertThat(results.get(0).isSuccess(), is(false));
+        assertThat(results.get(0).entryId(), is(1L));
+        assertThat(results.get(0).exception().getCode(), is(TABLE_INVALID_HANDLE));
+    }
+
+    @Test
+    public void testModifyTableEntries() {
+        server.failCalls(MODIFY_ENTRY, BAD_TABLE, MockBmv2Server.INVALID_TABLE_NAME);
+        List<Triple<String, Long, Bmv2Action>> entries = Lists.newArrayList();
+        for (long entryId = 0; entryId < 20; entryId++) {
+            entries.add(Triple.of(entryId % 5 == 0 ? BAD_TABLE : TABLE, entryId, action));
+        }
+        List<Bmv2TableEntryResult> results = client.modifyTableEntries(entries);
+
+        assertThat(results.size(), is(entries.size()));
+        for (int i = 0; i < entries.size(); i++) {
+            boolean bad = entries.get(i).getLeft().equals(BAD_TABLE);
+            assertThat(results.get(i).isSuccess(), is(!bad));
+            assertThat(results.get(i).entryId(), is(bad ? -1L : entries.get(i).getMiddle()));
+        }
+    }
+
+    @Test
+    public void testDeleteTableEntriesFollowEntries() throws Exception {
+        server.recordCalls();
+        for (long entryId = 0; entryId < 20; entryId++) {
+            client.deleteTableEntry(TABLE, entryId);
+        }
+        Map<Long, Integer> connections = Maps.newHashMap();
+        server.getCalls().forEach(call -> connections.put(call.entryId(), call.connection()));
+        assertThat(connections.values().stream().distinct().count(), is((long) POOL_SIZE));
+
+        List<Pair<String, Long>> entries = Lists.newArrayList();
+        for (long entryId = 19; entryId >= 0; entryId--) {
+            entries.add(Pair.of(TABLE, entryId));
+        }
+        int before = server.getCalls().size();
+        List<Bmv2TableEntryResult> results = client.deleteTableEntries(entries);
+
+        // Each entry goes over the connection of its single-entry calls, in the order of the list.
+        for (int i = 0; i < entries.size(); i++) {
+            assertThat(results.get(i).isSuccess(), is(true));
+            assertThat(results.get(i).entryId(), is(entries.get(i).getRight()));
+        }
+        List<MockBmv2Server.Call> calls = server.getCalls().subList(before, server.getCalls().size());
+        assertThat(calls.size(), is(entries.size()));
+        Map<Integer, Long> last = Maps.newHashMap();
+        for (MockBmv2Server.Call call : calls) {
+            assertThat(call.connection(), is(connections.get(call.entryId())));
+            Long previous = last.put(call.connection(), call.entryId());
+            if (previous != null) {
+                assertThat(previous > call.entryId(), is(true));
+            }
+        }
+    }
+
+    @Test
+    public void testClosedByDevice() throws Exception {
+        List<Pair<String, Long>> entries = Lists.newArrayList();
+        for (long entryId = 0; entryId < 20; entryId++) {
+            client.deleteTableEntry(TABLE, entryId);
+            entries.add(Pair.of(TABLE, entryId));
+        }
+        server.disconnect();
+
+        // The connections are reconnected and the batches sent again.
+        for (Bmv2TableEntryResult result : client.deleteTableEntries(entries)) {
+            assertThat(result.isSuccess(), is(true));
+        }
+        assertThat(server.getConnectionCount(), is(2 * POOL_SIZE));
+    }
+
+    @Test
+    public void testDisconnectAfterRequests() {
+        server.recordCalls();
+        server.disconnectAfter(3);
+        List<Bmv2TableEntryResult> results = client.addTableEntries(Lists.newArrayList(
+                entry(TABLE, 1, 0), entry(TABLE, 2, 0), entry(TABLE, 3, 0)));
+
+        // The device may have added the entries, they are not sent again.
+        for (Bmv2TableEntryResult result : results) {
+            assertThat(result.isSuccess(), is(false));
+        }
+        assertThat(methods(), is(Lists.newArrayList(ADD_ENTRY, ADD_ENTRY, ADD_ENTRY)));
+        assertThat(server.getConnectionCount(), is(1));
+    }
+
+    @Test
+    public void testUnreachableDevice() throws IOException {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            port = socket.getLocalPort();
+        }
+        pool.close();
+        asyncClient.close();
+        client = newClient(port);
+
+        // Every entry fails, nothing is thrown.
+        List<Bmv2TableEntryResult> results = client.deleteTableEntries(Lists.newArrayList(
+                Pair.of(TABLE, 1L), Pair.of(TABLE, 2L)));
+        assertThat(results.size(), is(2));
+        for (Bmv2TableEntryResult result : results) {
+            assertThat(result.isSuccess(), is(false));
+        }
+    }
+}
@@ -0,0 +1,373 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.bmv2.ctl;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TField;
+import org.apache.thrift.protocol.TMessage;
+import org.apache.thrift.protocol.TMessageType;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolUtil;
+import org.apache.thrift.protocol.TStruct;
+import org.apache.thrift.protocol.TType;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TTransport;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loopback Thrift server answering the table calls of the standard BMv2 service, as a switch with no processing time
+ * would. Each connection is served by its own thread, one request after the other, as the BMv2 Thrift server does.
+ * bm_mt_add_entry returns a new entry handle, every other call returns an empty result, unless told to fail.
+ */
+public final class MockBmv2Server implements AutoCloseable {
+
+    /**
+     * Code of the table operation error of an invalid entry handle.
+     */
+    public static final int INVALID_HANDLE = 2;
+
+    /**
+     * Code of the table operation error of an invalid table name.
+     */
+    public static final int INVALID_TABLE_NAME = 7;
+
+    private static final String ADD_ENTRY = "bm_mt_add_entry";
+    // Fields of the arguments of the table calls.
+    private static final short TABLE_NAME_FIELD = 2;
+    private static final short ENTRY_HANDLE_FIELD = 3;
+
+    private final ServerSocket serverSocket;
+    private final AtomicLong handles = new AtomicLong();
+    private final AtomicInteger accepted = new AtomicInteger();
+    // Requests left to read without replying before closing the connection, 0 to reply to all.
+    private final AtomicInteger unanswered = new AtomicInteger();
+    private final Set<Socket> sockets = Sets.newConcurrentHashSet();
+    private final Thread acceptor;
+    // Error codes of the calls told to fail, by method and table name.
+    private final Map<String, Integer> failures = Maps.newConcurrentMap();
+    private final Queue<Call> calls = new ConcurrentLinkedQueue<>();
+    private volatile boolean recording;
+    private volatile int sequenceIdOffset;
+    private boolean holding;
+
+    /**
+     * Creates a new server listening on a free port of the loopback address.
+     *
+     * @throws IOException if the server socket cannot be opened
+     */
+    public MockBmv2Server() throws IOException {
+        this(0);
+    }
+
+    /**
+     * Creates a new server listening on the given port of the loopback address, e.g. the port of a closed server to
+     * restart it.
+     *
+     * @param port a port number, 0 for a free port
+     * @throws IOException if the server socket cannot be opened
+     */
+    public MockBmv2Server(int port) throws IOException {
+        this.serverSocket = new ServerSocket();
+        this.serverSocket.setReuseAddress(true);
+        this.serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 16);
+        this.acceptor = new Thread(this::accept, "mock-bmv2-acceptor");
+        this.acceptor.setDaemon(true);
+        this.acceptor.start();
+    }
+
+    /**
+     * Returns the port the server listens on.
+     *
+     * @return an integer value
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Returns the number of connections accepted so far.
+     *
+     * @return an integer value
+     */
+    public int getConnectionCount() {
+        return accepted.get();
+    }
+
+    /**
+     * Holds the replies until {@link #releaseReplies()}. Each connection reads one more request, then waits.
+     */
+    public synchronized void holdReplies() {
+        holding = true;
+    }
+
+    /**
+     * Sends the replies held, and the next ones at once.
+     */
+    public synchronized void releaseReplies() {
+        holding = false;
+        notifyAll();
+    }
+
+    /**
+     * Adds the given offset to the sequence ID of the next replies, as a server out of sync would.
+     *
+     * @param offset an integer value, 0 to reply with the sequence ID of the request
+     */
+    public void setSequenceIdOffset(int offset) {
+        sequenceIdOffset = offset;
+    }
+
+    /**
+     * Fails the next calls of the given method on the given table, with the given table operation error.
+     *
+     * @param method    name of a method of the standard service, e.g. bm_mt_set_entry_ttl
+     * @param tableName a table name
+     * @param errorCode code of the error, e.g. {@link #INVALID_HANDLE}
+     */
+    public void failCalls(String method, String tableName, int errorCode) {
+        failures.put(method + '/' + tableName, errorCode);
+    }
+
+    /**
+     * Records the table calls served from now on, see {@link #getCalls()}.
+     */
+    public void recordCalls() {
+        recording = true;
+    }
+
+    /**
+     * Returns the table calls recorded so far, in the order they were served on each connection.
+     *
+     * @return a list of calls
+     */
+    public List<Call> getCalls() {
+        return ImmutableList.copyOf(calls);
+    }
+
+    /**
+     * Reads the given number of next requests without replying, then closes the connection which read the last one, as
+     * a device failing after executing them would. The requests are recorded as served.
+     *
+     * @param requests an integer value
+     */
+    public void disconnectAfter(int requests) {
+        unanswered.set(requests);
+    }
+
+    /**
+     * Closes the connections accepted so far, the server keeps accepting new ones.
+     */
+    public void disconnect() {
+        sockets.forEach(socket -> {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Closed anyway.
+            }
+        });
+        sockets.clear();
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                sockets.add(socket);
+                int connection = accepted.incrementAndGet();
+                Thread worker = new Thread(() -> serve(socket, connection), "mock-bmv2-worker");
+                worker.setDaemon(true);
+                worker.start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private synchronized void awaitRelease() throws InterruptedException {
+        while (holding) {
+            wait();
+        }
+    }
+
+    private void serve(Socket socket, int connection) {
+        TTransport transport;
+        try {
+            transport = new TSocket(socket);
+        } catch (TException e) {
+            return;
+        }
+        TProtocol protocol = new TBinaryProtocol(transport);
+        try {
+            while (true) {
+                TMessage request = protocol.readMessageBegin();
+                /* The multiplexed protocol prefixes the name of the service. */
+                String method = request.name.substring(request.name.indexOf(':') + 1);
+                Call call = readCall(protocol, connection, method);
+                protocol.readMessageEnd();
+                awaitRelease();
+                if (recording) {
+                    calls.add(call);
+                }
+                int left = unanswered.getAndUpdate(n -> n > 0 ? n - 1 : 0);
+                if (left == 1) {
+                    sockets.remove(socket);
+                    transport.close();
+                    return;
+                } else if (left > 1) {
+                    continue;
+                }
+
+                protocol.writeMessageBegin(new TMessage(method, TMessageType.REPLY,
+                        request.seqid + sequenceIdOffset));
+                protocol.writeStructBegin(new TStruct(method + "_result"));
+                Integer errorCode = failures.get(method + '/' + call.tableName());
+                if (errorCode != null) {
+                    protocol.writeFieldBegin(new TField("ouch", TType.STRUCT, (short) 1));
+                    protocol.writeStructBegin(new TStruct("InvalidTableOperation"));
+                    protocol.writeFieldBegin(new TField("code", TType.I32, (short) 1));
+                    protocol.writeI32(errorCode);
+                    protocol.writeFieldEnd();
+                    protocol.writeFieldStop();
+                    protocol.writeStructEnd();
+                    protocol.writeFieldEnd();
+                } else if (method.equals(ADD_ENTRY)) {
+                    protocol.writeFieldBegin(new TField("success", TType.I64, (short) 0));
+                    protocol.writeI64(handles.incrementAndGet());
+                    protocol.writeFieldEnd();
+                }
+                protocol.writeFieldStop();
+                protocol.writeStructEnd();
+                protocol.writeMessageEnd();
+                transport.flush();
+            }
+        } catch (TException e) {
+            transport.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            transport.close();
+        }
+    }
+
+    private static Call readCall(TProtocol protocol, int connection, String method) throws TException {
+        String tableName = null;
+        long entryId = -1;
+        protocol.readStructBegin();
+        while (true) {
+            TField field = protocol.readFieldBegin();
+            if (field.type == TType.STOP) {
+                break;
+            }
+            if (field.id == TABLE_NAME_FIELD && field.type == TType.STRING) {
+                tableName = protocol.readString();
+            } else if (field.id == ENTRY_HANDLE_FIELD && field.type == TType.I64) {
+                entryId = protocol.readI64();
+            } else {
+                TProtocolUtil.skip(protocol, field.type);
+            }
+            protocol.readFieldEnd();
+        }
+        protocol.readStructEnd();
+        return new Call(connection, method, tableName, entryId);
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        disconnect();
+    }
+
+    /**
+     * Table call served by the server.
+     */
+    public static final class Call {
+        private final int connection;
+        private final String method;
+        private final String tableName;
+        private final long entryId;
+
+        private Call(int connection, String method, String tableName, long entryId) {
+            this.connection = connection;
+            this.method = method;
+            this.tableName = tableName;
+            this.entryId = entryId;
+        }
+
+        /**
+         * Returns the number of the connection which served the call, starting from 1.
+         *
+         * @return an integer value
+         */
+        public int connection() {
+            return connection;
+        }
+
+        /**
+         * Returns the name of the method called.
+         *
+         * @return a string value
+         */
+        public String method() {
+            return method;
+        }
+
+        /**
+         * Returns the table name of the call, or null if none.
+         *
+         * @return a string value
+         */
+        public String tableName() {
+            return tableName;
+        }
+
+        /**
+         * Returns the entry handle of the call, or -1 if none.
+         *
+         * @return a long value
+         */
+        public long entryId() {
+            return entryId;
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                    .add("connection", connection)
+                    .add("method", method)
+                    .add("tableName", tableName)
+                    .add("entryId", entryId)
+                    .toString();
+        }
+    }
+}
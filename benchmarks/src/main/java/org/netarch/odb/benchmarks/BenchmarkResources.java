@@ -0,0 +1,78 @@
+package org.netarch.odb.benchmarks;
+
+import com.eclipsesource.json.Json;
+import com.eclipsesource.json.JsonObject;
+import com.google.common.io.ByteStreams;
+import org.onosproject.bmv2.api.context.Bmv2Configuration;
+import org.onosproject.bmv2.api.context.Bmv2DefaultConfiguration;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.core.DefaultApplicationId;
+import org.onosproject.net.DeviceId;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Programs, configuration and identifiers shared by the benchmarks.
+ */
+final class BenchmarkResources {
+    static final String VP4_JSON = "vp4.json";
+    static final String ROUTER_JSON = "router.json";
+    static final ApplicationId APP_ID = new DefaultApplicationId(1, "org.netarch.odb.benchmarks");
+    static final DeviceId DEVICE_ID = DeviceId.deviceId("bmv2:127.0.0.1:40123#1");
+
+    private BenchmarkResources() {
+    }
+
+    /**
+     * Load a json resource.
+     *
+     * @param name resource name
+     * @return json object
+     */
+    static JsonObject loadJson(String name) {
+        try (Reader reader = new InputStreamReader(open(name), StandardCharsets.UTF_8)) {
+            return Json.parse(reader).asObject();
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to read the resource " + name, e);
+        }
+    }
+
+    /**
+     * Load the bytes of a resource.
+     *
+     * @param name resource name
+     * @return resource bytes
+     */
+    static byte[] loadBytes(String name) {
+        try (InputStream in = open(name)) {
+            return ByteStreams.toByteArray(in);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to read the resource " + name, e);
+        }
+    }
+
+    /**
+     * Load the bmv2 configuration of VP4.
+     *
+     * @return bmv2 configuration
+     */
+    static Bmv2Configuration loadConfiguration() {
+        try (InputStream in = open(VP4_JSON)) {
+            return Bmv2DefaultConfiguration.parse(in);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to read the resource " + VP4_JSON, e);
+        }
+    }
+
+    private static InputStream open(String name) {
+        InputStream in = BenchmarkResources.class.getResourceAsStream("/" + name);
+        if (in == null) {
+            throw new RuntimeException("Can't find the resource " + name);
+        }
+        return in;
+    }
+}
@@ -0,0 +1,33 @@
+package org.netarch.odb.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry of the benchmark jar. It takes the usual JMH command line, and
+ * always adds the gc profiler and writes the results as json, so that the
+ * scores and the allocations per operation can be compared between runs.
+ */
+public final class BenchmarkRunner {
+    private static final String RESULT_PROPERTY = "odb.benchmarks.result";
+    private static final String DEFAULT_RESULT = "jmh-result.json";
+
+    private BenchmarkRunner() {
+    }
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result(System.getProperty(RESULT_PROPERTY, DEFAULT_RESULT))
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,62 @@
+package org.netarch.odb.benchmarks;
+
+import com.eclipsesource.json.Json;
+import org.onosproject.bmv2.api.context.Bmv2Configuration;
+import org.onosproject.bmv2.api.context.Bmv2DefaultConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading of the VP4 bmv2 configuration by building a DOM, by streaming the
+ * json text and by reading a snapshot.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ConfigurationLoadBenchmark {
+    private String text;
+    private byte[] bytes;
+    private byte[] snapshot;
+
+    @Setup
+    public void setUp() throws IOException {
+        bytes = BenchmarkResources.loadBytes(BenchmarkResources.VP4_JSON);
+        text = new String(bytes, StandardCharsets.UTF_8);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Bmv2DefaultConfiguration.parse(text).writeSnapshot(out);
+        snapshot = out.toByteArray();
+    }
+
+    @Benchmark
+    public Bmv2Configuration dom() {
+        return Bmv2DefaultConfiguration.parse(Json.parse(text).asObject());
+    }
+
+    @Benchmark
+    public Bmv2Configuration streaming() throws IOException {
+        return Bmv2DefaultConfiguration.parse(new ByteArrayInputStream(bytes));
+    }
+
+    @Benchmark
+    public Bmv2Configuration snapshot() throws IOException {
+        return Bmv2DefaultConfiguration.readSnapshot(new ByteArrayInputStream(snapshot));
+    }
+}
@@ -0,0 +1,82 @@
+package org.netarch.odb.benchmarks;
+
+import org.netarch.odb.compiler.Vp4Interpreter;
+import org.netarch.odb.compiler.Vp4Templates;
+import org.netarch.odb.runtime.BitVector;
+import org.netarch.odb.runtime.MatchResult;
+import org.netarch.odb.utils.FlowRuleHelper;
+import org.onosproject.bmv2.api.context.Bmv2Configuration;
+import org.onosproject.bmv2.api.context.Bmv2DeviceContext;
+import org.onosproject.bmv2.api.context.Bmv2FlowRuleTranslatorException;
+import org.onosproject.bmv2.api.runtime.Bmv2TableEntry;
+import org.onosproject.bmv2.ctl.Bmv2FlowRuleTranslatorImpl;
+import org.onosproject.net.flow.FlowRule;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Translation of the flow rules written for a rule into bmv2 table entries,
+ * as the flow rule programmable does before every table_add.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class FlowRuleTranslateBenchmark {
+    private static final int HEADER_BIT_LENGTH = 800;
+    private static final byte PROGRAM_ID = 1;
+    private static final byte STAGE_ID = 1;
+    /* ipv4.dstAddr of router.json, behind the 112 bits of ethernet. */
+    private static final int KEY_OFFSET = 112 + 128;
+    private static final int KEY_WIDTH = 32;
+
+    private Bmv2DeviceContext context;
+    private Bmv2FlowRuleTranslatorImpl translator;
+    private FlowRule headerMatchRule;
+    private FlowRule matchResultRule;
+
+    @Setup
+    public void setUp() {
+        Bmv2Configuration configuration = BenchmarkResources.loadConfiguration();
+        Vp4Templates templates = new Vp4Templates(configuration);
+        context = new Bmv2DeviceContext(configuration, new Vp4Interpreter());
+        translator = new Bmv2FlowRuleTranslatorImpl();
+
+        BitVector value = new BitVector(HEADER_BIT_LENGTH).setBits(KEY_OFFSET, KEY_WIDTH, 0x0a000001L);
+        BitVector mask = new BitVector(HEADER_BIT_LENGTH).setOnes(KEY_OFFSET, KEY_WIDTH);
+        headerMatchRule = new FlowRuleHelper(BenchmarkResources.APP_ID, BenchmarkResources.DEVICE_ID,
+                templates.getTableId(Vp4Interpreter.HEADER_MATCH, STAGE_ID))
+                .withSelector(templates.headerMatch(PROGRAM_ID, STAGE_ID, value, mask))
+                .withTreatment(templates.setMatchResult(1L << 32))
+                .build();
+
+        MatchResult result = new MatchResult((short) 0, (short) 0, (short) 1);
+        matchResultRule = new FlowRuleHelper(BenchmarkResources.APP_ID, BenchmarkResources.DEVICE_ID,
+                templates.getTableId(Vp4Interpreter.TABLE_MATCH_RESULT, STAGE_ID))
+                .withSelector(templates.matchResult(result))
+                .withTreatment(templates.setStageAndBitmap(1L, (byte) 4, (byte) 2, PROGRAM_ID))
+                .build();
+    }
+
+    @Benchmark
+    public Bmv2TableEntry headerMatch() throws Bmv2FlowRuleTranslatorException {
+        return translator.translate(headerMatchRule, context);
+    }
+
+    @Benchmark
+    public Bmv2TableEntry matchResult() throws Bmv2FlowRuleTranslatorException {
+        return translator.translate(matchResultRule, context);
+    }
+}
@@ -0,0 +1,99 @@
+package org.netarch.odb.benchmarks;
+
+import com.google.common.collect.Lists;
+import org.netarch.odb.compiler.Compiler;
+import org.netarch.odb.model.ProgramModel;
+import org.netarch.odb.runtime.CompoundAction;
+import org.netarch.odb.runtime.FlowKey;
+import org.netarch.odb.runtime.Instance;
+import org.netarch.odb.runtime.InstanceRule;
+import org.netarch.odb.runtime.Value;
+import org.onosproject.bmv2.api.context.Bmv2Configuration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compilation of synthetic router rules into an instance, against a flow
+ * rule service which installs everything at once. An operation is one rule,
+ * so the throughput is in rules per second and gc.alloc.rate.norm is the
+ * allocation per rule.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class InstanceAddRuleBenchmark {
+    private static final int RULES = 1024;
+    private static final String TABLE = "ipv4_nhop";
+    private static final String ACTION = "_drop";
+
+    private Bmv2Configuration configuration;
+    private ProgramModel program;
+    private List<InstanceRule> rules;
+    private StubFlowRuleService flowRuleService;
+    private Instance instance;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() {
+        configuration = BenchmarkResources.loadConfiguration();
+        program = new Compiler(new StubFlowRuleService(), BenchmarkResources.APP_ID, configuration)
+                .compile(BenchmarkResources.loadJson(BenchmarkResources.ROUTER_JSON), "router");
+        flowRuleService = new StubFlowRuleService();
+
+        int stageId = program.table(TABLE).getId();
+        rules = Lists.newArrayListWithCapacity(RULES);
+        for (int i = 0; i < RULES; i++) {
+            rules.add(new InstanceRule(stageId)
+                    .addKey(FlowKey.buildHeaderFieldKey("ipv4", "dstAddr", Value.createIntValue(0x0a000000 + i)))
+                    .setAction(new CompoundAction(ACTION)));
+        }
+    }
+
+    /**
+     * Every invocation starts from an empty instance, so the match entries
+     * of the rules are created rather than shared with the previous run.
+     */
+    @Setup(Level.Invocation)
+    public void setUpInvocation() {
+        Compiler compiler = new Compiler(flowRuleService, BenchmarkResources.APP_ID, configuration);
+        instance = compiler.run(program, BenchmarkResources.DEVICE_ID, 1);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() {
+        if (flowRuleService.getOperations() == 0) {
+            throw new RuntimeException("No flow rule was installed.");
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RULES)
+    public Instance addRule() {
+        for (InstanceRule rule : rules) {
+            instance.addRule(rule);
+        }
+        return instance;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RULES)
+    public Instance addRules() {
+        return instance.addRules(rules);
+    }
+}
@@ -0,0 +1,51 @@
+package org.netarch.odb.benchmarks;
+
+import com.eclipsesource.json.JsonObject;
+import org.netarch.odb.model.ProgramModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of a program json into its model. The content hash is computed by
+ * the constructor, so it is measured apart.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ProgramParseBenchmark {
+    @Param({BenchmarkResources.VP4_JSON, BenchmarkResources.ROUTER_JSON})
+    private String program;
+
+    private JsonObject json;
+
+    @Setup
+    public void setUp() {
+        json = BenchmarkResources.loadJson(program);
+    }
+
+    @Benchmark
+    public String contentHash() {
+        return ProgramModel.contentHash(json);
+    }
+
+    @Benchmark
+    public ProgramModel doParse() {
+        ProgramModel model = new ProgramModel(program, 1, json);
+        model.doParse();
+        return model;
+    }
+}
@@ -0,0 +1,87 @@
+package org.netarch.odb.benchmarks;
+
+import org.netarch.odb.compiler.Vp4Templates;
+import org.netarch.odb.runtime.BitVector;
+import org.netarch.odb.runtime.MatchResult;
+import org.netarch.odb.runtime.Value;
+import org.netarch.odb.utils.TrafficSelectorHelper;
+import org.onosproject.bmv2.api.context.Bmv2Configuration;
+import org.onosproject.bmv2.api.runtime.Bmv2ExtensionSelector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Selectors of the header match and match result tables, built through
+ * TrafficSelectorHelper (Bmv2ExtensionSelector.Builder) and through the
+ * precompiled templates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class SelectorBuildBenchmark {
+    private static final int HEADER_BIT_LENGTH = 800;
+    private static final byte PROGRAM_ID = 1;
+    private static final byte STAGE_ID = 1;
+    /* ipv4.dstAddr of router.json, behind the 112 bits of ethernet. */
+    private static final int KEY_OFFSET = 112 + 128;
+    private static final int KEY_WIDTH = 32;
+
+    private Bmv2Configuration configuration;
+    private Vp4Templates templates;
+    private Value headerValue;
+    private Value headerMask;
+    private BitVector headerVector;
+    private BitVector maskVector;
+    private MatchResult matchResult;
+
+    @Setup
+    public void setUp() {
+        configuration = BenchmarkResources.loadConfiguration();
+        templates = new Vp4Templates(configuration);
+
+        headerVector = new BitVector(HEADER_BIT_LENGTH).setBits(KEY_OFFSET, KEY_WIDTH, 0x0a000001L);
+        maskVector = new BitVector(HEADER_BIT_LENGTH).setOnes(KEY_OFFSET, KEY_WIDTH);
+        headerValue = Value.createArrayValue(headerVector.toByteArray());
+        headerMask = Value.createArrayValue(maskVector.toByteArray());
+        matchResult = new MatchResult((short) 0, (short) 0, (short) 1);
+    }
+
+    @Benchmark
+    public Bmv2ExtensionSelector headerMatchHelper() {
+        return new TrafficSelectorHelper(configuration)
+                .withProgramId(PROGRAM_ID)
+                .withStageId(STAGE_ID)
+                .withHeaderMatch(headerValue, headerMask)
+                .build();
+    }
+
+    @Benchmark
+    public Bmv2ExtensionSelector headerMatchTemplate() {
+        return templates.headerMatch(PROGRAM_ID, STAGE_ID, headerVector, maskVector);
+    }
+
+    @Benchmark
+    public Bmv2ExtensionSelector matchResultHelper() {
+        return new TrafficSelectorHelper(configuration)
+                .withMatchResult(matchResult)
+                .build();
+    }
+
+    @Benchmark
+    public Bmv2ExtensionSelector matchResultTemplate() {
+        return templates.matchResult(matchResult);
+    }
+}
@@ -0,0 +1,31 @@
+package org.netarch.odb.benchmarks;
+
+import org.onosproject.net.flow.FlowRuleOperations;
+import org.onosproject.net.flow.FlowRuleOperationsContext;
+import org.onosproject.net.flow.FlowRuleServiceAdapter;
+
+/**
+ * Flow rule service which reports every batch as installed at once, so the
+ * benchmarks measure the compiler and not a device.
+ */
+class StubFlowRuleService extends FlowRuleServiceAdapter {
+    private long operations;
+
+    @Override
+    public void apply(FlowRuleOperations ops) {
+        ops.stages().forEach(stage -> operations += stage.size());
+        FlowRuleOperationsContext context = ops.callback();
+        if (context != null) {
+            context.onSuccess(ops);
+        }
+    }
+
+    /**
+     * Get the number of flow rule operations applied so far.
+     *
+     * @return number of operations
+     */
+    long getOperations() {
+        return operations;
+    }
+}
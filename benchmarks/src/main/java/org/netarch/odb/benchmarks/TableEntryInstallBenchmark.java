@@ -0,0 +1,127 @@
+package org.netarch.odb.benchmarks;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TMultiplexedProtocol;
+import org.apache.thrift.transport.TSocket;
+import org.onlab.util.ImmutableByteSequence;
+import org.onosproject.bmv2.api.runtime.Bmv2Action;
+import org.onosproject.bmv2.api.runtime.Bmv2Device;
+import org.onosproject.bmv2.api.runtime.Bmv2ExactMatchParam;
+import org.onosproject.bmv2.api.runtime.Bmv2MatchKey;
+import org.onosproject.bmv2.api.runtime.Bmv2TableEntry;
+import org.onosproject.bmv2.ctl.Bmv2AsyncDeviceThriftClient;
+import org.onosproject.bmv2.ctl.MockBmv2Server;
+import org.onosproject.bmv2.ctl.SafeThriftClient;
+import org.onosproject.bmv2.thriftapi.BmAddEntryOptions;
+import org.onosproject.bmv2.thriftapi.BmMatchParam;
+import org.onosproject.bmv2.thriftapi.BmMatchParamExact;
+import org.onosproject.bmv2.thriftapi.BmMatchParamType;
+import org.onosproject.bmv2.thriftapi.Standard;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Table entries installed per second over one connection to a loopback mock
+ * of the BMv2 Thrift server, by blocking calls which wait for each reply, and
+ * by the pipelined asynchronous client which keeps many calls in flight. The
+ * mock answers at once, so the scores compare the round trips only, a switch
+ * adds its own processing time to both.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class TableEntryInstallBenchmark {
+    private static final int ENTRIES = 1000;
+    private static final int CONTEXT_ID = 0;
+    private static final String TABLE = "table_header_match_stage1";
+    private static final String ACTION = "action_set_match_result";
+
+    private MockBmv2Server server;
+    private TSocket socket;
+    private Standard.Client blockingClient;
+    private Bmv2AsyncDeviceThriftClient asyncClient;
+    private Bmv2TableEntry entry;
+    private List<BmMatchParam> matchParams;
+    private List<ByteBuffer> actionParams;
+
+    @Setup
+    public void setUp() throws IOException, TException {
+        server = new MockBmv2Server();
+
+        socket = new TSocket("127.0.0.1", server.getPort());
+        socket.open();
+        blockingClient = new Standard.Client(new TMultiplexedProtocol(new TBinaryProtocol(socket), "standard"));
+        asyncClient = new Bmv2AsyncDeviceThriftClient(new Bmv2Device("127.0.0.1", server.getPort(), 0).asDeviceId(),
+                new SafeThriftClient.CircuitBreaker(new SafeThriftClient.Options(0, 0)));
+
+        byte[] key = {10, 0, 0, 1};
+        byte[] result = {0, 0, 0, 1, 0, 0, 0, 0};
+        entry = Bmv2TableEntry.builder()
+                .withTableName(TABLE)
+                .withMatchKey(Bmv2MatchKey.builder()
+                        .add(new Bmv2ExactMatchParam(ImmutableByteSequence.copyFrom(key)))
+                        .build())
+                .withAction(Bmv2Action.builder()
+                        .withName(ACTION)
+                        .addParameter(ImmutableByteSequence.copyFrom(result))
+                        .build())
+                .build();
+        matchParams = Collections.singletonList(new BmMatchParam(BmMatchParamType.EXACT)
+                .setExact(new BmMatchParamExact(ByteBuffer.wrap(key))));
+        actionParams = Collections.singletonList(ByteBuffer.wrap(result));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        asyncClient.close();
+        socket.close();
+        server.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ENTRIES)
+    public long blockingAdd() throws TException {
+        long handles = 0;
+        for (int i = 0; i < ENTRIES; i++) {
+            handles += blockingClient.bm_mt_add_entry(CONTEXT_ID, TABLE, matchParams, ACTION, actionParams,
+                    new BmAddEntryOptions());
+        }
+        return handles;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ENTRIES)
+    public long pipelinedAdd() {
+        @SuppressWarnings("unchecked")
+        CompletableFuture<Long>[] futures = new CompletableFuture[ENTRIES];
+        for (int i = 0; i < ENTRIES; i++) {
+            futures[i] = asyncClient.addTableEntry(entry);
+        }
+        long handles = 0;
+        for (CompletableFuture<Long> future : futures) {
+            handles += future.join();
+        }
+        return handles;
+    }
+}
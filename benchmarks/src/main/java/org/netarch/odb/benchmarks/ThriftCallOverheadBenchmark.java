@@ -0,0 +1,115 @@
+package org.netarch.odb.benchmarks;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TMultiplexedProtocol;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.transport.TSocket;
+import org.onosproject.bmv2.ctl.MockBmv2Server;
+import org.onosproject.bmv2.ctl.SafeThriftClient;
+import org.onosproject.bmv2.thriftapi.Standard;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time of one blocking call to a loopback mock of the BMv2 Thrift server,
+ * by the generated client alone, by the safe client which adds the locking
+ * and retry logic, and by a reflective proxy doing the same locking as the
+ * safe client used to. The differences with the generated client are the
+ * per-call overhead of each wrapper.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ThriftCallOverheadBenchmark {
+    private static final int CONTEXT_ID = 0;
+    private static final String TABLE = "table_header_match_stage1";
+    private static final long ENTRY_ID = 1;
+
+    private MockBmv2Server server;
+    private TSocket rawSocket;
+    private TSocket safeSocket;
+    private TSocket proxySocket;
+    private Standard.Iface rawClient;
+    private Standard.Iface safeClient;
+    private Standard.Iface proxyClient;
+
+    @Setup
+    public void setUp() throws IOException, TException {
+        server = new MockBmv2Server();
+
+        rawSocket = open();
+        rawClient = new Standard.Client(protocol(rawSocket));
+
+        safeSocket = open();
+        SafeThriftClient.CircuitBreaker breaker = new SafeThriftClient.CircuitBreaker(
+                new SafeThriftClient.Options(2, 10));
+        safeClient = SafeThriftClient.standardClient(protocol(safeSocket),
+                new SafeThriftClient.Connection(safeSocket, breaker));
+
+        proxySocket = open();
+        Standard.Client proxied = new Standard.Client(protocol(proxySocket));
+        InvocationHandler handler = (proxy, method, args) -> {
+            synchronized (proxySocket) {
+                try {
+                    return method.invoke(proxied, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getTargetException();
+                }
+            }
+        };
+        proxyClient = (Standard.Iface) Proxy.newProxyInstance(Standard.Iface.class.getClassLoader(),
+                new Class<?>[]{Standard.Iface.class}, handler);
+    }
+
+    private TSocket open() throws TException {
+        TSocket socket = new TSocket("127.0.0.1", server.getPort());
+        socket.open();
+        return socket;
+    }
+
+    private static TProtocol protocol(TSocket socket) {
+        return new TMultiplexedProtocol(new TBinaryProtocol(socket), "standard");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        rawSocket.close();
+        safeSocket.close();
+        proxySocket.close();
+        server.close();
+    }
+
+    @Benchmark
+    public void rawCall() throws TException {
+        rawClient.bm_mt_delete_entry(CONTEXT_ID, TABLE, ENTRY_ID);
+    }
+
+    @Benchmark
+    public void safeCall() throws TException {
+        safeClient.bm_mt_delete_entry(CONTEXT_ID, TABLE, ENTRY_ID);
+    }
+
+    @Benchmark
+    public void reflectiveProxyCall() throws TException {
+        proxyClient.bm_mt_delete_entry(CONTEXT_ID, TABLE, ENTRY_ID);
+    }
+}
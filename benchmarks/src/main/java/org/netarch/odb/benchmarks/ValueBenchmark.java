@@ -0,0 +1,57 @@
+package org.netarch.odb.benchmarks;
+
+import org.netarch.odb.runtime.BitVector;
+import org.netarch.odb.runtime.Value;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creation of the values of the flow keys, and their composition into the
+ * 800 bits header key of a stage, with Value.mod and with the bit vector.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ValueBenchmark {
+    private static final int HEADER_BIT_LENGTH = 800;
+    /* ipv4.dstAddr of router.json, behind the 112 bits of ethernet. */
+    private static final int KEY_OFFSET = 112 + 128;
+    private static final int KEY_WIDTH = 32;
+
+    private String hex;
+    private Value key;
+
+    @Setup
+    public void setUp() {
+        hex = "0x0a000001";
+        key = Value.createValueFromHexWithPrefix(hex, KEY_WIDTH / 8);
+    }
+
+    @Benchmark
+    public Value createValueFromHexWithPrefix() {
+        return Value.createValueFromHexWithPrefix(hex, KEY_WIDTH / 8);
+    }
+
+    @Benchmark
+    public byte[] valueMod() {
+        return Value.createValue(HEADER_BIT_LENGTH).mod(key, KEY_OFFSET).getValue();
+    }
+
+    @Benchmark
+    public byte[] bitVectorSetBits() {
+        return new BitVector(HEADER_BIT_LENGTH).setBits(KEY_OFFSET, KEY_WIDTH, key.getValue()).toByteArray();
+    }
+}
@@ -0,0 +1,4 @@
+/**
+ * JMH benchmarks of the compile and translate control path.
+ */
+package org.netarch.odb.benchmarks;
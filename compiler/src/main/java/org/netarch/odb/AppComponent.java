@@ -15,7 +15,6 @@
  */
 package org.netarch.odb;
 
-import com.eclipsesource.json.Json;
 import com.eclipsesource.json.JsonObject;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
@@ -26,10 +25,17 @@ import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.ReferenceCardinality;
 import org.apache.felix.scr.annotations.Service;
 import org.netarch.odb.compiler.Compiler;
+import org.netarch.odb.compiler.StagePlacement;
 import org.netarch.odb.compiler.Vp4Interpreter;
 import org.netarch.odb.model.ProgramModel;
+import org.netarch.odb.runtime.DeploymentReport;
+import org.netarch.odb.runtime.InstallReport;
 import org.netarch.odb.runtime.Instance;
+import org.netarch.odb.runtime.InstanceRule;
+import org.netarch.odb.runtime.TableHeadroom;
+import org.netarch.odb.runtime.TableOccupancy;
 import org.netarch.odb.service.CompilerService;
+import org.netarch.odb.utils.FlowRuleBatch;
 import org.onlab.util.ImmutableByteSequence;
 import org.onosproject.app.ApplicationAdminService;
 import org.onosproject.bmv2.api.context.Bmv2Configuration;
@@ -55,14 +61,17 @@ import org.onosproject.net.topology.TopologyService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
 
 import static org.onlab.util.Tools.groupedThreads;
 
@@ -74,11 +83,14 @@ import static org.onlab.util.Tools.groupedThreads;
 public class AppComponent implements CompilerService {
 
     private static final String JSON_PATH = "/vp4.json";
+    private static final String CONFIG_SNAPSHOT_PATH = "/vp4.bmv2";
     private static final String CONFIGURATION_NAME = "VP4";
     private static final Bmv2Configuration CONFIGURATION = loadConfiguration();
     private static final Vp4Interpreter INTERPRETER = new Vp4Interpreter();
     private static final Bmv2DeviceContext DEVICE_CONTEXT = new Bmv2DeviceContext(CONFIGURATION, INTERPRETER);
     private static final String APP_NAME = "ODB Compiler";
+    private static final String KARAF_DATA = "karaf.data";
+    private static final String SNAPSHOT_PATH = "odb/programs";
     private final Logger log = LoggerFactory.getLogger(getClass());
 
     private final ExecutorService executorService = Executors
@@ -118,14 +130,21 @@ public class AppComponent implements CompilerService {
     }
 
     /**
-     * Load configuration from the json file.
+     * Load configuration from the snapshot built with the config-snapshot
+     * profile, or from the json file if there is no snapshot.
      *
      * @return BMv2 configuration
      */
     private static Bmv2Configuration loadConfiguration() {
-        try {
-            JsonObject json = Json.parse(new BufferedReader(new InputStreamReader(AppComponent.class.getResourceAsStream(JSON_PATH)))).asObject();
-            return Bmv2DefaultConfiguration.parse(json);
+        try (InputStream snapshot = AppComponent.class.getResourceAsStream(CONFIG_SNAPSHOT_PATH)) {
+            if (snapshot != null) {
+                return Bmv2DefaultConfiguration.readSnapshot(snapshot);
+            }
+        } catch (IOException e) {
+            // Stale snapshot, fall back to the json file.
+        }
+        try (InputStream stream = AppComponent.class.getResourceAsStream(JSON_PATH)) {
+            return Bmv2DefaultConfiguration.parse(stream);
         } catch (IOException e) {
             throw new RuntimeException("Unable to load configuration");
         }
@@ -158,6 +177,11 @@ public class AppComponent implements CompilerService {
         bmv2Controller.addPacketListener(new InternalPakcetListener());
 
         compiler = new Compiler(flowRuleService, applicationId, CONFIGURATION);
+        try {
+            compiler.setSnapshotDirectory(new File(System.getProperty(KARAF_DATA, "."), SNAPSHOT_PATH));
+        } catch (RuntimeException e) {
+            log.warn("Program snapshots are disabled: {}", e.getMessage());
+        }
     }
 
     /**
@@ -206,6 +230,26 @@ public class AppComponent implements CompilerService {
         return compiler.installRule(rule);
     }
 
+    @Override
+    public CompilerService installRules(Collection<FlowRule> rules) {
+        return compiler.installRules(rules);
+    }
+
+    @Override
+    public CompilerService installRules(FlowRuleBatch batch, Consumer<InstallReport<FlowRule>> callback) {
+        return compiler.installRules(batch, callback);
+    }
+
+    @Override
+    public CompletableFuture<InstallReport<FlowRule>> installRuleAsync(FlowRule rule) {
+        return compiler.installRuleAsync(rule);
+    }
+
+    @Override
+    public CompletableFuture<InstallReport<FlowRule>> installRulesAsync(FlowRuleBatch batch) {
+        return compiler.installRulesAsync(batch);
+    }
+
     @Override
     public CompilerService removeRule(FlowRule rule) {
         return compiler.removeRule(rule);
@@ -226,11 +270,43 @@ public class AppComponent implements CompilerService {
         return compiler.run(program, deviceId, policyId);
     }
 
+    @Override
+    public CompletableFuture<Instance> runAsync(ProgramModel program, DeviceId deviceId, int policyId) {
+        return compiler.runAsync(program, deviceId, policyId);
+    }
+
+    @Override
+    public CompletableFuture<DeploymentReport> runOnDevices(ProgramModel program,
+                                                            Collection<DeviceId> deviceIds,
+                                                            int policyId) {
+        return compiler.runOnDevices(program, deviceIds, policyId);
+    }
+
     @Override
     public void stop(Instance instance) {
         compiler.stop(instance);
     }
 
+    @Override
+    public CompletableFuture<InstallReport<InstanceRule>> update(Instance instance, ProgramModel newModel) {
+        return compiler.update(instance, newModel);
+    }
+
+    @Override
+    public TableOccupancy getTableOccupancy(DeviceId deviceId) {
+        return compiler.getTableOccupancy(deviceId);
+    }
+
+    @Override
+    public List<TableHeadroom> getHeadroom(DeviceId deviceId) {
+        return compiler.getHeadroom(deviceId);
+    }
+
+    @Override
+    public StagePlacement getPlacement(ProgramModel program) {
+        return compiler.getPlacement(program);
+    }
+
     @Override
     public List<DeviceId> getDevices() {
         return deviceIdList;
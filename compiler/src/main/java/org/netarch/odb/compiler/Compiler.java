@@ -1,29 +1,70 @@
 package org.netarch.odb.compiler;
 
 import com.eclipsesource.json.JsonObject;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import org.netarch.odb.model.ProgramModel;
+import org.netarch.odb.model.ProgramModelCodec;
+import org.netarch.odb.runtime.DeploymentReport;
+import org.netarch.odb.runtime.InstallReport;
 import org.netarch.odb.runtime.Instance;
+import org.netarch.odb.runtime.InstanceRule;
+import org.netarch.odb.runtime.MatchResultAllocator;
+import org.netarch.odb.runtime.TableHeadroom;
+import org.netarch.odb.runtime.TableOccupancy;
 import org.netarch.odb.service.CompilerService;
 import org.netarch.odb.utils.DualKeyMap;
+import org.netarch.odb.utils.FlowRuleBatch;
 import org.onosproject.bmv2.api.context.Bmv2Configuration;
 import org.onosproject.core.ApplicationId;
 import org.onosproject.net.DeviceId;
 import org.onosproject.net.flow.FlowRule;
 import org.onosproject.net.flow.FlowRuleOperations;
 import org.onosproject.net.flow.FlowRuleService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
 
 public class Compiler implements CompilerService {
 
+    /* Stages known by the interpreter, the configuration may have less. */
     protected static final int STAGE_NUM = 10;
+    private static final int PROGRAM_CACHE_SIZE = 16;
+    private static final String SNAPSHOT_SUFFIX = ".odbp";
+    private final Logger log = LoggerFactory.getLogger(getClass());
     private int instanceCounter;
+    private final Queue<Integer> freeInstanceIds;
     private int programCounter;
     private ApplicationId applicationId;
     private DualKeyMap<ProgramModel> progModelMap;
     private DualKeyMap<Instance> instanceMap;
     private FlowRuleService flowRuleService;
     private Bmv2Configuration configuration;
+    private Vp4Templates templates;
+    private ConcurrentMap<DeviceId, ConcurrentMap<Byte, MatchResultAllocator>> matchResultAllocators;
+    private ConcurrentMap<DeviceId, TableOccupancy> tableOccupancies;
+    private ConcurrentMap<String, StagePlacement> placements;
+    private Cache<String, ProgramModel> programCache;
+    private File snapshotDirectory;
 
     public Compiler(FlowRuleService flowRuleService, ApplicationId applicationId, Bmv2Configuration configuration) {
         this.flowRuleService = flowRuleService;
@@ -31,37 +72,274 @@ public class Compiler implements CompilerService {
         this.instanceMap = new DualKeyMap<>();
         this.applicationId = applicationId;
         this.configuration = configuration;
+        this.templates = new Vp4Templates(configuration);
+        this.matchResultAllocators = Maps.newConcurrentMap();
+        this.tableOccupancies = Maps.newConcurrentMap();
+        this.placements = Maps.newConcurrentMap();
+        this.programCache = CacheBuilder.newBuilder().maximumSize(PROGRAM_CACHE_SIZE).build();
+        this.snapshotDirectory = null;
         this.instanceCounter = 0;
+        this.freeInstanceIds = new ArrayDeque<>();
         this.programCounter = 0;
     }
 
+    /**
+     * Compile json to program. A json which has been compiled before is not
+     * parsed again: it is taken from the recently compiled programs, or from
+     * its snapshot if a snapshot directory is set.
+     *
+     * @param json     json object of program
+     * @param progName program name
+     * @return program model
+     */
     @Override
     public ProgramModel compile(JsonObject json, String progName) {
-        ProgramModel progModel = new ProgramModel(progName, newProgramId(), json);
-        progModel.doParse();
-        this.progModelMap.put(progName, progModel.getId(), progModel);
+        String hash = ProgramModel.contentHash(json);
+
+        ProgramModel parsed = programCache.getIfPresent(hash);
+        if (parsed == null) {
+            parsed = loadSnapshot(hash);
+            if (parsed != null) {
+                programCache.put(hash, parsed);
+            }
+        }
+
+        /* The program id is only allocated once the json is known to be valid or already parsed. */
+        ProgramModel progModel;
+        if (parsed != null) {
+            progModel = parsed.withName(progName, newProgramId());
+        } else {
+            progModel = new ProgramModel(progName, -1, json, hash);
+            progModel.doParse();
+            programCache.put(hash, progModel);
+            saveSnapshot(progModel);
+            progModel = progModel.withName(progName, newProgramId());
+        }
+
+        synchronized (progModelMap) {
+            this.progModelMap.put(progName, progModel.getId(), progModel);
+        }
         return progModel;
     }
 
+    /**
+     * Set the directory keeping the snapshots of the compiled programs, so
+     * that they are not parsed again after a restart.
+     *
+     * @param directory snapshot directory, or null to disable snapshots
+     * @return this
+     */
+    public Compiler setSnapshotDirectory(File directory) {
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new RuntimeException("Unable to create the snapshot directory " + directory);
+        }
+        this.snapshotDirectory = directory;
+        return this;
+    }
+
+    /**
+     * Load the snapshot of a program.
+     *
+     * @param hash content hash of the program
+     * @return program model, or null if there is no valid snapshot
+     */
+    private ProgramModel loadSnapshot(String hash) {
+        if (snapshotDirectory == null) {
+            return null;
+        }
+        File file = new File(snapshotDirectory, hash + SNAPSHOT_SUFFIX);
+        if (!file.isFile()) {
+            return null;
+        }
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            ProgramModel program = ProgramModelCodec.read(in, hash, -1);
+            if (!hash.equals(program.getContentHash())) {
+                log.warn("Ignore the snapshot {} of another program", file);
+                return null;
+            }
+            return program;
+        } catch (IOException | RuntimeException e) {
+            log.warn("Unable to load the program snapshot {}: {}", file, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Save the snapshot of a parsed program. The snapshot is written into a
+     * temporary file first, so a snapshot is never read half written.
+     *
+     * @param program parsed program model
+     */
+    private void saveSnapshot(ProgramModel program) {
+        if (snapshotDirectory == null) {
+            return;
+        }
+        File file = new File(snapshotDirectory, program.getContentHash() + SNAPSHOT_SUFFIX);
+        File tmp = new File(snapshotDirectory, program.getContentHash() + SNAPSHOT_SUFFIX + ".tmp");
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp))) {
+            ProgramModelCodec.write(program, out);
+        } catch (IOException e) {
+            log.warn("Unable to save the program snapshot {}: {}", file, e.getMessage());
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(file)) {
+            log.warn("Unable to save the program snapshot {}", file);
+            tmp.delete();
+        }
+    }
+
     @Override
     public Instance run(ProgramModel program, DeviceId deviceId, int policyId) {
         Instance instance = new Instance(policyId,
                 newInstanceId(),
                 program, this, deviceId, applicationId);
         instance.initialize();
-        this.instanceMap.put(instance.getName(), instance.getInstanceId(), instance);
+        putInstance(instance);
         return instance;
     }
 
+    @Override
+    public CompletableFuture<Instance> runAsync(ProgramModel program, DeviceId deviceId, int policyId) {
+        Instance instance = new Instance(policyId,
+                newInstanceId(),
+                program, this, deviceId, applicationId);
+        putInstance(instance);
+        return instance.initializeAsync().whenComplete((result, error) -> {
+            if (error != null) {
+                synchronized (instanceMap) {
+                    this.instanceMap.remove(instance.getName());
+                }
+                releaseInstanceIds(instance.getPassIds());
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<DeploymentReport> runOnDevices(ProgramModel program,
+                                                            Collection<DeviceId> deviceIds,
+                                                            int policyId) {
+        long start = System.nanoTime();
+        Map<DeviceId, CompletableFuture<Instance>> futures = Maps.newLinkedHashMap();
+        Map<DeviceId, Long> elapsed = Maps.newConcurrentMap();
+
+        /* Only the flow rule operations of a device are chained, the devices do not wait for each other. */
+        Sets.newLinkedHashSet(deviceIds).forEach(deviceId -> {
+            long deviceStart = System.nanoTime();
+            CompletableFuture<Instance> future;
+            try {
+                future = runAsync(program, deviceId, policyId);
+            } catch (RuntimeException e) {
+                future = new CompletableFuture<>();
+                future.completeExceptionally(e);
+            }
+            futures.put(deviceId, future.whenComplete((instance, error) ->
+                    elapsed.put(deviceId, System.nanoTime() - deviceStart)));
+        });
+
+        return CompletableFuture.allOf(futures.values().toArray(new CompletableFuture[0]))
+                .handle((result, error) -> {
+                    Map<DeviceId, Instance> instances = Maps.newLinkedHashMap();
+                    Map<DeviceId, Throwable> failures = Maps.newLinkedHashMap();
+                    futures.forEach((deviceId, future) -> {
+                        try {
+                            instances.put(deviceId, future.join());
+                        } catch (RuntimeException e) {
+                            failures.put(deviceId, e.getCause() == null ? e : e.getCause());
+                        }
+                    });
+                    return new DeploymentReport(instances, failures, elapsed, System.nanoTime() - start);
+                });
+    }
+
     @Override
     public void stop(Instance instance) {
-        this.instanceMap.remove(instance.getName());
+        synchronized (instanceMap) {
+            this.instanceMap.remove(instance.getName());
+        }
+        /* The ids are only taken again once no entry of the instance matches them. */
+        instance.stopAsync().whenComplete((report, error) -> {
+            if (error == null && report.isSuccess()) {
+                releaseInstanceIds(instance.getPassIds());
+            } else {
+                log.warn("Unable to remove the entries of the instance {}, its ids are not reused",
+                        instance.getName());
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<InstallReport<InstanceRule>> update(Instance instance, ProgramModel newModel) {
+        log.info("Updating {} with {}", instance.getName(), newModel.getName());
+        return instance.swapProgram(newModel);
+    }
+
+    private void putInstance(Instance instance) {
+        synchronized (instanceMap) {
+            this.instanceMap.put(instance.getName(), instance.getInstanceId(), instance);
+        }
     }
 
     public Bmv2Configuration getBmv2Configuration() {
         return this.configuration;
     }
 
+    /**
+     * Get the VP4 templates compiled against the configuration.
+     *
+     * @return VP4 templates
+     */
+    public Vp4Templates getTemplates() {
+        return this.templates;
+    }
+
+    /**
+     * Get the match result allocator of a VP4 stage on a device. The match
+     * result tables only match the match result, so all the instances running
+     * on the device share the allocator of the stage.
+     *
+     * @param deviceId device id
+     * @param stageId  VP4 stage id
+     * @return match result allocator
+     */
+    public MatchResultAllocator getMatchResultAllocator(DeviceId deviceId, byte stageId) {
+        return matchResultAllocators
+                .computeIfAbsent(deviceId, id -> Maps.newConcurrentMap())
+                .computeIfAbsent(stageId, id -> new MatchResultAllocator("stage" + id + " of " + deviceId));
+    }
+
+    @Override
+    public TableOccupancy getTableOccupancy(DeviceId deviceId) {
+        return tableOccupancies.computeIfAbsent(deviceId,
+                id -> new TableOccupancy(id.toString(), configuration));
+    }
+
+    @Override
+    public List<TableHeadroom> getHeadroom(DeviceId deviceId) {
+        return getTableOccupancy(deviceId).getHeadroom();
+    }
+
+    /**
+     * Get the placement of the tables of a program on the VP4 stages. The
+     * placement only depends on the parsed program, so programs with the same
+     * json share it.
+     *
+     * @param program program model
+     * @return stage placement
+     */
+    @Override
+    public StagePlacement getPlacement(ProgramModel program) {
+        return placements.computeIfAbsent(program.getContentHash(), hash -> {
+            StagePlacement placement = StagePlacement.place(program, templates.getStageNum());
+            log.info("Placed {} on {} stages in {} passes, common path {} passes, worst path {} passes " +
+                            "and {} stages, dependency depth {}",
+                    program.getName(), placement.getStageCount(), placement.getPassCount(),
+                    placement.getCommonPath().getPasses(), placement.getMaxPasses(),
+                    placement.getPacketStageCount(), placement.getDependencyDepth());
+            return placement;
+        });
+    }
+
     public ProgramModel getProgramModel(String progName) {
         return progModelMap.get(progName);
     }
@@ -83,6 +361,60 @@ public class Compiler implements CompilerService {
         return this;
     }
 
+    /**
+     * Install flow rules into the devices in one round trip.
+     *
+     * @param rules flow rules
+     */
+    @Override
+    public CompilerService installRules(Collection<FlowRule> rules) {
+        FlowRuleBatch batch = new FlowRuleBatch();
+        rules.forEach(rule -> batch.add(0, rule));
+        return installRules(batch, null);
+    }
+
+    /**
+     * Install a batch of flow rules into the devices.
+     *
+     * @param batch    flow rule batch
+     * @param callback result callback
+     */
+    @Override
+    public CompilerService installRules(FlowRuleBatch batch, Consumer<InstallReport<FlowRule>> callback) {
+        if (batch.isEmpty()) {
+            if (callback != null) {
+                callback.accept(new InstallReport<>(Collections.emptyList(), Collections.emptyList()));
+            }
+            return this;
+        }
+        flowRuleService.apply(batch.build(callback));
+        return this;
+    }
+
+    /**
+     * Install a flow rule into the device.
+     *
+     * @param rule flow rule
+     */
+    @Override
+    public CompletableFuture<InstallReport<FlowRule>> installRuleAsync(FlowRule rule) {
+        FlowRuleBatch batch = new FlowRuleBatch();
+        batch.add(0, rule);
+        return installRulesAsync(batch);
+    }
+
+    /**
+     * Install a batch of flow rules into the devices.
+     *
+     * @param batch flow rule batch
+     */
+    @Override
+    public CompletableFuture<InstallReport<FlowRule>> installRulesAsync(FlowRuleBatch batch) {
+        CompletableFuture<InstallReport<FlowRule>> future = new CompletableFuture<>();
+        installRules(batch, future::complete);
+        return future;
+    }
+
     /**
      * Remove a flow rule from the device.
      *
@@ -96,12 +428,31 @@ public class Compiler implements CompilerService {
         return this;
     }
 
-    private int newProgramId() {
+    private synchronized int newProgramId() {
         return programCounter++;
     }
 
-    private int newInstanceId() {
-        return instanceCounter++;
+    /**
+     * Allocate an instance id. The passes of a program after the first one
+     * take ids of their own, since the entries of a pass match the program id.
+     *
+     * @return instance id
+     */
+    public synchronized int newInstanceId() {
+        Integer id = freeInstanceIds.poll();
+        return id != null ? id : instanceCounter++;
+    }
+
+    /**
+     * Release the ids of an instance which is not running, so that they can
+     * be allocated again.
+     *
+     * @param ids instance ids
+     */
+    private synchronized void releaseInstanceIds(int[] ids) {
+        for (int id : ids) {
+            freeInstanceIds.add(id);
+        }
     }
 
     @Override
@@ -0,0 +1,75 @@
+package org.netarch.odb.compiler;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+
+/**
+ * Path of a packet through the logical tables of a program, with its cost on
+ * VP4: the passes through the pipeline and the stages traversed.
+ */
+public class PacketPath {
+    private final ImmutableList<String> tables;
+    private final int passes;
+    private final int stages;
+
+    /**
+     * Create a packet path.
+     *
+     * @param tables table names in the order they are applied
+     * @param passes passes through the VP4 pipeline, 1 without resubmit
+     * @param stages VP4 stages traversed, including the skipped ones
+     */
+    public PacketPath(List<String> tables, int passes, int stages) {
+        this.tables = ImmutableList.copyOf(tables);
+        this.passes = passes;
+        this.stages = stages;
+    }
+
+    /**
+     * Get the tables of the path.
+     *
+     * @return table names
+     */
+    public List<String> getTables() {
+        return tables;
+    }
+
+    /**
+     * Get the number of passes through the VP4 pipeline.
+     *
+     * @return passes
+     */
+    public int getPasses() {
+        return passes;
+    }
+
+    /**
+     * Get the number of resubmits of the path.
+     *
+     * @return resubmits
+     */
+    public int getResubmits() {
+        return passes - 1;
+    }
+
+    /**
+     * Get the number of VP4 stages traversed.
+     *
+     * @return stages
+     */
+    public int getStages() {
+        return stages;
+    }
+
+    @Override
+    public String toString() {
+        return toStringHelper(this)
+                .add("tables", tables)
+                .add("passes", passes)
+                .add("stages", stages)
+                .toString();
+    }
+}
@@ -0,0 +1,209 @@
+package org.netarch.odb.compiler;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import org.netarch.odb.model.ActionModel;
+import org.netarch.odb.model.FieldModel;
+import org.netarch.odb.model.MatchKeyModel;
+import org.netarch.odb.model.ParameterModel;
+import org.netarch.odb.model.PrimitiveModel;
+import org.netarch.odb.model.ProgramModel;
+import org.netarch.odb.model.TableModel;
+
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+
+/**
+ * Difference between two versions of a program, table by table. Tables are
+ * matched by name. A table is unchanged if its keys are at the same place in
+ * the packet, its actions run the same primitives and it goes to the same
+ * next components. The models of two parsed programs never share headers, so
+ * they are compared by value rather than with equals.
+ */
+public final class ProgramDiff {
+    private final ImmutableSet<String> added;
+    private final ImmutableSet<String> removed;
+    private final ImmutableSet<String> changed;
+    private final ImmutableSet<String> unchanged;
+
+    private ProgramDiff(ImmutableSet<String> added, ImmutableSet<String> removed,
+                        ImmutableSet<String> changed, ImmutableSet<String> unchanged) {
+        this.added = added;
+        this.removed = removed;
+        this.changed = changed;
+        this.unchanged = unchanged;
+    }
+
+    /**
+     * Compare the tables of two versions of a program.
+     *
+     * @param oldProgram running program
+     * @param newProgram new program
+     * @return program diff
+     */
+    public static ProgramDiff between(ProgramModel oldProgram, ProgramModel newProgram) {
+        ImmutableSet.Builder<String> added = ImmutableSet.builder();
+        ImmutableSet.Builder<String> removed = ImmutableSet.builder();
+        ImmutableSet.Builder<String> changed = ImmutableSet.builder();
+        ImmutableSet.Builder<String> unchanged = ImmutableSet.builder();
+
+        for (TableModel table : newProgram.tables()) {
+            TableModel old = oldProgram.table(table.getName());
+            if (old == null) {
+                added.add(table.getName());
+            } else if (sameTable(old, table)) {
+                unchanged.add(table.getName());
+            } else {
+                changed.add(table.getName());
+            }
+        }
+        for (TableModel table : oldProgram.tables()) {
+            if (newProgram.table(table.getName()) == null) {
+                removed.add(table.getName());
+            }
+        }
+        return new ProgramDiff(added.build(), removed.build(), changed.build(), unchanged.build());
+    }
+
+    private static boolean sameTable(TableModel a, TableModel b) {
+        if (a.getId() != b.getId()
+                || !Objects.equal(a.getMatchType(), b.getMatchType())
+                || !Objects.equal(a.getType(), b.getType())
+                || a.getMaxSize() != b.getMaxSize()
+                || a.hasCounters() != b.hasCounters()
+                || a.hasTimeouts() != b.hasTimeouts()
+                || !Objects.equal(a.getNext(), b.getNext())
+                || !a.getNextTables().equals(b.getNextTables())) {
+            return false;
+        }
+
+        List<MatchKeyModel> aKeys = a.getKeys();
+        List<MatchKeyModel> bKeys = b.getKeys();
+        if (aKeys.size() != bKeys.size()) {
+            return false;
+        }
+        for (int i = 0; i < aKeys.size(); i++) {
+            if (aKeys.get(i).matchType() != bKeys.get(i).matchType()
+                    || !sameField(aKeys.get(i).field(), bKeys.get(i).field())) {
+                return false;
+            }
+        }
+
+        Map<String, ActionModel> bActions = Maps.newHashMap();
+        b.getActions().forEach(action -> bActions.put(action.name(), action));
+        if (a.getActions().size() != bActions.size()) {
+            return false;
+        }
+        for (ActionModel action : a.getActions()) {
+            ActionModel other = bActions.get(action.name());
+            if (other == null || !sameAction(action, other)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean sameAction(ActionModel a, ActionModel b) {
+        if (a.id() != b.id() || !a.runtimeDatas().equals(b.runtimeDatas())) {
+            return false;
+        }
+        List<PrimitiveModel> aPrimitives = a.getPrimitiveModels();
+        List<PrimitiveModel> bPrimitives = b.getPrimitiveModels();
+        if (aPrimitives.size() != bPrimitives.size()) {
+            return false;
+        }
+        for (int i = 0; i < aPrimitives.size(); i++) {
+            List<ParameterModel> aParameters = aPrimitives.get(i).getParameterModels();
+            List<ParameterModel> bParameters = bPrimitives.get(i).getParameterModels();
+            if (aPrimitives.get(i).getType() != bPrimitives.get(i).getType()
+                    || aParameters.size() != bParameters.size()) {
+                return false;
+            }
+            for (int j = 0; j < aParameters.size(); j++) {
+                if (!sameParameter(aParameters.get(j), bParameters.get(j))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean sameParameter(ParameterModel a, ParameterModel b) {
+        if (a.getType() != b.getType()) {
+            return false;
+        }
+        switch (a.getType()) {
+            case CONST:
+                return a.getConstData() == b.getConstData();
+            case RUNTIME_DATA:
+                return Objects.equal(a.getRuntimedata(), b.getRuntimedata());
+            case PACKET_FIELD:
+            case METADATA_FIELD:
+                return sameField(a.getFieldModel(), b.getFieldModel());
+            case PACKET_HEADER:
+            case METADATA_HEADER:
+                return a.getHeaderModel().getName().equals(b.getHeaderModel().getName())
+                        && a.getHeaderModel().getBitOffset() == b.getHeaderModel().getBitOffset();
+            default:
+                return false;
+        }
+    }
+
+    private static boolean sameField(FieldModel a, FieldModel b) {
+        return a.getHeaderName().equals(b.getHeaderName())
+                && a.getName().equals(b.getName())
+                && a.isMetadata() == b.isMetadata()
+                && a.getLength() == b.getLength()
+                && a.getHeader().getBitOffset() + a.getBitOffset() == b.getHeader().getBitOffset() + b.getBitOffset();
+    }
+
+    /**
+     * Get the tables which only exist in the new program.
+     *
+     * @return table names
+     */
+    public ImmutableSet<String> getAdded() {
+        return added;
+    }
+
+    /**
+     * Get the tables which only exist in the running program.
+     *
+     * @return table names
+     */
+    public ImmutableSet<String> getRemoved() {
+        return removed;
+    }
+
+    /**
+     * Get the tables of both programs which differ.
+     *
+     * @return table names
+     */
+    public ImmutableSet<String> getChanged() {
+        return changed;
+    }
+
+    /**
+     * Whether a table exists in both programs and is the same.
+     *
+     * @param tableName table name
+     * @return true if the table is unchanged, otherwise false
+     */
+    public boolean isUnchanged(String tableName) {
+        return unchanged.contains(tableName);
+    }
+
+    @Override
+    public String toString() {
+        return toStringHelper(this)
+                .add("added", added)
+                .add("removed", removed)
+                .add("changed", changed)
+                .add("unchanged", unchanged)
+                .toString();
+    }
+}
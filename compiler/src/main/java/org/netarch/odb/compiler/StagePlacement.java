@@ -0,0 +1,684 @@
+package org.netarch.odb.compiler;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.netarch.odb.model.ActionModel;
+import org.netarch.odb.model.ConditionModel;
+import org.netarch.odb.model.FieldModel;
+import org.netarch.odb.model.MatchKeyModel;
+import org.netarch.odb.model.ParameterModel;
+import org.netarch.odb.model.PrimitiveModel;
+import org.netarch.odb.model.ProgramModel;
+import org.netarch.odb.model.TableModel;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+
+/**
+ * Placement of the logical tables of a program on the virtual stages of VP4.
+ * <p>
+ * The tables are linked by the control flow of the pipelines, where the
+ * conditions are resolved to the tables they lead to. Tables get positions in
+ * a topological order of this graph, so every packet walks the positions
+ * forward. A VP4 stage applies a single logical table of a program, so the
+ * positions are dense. Position p is the stage p % stageNum of the pass
+ * p / stageNum: programs with more tables than stages are split into passes,
+ * each pass matching with its own program id, and a packet is resubmitted
+ * when the stage of its next table is not after the current one.
+ * <p>
+ * The common path, which follows the default next table of each table from
+ * the first one, is placed first together with the tables it waits for, so it
+ * crosses as few pass boundaries as the control flow allows. The other
+ * tables come after, the longest chains first.
+ * <p>
+ * The data dependencies between the tables, built from the match keys and the
+ * fields read and written by the primitives of the actions, give the lower
+ * bound of the stages a packet needs if independent tables could share a stage.
+ */
+public final class StagePlacement {
+    private static final String STD_META_EGRESS_SPEC = Vp4Interpreter.STD_META + ".egress_spec";
+    /* Paths listed in the report, the worst path is computed over all of them. */
+    private static final int MAX_REPORTED_PATHS = 256;
+
+    private final String programName;
+    private final int stageNum;
+    private final ImmutableList<TableModel> order;
+    private final ImmutableMap<String, Integer> positions;
+    private final ImmutableSet<String> resubmitTargets;
+    private final ImmutableMap<String, String> conditionTables;
+    private final PacketPath commonPath;
+    private final ImmutableList<PacketPath> paths;
+    private final int maxPasses;
+    private final int packetStageCount;
+    private final int dependencyDepth;
+
+    private StagePlacement(Builder builder) {
+        this.programName = builder.programName;
+        this.stageNum = builder.stageNum;
+        this.order = ImmutableList.copyOf(builder.order);
+        ImmutableMap.Builder<String, Integer> positions = ImmutableMap.builder();
+        for (int i = 0; i < order.size(); i++) {
+            positions.put(order.get(i).getName(), i);
+        }
+        this.positions = positions.build();
+        this.resubmitTargets = ImmutableSet.copyOf(builder.resubmitTargets);
+        this.conditionTables = ImmutableMap.copyOf(builder.conditionTables);
+        this.commonPath = builder.commonPath;
+        this.paths = ImmutableList.copyOf(builder.paths);
+        this.maxPasses = builder.maxPasses;
+        this.packetStageCount = builder.packetStageCount;
+        this.dependencyDepth = builder.dependencyDepth;
+    }
+
+    /**
+     * Place the tables of a program.
+     *
+     * @param program  program model
+     * @param stageNum number of VP4 stages
+     * @return placement
+     */
+    public static StagePlacement place(ProgramModel program, int stageNum) {
+        if (stageNum <= 0) {
+            throw new RuntimeException("VP4 has no stage to place the program " + program.getName());
+        }
+        List<TableModel> tables = program.tables();
+        int size = tables.size();
+        Map<String, Integer> indexes = Maps.newHashMap();
+        for (int i = 0; i < size; i++) {
+            indexes.put(tables.get(i).getName(), i);
+        }
+
+        /* Control graph between the tables. */
+        Map<String, BitSet> resolved = Maps.newHashMap();
+        List<BitSet> successors = Lists.newArrayListWithCapacity(size);
+        int[] inDegrees = new int[size];
+        for (TableModel table : tables) {
+            BitSet next = new BitSet(size);
+            next.or(resolve(program, indexes, table.getNext(), resolved, Sets.newHashSet()));
+            for (String name : table.getNextTables().values()) {
+                next.or(resolve(program, indexes, name, resolved, Sets.newHashSet()));
+            }
+            next.stream().forEach(i -> inDegrees[i]++);
+            successors.add(next);
+        }
+        List<Integer> roots = Lists.newArrayList();
+        for (int i = 0; i < size; i++) {
+            if (inDegrees[i] == 0) {
+                roots.add(i);
+            }
+        }
+
+        int[] heights = new int[size];
+        for (int i = 0; i < size; i++) {
+            height(program, tables, successors, i, heights, new BitSet(size));
+        }
+
+        /* The common path and the tables it waits for go first. */
+        List<Integer> common = commonPath(program, indexes, resolved, tables, heights, roots);
+        BitSet commonTables = new BitSet(size);
+        common.forEach(commonTables::set);
+        BitSet awaited = new BitSet(size);
+        for (int i = 0; i < size; i++) {
+            if (!commonTables.get(i) && reaches(i, commonTables, successors)) {
+                awaited.set(i);
+            }
+        }
+        int[] ranks = new int[size];
+        for (int i = 0; i < size; i++) {
+            ranks[i] = commonTables.get(i) ? 0 : awaited.get(i) ? 1 : 2;
+        }
+
+        /* List scheduling: by rank, then the longest chain behind the table first. */
+        PriorityQueue<Integer> ready = new PriorityQueue<>((a, b) -> ranks[a] != ranks[b] ?
+                Integer.compare(ranks[a], ranks[b]) : heights[a] != heights[b] ?
+                Integer.compare(heights[b], heights[a]) : Integer.compare(tables.get(a).getId(),
+                tables.get(b).getId()));
+        ready.addAll(roots);
+        List<TableModel> order = Lists.newArrayListWithCapacity(size);
+        int[] positions = new int[size];
+        while (!ready.isEmpty()) {
+            int i = ready.poll();
+            positions[i] = order.size();
+            order.add(tables.get(i));
+            successors.get(i).stream().forEach(next -> {
+                if (--inDegrees[next] == 0) {
+                    ready.add(next);
+                }
+            });
+        }
+
+        Builder builder = new Builder(program.getName(), stageNum, order);
+
+        /* A packet is resubmitted to a table whose stage is not after the stage of the previous table. */
+        for (int i = 0; i < size; i++) {
+            int from = positions[i];
+            successors.get(i).stream().forEach(next -> {
+                if (isResubmit(from, positions[next], stageNum)) {
+                    builder.resubmitTargets.add(tables.get(next).getName());
+                }
+            });
+        }
+
+        /* Worst path over all the paths, the cost of a path only depends on its edges. */
+        int[] passes = new int[size];
+        int[] stages = new int[size];
+        for (TableModel table : order) {
+            int i = indexes.get(table.getName());
+            passes[i] = Math.max(passes[i], 1);
+            stages[i] = Math.max(stages[i], 1);
+            builder.maxPasses = Math.max(builder.maxPasses, passes[i]);
+            builder.packetStageCount = Math.max(builder.packetStageCount, stages[i]);
+            successors.get(i).stream().forEach(next -> {
+                boolean resubmit = isResubmit(positions[i], positions[next], stageNum);
+                passes[next] = Math.max(passes[next], passes[i] + (resubmit ? 1 : 0));
+                stages[next] = Math.max(stages[next], stages[i] + advance(positions[i], positions[next], stageNum));
+            });
+        }
+
+        /* VP4 does not evaluate the conditions, a packet takes the branch of the common path. */
+        for (ConditionModel condition : program.conditions()) {
+            int table = highest(resolve(program, indexes, condition.getName(), resolved, Sets.newHashSet()),
+                    heights);
+            if (table >= 0) {
+                builder.conditionTables.put(condition.getName(), tables.get(table).getName());
+            }
+        }
+
+        builder.commonPath = path(tables, common, positions, stageNum);
+        for (int root : roots) {
+            listPaths(tables, successors, positions, stageNum, Lists.newArrayList(root), builder.paths);
+        }
+
+        BitSet[] reachable = reachable(order, indexes, successors);
+        builder.dependencyDepth = dependencyDepth(tables, indexes, order, reachable);
+        return new StagePlacement(builder);
+    }
+
+    /**
+     * Whether a packet is resubmitted from a table to the next one. The
+     * match result entry sets the program id of the next table, so a packet
+     * goes on to a later stage of another pass without a resubmit.
+     */
+    private static boolean isResubmit(int from, int to, int stageNum) {
+        return to % stageNum <= from % stageNum;
+    }
+
+    /**
+     * Stages traversed from a table to the next one, through the end of the
+     * pipeline if the packet is resubmitted.
+     */
+    private static int advance(int from, int to, int stageNum) {
+        if (!isResubmit(from, to, stageNum)) {
+            return to % stageNum - from % stageNum;
+        }
+        return stageNum - from % stageNum + to % stageNum;
+    }
+
+    private static PacketPath path(List<TableModel> tables, List<Integer> indexes, int[] positions,
+                                   int stageNum) {
+        List<String> names = Lists.newArrayListWithCapacity(indexes.size());
+        int passes = indexes.isEmpty() ? 0 : 1;
+        int stages = indexes.isEmpty() ? 0 : 1;
+        for (int i = 0; i < indexes.size(); i++) {
+            names.add(tables.get(indexes.get(i)).getName());
+            if (i > 0) {
+                int from = positions[indexes.get(i - 1)];
+                int to = positions[indexes.get(i)];
+                passes += isResubmit(from, to, stageNum) ? 1 : 0;
+                stages += advance(from, to, stageNum);
+            }
+        }
+        return new PacketPath(names, passes, stages);
+    }
+
+    /**
+     * List the paths from a table to the end of the pipeline, up to
+     * MAX_REPORTED_PATHS paths.
+     */
+    private static void listPaths(List<TableModel> tables, List<BitSet> successors, int[] positions,
+                                  int stageNum, List<Integer> prefix, List<PacketPath> paths) {
+        if (paths.size() >= MAX_REPORTED_PATHS) {
+            return;
+        }
+        BitSet next = successors.get(prefix.get(prefix.size() - 1));
+        if (next.isEmpty()) {
+            paths.add(path(tables, prefix, positions, stageNum));
+            return;
+        }
+        for (int i = next.nextSetBit(0); i >= 0; i = next.nextSetBit(i + 1)) {
+            prefix.add(i);
+            listPaths(tables, successors, positions, stageNum, prefix, paths);
+            prefix.remove(prefix.size() - 1);
+        }
+    }
+
+    /**
+     * Follow the default next table from the first table of the program.
+     * Where a condition leads to several tables, the one with the longest
+     * chain behind it is taken.
+     */
+    private static List<Integer> commonPath(ProgramModel program, Map<String, Integer> indexes,
+                                            Map<String, BitSet> resolved, List<TableModel> tables,
+                                            int[] heights, List<Integer> roots) {
+        BitSet first = new BitSet(tables.size());
+        for (String init : program.getInitTables()) {
+            first.or(resolve(program, indexes, init, resolved, Sets.newHashSet()));
+            if (!first.isEmpty()) {
+                break;
+            }
+        }
+        if (first.isEmpty()) {
+            roots.forEach(first::set);
+        }
+
+        List<Integer> path = Lists.newArrayList();
+        int current = highest(first, heights);
+        while (current >= 0) {
+            path.add(current);
+            current = highest(resolve(program, indexes, tables.get(current).getNext(), resolved,
+                    Sets.newHashSet()), heights);
+        }
+        return path;
+    }
+
+    private static int highest(BitSet tables, int[] heights) {
+        int highest = -1;
+        for (int i = tables.nextSetBit(0); i >= 0; i = tables.nextSetBit(i + 1)) {
+            if (highest < 0 || heights[i] > heights[highest]) {
+                highest = i;
+            }
+        }
+        return highest;
+    }
+
+    private static boolean reaches(int index, BitSet targets, List<BitSet> successors) {
+        BitSet visited = new BitSet(successors.size());
+        List<Integer> stack = Lists.newArrayList(index);
+        while (!stack.isEmpty()) {
+            int i = stack.remove(stack.size() - 1);
+            BitSet next = successors.get(i);
+            for (int j = next.nextSetBit(0); j >= 0; j = next.nextSetBit(j + 1)) {
+                if (targets.get(j)) {
+                    return true;
+                }
+                if (!visited.get(j)) {
+                    visited.set(j);
+                    stack.add(j);
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Tables reachable from each table, computed in the reverse order of the
+     * positions.
+     */
+    private static BitSet[] reachable(List<TableModel> order, Map<String, Integer> indexes,
+                                      List<BitSet> successors) {
+        int size = order.size();
+        BitSet[] reachable = new BitSet[size];
+        for (int position = size - 1; position >= 0; position--) {
+            int i = indexes.get(order.get(position).getName());
+            BitSet reach = new BitSet(size);
+            successors.get(i).stream().forEach(next -> {
+                reach.set(next);
+                reach.or(reachable[next]);
+            });
+            reachable[i] = reach;
+        }
+        return reachable;
+    }
+
+    /**
+     * Resolve a component of the control flow to the tables it leads to.
+     */
+    private static BitSet resolve(ProgramModel program, Map<String, Integer> indexes, String name,
+                                  Map<String, BitSet> resolved, Set<String> visiting) {
+        BitSet tables = new BitSet(indexes.size());
+        if (name == null) {
+            return tables;
+        }
+        Integer index = indexes.get(name);
+        if (index != null) {
+            tables.set(index);
+            return tables;
+        }
+        BitSet cached = resolved.get(name);
+        if (cached != null) {
+            return cached;
+        }
+        ConditionModel condition = program.condition(name);
+        if (condition == null) {
+            throw new RuntimeException("Can't find the table or condition " + name +
+                    " of the program " + program.getName());
+        }
+        if (!visiting.add(name)) {
+            throw new RuntimeException("The condition " + name + " of the program " +
+                    program.getName() + " loops");
+        }
+        tables.or(resolve(program, indexes, condition.getTrueNext(), resolved, visiting));
+        tables.or(resolve(program, indexes, condition.getFalseNext(), resolved, visiting));
+        visiting.remove(name);
+        resolved.put(name, tables);
+        return tables;
+    }
+
+    /**
+     * Compute the number of tables on the longest chain starting at a table.
+     */
+    private static int height(ProgramModel program, List<TableModel> tables, List<BitSet> successors,
+                              int index, int[] heights, BitSet visiting) {
+        if (heights[index] > 0) {
+            return heights[index];
+        }
+        if (visiting.get(index)) {
+            throw new RuntimeException("The table " + tables.get(index).getName() + " of the program " +
+                    program.getName() + " loops");
+        }
+        visiting.set(index);
+        int height = 0;
+        BitSet next = successors.get(index);
+        for (int i = next.nextSetBit(0); i >= 0; i = next.nextSetBit(i + 1)) {
+            height = Math.max(height, height(program, tables, successors, i, heights, visiting));
+        }
+        visiting.clear(index);
+        heights[index] = height + 1;
+        return heights[index];
+    }
+
+
+    /**
+     * Compute the number of tables on the longest chain of data dependencies.
+     * A table depends on a table applied before it if it reads or writes a
+     * field the other one writes, or writes a field the other one reads.
+     */
+    private static int dependencyDepth(List<TableModel> tables, Map<String, Integer> indexes,
+                                       List<TableModel> order, BitSet[] reachable) {
+        int size = tables.size();
+        List<Set<String>> reads = Lists.newArrayListWithCapacity(size);
+        List<Set<String>> writes = Lists.newArrayListWithCapacity(size);
+        for (TableModel table : tables) {
+            Set<String> tableReads = Sets.newHashSet();
+            Set<String> tableWrites = Sets.newHashSet();
+            for (MatchKeyModel key : table.getKeys()) {
+                tableReads.add(key.getName());
+            }
+            for (ActionModel action : table.getActions()) {
+                for (PrimitiveModel primitive : action.getPrimitiveModels()) {
+                    addAccesses(primitive, tableReads, tableWrites);
+                }
+            }
+            reads.add(tableReads);
+            writes.add(tableWrites);
+        }
+
+        int depth = 0;
+        int[] depths = new int[size];
+        for (TableModel table : order) {
+            int i = indexes.get(table.getName());
+            depths[i] = Math.max(depths[i], 1);
+            depth = Math.max(depth, depths[i]);
+            for (int next = reachable[i].nextSetBit(0); next >= 0; next = reachable[i].nextSetBit(next + 1)) {
+                if (conflict(writes.get(i), reads.get(next)) || conflict(writes.get(i), writes.get(next))
+                        || conflict(reads.get(i), writes.get(next))) {
+                    depths[next] = Math.max(depths[next], depths[i] + 1);
+                }
+            }
+        }
+        return depth;
+    }
+
+    /**
+     * Add the fields read and written by a primitive. Fields are named
+     * header.field, a whole header by its name.
+     */
+    private static void addAccesses(PrimitiveModel primitive, Set<String> reads, Set<String> writes) {
+        List<ParameterModel> parameters = primitive.getParameterModels();
+        switch (primitive.getType()) {
+            case NO_OP:
+                break;
+            case DROP:
+                writes.add(STD_META_EGRESS_SPEC);
+                break;
+            case ADD_TO_FIELD:
+            case SUBSTRACT_FROM_FIELD:
+                parameters.forEach(parameter -> addAccess(parameter, reads));
+                addAccess(parameters.get(0), writes);
+                break;
+            case MODIFY_FIELD:
+            case ADD:
+            case SUBSTRACT:
+            case BIT_AND:
+            case BIT_OR:
+            case BIT_XOR:
+            case SHIFT_LEFT:
+            case SHIFT_RIGHT:
+            case ADD_HEADER:
+            case REMOVE_HEADER:
+            case COPY_HEADER:
+                for (int i = 0; i < parameters.size(); i++) {
+                    addAccess(parameters.get(i), i == 0 ? writes : reads);
+                }
+                break;
+            default:
+                /* Unknown semantics, the primitive may read and write all its parameters. */
+                parameters.forEach(parameter -> {
+                    addAccess(parameter, reads);
+                    addAccess(parameter, writes);
+                });
+                break;
+        }
+    }
+
+    private static void addAccess(ParameterModel parameter, Collection<String> accesses) {
+        switch (parameter.getType()) {
+            case PACKET_FIELD:
+            case METADATA_FIELD:
+                FieldModel field = parameter.getFieldModel();
+                accesses.add(field.getHeaderName() + "." + field.getName());
+                break;
+            case PACKET_HEADER:
+            case METADATA_HEADER:
+                accesses.add(parameter.getHeaderModel().getName());
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static boolean conflict(Set<String> a, Set<String> b) {
+        for (String access : a) {
+            if (b.contains(access) || b.contains(headerOf(access))) {
+                return true;
+            }
+            if (access.indexOf('.') < 0) {
+                for (String other : b) {
+                    if (access.equals(headerOf(other))) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private static String headerOf(String access) {
+        int dot = access.indexOf('.');
+        return dot < 0 ? access : access.substring(0, dot);
+    }
+
+    private int getPosition(String tableName) {
+        Integer position = positions.get(tableName);
+        if (position == null) {
+            throw new RuntimeException("Can't find the table " + tableName + " of the program " + programName);
+        }
+        return position;
+    }
+
+    /**
+     * Get the virtual stage of a table.
+     *
+     * @param tableName table name
+     * @return stage id
+     */
+    public int getStage(String tableName) {
+        return getPosition(tableName) % stageNum;
+    }
+
+    /**
+     * Get the pass of a table, each pass of the program matching with its
+     * own program id.
+     *
+     * @param tableName table name
+     * @return pass, from 0
+     */
+    public int getPass(String tableName) {
+        return getPosition(tableName) / stageNum;
+    }
+
+    /**
+     * Get the number of passes of the program, i.e. the number of program
+     * ids it needs.
+     *
+     * @return number of passes
+     */
+    public int getPassCount() {
+        return (order.size() + stageNum - 1) / stageNum;
+    }
+
+    /**
+     * Whether packets are resubmitted to a table, since the table before it
+     * on some path is not in an earlier stage.
+     *
+     * @param tableName table name
+     * @return true if the table needs a resubmit entry, otherwise false
+     */
+    public boolean isResubmitTarget(String tableName) {
+        return resubmitTargets.contains(tableName);
+    }
+
+    /**
+     * Resolve a component of the control flow to the table packets go to.
+     * VP4 does not evaluate the conditions, a condition leads to the table
+     * with the longest chain behind it, like the common path.
+     *
+     * @param component table or condition name, null at the end of the pipeline
+     * @return table name, or null at the end of the pipeline
+     */
+    public String getNextTable(String component) {
+        if (component == null || positions.containsKey(component)) {
+            return component;
+        }
+        return conditionTables.get(component);
+    }
+
+    /**
+     * Get the tables in the order of their positions.
+     *
+     * @return table models
+     */
+    public List<TableModel> getOrder() {
+        return order;
+    }
+
+    /**
+     * Get the number of stages used by the program, over all the passes.
+     *
+     * @return number of stages
+     */
+    public int getStageCount() {
+        return order.size();
+    }
+
+    /**
+     * Get the common path, which follows the default next table of each
+     * table.
+     *
+     * @return common path
+     */
+    public PacketPath getCommonPath() {
+        return commonPath;
+    }
+
+    /**
+     * Get the paths of the program with their passes. Only the first
+     * paths are listed for programs with many branches.
+     *
+     * @return packet paths
+     */
+    public List<PacketPath> getPaths() {
+        return paths;
+    }
+
+    /**
+     * Get the number of passes of the worst path.
+     *
+     * @return max passes per packet
+     */
+    public int getMaxPasses() {
+        return maxPasses;
+    }
+
+    /**
+     * Get the number of stages a packet traverses on the worst path of the
+     * program, over all its passes.
+     *
+     * @return per-packet stage count
+     */
+    public int getPacketStageCount() {
+        return packetStageCount;
+    }
+
+    /**
+     * Get the number of tables on the longest chain of data dependent tables,
+     * the per-packet stage count if independent tables could share a stage.
+     *
+     * @return dependency depth
+     */
+    public int getDependencyDepth() {
+        return dependencyDepth;
+    }
+
+    @Override
+    public String toString() {
+        return toStringHelper(this)
+                .add("program", programName)
+                .add("positions", positions)
+                .add("passes", getPassCount())
+                .add("commonPath", commonPath)
+                .add("maxPasses", maxPasses)
+                .add("packetStageCount", packetStageCount)
+                .add("dependencyDepth", dependencyDepth)
+                .toString();
+    }
+
+    private static final class Builder {
+        private final String programName;
+        private final int stageNum;
+        private final List<TableModel> order;
+        private final Set<String> resubmitTargets = Sets.newHashSet();
+        private final Map<String, String> conditionTables = Maps.newHashMap();
+        private final List<PacketPath> paths = Lists.newArrayList();
+        private PacketPath commonPath;
+        private int maxPasses;
+        private int packetStageCount;
+        private int dependencyDepth;
+
+        private Builder(String programName, int stageNum, List<TableModel> order) {
+            this.programName = programName;
+            this.stageNum = stageNum;
+            this.order = order;
+        }
+    }
+}
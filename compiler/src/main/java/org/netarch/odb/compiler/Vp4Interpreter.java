@@ -8,6 +8,8 @@ import org.onosproject.bmv2.api.runtime.Bmv2Action;
 import org.onosproject.net.flow.TrafficTreatment;
 import org.onosproject.net.flow.criteria.Criterion;
 
+import java.util.Set;
+
 
 public class Vp4Interpreter implements Bmv2Interpreter {
 
@@ -16,11 +18,11 @@ public class Vp4Interpreter implements Bmv2Interpreter {
     public static final String STD_META = "standard_metadata";
     public static final String INGRESS_PORT = "ingress_port";
     public static final String PACKET_LENGTH = "packet_length";
-    public static final String EGRESS_SPEC = "eress_spec";
+    public static final String EGRESS_SPEC = "egress_spec";
     public static final String EGRESS_PORT = "egress_port";
     public static final String EGRESS_INSTANCE = "egress_instance";
     public static final String INSTANCE_TYPE = "instance_type";
-    public static final String CLONE_SPEC = "clonc_spec";
+    public static final String CLONE_SPEC = "clone_spec";
 
     public static final String INGRESS_PORT_KEY = STD_META + "." + INGRESS_PORT;
     public static final String PACKET_LENGTH_KEY = STD_META + "." + PACKET_LENGTH;
@@ -35,6 +37,8 @@ public class Vp4Interpreter implements Bmv2Interpreter {
     public static final String ACTION_SET_ACTION_ID = "action_set_action_id";
     public static final String ACTION_SET_STAGE_AND_BITMAP = "action_set_stage_and_bitmap";
     public static final String ACTION_SET_MATCH_RESULT = "action_set_match_result";
+    public static final String ACTION_RESUBMIT = "action_resubmit";
+    public static final String ACTION_LOAD_EXACT_KEY = "action_load_exact_key";
 
 
     public static final String ACTION_MOD_HEADER_WITH_CONST = "action_mod_header_with_const";
@@ -47,9 +51,10 @@ public class Vp4Interpreter implements Bmv2Interpreter {
 
 
     public static final String CONFIG_AT_INITIAL = "table_config_at_initial";
+    public static final String CONFIG_AT_END = "table_config_at_end";
     public static final String HEADER_MATCH = "table_header_match";
     public static final String META_MATCH = "table_user_meta";
-    public static final String STD_META_MATCH = "table_std_meta";
+    public static final String STD_META_MATCH = "table_std_meta_match";
     public static final String TABLE_MATCH_RESULT = "table_match_result";
     public static final String TABLE_MOD_HEADER_WITH_CONST = "table_mod_header_with_const";
     public static final String TABLE_MOD_HEADER_WITH_HEADER = "table_mod_header_with_header";
@@ -59,6 +64,12 @@ public class Vp4Interpreter implements Bmv2Interpreter {
     public static final String TABLE_MOD_META_WITH_HEADER = "table_mod_meta_with_header";
     public static final String TABLE_MOD_META_WITH_META = "table_mod_meta_with_meta";
 
+    public static final String TABLE_EXACT_KEY = "table_exact_key";
+    public static final String HEADER_MATCH_EXACT = "table_header_match_exact";
+    public static final String META_MATCH_EXACT = "table_user_meta_exact";
+    public static final String HEADER_WINDOW = "table_header_window";
+    public static final String HEADER_WINDOW_EXACT = "table_header_window_exact";
+
     public static final byte HEADER_MATCH_BIT = 4;
     public static final byte USER_META_MATCH_BIT = 2;
     public static final byte STD_META_MATCH_BIT = 1;
@@ -80,7 +91,8 @@ public class Vp4Interpreter implements Bmv2Interpreter {
     static {
         int counter = 0;
         tableIdMapBuilder.put(counter++, "table_config_at_initial");
-        for (int i = 0; i < Compiler.STAGE_NUM; i++) {
+        /* VP4 names its physical stages from 1, stage i applies the virtual stage i - 1. */
+        for (int i = 1; i <= Compiler.STAGE_NUM; i++) {
             tableIdMapBuilder.put(counter++, "table_get_expression_" + "stage" + i);
             tableIdMapBuilder.put(counter++, "table_branch_1_" + "stage" + i);
             tableIdMapBuilder.put(counter++, "table_branch_2_" + "stage" + i);
@@ -111,9 +123,25 @@ public class Vp4Interpreter implements Bmv2Interpreter {
         tableIdMapBuilder.put(counter++, "table_config_at_end");
         tableIdMapBuilder.put(counter++, "table_config_at_egress");
         tableIdMapBuilder.put(counter++, "table_checksum");
-        tableIdMapBuilder.put(counter, "dh_deparse");
+        tableIdMapBuilder.put(counter++, "dh_deparse");
+        /*
+         * The exact match tables were added later, numbered after the others to keep their ids.
+         * tools/vp4_exact_tables.py adds them to the configuration compiled from VP4.
+         */
+        for (int i = 1; i <= Compiler.STAGE_NUM; i++) {
+            tableIdMapBuilder.put(counter++, "table_exact_key_" + "stage" + i);
+            tableIdMapBuilder.put(counter++, "table_header_match_exact_" + "stage" + i);
+            tableIdMapBuilder.put(counter++, "table_user_meta_exact_" + "stage" + i);
+        }
+        for (int i = 1; i <= Compiler.STAGE_NUM; i++) {
+            tableIdMapBuilder.put(counter++, "table_header_window_exact_" + "stage" + i);
+            tableIdMapBuilder.put(counter++, "table_header_window_" + "stage" + i);
+        }
     }
 
+    /* Built once, the translator looks it up for every flow rule. */
+    private static final ImmutableBiMap<Integer, String> TABLE_ID_MAP = tableIdMapBuilder.build();
+
     /**
      * Whether the interpreter contains the table.
      *
@@ -121,7 +149,7 @@ public class Vp4Interpreter implements Bmv2Interpreter {
      * @return true if the interpreter contains the table, otherwise false
      */
     public static boolean containTable(String tableName) {
-        return tableIdMapBuilder.build().inverse().containsKey(tableName);
+        return TABLE_ID_MAP.inverse().containsKey(tableName);
     }
 
     /**
@@ -132,7 +160,7 @@ public class Vp4Interpreter implements Bmv2Interpreter {
      * @return true if the interpreter contains the table, otherwise false
      */
     public static boolean containTable(String tableName, String stageName) {
-        return tableIdMapBuilder.build().inverse().containsKey(tableName + "_" + stageName);
+        return TABLE_ID_MAP.inverse().containsKey(tableName + "_" + stageName);
     }
 
     /**
@@ -142,7 +170,7 @@ public class Vp4Interpreter implements Bmv2Interpreter {
      * @return table id
      */
     public static int getTableId(String tableName) {
-        return tableIdMapBuilder.build().inverse().get(tableName);
+        return TABLE_ID_MAP.inverse().get(tableName);
     }
 
     /**
@@ -153,12 +181,31 @@ public class Vp4Interpreter implements Bmv2Interpreter {
      * @return this
      */
     public static int getTableId(String tableName, String stageName) {
-        return tableIdMapBuilder.build().inverse().get(tableName + "_" + stageName);
+        return TABLE_ID_MAP.inverse().get(tableName + "_" + stageName);
+    }
+
+    /**
+     * Get table name from the table id.
+     *
+     * @param tableId table id
+     * @return table name, or null if there is no such table
+     */
+    public static String getTableName(int tableId) {
+        return TABLE_ID_MAP.get(tableId);
+    }
+
+    /**
+     * Get the ids of all the tables.
+     *
+     * @return table ids
+     */
+    public static Set<Integer> getTableIds() {
+        return TABLE_ID_MAP.keySet();
     }
 
     @Override
     public ImmutableBiMap<Integer, String> tableIdMap() {
-        return tableIdMapBuilder.build();
+        return TABLE_ID_MAP;
     }
 
     @Override
@@ -0,0 +1,599 @@
+package org.netarch.odb.compiler;
+
+import com.google.common.collect.ImmutableMap;
+import org.netarch.odb.runtime.BitVector;
+import org.netarch.odb.runtime.MatchResult;
+import org.netarch.odb.runtime.Value;
+import org.netarch.odb.utils.SelectorTemplate;
+import org.netarch.odb.utils.TreatmentTemplate;
+import org.onosproject.bmv2.api.context.Bmv2Configuration;
+import org.onosproject.bmv2.api.runtime.Bmv2ExtensionSelector;
+import org.onosproject.bmv2.api.runtime.Bmv2ExtensionTreatment;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.netarch.odb.compiler.Vp4Interpreter.ACTION_LOAD_EXACT_KEY;
+import static org.netarch.odb.compiler.Vp4Interpreter.ACTION_MOD_HEADER_WITH_CONST;
+import static org.netarch.odb.compiler.Vp4Interpreter.ACTION_MOD_META_WITH_CONST;
+import static org.netarch.odb.compiler.Vp4Interpreter.ACTION_SET_MATCH_RESULT;
+import static org.netarch.odb.compiler.Vp4Interpreter.ACTION_SET_STAGE_AND_BITMAP;
+import static org.netarch.odb.compiler.Vp4Interpreter.HEADER_MATCH;
+import static org.netarch.odb.compiler.Vp4Interpreter.HEADER_MATCH_EXACT;
+import static org.netarch.odb.compiler.Vp4Interpreter.HEADER_WINDOW;
+import static org.netarch.odb.compiler.Vp4Interpreter.HEADER_WINDOW_EXACT;
+import static org.netarch.odb.compiler.Vp4Interpreter.META_MATCH;
+import static org.netarch.odb.compiler.Vp4Interpreter.META_MATCH_EXACT;
+import static org.netarch.odb.compiler.Vp4Interpreter.STD_META_MATCH;
+import static org.netarch.odb.compiler.Vp4Interpreter.TABLE_EXACT_KEY;
+import static org.netarch.odb.compiler.Vp4Interpreter.TABLE_MATCH_RESULT;
+import static org.netarch.odb.compiler.Vp4Interpreter.TABLE_MOD_HEADER_WITH_CONST;
+import static org.netarch.odb.compiler.Vp4Interpreter.TABLE_MOD_HEADER_WITH_HEADER;
+import static org.netarch.odb.compiler.Vp4Interpreter.TABLE_MOD_HEADER_WITH_META;
+import static org.netarch.odb.compiler.Vp4Interpreter.TABLE_MOD_META_WITH_CONST;
+import static org.netarch.odb.compiler.Vp4Interpreter.TABLE_MOD_META_WITH_HEADER;
+import static org.netarch.odb.compiler.Vp4Interpreter.TABLE_MOD_META_WITH_META;
+
+/**
+ * Selectors, treatments and table ids of the VP4 tables written for every
+ * rule, resolved once against the configuration. Building the entries of a
+ * rule then only fills in values.
+ */
+public class Vp4Templates {
+    /* Headers */
+    private static final String PMI = "pmiInstance";
+    private static final String UMI = "umiInstance";
+    private static final String STD = "standard_metadata";
+
+    /* Tables copying fields, and the most fields copied by one entry. */
+    private static final String[] MOD_WITH_FIELD_TABLES = {
+            TABLE_MOD_HEADER_WITH_HEADER, TABLE_MOD_HEADER_WITH_META,
+            TABLE_MOD_META_WITH_HEADER, TABLE_MOD_META_WITH_META
+    };
+    public static final int MAX_FIELD_COPIES = 3;
+
+    private static final String[] STAGE_TABLES = {
+            HEADER_MATCH, META_MATCH, STD_META_MATCH, TABLE_MATCH_RESULT,
+            TABLE_MOD_HEADER_WITH_CONST, TABLE_MOD_HEADER_WITH_HEADER, TABLE_MOD_HEADER_WITH_META,
+            TABLE_MOD_META_WITH_CONST, TABLE_MOD_META_WITH_HEADER, TABLE_MOD_META_WITH_META,
+            TABLE_EXACT_KEY, HEADER_MATCH_EXACT, META_MATCH_EXACT, HEADER_WINDOW, HEADER_WINDOW_EXACT
+    };
+
+    private final ImmutableMap<String, int[]> stageTableIds;
+    private final int stageNum;
+    private final boolean exactMatch;
+    private final int headerWindowBytes;
+
+    private final SelectorTemplate headerMatch;
+    private final SelectorTemplate.Slot headerProgramId;
+    private final SelectorTemplate.Slot headerStageId;
+    private final SelectorTemplate.Slot loadHeader;
+
+    private final SelectorTemplate userMetadataMatch;
+    private final SelectorTemplate.Slot userMetadataProgramId;
+    private final SelectorTemplate.Slot userMetadataStageId;
+    private final SelectorTemplate.Slot userMetadata;
+
+    private final SelectorTemplate headerExactMatch;
+    private final SelectorTemplate.Slot headerExactProgramId;
+    private final SelectorTemplate.Slot headerExactStageId;
+    private final SelectorTemplate.Slot exactHeader;
+
+    private final SelectorTemplate userMetadataExactMatch;
+    private final SelectorTemplate.Slot userMetadataExactProgramId;
+    private final SelectorTemplate.Slot userMetadataExactStageId;
+    private final SelectorTemplate.Slot exactMetadata;
+
+    private final SelectorTemplate headerWindowMatch;
+    private final SelectorTemplate.Slot headerWindowProgramId;
+    private final SelectorTemplate.Slot headerWindowStageId;
+    private final SelectorTemplate.Slot headerWindow;
+
+    private final SelectorTemplate headerWindowExactMatch;
+    private final SelectorTemplate.Slot headerWindowExactProgramId;
+    private final SelectorTemplate.Slot headerWindowExactStageId;
+    private final SelectorTemplate.Slot exactHeaderWindow;
+
+    private final SelectorTemplate exactKey;
+    private final SelectorTemplate.Slot exactKeyProgramId;
+    private final SelectorTemplate.Slot exactKeyStageId;
+
+    private final SelectorTemplate stdMetadataMatch;
+    private final SelectorTemplate.Slot stdMetadataProgramId;
+    private final SelectorTemplate.Slot stdMetadataStageId;
+    private final SelectorTemplate.Slot ingressPort;
+    private final SelectorTemplate.Slot packetLength;
+    private final SelectorTemplate.Slot egressSpec;
+    private final SelectorTemplate.Slot egressPort;
+    private final SelectorTemplate.Slot egressInstance;
+    private final SelectorTemplate.Slot instanceType;
+
+    private final SelectorTemplate resultMatch;
+    private final SelectorTemplate.Slot matchResultSlot;
+
+    private final SelectorTemplate actionChainMatch;
+    private final SelectorTemplate.Slot actionChainId;
+
+    private final TreatmentTemplate modHeaderWithConst;
+    private final TreatmentTemplate modMetaWithConst;
+    private final ImmutableMap<String, TreatmentTemplate[]> modWithField;
+
+    private final TreatmentTemplate setMatchResult;
+    private final TreatmentTemplate setStageAndBitmap;
+    private final TreatmentTemplate loadExactKey;
+
+    /**
+     * Compile the VP4 templates.
+     *
+     * @param configuration bmv2 configuration of VP4
+     */
+    public Vp4Templates(Bmv2Configuration configuration) {
+        ImmutableMap.Builder<String, int[]> tableIds = ImmutableMap.builder();
+        for (String table : STAGE_TABLES) {
+            int[] ids = new int[Compiler.STAGE_NUM];
+            for (int i = 0; i < Compiler.STAGE_NUM; i++) {
+                ids[i] = Vp4Interpreter.getTableId(table, physicalStage(i));
+            }
+            tableIds.put(table, ids);
+        }
+        this.stageTableIds = tableIds.build();
+
+        int stageNum = 0;
+        while (stageNum < Compiler.STAGE_NUM
+                && configuration.table(TABLE_MATCH_RESULT + "_" + physicalStage(stageNum)) != null) {
+            stageNum++;
+        }
+        this.stageNum = stageNum;
+
+        this.headerMatch = new SelectorTemplate(configuration);
+        this.headerProgramId = headerMatch.addSlot(PMI, "pmi_program_id");
+        this.headerStageId = headerMatch.addSlot(PMI, "pmi_stage_id");
+        this.loadHeader = headerMatch.addSlot(UMI, "umi_load_header");
+
+        this.userMetadataMatch = new SelectorTemplate(configuration);
+        this.userMetadataProgramId = userMetadataMatch.addSlot(PMI, "pmi_program_id");
+        this.userMetadataStageId = userMetadataMatch.addSlot(PMI, "pmi_stage_id");
+        this.userMetadata = userMetadataMatch.addSlot(UMI, "umi_user_metadata");
+
+        /* Configurations compiled before the exact match tables only have the ternary ones. */
+        this.exactMatch = configuration.table(HEADER_MATCH_EXACT + "_" + physicalStage(0)) != null;
+        if (exactMatch) {
+            this.headerExactMatch = new SelectorTemplate(configuration);
+            this.headerExactProgramId = headerExactMatch.addSlot(PMI, "pmi_program_id");
+            this.headerExactStageId = headerExactMatch.addSlot(PMI, "pmi_stage_id");
+            this.exactHeader = headerExactMatch.addSlot(UMI, "umi_exact_header");
+
+            this.userMetadataExactMatch = new SelectorTemplate(configuration);
+            this.userMetadataExactProgramId = userMetadataExactMatch.addSlot(PMI, "pmi_program_id");
+            this.userMetadataExactStageId = userMetadataExactMatch.addSlot(PMI, "pmi_stage_id");
+            this.exactMetadata = userMetadataExactMatch.addSlot(UMI, "umi_exact_metadata");
+
+            this.exactKey = new SelectorTemplate(configuration);
+            this.exactKeyProgramId = exactKey.addSlot(PMI, "pmi_program_id");
+            this.exactKeyStageId = exactKey.addSlot(PMI, "pmi_stage_id");
+
+            this.loadExactKey = new TreatmentTemplate(configuration, ACTION_LOAD_EXACT_KEY,
+                    "header_mask", "metadata_mask");
+        } else {
+            this.headerExactMatch = null;
+            this.headerExactProgramId = null;
+            this.headerExactStageId = null;
+            this.exactHeader = null;
+            this.userMetadataExactMatch = null;
+            this.userMetadataExactProgramId = null;
+            this.userMetadataExactStageId = null;
+            this.exactMetadata = null;
+            this.exactKey = null;
+            this.exactKeyProgramId = null;
+            this.exactKeyStageId = null;
+            this.loadExactKey = null;
+        }
+
+        /* The header window is loaded with the exact keys, its length is the one vp4.json was generated with. */
+        if (exactMatch && configuration.table(HEADER_WINDOW + "_" + physicalStage(0)) != null) {
+            this.headerWindowMatch = new SelectorTemplate(configuration);
+            this.headerWindowProgramId = headerWindowMatch.addSlot(PMI, "pmi_program_id");
+            this.headerWindowStageId = headerWindowMatch.addSlot(PMI, "pmi_stage_id");
+            this.headerWindow = headerWindowMatch.addSlot(UMI, "umi_header_window");
+
+            this.headerWindowExactMatch = new SelectorTemplate(configuration);
+            this.headerWindowExactProgramId = headerWindowExactMatch.addSlot(PMI, "pmi_program_id");
+            this.headerWindowExactStageId = headerWindowExactMatch.addSlot(PMI, "pmi_stage_id");
+            this.exactHeaderWindow = headerWindowExactMatch.addSlot(UMI, "umi_exact_window");
+
+            this.headerWindowBytes = headerWindow.getBitWidth() / 8;
+        } else {
+            this.headerWindowMatch = null;
+            this.headerWindowProgramId = null;
+            this.headerWindowStageId = null;
+            this.headerWindow = null;
+            this.headerWindowExactMatch = null;
+            this.headerWindowExactProgramId = null;
+            this.headerWindowExactStageId = null;
+            this.exactHeaderWindow = null;
+            this.headerWindowBytes = 0;
+        }
+
+        this.stdMetadataMatch = new SelectorTemplate(configuration);
+        this.stdMetadataProgramId = stdMetadataMatch.addSlot(PMI, "pmi_program_id");
+        this.stdMetadataStageId = stdMetadataMatch.addSlot(PMI, "pmi_stage_id");
+        this.ingressPort = stdMetadataMatch.addSlot(STD, "ingress_port");
+        this.packetLength = stdMetadataMatch.addSlot(STD, "packet_length");
+        this.egressSpec = stdMetadataMatch.addSlot(STD, "egress_spec");
+        this.egressPort = stdMetadataMatch.addSlot(STD, "egress_port");
+        this.egressInstance = stdMetadataMatch.addSlot(STD, "egress_instance");
+        this.instanceType = stdMetadataMatch.addSlot(STD, "instance_type");
+
+        this.resultMatch = new SelectorTemplate(configuration);
+        this.matchResultSlot = resultMatch.addSlot(PMI, "pmi_match_chain_result");
+
+        this.actionChainMatch = new SelectorTemplate(configuration);
+        this.actionChainId = actionChainMatch.addSlot(PMI, "pmi_action_chain_id");
+
+        this.modHeaderWithConst = new TreatmentTemplate(configuration, ACTION_MOD_HEADER_WITH_CONST,
+                "value", "mask1");
+        this.modMetaWithConst = new TreatmentTemplate(configuration, ACTION_MOD_META_WITH_CONST,
+                "value", "mask1");
+        ImmutableMap.Builder<String, TreatmentTemplate[]> modWithField = ImmutableMap.builder();
+        for (String table : MOD_WITH_FIELD_TABLES) {
+            /* table_mod_x_with_y has the actions action_mod_x_with_y_1 to _3, copying 1 to 3 fields. */
+            String action = "action" + table.substring("table".length());
+            TreatmentTemplate[] templates = new TreatmentTemplate[MAX_FIELD_COPIES];
+            for (int n = 1; n <= MAX_FIELD_COPIES; n++) {
+                String[] parameterNames = new String[3 * n];
+                for (int i = 1; i <= n; i++) {
+                    parameterNames[3 * i - 3] = "left" + i;
+                    parameterNames[3 * i - 2] = "right" + i;
+                    parameterNames[3 * i - 1] = "mask" + i;
+                }
+                templates[n - 1] = new TreatmentTemplate(configuration, action + "_" + n, parameterNames);
+            }
+            modWithField.put(table, templates);
+        }
+        this.modWithField = modWithField.build();
+
+        this.setMatchResult = new TreatmentTemplate(configuration, ACTION_SET_MATCH_RESULT, "match_result");
+        this.setStageAndBitmap = new TreatmentTemplate(configuration, ACTION_SET_STAGE_AND_BITMAP,
+                "action_bitmap", "match_bitmap", "next_stage", "next_prog");
+    }
+
+    private static String physicalStage(int stageId) {
+        return "stage" + (stageId + 1);
+    }
+
+    /**
+     * Get the number of virtual stages of the configuration, i.e. the number
+     * of physical stages VP4 is compiled with.
+     *
+     * @return number of stages
+     */
+    public int getStageNum() {
+        return stageNum;
+    }
+
+    /**
+     * Whether the configuration has the exact match tables, looked up before
+     * the ternary header and user metadata tables of a stage.
+     *
+     * @return true if keys can be matched exactly, otherwise false
+     */
+    public boolean hasExactMatch() {
+        return exactMatch;
+    }
+
+    /**
+     * Get the length of the header window, the last bytes of the header key
+     * matched by the header window tables. It is 0 if the configuration has
+     * no header window tables.
+     *
+     * @return header window length in bytes
+     */
+    public int getHeaderWindowBytes() {
+        return headerWindowBytes;
+    }
+
+    /**
+     * Get the id of a table of a stage.
+     *
+     * @param table   table name without the stage
+     * @param stageId virtual stage id
+     * @return table id
+     */
+    public int getTableId(String table, byte stageId) {
+        int[] ids = stageTableIds.get(table);
+        if (ids == null) {
+            throw new RuntimeException("Can't find the table " + table);
+        }
+        if (stageId < 0 || stageId >= stageNum) {
+            throw new RuntimeException("VP4 has no stage " + stageId);
+        }
+        return ids[stageId];
+    }
+
+    /**
+     * Build the selector of a header match entry.
+     *
+     * @param programId program id (instance id)
+     * @param stageId   stage id
+     * @param value     header value
+     * @param mask      header mask
+     * @return extension selector
+     */
+    public Bmv2ExtensionSelector headerMatch(byte programId, byte stageId, BitVector value, BitVector mask) {
+        return headerMatch.build(headerProgramId.exact(new byte[]{programId}),
+                headerStageId.exact(new byte[]{stageId}),
+                loadHeader.ternary(value.toByteArray(), mask.toByteArray()));
+    }
+
+    /**
+     * Build the selector of a user metadata match entry.
+     *
+     * @param programId program id (instance id)
+     * @param stageId   stage id
+     * @param value     user metadata value
+     * @param mask      user metadata mask
+     * @return extension selector
+     */
+    public Bmv2ExtensionSelector userMetadataMatch(byte programId, byte stageId, BitVector value,
+                                                   BitVector mask) {
+        return userMetadataMatch.build(userMetadataProgramId.exact(new byte[]{programId}),
+                userMetadataStageId.exact(new byte[]{stageId}),
+                userMetadata.ternary(value.toByteArray(), mask.toByteArray()));
+    }
+
+    /**
+     * Build the selector of an exact header match entry, for a key setting
+     * every header bit the stage matches.
+     *
+     * @param programId program id (instance id)
+     * @param stageId   stage id
+     * @param value     header value, cleared outside the header mask of the stage
+     * @return extension selector
+     */
+    public Bmv2ExtensionSelector headerExactMatch(byte programId, byte stageId, BitVector value) {
+        checkExactMatch();
+        return headerExactMatch.build(headerExactProgramId.exact(new byte[]{programId}),
+                headerExactStageId.exact(new byte[]{stageId}),
+                exactHeader.exact(value.toByteArray()));
+    }
+
+    /**
+     * Build the selector of an exact user metadata match entry, for a key
+     * setting every user metadata bit the stage matches.
+     *
+     * @param programId program id (instance id)
+     * @param stageId   stage id
+     * @param value     user metadata value, cleared outside the metadata mask of the stage
+     * @return extension selector
+     */
+    public Bmv2ExtensionSelector userMetadataExactMatch(byte programId, byte stageId, BitVector value) {
+        checkExactMatch();
+        return userMetadataExactMatch.build(userMetadataExactProgramId.exact(new byte[]{programId}),
+                userMetadataExactStageId.exact(new byte[]{stageId}),
+                exactMetadata.exact(value.toByteArray()));
+    }
+
+    /**
+     * Build the selector of a header window match entry. The header key
+     * must be zero outside the window.
+     *
+     * @param programId program id (instance id)
+     * @param stageId   stage id
+     * @param value     header value
+     * @param mask      header mask
+     * @return extension selector
+     */
+    public Bmv2ExtensionSelector headerWindowMatch(byte programId, byte stageId, BitVector value, BitVector mask) {
+        checkHeaderWindow();
+        return headerWindowMatch.build(headerWindowProgramId.exact(new byte[]{programId}),
+                headerWindowStageId.exact(new byte[]{stageId}),
+                headerWindow.ternary(window(value), window(mask)));
+    }
+
+    /**
+     * Build the selector of an exact header window match entry, for a key
+     * setting every header bit the stage matches. The header key must be
+     * zero outside the window.
+     *
+     * @param programId program id (instance id)
+     * @param stageId   stage id
+     * @param value     header value, cleared outside the header mask of the stage
+     * @return extension selector
+     */
+    public Bmv2ExtensionSelector headerWindowExactMatch(byte programId, byte stageId, BitVector value) {
+        checkHeaderWindow();
+        return headerWindowExactMatch.build(headerWindowExactProgramId.exact(new byte[]{programId}),
+                headerWindowExactStageId.exact(new byte[]{stageId}),
+                exactHeaderWindow.exact(window(value)));
+    }
+
+    private void checkHeaderWindow() {
+        if (headerWindowBytes == 0) {
+            throw new RuntimeException("VP4 has no header window tables");
+        }
+    }
+
+    private byte[] window(BitVector key) {
+        byte[] bytes = key.toByteArray();
+        return bytes.length <= headerWindowBytes
+                ? bytes : Arrays.copyOfRange(bytes, bytes.length - headerWindowBytes, bytes.length);
+    }
+
+    /**
+     * Build the selector of the entry loading the exact keys of a stage.
+     *
+     * @param programId program id (instance id)
+     * @param stageId   stage id
+     * @return extension selector
+     */
+    public Bmv2ExtensionSelector exactKey(byte programId, byte stageId) {
+        checkExactMatch();
+        return exactKey.build(exactKeyProgramId.exact(new byte[]{programId}),
+                exactKeyStageId.exact(new byte[]{stageId}));
+    }
+
+    /**
+     * Build the treatment loading the exact keys of a stage, the header and
+     * the user metadata cleared outside the bits the stage matches, and the
+     * header window.
+     *
+     * @param headerMask   header bits matched by the stage
+     * @param metadataMask user metadata bits matched by the stage
+     * @return extension treatment
+     */
+    public Bmv2ExtensionTreatment loadExactKey(BitVector headerMask, BitVector metadataMask) {
+        checkExactMatch();
+        return loadExactKey.build(maskBytes(headerMask), maskBytes(metadataMask));
+    }
+
+    private void checkExactMatch() {
+        if (!exactMatch) {
+            throw new RuntimeException("VP4 has no exact match tables");
+        }
+    }
+
+    private static byte[] maskBytes(BitVector mask) {
+        return mask.getBitWidth() == 0 ? new byte[]{0} : mask.toByteArray();
+    }
+
+    /**
+     * Build the selector of a standard metadata match entry. Bit 0 of the
+     * match bitmap matches the ingress port, bit 1 the packet length, and so
+     * on, as TrafficSelectorHelper.withStandardMetadata does.
+     *
+     * @param programId      program id (instance id)
+     * @param stageId        stage id
+     * @param ingressPort    ingress port
+     * @param packetLength   packet length
+     * @param egressSpec     egress spec
+     * @param egressPort     egress port
+     * @param egressInstance egress instance
+     * @param instanceType   instance type
+     * @param matchBitMap    matched fields
+     * @return extension selector
+     */
+    public Bmv2ExtensionSelector stdMetadataMatch(byte programId, byte stageId,
+                                                  short ingressPort, int packetLength,
+                                                  short egressSpec, short egressPort,
+                                                  int egressInstance, int instanceType,
+                                                  int matchBitMap) {
+        return stdMetadataMatch.build(stdMetadataProgramId.exact(new byte[]{programId}),
+                stdMetadataStageId.exact(new byte[]{stageId}),
+                this.ingressPort.ternary(ingressPort, shortMask(matchBitMap, 0)),
+                this.packetLength.ternary(packetLength, intMask(matchBitMap, 1)),
+                this.egressSpec.ternary(egressSpec, shortMask(matchBitMap, 2)),
+                this.egressPort.ternary(egressPort, shortMask(matchBitMap, 3)),
+                this.egressInstance.ternary(egressInstance, intMask(matchBitMap, 4)),
+                this.instanceType.ternary(instanceType, intMask(matchBitMap, 5)));
+    }
+
+    /**
+     * Build the selector of an entry matching the match result.
+     *
+     * @param result match result
+     * @return extension selector
+     */
+    public Bmv2ExtensionSelector matchResult(MatchResult result) {
+        return resultMatch.build(matchResultSlot.exact(matchResultBytes(result)));
+    }
+
+    /**
+     * Build the selector of an action entry. The match result entry of a
+     * rule sets the action chain id to the match result, so the action
+     * entries of the rule match it too.
+     *
+     * @param result match result
+     * @return extension selector
+     */
+    public Bmv2ExtensionSelector actionChain(MatchResult result) {
+        return actionChainMatch.build(actionChainId.exact(matchResultBytes(result)));
+    }
+
+    private static byte[] matchResultBytes(MatchResult result) {
+        ByteBuffer byteBuffer = ByteBuffer.wrap(new byte[6]);
+        byteBuffer.putShort(result.getHeader());
+        byteBuffer.putShort(result.getMetadata());
+        byteBuffer.putShort(result.getStdMetadata());
+        return byteBuffer.array();
+    }
+
+    /**
+     * Build the treatment of a table_mod_*_with_const entry, setting the
+     * bits of the mask to the value.
+     *
+     * @param table table name without the stage
+     * @param value value, cleared outside the mask
+     * @param mask  modified bits
+     * @return extension treatment
+     */
+    public Bmv2ExtensionTreatment modifyWithConst(String table, BitVector value, BitVector mask) {
+        switch (table) {
+            case TABLE_MOD_HEADER_WITH_CONST:
+                return modHeaderWithConst.build(value.toByteArray(), mask.toByteArray());
+            case TABLE_MOD_META_WITH_CONST:
+                return modMetaWithConst.build(value.toByteArray(), mask.toByteArray());
+            default:
+                throw new RuntimeException("Can't modify fields with constants in the table " + table);
+        }
+    }
+
+    /**
+     * Build the treatment of an entry copying fields. The i-th copy shifts
+     * the source by shifts[i] bits, to the left if positive and to the right
+     * otherwise, and writes the bits of masks[i] of the destination.
+     *
+     * @param table  table name without the stage
+     * @param shifts bit shifts of the sources
+     * @param masks  modified bits of the destination
+     * @return extension treatment
+     */
+    public Bmv2ExtensionTreatment modifyWithField(String table, int[] shifts, BitVector[] masks) {
+        TreatmentTemplate[] templates = modWithField.get(table);
+        if (templates == null) {
+            throw new RuntimeException("Can't modify fields with fields in the table " + table);
+        }
+        if (shifts.length == 0 || shifts.length > MAX_FIELD_COPIES || shifts.length != masks.length) {
+            throw new RuntimeException("Can't copy " + shifts.length + " fields with one entry of " + table);
+        }
+        byte[][] values = new byte[3 * shifts.length][];
+        for (int i = 0; i < shifts.length; i++) {
+            values[3 * i] = Value.createIntValue(Math.max(shifts[i], 0)).getValue();
+            values[3 * i + 1] = Value.createIntValue(Math.max(-shifts[i], 0)).getValue();
+            values[3 * i + 2] = masks[i].toByteArray();
+        }
+        return templates[shifts.length - 1].build(values);
+    }
+
+    /**
+     * Build the treatment of a match entry.
+     *
+     * @param result shifted match result of the region
+     * @return extension treatment
+     */
+    public Bmv2ExtensionTreatment setMatchResult(long result) {
+        return setMatchResult.build(Value.createLongValue(result).getValue());
+    }
+
+    /**
+     * Build the treatment of a match result entry.
+     *
+     * @param actionBitmap actions of the rule
+     * @param matchBitmap  matched regions of the next stage
+     * @param nextStage    next stage id
+     * @param nextProg     next program id
+     * @return extension treatment
+     */
+    public Bmv2ExtensionTreatment setStageAndBitmap(long actionBitmap, byte matchBitmap,
+                                                   byte nextStage, byte nextProg) {
+        return setStageAndBitmap.build(Value.createLongValue(actionBitmap).getValue(),
+                new byte[]{matchBitmap}, new byte[]{nextStage}, new byte[]{nextProg});
+    }
+
+    private static short shortMask(int matchBitMap, int bit) {
+        return (short) (((matchBitMap >> bit) & 0x1) == 0 ? 0 : 0xFFFF);
+    }
+
+    private static int intMask(int matchBitMap, int bit) {
+        return ((matchBitMap >> bit) & 0x1) == 0 ? 0 : 0xFFFFFFFF;
+    }
+}
@@ -1,6 +1,97 @@
 package org.netarch.odb.model;
 
+import com.google.common.base.Objects;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+
+/**
+ * Conditional of a pipeline. Only the control flow is kept: the expression is
+ * evaluated by VP4 branches, not by the compiler.
+ */
 public class ConditionModel {
+    private final String name;
+    private final int id;
+    private final String trueNext;
+    private final String falseNext;
+
+    /**
+     * Create a condition model.
+     *
+     * @param name      condition name
+     * @param id        condition id
+     * @param trueNext  next component if the condition holds, may be null
+     * @param falseNext next component otherwise, may be null
+     */
+    ConditionModel(String name, int id, String trueNext, String falseNext) {
+        this.name = name;
+        this.id = id;
+        this.trueNext = trueNext;
+        this.falseNext = falseNext;
+    }
+
+    /**
+     * Get name of the condition.
+     *
+     * @return condition name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Get id of the condition.
+     *
+     * @return condition id
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Get next component (table or condition) if the condition holds.
+     *
+     * @return next component, or null at the end of the pipeline
+     */
+    public String getTrueNext() {
+        return trueNext;
+    }
+
+    /**
+     * Get next component (table or condition) if the condition does not hold.
+     *
+     * @return next component, or null at the end of the pipeline
+     */
+    public String getFalseNext() {
+        return falseNext;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(name, id, trueNext, falseNext);
+    }
 
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        final ConditionModel other = (ConditionModel) obj;
+        return Objects.equal(this.name, other.name)
+                && Objects.equal(this.id, other.id)
+                && Objects.equal(this.trueNext, other.trueNext)
+                && Objects.equal(this.falseNext, other.falseNext);
+    }
 
+    @Override
+    public String toString() {
+        return toStringHelper(this)
+                .add("name", name)
+                .add("id", id)
+                .add("trueNext", trueNext)
+                .add("falseNext", falseNext)
+                .toString();
+    }
 }
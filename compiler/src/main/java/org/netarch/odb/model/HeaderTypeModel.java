@@ -4,7 +4,7 @@ import com.google.common.base.Objects;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Maps;
 
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 
 import static com.google.common.base.MoreObjects.toStringHelper;
@@ -12,7 +12,7 @@ import static com.google.common.base.MoreObjects.toStringHelper;
 public class HeaderTypeModel {
     private final String name;
     private final int id;
-    private final HashMap<String, FieldTypeModel> fields = Maps.newHashMap();
+    private final LinkedHashMap<String, FieldTypeModel> fields = Maps.newLinkedHashMap();
 
     private int bitLength;
 
@@ -86,13 +86,13 @@ public class HeaderTypeModel {
         final HeaderTypeModel other = (HeaderTypeModel) obj;
         return Objects.equal(this.name, other.name)
                 && Objects.equal(this.id, other.id)
-                && Objects.equal(this.fields, equals(fields));
+                && Objects.equal(this.fields, other.fields);
 
     }
 
     @Override
     public String toString() {
         return toStringHelper(this).add("name", name)
-                .add("id", name).add("fields", fields).toString();
+                .add("id", id).add("fields", fields).toString();
     }
 }
@@ -5,27 +5,98 @@ import com.eclipsesource.json.JsonObject;
 import com.eclipsesource.json.JsonValue;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
 import org.netarch.odb.primitive.PrimitiveType;
 import org.netarch.odb.utils.DualKeyMap;
 
+import java.nio.charset.StandardCharsets;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public class ProgramModel {
     private final String name;
     private final int id;
     private final JsonObject json;
-    private final DualKeyMap<HeaderTypeModel> headerTypes = new DualKeyMap<>();
-    private final DualKeyMap<HeaderModel> headers = new DualKeyMap<>();
-    private final DualKeyMap<ActionModel> actions = new DualKeyMap<>();
-    private final DualKeyMap<TableModel> tables = new DualKeyMap<>();
-    private final DualKeyMap<ParserStateModel> parsers = new DualKeyMap<>();
+    private final String contentHash;
+    private final DualKeyMap<HeaderTypeModel> headerTypes;
+    private final DualKeyMap<HeaderModel> headers;
+    private final DualKeyMap<ActionModel> actions;
+    private final DualKeyMap<TableModel> tables;
+    private final DualKeyMap<ParserStateModel> parsers;
+    private final DualKeyMap<ConditionModel> conditions;
+    private final List<String> initTables;
 
     public ProgramModel(String name, int id, JsonObject json) {
+        this(name, id, json, contentHash(json));
+    }
+
+    /**
+     * Create an empty program model, which is filled by doParse or by a
+     * snapshot.
+     *
+     * @param name        program name
+     * @param id          program id
+     * @param json        json of the program, null if loaded from a snapshot
+     * @param contentHash hash of the json
+     */
+    public ProgramModel(String name, int id, JsonObject json, String contentHash) {
         this.name = name;
         this.id = id;
         this.json = json;
+        this.contentHash = contentHash;
+        this.headerTypes = new DualKeyMap<>();
+        this.headers = new DualKeyMap<>();
+        this.actions = new DualKeyMap<>();
+        this.tables = new DualKeyMap<>();
+        this.parsers = new DualKeyMap<>();
+        this.conditions = new DualKeyMap<>();
+        this.initTables = Lists.newArrayList();
+    }
+
+    /**
+     * Create a program model sharing the parsed models of another one.
+     *
+     * @param name   program name
+     * @param id     program id
+     * @param parsed parsed program model
+     */
+    private ProgramModel(String name, int id, ProgramModel parsed) {
+        this.name = name;
+        this.id = id;
+        this.json = parsed.json;
+        this.contentHash = parsed.contentHash;
+        this.headerTypes = parsed.headerTypes;
+        this.headers = parsed.headers;
+        this.actions = parsed.actions;
+        this.tables = parsed.tables;
+        this.parsers = parsed.parsers;
+        this.conditions = parsed.conditions;
+        this.initTables = parsed.initTables;
+    }
+
+    /**
+     * Compute the content hash of a program json.
+     *
+     * @param json json object of the program
+     * @return hex string of the SHA-256 of the json
+     */
+    public static String contentHash(JsonObject json) {
+        return Hashing.sha256().hashString(json.toString(), StandardCharsets.UTF_8).toString();
+    }
+
+    /**
+     * Get the same parsed program with another name and id. The models are
+     * not modified after parsing, so they are shared.
+     *
+     * @param name program name
+     * @param id   program id
+     * @return program model
+     */
+    public ProgramModel withName(String name, int id) {
+        return new ProgramModel(name, id, this);
     }
 
     public HeaderTypeModel headerType(int id) {
@@ -76,6 +147,24 @@ public class ProgramModel {
         return ImmutableList.copyOf(tables.sortedMap().values());
     }
 
+    public ConditionModel condition(String name) {
+        return conditions.get(name);
+    }
+
+    public List<ConditionModel> conditions() {
+        return ImmutableList.copyOf(conditions.sortedMap().values());
+    }
+
+    /**
+     * Get the first component (table or condition) of each pipeline which
+     * is not empty, in the order of the pipelines.
+     *
+     * @return init components
+     */
+    public List<String> getInitTables() {
+        return ImmutableList.copyOf(initTables);
+    }
+
     public String getName() {
         return name;
     }
@@ -84,10 +173,28 @@ public class ProgramModel {
         return id;
     }
 
+    /**
+     * Get the json of the program.
+     *
+     * @return json object, or null if the program is loaded from a snapshot
+     */
     public JsonObject json() {
         return this.json;
     }
 
+    /**
+     * Get the content hash of the program json.
+     *
+     * @return content hash
+     */
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    List<ParserStateModel> parserStates() {
+        return ImmutableList.copyOf(parsers.sortedMap().values());
+    }
+
 
     public ActionModel getActionModel(String actionName) {
         return actions.get(actionName);
@@ -99,7 +206,7 @@ public class ProgramModel {
      */
     @Override
     public int hashCode() {
-        return json.hashCode();
+        return contentHash.hashCode();
     }
 
     /**
@@ -120,12 +227,7 @@ public class ProgramModel {
                             x.asArray().get(1).asInt())));
 
             // add header type instance
-            String name = jHeaderType.get("name").asString();
-            int id = jHeaderType.get("id").asInt();
-
-            HeaderTypeModel headerType = new HeaderTypeModel(name, id, fieldTypes);
-
-            headerTypes.put(name, id, headerType);
+            addHeaderType(jHeaderType.get("name").asString(), jHeaderType.get("id").asInt(), fieldTypes);
         });
 
         // parse headers
@@ -133,17 +235,10 @@ public class ProgramModel {
 
             JsonObject jHeader = val.asObject();
 
-            String name = jHeader.get("name").asString();
-            int id = jHeader.get("id").asInt();
-            String typeName = jHeader.get("header_type").asString();
-
-            HeaderModel header = new HeaderModel(name,
-                    id,
-                    headerTypes.get(typeName),
+            addHeader(jHeader.get("name").asString(),
+                    jHeader.get("id").asInt(),
+                    jHeader.get("header_type").asString(),
                     jHeader.get("metadata").asBoolean());
-
-            // add instance
-            headers.put(name, id, header);
         });
 
         // Parsers
@@ -153,7 +248,8 @@ public class ProgramModel {
                 JsonObject jState = stateVal.asObject();
                 String name = jState.get("name").asString();
                 int id = jState.getInt("id", 0);
-                ParserStateModel stateModel = new ParserStateModel(name, id);
+                String[] extracted = new String[1];
+                List<String> nextStates = Lists.newArrayList();
 
                 /* Parser operations */
                 jState.get("parser_ops").asArray().forEach(opsVal -> {
@@ -166,8 +262,7 @@ public class ProgramModel {
                             .get("value")
                             .asString();
                     if (op.equals("extract")) {
-                        HeaderModel headerModel = headers.get(headerName);
-                        stateModel.setHeader(headerModel);
+                        extracted[0] = headerName;
                     }
                 });
 
@@ -175,24 +270,14 @@ public class ProgramModel {
                 jState.get("transitions").asArray().forEach(tranVal -> {
                     JsonObject jTransition = tranVal.asObject();
                     if (!jTransition.get("next_state").isNull()) {
-                        String nextStage = jTransition.getString("next_state", null);
-                        stateModel.addNextState(nextStage);
+                        nextStates.add(jTransition.getString("next_state", null));
                     }
                 });
-                this.parsers.put(stateModel.getName(), stateModel.getId(), stateModel);
-            });
-        });
-
-        this.parsers.values().forEach(parserStateModel -> {
-            HeaderModel preHeader = parserStateModel.getHeader();
-            parserStateModel.getNextStates().forEach(state -> {
-                HeaderModel headerModel = this.parsers.get(state).getHeader();
-                if (headerModel != null) {
-                    headerModel.setPreHeader(preHeader);
-                }
+                addParserState(name, id, extracted[0], nextStates);
             });
         });
 
+        linkParserStates();
 
         // parse actions
         json.get("actions").asArray().forEach(val -> {
@@ -239,17 +324,31 @@ public class ProgramModel {
                 primitiveModels.add(primitiveModel);
             });
 
-            ActionModel action = new ActionModel(name,
+            addAction(new ActionModel(name,
                     id,
                     runtimeDatas,
-                    primitiveModels);
-
-            actions.put(name, id, action);
+                    primitiveModels));
         });
 
         // parse tables
         json.get("pipelines").asArray().forEach(pipeline -> {
 
+            JsonValue jInit = pipeline.asObject().get("init_table");
+            if (jInit != null && !jInit.isNull()) {
+                addInitTable(jInit.asString());
+            }
+
+            JsonValue jConditionals = pipeline.asObject().get("conditionals");
+            if (jConditionals != null) {
+                jConditionals.asArray().forEach(val -> {
+                    JsonObject jCondition = val.asObject();
+                    addCondition(new ConditionModel(jCondition.get("name").asString(),
+                            jCondition.get("id").asInt(),
+                            nullableString(jCondition.get("true_next")),
+                            nullableString(jCondition.get("false_next"))));
+                });
+            }
+
             pipeline.asObject().get("tables").asArray().forEach(val -> {
 
                 JsonObject jTable = val.asObject();
@@ -260,12 +359,6 @@ public class ProgramModel {
                 jTable.get("key").asArray().forEach(jKey -> {
                     JsonArray target = jKey.asObject().get("target").asArray();
 
-                    HeaderModel header = getHeader(target.get(0).asString());
-                    String typeName = target.get(1).asString();
-
-                    FieldModel field = new FieldModel(header,
-                            header.getType().getField(typeName), 0);
-
                     String matchTypeStr = jKey.asObject().get("match_type").asString();
 
                     MatchKeyModel.MatchKeyType matchKeyType =
@@ -275,7 +368,7 @@ public class ProgramModel {
                         throw new RuntimeException(
                                 "Unable to parse match type: " + matchTypeStr);
                     }
-                    keys.add(new MatchKeyModel(matchKeyType, field));
+                    keys.add(matchKey(matchKeyType, target.get(0).asString(), target.get(1).asString()));
                 });
 
                 // populate actions set
@@ -283,12 +376,18 @@ public class ProgramModel {
                 jTable.get("actions").asArray().forEach(
                         jAction -> actionzz.add(action(jAction.asString())));
 
-                // add table instance
-                String name = jTable.get("name").asString();
-                int id = jTable.get("id").asInt();
+                // populate next component of each action
+                Map<String, String> nextTables = Maps.newLinkedHashMap();
+                JsonValue jNextTables = jTable.get("next_tables");
+                if (jNextTables != null) {
+                    JsonObject jNext = jNextTables.asObject();
+                    jNext.names().forEach(actionName ->
+                            nextTables.put(actionName, nullableString(jNext.get(actionName))));
+                }
 
-                TableModel table = new TableModel(name,
-                        id,
+                // add table instance
+                addTable(new TableModel(jTable.get("name").asString(),
+                        jTable.get("id").asInt(),
                         jTable.get("match_type").asString(),
                         jTable.get("type").asString(),
                         jTable.get("max_size").asInt(),
@@ -296,11 +395,124 @@ public class ProgramModel {
                         jTable.get("support_timeout").asBoolean(),
                         keys,
                         actionzz,
-                        jTable.get("base_default_next").isNull() ? null : jTable.get("base_default_next").asString());
+                        nullableString(jTable.get("base_default_next")),
+                        nextTables));
+            });
+        });
+    }
+
+    private static String nullableString(JsonValue value) {
+        return value == null || value.isNull() ? null : value.asString();
+    }
+
+    /**
+     * Add a header type.
+     *
+     * @param name       header type name
+     * @param id         header type id
+     * @param fieldTypes field types in the order of the header
+     */
+    void addHeaderType(String name, int id, List<FieldTypeModel> fieldTypes) {
+        headerTypes.put(name, id, new HeaderTypeModel(name, id, fieldTypes));
+    }
 
-                tables.put(name, id, table);
+    /**
+     * Add a header instance.
+     *
+     * @param name     header name
+     * @param id       header id
+     * @param typeName header type name
+     * @param metadata whether the header is metadata
+     */
+    void addHeader(String name, int id, String typeName, boolean metadata) {
+        headers.put(name, id, new HeaderModel(name, id, headerTypes.get(typeName), metadata));
+    }
+
+    /**
+     * Add a parser state.
+     *
+     * @param name       parser state name
+     * @param id         parser state id
+     * @param headerName header extracted by the state, may be null
+     * @param nextStates next states
+     */
+    void addParserState(String name, int id, String headerName, List<String> nextStates) {
+        ParserStateModel stateModel = new ParserStateModel(name, id);
+        if (headerName != null) {
+            stateModel.setHeader(headers.get(headerName));
+        }
+        nextStates.forEach(stateModel::addNextState);
+        this.parsers.put(stateModel.getName(), stateModel.getId(), stateModel);
+    }
+
+    /**
+     * Link each extracted header to the header extracted before it, once all
+     * the parser states are added.
+     */
+    void linkParserStates() {
+        this.parsers.values().forEach(parserStateModel -> {
+            HeaderModel preHeader = parserStateModel.getHeader();
+            parserStateModel.getNextStates().forEach(state -> {
+                HeaderModel headerModel = this.parsers.get(state).getHeader();
+                if (headerModel != null) {
+                    headerModel.setPreHeader(preHeader);
+                }
             });
         });
     }
 
+    /**
+     * Add an action.
+     *
+     * @param action action model
+     */
+    void addAction(ActionModel action) {
+        actions.put(action.name(), action.id(), action);
+    }
+
+    /**
+     * Create the match key on a field of a header.
+     *
+     * @param matchKeyType match type
+     * @param headerName   header name
+     * @param fieldName    field name
+     * @return match key model
+     */
+    MatchKeyModel matchKey(MatchKeyModel.MatchKeyType matchKeyType, String headerName, String fieldName) {
+        HeaderModel header = getHeader(headerName);
+
+        FieldModel field = header.getField(fieldName);
+        if (field == null) {
+            throw new RuntimeException("Can't find the field " + headerName + "." + fieldName);
+        }
+        return new MatchKeyModel(matchKeyType, field);
+    }
+
+    /**
+     * Add a table.
+     *
+     * @param table table model
+     */
+    void addTable(TableModel table) {
+        tables.put(table.getName(), table.getId(), table);
+    }
+
+    /**
+     * Add a condition.
+     *
+     * @param condition condition model
+     */
+    void addCondition(ConditionModel condition) {
+        conditions.put(condition.getName(), condition.getId(), condition);
+    }
+
+    /**
+     * Add the first component of a pipeline.
+     *
+     * @param name table or condition name
+     */
+    void addInitTable(String name) {
+        initTables.add(name);
+    }
+
 }
@@ -0,0 +1,350 @@
+package org.netarch.odb.model;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.netarch.odb.primitive.PrimitiveType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compact binary form of a parsed program model. A snapshot only keeps what
+ * doParse reads from the json, and is loaded by replaying the same
+ * construction steps, so no json is parsed.
+ */
+public final class ProgramModelCodec {
+    private static final int MAGIC = 0x4F444250;
+    private static final int VERSION = 2;
+
+    /* Parameter tags */
+    private static final byte CONST = 0;
+    private static final byte FIELD = 1;
+    private static final byte HEADER = 2;
+    private static final byte RUNTIME_DATA = 3;
+
+    private ProgramModelCodec() {
+    }
+
+    /**
+     * Encode a parsed program model.
+     *
+     * @param program program model
+     * @return snapshot bytes
+     */
+    public static byte[] encode(ProgramModel program) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            write(program, out);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to encode the program " + program.getName(), e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Write a parsed program model.
+     *
+     * @param program program model
+     * @param stream  output stream
+     * @throws IOException if the stream fails
+     */
+    public static void write(ProgramModel program, OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeUTF(program.getContentHash());
+
+        List<HeaderTypeModel> headerTypes = program.headerTypes();
+        out.writeInt(headerTypes.size());
+        for (HeaderTypeModel headerType : headerTypes) {
+            out.writeUTF(headerType.getName());
+            out.writeInt(headerType.getId());
+            List<FieldTypeModel> fields = headerType.getFields();
+            out.writeInt(fields.size());
+            for (FieldTypeModel field : fields) {
+                out.writeUTF(field.getName());
+                out.writeInt(field.getBitWidth());
+            }
+        }
+
+        List<HeaderModel> headers = program.headers();
+        out.writeInt(headers.size());
+        for (HeaderModel header : headers) {
+            out.writeUTF(header.getName());
+            out.writeInt(header.getId());
+            out.writeUTF(header.getType().getName());
+            out.writeBoolean(header.isMetadata());
+        }
+
+        List<ParserStateModel> states = program.parserStates();
+        out.writeInt(states.size());
+        for (ParserStateModel state : states) {
+            out.writeUTF(state.getName());
+            out.writeInt(state.getId());
+            writeNullable(out, state.getHeader() == null ? null : state.getHeader().getName());
+            out.writeInt(state.getNextStates().size());
+            for (String next : state.getNextStates()) {
+                out.writeUTF(next);
+            }
+        }
+
+        List<ActionModel> actions = program.actions();
+        out.writeInt(actions.size());
+        for (ActionModel action : actions) {
+            out.writeUTF(action.name());
+            out.writeInt(action.id());
+            List<DataModel> datas = action.runtimeDatas();
+            out.writeInt(datas.size());
+            for (DataModel data : datas) {
+                out.writeUTF(data.name());
+                out.writeInt(data.bitWidth());
+            }
+            List<PrimitiveModel> primitives = action.getPrimitiveModels();
+            out.writeInt(primitives.size());
+            for (PrimitiveModel primitive : primitives) {
+                out.writeUTF(primitive.getType().name());
+                out.writeInt(primitive.getParameterModels().size());
+                for (ParameterModel parameter : primitive.getParameterModels()) {
+                    writeParameter(out, parameter);
+                }
+            }
+        }
+
+        List<TableModel> tables = program.tables();
+        out.writeInt(tables.size());
+        for (TableModel table : tables) {
+            out.writeUTF(table.getName());
+            out.writeInt(table.getId());
+            out.writeUTF(table.getMatchType());
+            out.writeUTF(table.getType());
+            out.writeInt(table.getMaxSize());
+            out.writeBoolean(table.hasCounters());
+            out.writeBoolean(table.hasTimeouts());
+            out.writeInt(table.getKeys().size());
+            for (MatchKeyModel key : table.getKeys()) {
+                out.writeUTF(key.matchType().name());
+                out.writeUTF(key.field().getHeaderName());
+                out.writeUTF(key.getFieldName());
+            }
+            out.writeInt(table.getActions().size());
+            for (ActionModel action : table.getActions()) {
+                out.writeUTF(action.name());
+            }
+            writeNullable(out, table.getNext());
+            out.writeInt(table.getNextTables().size());
+            for (Map.Entry<String, String> next : table.getNextTables().entrySet()) {
+                out.writeUTF(next.getKey());
+                writeNullable(out, next.getValue());
+            }
+        }
+
+        List<ConditionModel> conditions = program.conditions();
+        out.writeInt(conditions.size());
+        for (ConditionModel condition : conditions) {
+            out.writeUTF(condition.getName());
+            out.writeInt(condition.getId());
+            writeNullable(out, condition.getTrueNext());
+            writeNullable(out, condition.getFalseNext());
+        }
+
+        List<String> initTables = program.getInitTables();
+        out.writeInt(initTables.size());
+        for (String init : initTables) {
+            out.writeUTF(init);
+        }
+        out.flush();
+    }
+
+    /**
+     * Read the content hash of a snapshot without loading it.
+     *
+     * @param stream input stream
+     * @return content hash of the program json
+     * @throws IOException if the stream fails or is not a snapshot
+     */
+    public static String readContentHash(InputStream stream) throws IOException {
+        return readPreamble(new DataInputStream(stream));
+    }
+
+    /**
+     * Load a program model from a snapshot.
+     *
+     * @param stream input stream
+     * @param name   program name
+     * @param id     program id
+     * @return program model, without json
+     * @throws IOException if the stream fails or is not a snapshot
+     */
+    public static ProgramModel read(InputStream stream, String name, int id) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        ProgramModel program = new ProgramModel(name, id, null, readPreamble(in));
+
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String typeName = in.readUTF();
+            int typeId = in.readInt();
+            int fieldNum = in.readInt();
+            List<FieldTypeModel> fields = Lists.newArrayListWithCapacity(fieldNum);
+            for (int j = 0; j < fieldNum; j++) {
+                fields.add(new FieldTypeModel(in.readUTF(), in.readInt()));
+            }
+            program.addHeaderType(typeName, typeId, fields);
+        }
+
+        count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            program.addHeader(in.readUTF(), in.readInt(), in.readUTF(), in.readBoolean());
+        }
+
+        count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String stateName = in.readUTF();
+            int stateId = in.readInt();
+            String headerName = readNullable(in);
+            int nextNum = in.readInt();
+            List<String> nextStates = Lists.newArrayListWithCapacity(nextNum);
+            for (int j = 0; j < nextNum; j++) {
+                nextStates.add(in.readUTF());
+            }
+            program.addParserState(stateName, stateId, headerName, nextStates);
+        }
+        program.linkParserStates();
+
+        count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String actionName = in.readUTF();
+            int actionId = in.readInt();
+            int dataNum = in.readInt();
+            List<DataModel> datas = Lists.newArrayListWithCapacity(dataNum);
+            for (int j = 0; j < dataNum; j++) {
+                datas.add(new DataModel(in.readUTF(), in.readInt()));
+            }
+            int primitiveNum = in.readInt();
+            List<PrimitiveModel> primitives = Lists.newArrayListWithCapacity(primitiveNum);
+            for (int j = 0; j < primitiveNum; j++) {
+                PrimitiveType type = PrimitiveType.valueOf(in.readUTF());
+                int parameterNum = in.readInt();
+                List<ParameterModel> parameters = Lists.newArrayListWithCapacity(parameterNum);
+                for (int k = 0; k < parameterNum; k++) {
+                    parameters.add(readParameter(in, program));
+                }
+                primitives.add(new PrimitiveModel(type, parameters));
+            }
+            program.addAction(new ActionModel(actionName, actionId, datas, primitives));
+        }
+
+        count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String tableName = in.readUTF();
+            int tableId = in.readInt();
+            String matchType = in.readUTF();
+            String type = in.readUTF();
+            int maxSize = in.readInt();
+            boolean withCounters = in.readBoolean();
+            boolean supportTimeout = in.readBoolean();
+            int keyNum = in.readInt();
+            List<MatchKeyModel> keys = Lists.newArrayListWithCapacity(keyNum);
+            for (int j = 0; j < keyNum; j++) {
+                MatchKeyModel.MatchKeyType keyType = MatchKeyModel.MatchKeyType.valueOf(in.readUTF());
+                keys.add(program.matchKey(keyType, in.readUTF(), in.readUTF()));
+            }
+            int actionNum = in.readInt();
+            Set<ActionModel> actions = Sets.newHashSet();
+            for (int j = 0; j < actionNum; j++) {
+                actions.add(program.action(in.readUTF()));
+            }
+            String next = readNullable(in);
+            int nextNum = in.readInt();
+            Map<String, String> nextTables = Maps.newLinkedHashMap();
+            for (int j = 0; j < nextNum; j++) {
+                nextTables.put(in.readUTF(), readNullable(in));
+            }
+            program.addTable(new TableModel(tableName, tableId, matchType, type, maxSize,
+                    withCounters, supportTimeout, keys, actions, next, nextTables));
+        }
+
+        count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            program.addCondition(new ConditionModel(in.readUTF(), in.readInt(),
+                    readNullable(in), readNullable(in)));
+        }
+
+        count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            program.addInitTable(in.readUTF());
+        }
+        return program;
+    }
+
+    private static String readPreamble(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a program snapshot");
+        }
+        int version = in.readShort();
+        if (version != VERSION) {
+            throw new IOException("Unsupported program snapshot version " + version);
+        }
+        return in.readUTF();
+    }
+
+    private static void writeParameter(DataOutputStream out, ParameterModel parameter) throws IOException {
+        switch (parameter.getType()) {
+            case CONST:
+                out.writeByte(CONST);
+                out.writeInt(parameter.getConstData());
+                break;
+            case PACKET_FIELD:
+            case METADATA_FIELD:
+                out.writeByte(FIELD);
+                out.writeUTF(parameter.getFieldModel().getHeaderName());
+                out.writeUTF(parameter.getFieldModel().getName());
+                break;
+            case PACKET_HEADER:
+            case METADATA_HEADER:
+                out.writeByte(HEADER);
+                out.writeUTF(parameter.getHeaderModel().getName());
+                break;
+            case RUNTIME_DATA:
+                out.writeByte(RUNTIME_DATA);
+                out.writeUTF(parameter.getRuntimedata());
+                break;
+            default:
+                throw new IOException("Unable to encode the parameter type " + parameter.getType());
+        }
+    }
+
+    private static ParameterModel readParameter(DataInputStream in, ProgramModel program) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+            case CONST:
+                return new ParameterModel(in.readInt());
+            case FIELD:
+                return new ParameterModel(program.getHeader(in.readUTF()).getField(in.readUTF()));
+            case HEADER:
+                return new ParameterModel(program.getHeader(in.readUTF()));
+            case RUNTIME_DATA:
+                return new ParameterModel(in.readUTF());
+            default:
+                throw new IOException("Wrong parameter tag " + tag);
+        }
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
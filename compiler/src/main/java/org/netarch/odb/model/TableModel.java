@@ -2,7 +2,9 @@ package org.netarch.odb.model;
 
 import com.google.common.base.Objects;
 
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import static com.google.common.base.MoreObjects.toStringHelper;
@@ -18,6 +20,7 @@ public class TableModel {
     private final List<MatchKeyModel> keys;
     private final Set<ActionModel> actions;
     private final String next;
+    private final Map<String, String> nextTables;
 
     /**
      * Creates a new table model.
@@ -36,6 +39,29 @@ public class TableModel {
     protected TableModel(String name, int id, String matchType, String type,
                          int maxSize, boolean withCounters, boolean supportTimeout,
                          List<MatchKeyModel> keys, Set<ActionModel> actions, String next) {
+        this(name, id, matchType, type, maxSize, withCounters, supportTimeout, keys, actions, next,
+                Collections.emptyMap());
+    }
+
+    /**
+     * Creates a new table model.
+     *
+     * @param name           name
+     * @param id             id
+     * @param matchType      match type
+     * @param type           type
+     * @param maxSize        max number of entries
+     * @param withCounters   if table has counters
+     * @param supportTimeout if table supports aging
+     * @param keys           list of match keys
+     * @param actions        list of actions
+     * @param next           next component
+     * @param nextTables     next component of each action, null at the end of the pipeline
+     */
+    protected TableModel(String name, int id, String matchType, String type,
+                         int maxSize, boolean withCounters, boolean supportTimeout,
+                         List<MatchKeyModel> keys, Set<ActionModel> actions, String next,
+                         Map<String, String> nextTables) {
         this.name = name;
         this.id = id;
         this.matchType = matchType;
@@ -46,6 +72,7 @@ public class TableModel {
         this.keys = keys;
         this.actions = actions;
         this.next = next;
+        this.nextTables = Collections.unmodifiableMap(nextTables);
     }
 
     /**
@@ -131,6 +158,16 @@ public class TableModel {
         return next;
     }
 
+    /**
+     * Get next component of each action of the table. The value of an action
+     * at the end of the pipeline is null.
+     *
+     * @return next component (table or condition) by action name
+     */
+    public Map<String, String> getNextTables() {
+        return nextTables;
+    }
+
     /**
      * Returns the set of actions supported by this table.
      *
@@ -0,0 +1,232 @@
+package org.netarch.odb.runtime;
+
+import java.util.Arrays;
+
+/**
+ * Fixed-width bit vector backed by long words, used to compose the header
+ * and metadata keys of a stage. Bit offsets are counted from the most
+ * significant bit of the first byte, as the bit offsets of the fields are,
+ * and all the operations work in place.
+ */
+public class BitVector {
+    private static final int WORD_BITS = 64;
+
+    private final long[] words;
+    private final int bitWidth;
+
+    /**
+     * Create a bit vector with all the bits cleared.
+     *
+     * @param bitWidth bit width
+     */
+    public BitVector(int bitWidth) {
+        if (bitWidth < 0) {
+            throw new RuntimeException("Wrong bit vector width " + bitWidth);
+        }
+        this.bitWidth = bitWidth;
+        this.words = new long[(bitWidth + WORD_BITS - 1) / WORD_BITS];
+    }
+
+    /**
+     * Get the bit width of the vector.
+     *
+     * @return bit width
+     */
+    public int getBitWidth() {
+        return bitWidth;
+    }
+
+    /**
+     * Set a range of bits to the lowest bits of a big-endian value. Missing
+     * bits of a shorter value are cleared.
+     *
+     * @param offset bit offset of the range
+     * @param width  bit width of the range
+     * @param src    big-endian value
+     * @return this
+     */
+    public BitVector setBits(int offset, int width, byte[] src) {
+        checkRange(offset, width);
+        int srcEnd = src.length * 8;
+        int pos = offset + width;
+        while (pos > offset) {
+            int wordIndex = (pos - 1) / WORD_BITS;
+            int start = Math.max(offset, wordIndex * WORD_BITS);
+            int n = pos - start;
+            long bits = readBits(src, srcEnd - n, n);
+            writeWord(wordIndex, pos, n, bits);
+            srcEnd -= n;
+            pos = start;
+        }
+        return this;
+    }
+
+    /**
+     * Set a range of at most 64 bits to the lowest bits of a value.
+     *
+     * @param offset bit offset of the range
+     * @param width  bit width of the range
+     * @param value  value
+     * @return this
+     */
+    public BitVector setBits(int offset, int width, long value) {
+        checkRange(offset, width);
+        if (width > WORD_BITS) {
+            throw new RuntimeException("Wrong bit vector range width " + width);
+        }
+        int pos = offset + width;
+        while (pos > offset) {
+            int wordIndex = (pos - 1) / WORD_BITS;
+            int start = Math.max(offset, wordIndex * WORD_BITS);
+            int n = pos - start;
+            writeWord(wordIndex, pos, n, value);
+            value = n == WORD_BITS ? 0 : value >>> n;
+            pos = start;
+        }
+        return this;
+    }
+
+    /**
+     * Set all the bits of a range, e.g. the mask of a field.
+     *
+     * @param offset bit offset of the range
+     * @param width  bit width of the range
+     * @return this
+     */
+    public BitVector setOnes(int offset, int width) {
+        return fill(offset, width, -1L);
+    }
+
+    /**
+     * Clear all the bits of a range.
+     *
+     * @param offset bit offset of the range
+     * @param width  bit width of the range
+     * @return this
+     */
+    public BitVector clearBits(int offset, int width) {
+        return fill(offset, width, 0L);
+    }
+
+    /**
+     * Get one bit of the vector.
+     *
+     * @param offset bit offset
+     * @return true if the bit is set, otherwise false
+     */
+    public boolean getBit(int offset) {
+        checkRange(offset, 1);
+        return (words[offset / WORD_BITS] & (1L << (WORD_BITS - 1 - offset % WORD_BITS))) != 0;
+    }
+
+    /**
+     * Copy the vector.
+     *
+     * @return new bit vector with the same bits
+     */
+    public BitVector copy() {
+        BitVector copy = new BitVector(bitWidth);
+        System.arraycopy(words, 0, copy.words, 0, words.length);
+        return copy;
+    }
+
+    /**
+     * Clear the bits which are not set in a mask of the same width.
+     *
+     * @param mask mask
+     * @return this
+     */
+    public BitVector and(BitVector mask) {
+        if (mask.bitWidth != bitWidth) {
+            throw new RuntimeException("Wrong mask width " + mask.bitWidth + ", expected " + bitWidth);
+        }
+        for (int i = 0; i < words.length; i++) {
+            words[i] &= mask.words[i];
+        }
+        return this;
+    }
+
+    /**
+     * Get the vector as a big-endian byte array, padded with zeros up to a
+     * whole number of bytes.
+     *
+     * @return byte array
+     */
+    public byte[] toByteArray() {
+        byte[] data = new byte[(bitWidth + 7) / 8];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (words[i / 8] >>> (56 - (i % 8) * 8));
+        }
+        return data;
+    }
+
+    private BitVector fill(int offset, int width, long bits) {
+        checkRange(offset, width);
+        int pos = offset + width;
+        while (pos > offset) {
+            int wordIndex = (pos - 1) / WORD_BITS;
+            int start = Math.max(offset, wordIndex * WORD_BITS);
+            writeWord(wordIndex, pos, pos - start, bits);
+            pos = start;
+        }
+        return this;
+    }
+
+    /**
+     * Write the lowest n bits of a value into a word, ending at an absolute
+     * bit position inside the word.
+     */
+    private void writeWord(int wordIndex, int end, int n, long bits) {
+        int shift = (wordIndex + 1) * WORD_BITS - end;
+        long mask = (n == WORD_BITS ? -1L : (1L << n) - 1) << shift;
+        words[wordIndex] = (words[wordIndex] & ~mask) | ((bits << shift) & mask);
+    }
+
+    /**
+     * Read at most 64 bits of a big-endian value, starting at a bit offset
+     * which may be negative, in which case the missing bits are zeros.
+     */
+    private static long readBits(byte[] src, int start, int n) {
+        long bits = 0;
+        int bit = start;
+        int remaining = n;
+        if (bit < 0) {
+            int missing = Math.min(-bit, remaining);
+            bit += missing;
+            remaining -= missing;
+        }
+        while (remaining > 0) {
+            int inByte = bit & 7;
+            int take = Math.min(8 - inByte, remaining);
+            int b = ((src[bit >>> 3] & 0xFF) >>> (8 - inByte - take)) & ((1 << take) - 1);
+            bits = (bits << take) | b;
+            bit += take;
+            remaining -= take;
+        }
+        return bits;
+    }
+
+    private void checkRange(int offset, int width) {
+        if (offset < 0 || width < 0 || offset + width > bitWidth) {
+            throw new RuntimeException("Bit range " + offset + "+" + width +
+                    " out of the bit vector of width " + bitWidth);
+        }
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * bitWidth + Arrays.hashCode(words);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof BitVector)) {
+            return false;
+        }
+        BitVector other = (BitVector) obj;
+        return bitWidth == other.bitWidth && Arrays.equals(words, other.words);
+    }
+}
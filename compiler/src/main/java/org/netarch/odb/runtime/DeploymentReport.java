@@ -0,0 +1,113 @@
+package org.netarch.odb.runtime;
+
+import com.google.common.collect.ImmutableMap;
+import org.onosproject.net.DeviceId;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+
+public class DeploymentReport {
+    private final Map<DeviceId, Instance> instances;
+    private final Map<DeviceId, Throwable> failures;
+    private final Map<DeviceId, Long> elapsedNanos;
+    private final long totalNanos;
+
+    /**
+     * Create a report of a program deployed on several devices.
+     *
+     * @param instances    instances running on the devices
+     * @param failures     cause of the failure of each failed device
+     * @param elapsedNanos deployment time of each device in nanoseconds
+     * @param totalNanos   deployment time of all the devices in nanoseconds
+     */
+    public DeploymentReport(Map<DeviceId, Instance> instances,
+                            Map<DeviceId, Throwable> failures,
+                            Map<DeviceId, Long> elapsedNanos,
+                            long totalNanos) {
+        this.instances = ImmutableMap.copyOf(instances);
+        this.failures = ImmutableMap.copyOf(failures);
+        this.elapsedNanos = ImmutableMap.copyOf(elapsedNanos);
+        this.totalNanos = totalNanos;
+    }
+
+    /**
+     * Whether the program runs on every device.
+     *
+     * @return true if no device failed, otherwise false
+     */
+    public boolean isSuccess() {
+        return failures.isEmpty();
+    }
+
+    /**
+     * Get the instances running on the devices.
+     *
+     * @return instance of each succeeded device
+     */
+    public Map<DeviceId, Instance> instances() {
+        return instances;
+    }
+
+    /**
+     * Get the instance running on a device.
+     *
+     * @param deviceId device id
+     * @return instance, or null if the device failed
+     */
+    public Instance getInstance(DeviceId deviceId) {
+        return instances.get(deviceId);
+    }
+
+    /**
+     * Get the failed devices.
+     *
+     * @return failed devices
+     */
+    public Set<DeviceId> failed() {
+        return failures.keySet();
+    }
+
+    /**
+     * Get the cause of the failure of a device.
+     *
+     * @param deviceId device id
+     * @return cause, or null if the device succeeded
+     */
+    public Throwable getFailure(DeviceId deviceId) {
+        return failures.get(deviceId);
+    }
+
+    /**
+     * Get the deployment time of a device.
+     *
+     * @param deviceId device id
+     * @param unit     time unit
+     * @return deployment time, or -1 if the device was not deployed
+     */
+    public long getElapsed(DeviceId deviceId, TimeUnit unit) {
+        Long nanos = elapsedNanos.get(deviceId);
+        return nanos == null ? -1 : unit.convert(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Get the deployment time of all the devices.
+     *
+     * @param unit time unit
+     * @return deployment time
+     */
+    public long getTotalElapsed(TimeUnit unit) {
+        return unit.convert(totalNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return toStringHelper(this)
+                .add("succeeded", instances.size())
+                .add("failed", failures.size())
+                .add("totalMillis", getTotalElapsed(TimeUnit.MILLISECONDS))
+                .toString();
+    }
+}
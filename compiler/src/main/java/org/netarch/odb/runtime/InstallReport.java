@@ -0,0 +1,59 @@
+package org.netarch.odb.runtime;
+
+import com.google.common.collect.ImmutableSet;
+
+import java.util.Collection;
+import java.util.Set;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+
+public class InstallReport<T> {
+    private final Set<T> succeeded;
+    private final Set<T> failed;
+
+    /**
+     * Create a report of an installation.
+     *
+     * @param succeeded installed objects
+     * @param failed    failed objects
+     */
+    public InstallReport(Collection<T> succeeded, Collection<T> failed) {
+        this.succeeded = ImmutableSet.copyOf(succeeded);
+        this.failed = ImmutableSet.copyOf(failed);
+    }
+
+    /**
+     * Whether every object has been installed.
+     *
+     * @return true if nothing failed, otherwise false
+     */
+    public boolean isSuccess() {
+        return failed.isEmpty();
+    }
+
+    /**
+     * Get installed objects.
+     *
+     * @return installed objects
+     */
+    public Set<T> succeeded() {
+        return succeeded;
+    }
+
+    /**
+     * Get failed objects.
+     *
+     * @return failed objects
+     */
+    public Set<T> failed() {
+        return failed;
+    }
+
+    @Override
+    public String toString() {
+        return toStringHelper(this)
+                .add("succeeded", succeeded.size())
+                .add("failed", failed.size())
+                .toString();
+    }
+}
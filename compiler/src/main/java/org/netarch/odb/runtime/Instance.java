@@ -1,35 +1,75 @@
 package org.netarch.odb.runtime;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.BaseEncoding;
 import org.netarch.odb.compiler.Compiler;
+import org.netarch.odb.compiler.ProgramDiff;
+import org.netarch.odb.compiler.StagePlacement;
 import org.netarch.odb.compiler.Vp4Interpreter;
+import org.netarch.odb.compiler.Vp4Templates;
 import org.netarch.odb.model.ActionModel;
 import org.netarch.odb.model.FieldModel;
-import org.netarch.odb.model.MatchKeyModel;
 import org.netarch.odb.model.ParameterModel;
 import org.netarch.odb.model.PrimitiveModel;
 import org.netarch.odb.model.ProgramModel;
+import org.netarch.odb.model.TableModel;
+import org.netarch.odb.runtime.MatchResultAllocator.Region;
 import org.netarch.odb.utils.DualKeyMap;
+import org.netarch.odb.utils.FlowRuleBatch;
 import org.netarch.odb.utils.FlowRuleHelper;
 import org.netarch.odb.utils.TrafficSelectorHelper;
 import org.netarch.odb.utils.TrafficTreatmentHelper;
 import org.onosproject.bmv2.api.context.Bmv2Configuration;
+import org.onosproject.bmv2.api.runtime.Bmv2ExtensionSelector;
+import org.onosproject.bmv2.api.runtime.Bmv2ExtensionTreatment;
 import org.onosproject.core.ApplicationId;
 import org.onosproject.net.DeviceId;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleOperation;
 
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 import static org.netarch.odb.compiler.Vp4Interpreter.*;
 
 public class Instance {
+    /* Batch stages, applied in order. */
+    private static final int BATCH_MATCH_STAGE = 0;
+    private static final int BATCH_MATCH_RESULT_STAGE = 1;
+    private static final int BATCH_ACTION_STAGE = 2;
+    private static final int BATCH_STAGE_NUM = 3;
+    /* Moved entries are added, then the installed ones removed, before the stages of a batch. */
+    private static final int BATCH_MOVE_STAGE_NUM = 2;
     private final String name;
     private final ApplicationId applicationId;
-    private final ProgramModel program;
+    private ProgramModel program;
     private final DeviceId deviceId;
     private final int instanceId;
     private final int poliyId;
     private final Bmv2Configuration configuration;
+    private final Vp4Templates templates;
+    private final TableOccupancy occupancy;
+    private final ReadWriteLock lock;
+    private StagePlacement placement;
+    private Stage initialStage;
+    private int[] passIds;
     private Compiler compiler;
     private DualKeyMap<Stage> stageMap;
+    private ConcurrentMap<InstanceRule, RuleEntries> ruleEntries;
+    private volatile boolean ordered;
 
     /**
      * Create an instance.
@@ -55,20 +95,59 @@ public class Instance {
         this.poliyId = policyId;
         this.applicationId = applicationId;
         this.stageMap = new DualKeyMap<>();
+        this.ruleEntries = Maps.newConcurrentMap();
+        this.lock = new ReentrantReadWriteLock();
         this.configuration = compiler.getConfiguration();
+        this.templates = compiler.getTemplates();
+        this.occupancy = compiler.getTableOccupancy(deviceId);
+        this.placement = compiler.getPlacement(program);
         this.name = program.getName() + "-" + instanceId;
 
-        program.tables().forEach(table -> {
-            Stage stage = new Stage(table.getId(), table);
-            stageMap.put(stage.getName(), stage.getId(), stage);
-        });
+        /* The first pass matches the instance id, the others take ids of their own. */
+        this.passIds = new int[placement.getPassCount()];
+        for (int pass = 0; pass < passIds.length; pass++) {
+            passIds[pass] = pass == 0 ? instanceId : compiler.newInstanceId();
+        }
 
+        /* Stages are indexed by table id, rules name the logical table they belong to. */
+        Stage initialStage = null;
+        for (TableModel table : placement.getOrder()) {
+            byte stageId = (byte) placement.getStage(table.getName());
+            Stage stage = new Stage(stageId, passIds[placement.getPass(table.getName())], table,
+                    compiler.getMatchResultAllocator(deviceId, stageId));
+            stageMap.put(stage.getName(), stage.getTableId(), stage);
+            if (initialStage == null) {
+                initialStage = stage;
+            }
+        }
+        this.initialStage = initialStage;
     }
 
     /**
-     * Initialize config tables in data plane.
+     * Get the program ids of the passes of the instance, the first one
+     * being the instance id.
+     *
+     * @return program id of each pass
+     */
+    public int[] getPassIds() {
+        return passIds.clone();
+    }
+
+    /**
+     * Get the placement of the tables of the instance on the VP4 stages.
+     *
+     * @return stage placement
+     */
+    public StagePlacement getPlacement() {
+        return placement;
+    }
+
+    /**
+     * Build the rule of the config table in data plane.
+     *
+     * @return config flow rule
      */
-    private void initConfig() {
+    private FlowRule buildConfigRule() {
         Bmv2Configuration configuration = this.compiler.getConfiguration();
 
         FlowRuleHelper flowRuleHelper = new FlowRuleHelper(applicationId, deviceId, "table_config_at_initial");
@@ -85,7 +164,7 @@ public class Instance {
         TrafficTreatmentHelper treatmentHelper = new TrafficTreatmentHelper(configuration);
 
         byte matchType = 0;
-        Stage stage = stageMap.getWithLeastKey();
+        Stage stage = initialStage;
 
         if (stage.isMatchHeader()) {
             matchType |= 4;
@@ -99,21 +178,104 @@ public class Instance {
             matchType |= 1;
         }
 
-        CompoundAction action = new CompoundAction(CONFIG_AT_INITIAL);
-        action.addParameter(Data.createByteData("progid", (byte) this.instanceId))
-                .addParameter(Data.createByteData("initstage", (byte) (int) stageMap.getLeastKey()))
+        CompoundAction action = new CompoundAction(ACTION_SET_INITIAL_CONFIG);
+        action.addParameter(Data.createByteData("progid", stage.getProgramId()))
+                .addParameter(Data.createByteData("initstage", stage.getId()))
                 .addParameter(Data.createByteData("match_bitmap", matchType));
 
         treatmentHelper.withCoumpoundAction(action);
 
         flowRuleHelper.withTreatment(treatmentHelper);
 
-        compiler.installRule(flowRuleHelper.build());
+        return flowRuleHelper.build();
     }
 
+    /**
+     * Build the rule of the config table at the end of the pipeline, which
+     * resubmits the packets going to a stage which is not after the stage
+     * they come from. The stage they go to is matched by the next pass.
+     *
+     * @param stage stage the packets are resubmitted to
+     * @return resubmit flow rule
+     */
+    private FlowRule buildResubmitRule(Stage stage) {
+        FlowRuleHelper flowRuleHelper = new FlowRuleHelper(applicationId, deviceId, CONFIG_AT_END);
+
+        TrafficSelectorHelper selectorHelper = new TrafficSelectorHelper(configuration);
+        selectorHelper.withPolicyId((short) this.poliyId)
+                .withProgramId(stage.getProgramId())
+                .withStageId(stage.getId());
+        flowRuleHelper.withSelector(selectorHelper);
+
+        CompoundAction action = new CompoundAction(ACTION_RESUBMIT);
+        action.addParameter(Data.createByteData("progid", stage.getProgramId()));
+        TrafficTreatmentHelper treatmentHelper = new TrafficTreatmentHelper(configuration);
+        treatmentHelper.withCoumpoundAction(action);
+        flowRuleHelper.withTreatment(treatmentHelper);
+
+        return flowRuleHelper.build();
+    }
+
+    /**
+     * Build the flow rule loading the exact keys of a stage: the header and
+     * the user metadata cleared outside the bits the stage matches.
+     *
+     * @param stage stage matching the header or the user metadata
+     * @return flow rule
+     */
+    private FlowRule buildExactKeyRule(Stage stage) {
+        KeyLayout layout = stage.getLayout();
+        return new FlowRuleHelper(this.applicationId, this.deviceId,
+                templates.getTableId(Vp4Interpreter.TABLE_EXACT_KEY, stage.getId()))
+                .withSelector(templates.exactKey(stage.getProgramId(), stage.getId()))
+                .withTreatment(templates.loadExactKey(layout.getHeaderMask(), layout.getMetadataMask()))
+                .build();
+    }
+
+    /**
+     * Build the config rules of the instance: the initial config, the
+     * resubmits between the passes and the exact keys of the stages.
+     *
+     * @return config flow rules
+     */
+    private List<FlowRule> buildConfigRules() {
+        List<FlowRule> rules = Lists.newArrayList(buildConfigRule());
+        stageMap.values().forEach(stage -> {
+            if (placement.isResubmitTarget(stage.getName())) {
+                rules.add(buildResubmitRule(stage));
+            }
+            if (templates.hasExactMatch() && (stage.isMatchHeader() || stage.isMatchMetadata())) {
+                rules.add(buildExactKeyRule(stage));
+            }
+        });
+        return rules;
+    }
+
+    /**
+     * Initialize config tables in data plane.
+     */
     public void initialize() {
-        initConfig();
+        compiler.installRules(buildConfigRules());
+    }
 
+    /**
+     * Initialize config tables in data plane. The future completes when the
+     * config entry is installed, or exceptionally if it fails.
+     *
+     * @return future of this instance
+     */
+    public CompletableFuture<Instance> initializeAsync() {
+        FlowRuleBatch batch = new FlowRuleBatch();
+        buildConfigRules().forEach(rule -> batch.add(0, rule));
+        return compiler.installRulesAsync(batch).thenApply(report -> {
+            if (!report.isSuccess()) {
+                /* Withdraw the entries which were installed, so the ids of the instance can be taken again. */
+                report.succeeded().forEach(compiler::removeRule);
+                throw new CompletionException(
+                        new RuntimeException("Cannot install the config of the instance " + name));
+            }
+            return this;
+        });
     }
 
     /**
@@ -123,217 +285,1232 @@ public class Instance {
      * @return this
      */
     public Instance addRule(InstanceRule rule) {
-        byte stageId = (byte) rule.getStageId();
-        Stage stage = stageMap.get(stageId);
+        update(ImmutableList.of(), ImmutableList.of(rule), null);
+        return this;
+    }
 
-        if (stage == null) {
-            throw new RuntimeException("Cannot find the stage.");
-        }
+    /**
+     * Install rules into the instance. The entries of all the rules are
+     * grouped into the match, match result and action stages, so the whole
+     * collection costs at most three flow rule round trips.
+     *
+     * @param rules instance rules
+     * @return this
+     */
+    public Instance addRules(Collection<InstanceRule> rules) {
+        return addRules(rules, null);
+    }
 
-        Stage nextStage = stageMap.get(stage.getNextStage());
-        MatchResult matchResult = stage.computeMatchResult(rule.getKeys());
+    /**
+     * Install rules into the instance, and report the result of each rule.
+     * A rule fails if any of its entries fails. Failed rules are still
+     * indexed, so delRule can withdraw the entries which were installed.
+     *
+     * @param rules    instance rules
+     * @param callback result callback, may be null
+     * @return this
+     */
+    public Instance addRules(Collection<InstanceRule> rules, Consumer<InstallReport<InstanceRule>> callback) {
+        update(ImmutableList.of(), rules, callback);
+        return this;
+    }
 
-        ActionModel actionModel = program.getActionModel(rule.getAction().getName());
+    /**
+     * Install a rule into the instance. The future completes when the flow
+     * rule subsystem reports the result of the rule.
+     *
+     * @param rule instance rule
+     * @return future of the install report
+     */
+    public CompletableFuture<InstallReport<InstanceRule>> addRuleAsync(InstanceRule rule) {
+        return addRulesAsync(ImmutableList.of(rule));
+    }
 
-        if (actionModel == null) {
-            throw new RuntimeException("Cannot find the action model");
-        }
+    /**
+     * Install rules into the instance. The future completes when the flow
+     * rule subsystem reports the result of the rules, or exceptionally if a
+     * rule cannot be compiled.
+     *
+     * @param rules instance rules
+     * @return future of the install report
+     */
+    public CompletableFuture<InstallReport<InstanceRule>> addRulesAsync(Collection<InstanceRule> rules) {
+        return updateAsync(ImmutableList.of(), rules);
+    }
 
-        /* Match header */
-        if (stage.isMatchHeader()) {
-            Value headerValue = Value.createValue(stage.getMaxHeaderBitLength());
-            Value maskValue = Value.createValue(stage.getMaxHeaderBitLength());
-
-            rule.getHeaderKeys().forEach(flowKey -> {
-                MatchKeyModel matchKeyModel = stage.getMatchKey(flowKey.getKeyName());
-                if (matchKeyModel != null) {
-                    int offset = matchKeyModel.field().getBitOffset() +
-                            matchKeyModel.field().getHeader().getBitOffset();
-                    headerValue.mod(flowKey.getValue(), offset);
-                    maskValue.mod(matchKeyModel.getMaskValue(), offset);
-                } else {
-                    throw new RuntimeException("Can't find the match key model.");
-                }
-            });
+    /**
+     * Remove a rule from the instance. Only the entries generated for the
+     * rule are removed.
+     *
+     * @param rule instance rule given to addRule
+     */
+    public void delRule(InstanceRule rule) {
+        update(ImmutableList.of(rule), ImmutableList.of(), null);
+    }
 
-            FlowRuleHelper flowRuleHelper = new FlowRuleHelper(this.applicationId,
-                    this.deviceId,
-                    Vp4Interpreter.getTableId(Vp4Interpreter.HEADER_MATCH,
-                            "stage" + stage.getId()));
-            TrafficSelectorHelper trafficSelectorHelper =
-                    new TrafficSelectorHelper(compiler.getBmv2Configuration());
+    /**
+     * Remove rules from the instance, and report the result of each rule.
+     * Rules which are not installed in the instance are reported as failed.
+     *
+     * @param rules    instance rules given to addRule
+     * @param callback result callback, may be null
+     * @return this
+     */
+    public Instance delRules(Collection<InstanceRule> rules, Consumer<InstallReport<InstanceRule>> callback) {
+        update(rules, ImmutableList.of(), callback);
+        return this;
+    }
 
+    /**
+     * Remove a rule from the instance.
+     *
+     * @param rule instance rule given to addRule
+     * @return future of the removal report
+     */
+    public CompletableFuture<InstallReport<InstanceRule>> delRuleAsync(InstanceRule rule) {
+        return updateAsync(ImmutableList.of(rule), ImmutableList.of());
+    }
 
-            trafficSelectorHelper.withProgramId((byte) this.instanceId)
-                    .withStageId(stage.getId())
-                    .withHeaderMatch(headerValue, maskValue);
+    /**
+     * Replace an installed rule with a new one. The entries of the old rule
+     * are removed before the entries of the new rule are installed.
+     *
+     * @param oldRule installed instance rule
+     * @param newRule new instance rule
+     * @return this
+     */
+    public Instance modifyRule(InstanceRule oldRule, InstanceRule newRule) {
+        update(ImmutableList.of(oldRule), ImmutableList.of(newRule), null);
+        return this;
+    }
+
+    /**
+     * Replace an installed rule with a new one.
+     *
+     * @param oldRule installed instance rule
+     * @param newRule new instance rule
+     * @return future of the report of both rules
+     */
+    public CompletableFuture<InstallReport<InstanceRule>> modifyRuleAsync(InstanceRule oldRule,
+                                                                          InstanceRule newRule) {
+        return updateAsync(ImmutableList.of(oldRule), ImmutableList.of(newRule));
+    }
 
-            flowRuleHelper.withSelector(trafficSelectorHelper);
+    /**
+     * Remove the instance from the data plane: its config entries first, so
+     * packets stop entering it, then the entries of its rules and groups. As
+     * for removed rules, the match results and the table entries are freed
+     * once their flow rules are removed.
+     *
+     * @return future of the report of the removed flow rules
+     */
+    public CompletableFuture<InstallReport<FlowRule>> stopAsync() {
+        CompletableFuture<InstallReport<FlowRule>> future = new CompletableFuture<>();
+        lock.writeLock().lock();
+        try {
+            FlowRuleBatch entries = new FlowRuleBatch(BATCH_STAGE_NUM);
+            Set<MatchGroup> split = Sets.newLinkedHashSet();
+            Map<MatchEntry, Stage> retired = Maps.newHashMap();
+            ruleEntries.forEach((rule, stale) -> {
+                addGroup(split, stale);
+                retire(rule, stale, entries, 0, Maps.newHashMap(), retired);
+            });
+            ruleEntries.clear();
+            split.forEach(group -> dissolve(group, entries, 0, retired));
+
+            FlowRuleBatch batch = new FlowRuleBatch(1 + BATCH_STAGE_NUM);
+            buildConfigRules().forEach(flowRule -> batch.remove(0, flowRule));
+            batch.merge(entries, 1);
+            compiler.installRules(batch, report -> {
+                /* The config entries are not counted in the tables. */
+                settle(report, entries, Lists.newArrayList(), retired);
+                future.complete(report);
+            });
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return future;
+    }
 
-            TrafficTreatmentHelper trafficTreatmentHelper =
-                    new TrafficTreatmentHelper(compiler.getBmv2Configuration());
+    /**
+     * Get the number of rules installed in the instance.
+     *
+     * @return number of rules
+     */
+    public int getRuleCount() {
+        return ruleEntries.size();
+    }
 
-            CompoundAction action = new CompoundAction(ACTION_SET_MATCH_RESULT);
-            action.addParameter(Data.createLongData("match_result", matchResult.getHeaderMatchResult()));
+    /**
+     * Remove and install rules with one batch. The first half of the batch
+     * stages removes entries, the second half installs the new ones. A rule
+     * which is installed again replaces its previous entries.
+     *
+     * @param removed  rules to remove
+     * @param added    rules to install
+     * @param callback result callback, may be null
+     */
+    private void update(Collection<InstanceRule> removed,
+                        Collection<InstanceRule> added,
+                        Consumer<InstallReport<InstanceRule>> callback) {
+        /*
+         * Rules are updated concurrently, unless a group may be split, or a
+         * new priority may move entries, which both rewrite other rules.
+         */
+        for (InstanceRule rule : added) {
+            if (rule.getPriority() != InstanceRule.DEFAULT_PRIORITY) {
+                ordered = true;
+                break;
+            }
+        }
+        lock.readLock().lock();
+        if (ordered || hasGroups()) {
+            lock.readLock().unlock();
+            lock.writeLock().lock();
+            try {
+                doUpdate(removed, added, callback);
+            } finally {
+                lock.writeLock().unlock();
+            }
+            return;
+        }
+        try {
+            doUpdate(removed, added, callback);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
 
-            trafficTreatmentHelper.withCoumpoundAction(action);
+    private boolean hasGroups() {
+        for (Stage stage : stageMap.values()) {
+            if (stage.hasGroups()) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-            flowRuleHelper.withTreatment(trafficTreatmentHelper);
+    /**
+     * Put the match entries whose priority moved, or which left the exact
+     * table, in front of a batch, so that they are installed again before
+     * the rules which moved them. The new entry is added before the installed
+     * one is removed, so packets keep hitting one of them. The moves of an
+     * update which failed to compile go with the next batch.
+     *
+     * @param stages stages of the entries
+     * @param batch  batch of the rules
+     * @return batch starting with the moves
+     */
+    private FlowRuleBatch withMoves(Collection<Stage> stages, FlowRuleBatch batch) {
+        FlowRuleBatch moves = new FlowRuleBatch(BATCH_MOVE_STAGE_NUM + batch.getStageNum());
+        List<FlowRule> left = Lists.newArrayList();
+        List<FlowRule> demoted = Lists.newArrayList();
+        stages.forEach(stage -> stage.drainMoves().forEach((installed, moved) -> {
+            moves.add(0, moved);
+            moves.remove(1, installed);
+            if (moved.tableId() != installed.tableId()) {
+                left.add(installed);
+                demoted.add(moved);
+            }
+        }));
+        if (moves.isEmpty()) {
+            return batch;
+        }
 
-            compiler.installRule(flowRuleHelper.build());
+        /* Exact entries sent to the ternary table change of table. */
+        if (!demoted.isEmpty()) {
+            occupancy.release(TableOccupancy.countByTable(left));
+            occupancy.claim(TableOccupancy.countByTable(demoted));
         }
+        return moves.merge(batch, BATCH_MOVE_STAGE_NUM);
+    }
 
-        /* Match metadata */
-        if (stage.isMatchMetadata()) {
-            Value headerValue = Value.createValue(stage.getMaxMetadataBitLength());
-            Value maskValue = Value.createValue(stage.getMaxMetadataBitLength());
-
-            rule.getMetadataKeys().forEach(flowKey -> {
-                MatchKeyModel matchKeyModel = stage.getMatchKey(flowKey.getKeyName());
-                if (matchKeyModel != null) {
-                    int offset = matchKeyModel.field().getBitOffset() + matchKeyModel.field().getHeader().getBitOffset();
-                    headerValue.mod(flowKey.getValue(), offset);
-                    maskValue.mod(matchKeyModel.getMaskValue(), offset);
-                } else {
-                    throw new RuntimeException("Can't find the match key model.");
+    private void doUpdate(Collection<InstanceRule> removed,
+                          Collection<InstanceRule> added,
+                          Consumer<InstallReport<InstanceRule>> callback) {
+        /* The priorities of a group are not moved, so a new priority in its stage splits it. */
+        Set<MatchGroup> split = Sets.newLinkedHashSet();
+        added.forEach(rule -> {
+            Stage stage = stageMap.get(rule.getStageId());
+            if (stage != null && stage.hasGroups() && !stage.hasRank(rule.getPriority())) {
+                split.addAll(stage.getGroups());
+            }
+        });
+
+        /* Compile first, so a wrong rule leaves the index untouched. */
+        Map<InstanceRule, RuleEntries> compiled = Maps.newLinkedHashMap();
+        try {
+            added.forEach(rule -> {
+                RuleEntries entries = compileRule(rule);
+                RuleEntries previous = compiled.put(rule, entries);
+                if (previous != null) {
+                    previous.discard();
                 }
             });
+        } catch (RuntimeException e) {
+            compiled.values().forEach(RuleEntries::discard);
+            throw e;
+        }
 
-            FlowRuleHelper flowRuleHelper = new FlowRuleHelper(this.applicationId,
-                    this.deviceId,
-                    Vp4Interpreter.getTableId(Vp4Interpreter.META_MATCH,
-                            "stage" + stage.getId()));
-            TrafficSelectorHelper trafficSelectorHelper =
-                    new TrafficSelectorHelper(compiler.getBmv2Configuration());
-
-            trafficSelectorHelper.withProgramId((byte) this.instanceId)
-                    .withStageId(stage.getId())
-                    .withHeaderMatch(headerValue, maskValue);
+        /* Groups whose rules are updated, or whose keys come back, are split into plain rules. */
+        removed.forEach(rule -> addGroup(split, ruleEntries.get(rule)));
+        compiled.forEach((rule, entries) -> {
+            addGroup(split, ruleEntries.get(rule));
+            entries.getMatchEntries().forEach(entry -> {
+                MatchGroup group = entries.getStage().getGroup(entry.getSelector());
+                if (group != null) {
+                    split.add(group);
+                }
+            });
+        });
+        Map<InstanceRule, RuleEntries> ungrouped = Maps.newLinkedHashMap();
+        try {
+            split.forEach(group -> group.getMembers().forEach(rule -> {
+                if (!removed.contains(rule) && !compiled.containsKey(rule)) {
+                    ungrouped.put(rule, compileRule(rule, group.getStage(), stageMap, placement, program));
+                }
+            }));
+        } catch (RuntimeException e) {
+            compiled.values().forEach(RuleEntries::discard);
+            ungrouped.values().forEach(RuleEntries::discard);
+            throw e;
+        }
 
-            flowRuleHelper.withSelector(trafficSelectorHelper);
+        /* Reserve the new entries, so a full table rejects the rules before any of them is sent. */
+        List<RuleEntries> reserved = Lists.newArrayList(compiled.values());
+        reserved.addAll(ungrouped.values());
+        List<FlowRule> additions = reserve(reserved);
+
+        FlowRuleBatch batch = new FlowRuleBatch(3 * BATCH_STAGE_NUM);
+        Map<FlowRule, InstanceRule> owners = Maps.newHashMap();
+        List<InstanceRule> rules = Lists.newArrayList();
+        List<InstanceRule> rejected = Lists.newArrayList();
+        Map<MatchEntry, Stage> retired = Maps.newHashMap();
+
+        removed.forEach(rule -> {
+            RuleEntries stale = ruleEntries.remove(rule);
+            if (stale == null) {
+                rejected.add(rule);
+                return;
+            }
+            retire(rule, stale, batch, 0, owners, retired);
+            rules.add(rule);
+        });
 
-            TrafficTreatmentHelper treatmentHelper =
-                    new TrafficTreatmentHelper(configuration);
+        compiled.forEach((rule, entries) -> {
+            RuleEntries stale = ruleEntries.put(rule, entries);
+            if (stale != null) {
+                retire(rule, stale, batch, 0, owners, retired);
+            }
+            batch.merge(entries.getBatch(), BATCH_STAGE_NUM);
+            entries.getBatch().rules().forEach(flowRule -> owners.put(flowRule, rule));
+            entries.getCreatedEntries().forEach(entry -> {
+                batch.add(BATCH_STAGE_NUM + BATCH_MATCH_STAGE, entry.getFlowRule());
+                owners.put(entry.getFlowRule(), rule);
+            });
+            rules.add(rule);
+        });
 
-            CompoundAction action = new CompoundAction(ACTION_SET_MATCH_RESULT);
-            action.addParameter(Data.createLongData("match_result", matchResult.getMetadataMatchResult()));
-            treatmentHelper.withCoumpoundAction(action);
+        /* The split rules are not reported, the groups are removed once they are installed again. */
+        ungrouped.forEach((rule, entries) -> {
+            retire(rule, ruleEntries.put(rule, entries), batch, 0, Maps.newHashMap(), retired);
+            batch.merge(entries.getBatch(), BATCH_STAGE_NUM);
+            entries.getCreatedEntries().forEach(entry ->
+                    batch.add(BATCH_STAGE_NUM + BATCH_MATCH_STAGE, entry.getFlowRule()));
+        });
+        if (!split.isEmpty()) {
+            split.forEach(group -> dissolve(group, batch, 2 * BATCH_STAGE_NUM, retired));
+            dropReplaced(batch, additions);
+        }
 
-            flowRuleHelper.withTreatment(treatmentHelper);
+        compiler.installRules(withMoves(stageMap.values(), batch), report -> {
+            settle(report, batch, additions, retired);
+            if (callback != null) {
+                callback.accept(ruleReport(report, owners, rules, rejected));
+            }
+        });
+    }
 
-            compiler.installRule(flowRuleHelper.build());
+    /**
+     * Reserve the entries of compiled rules in the tables of the device. The
+     * rules are discarded if a table is full.
+     *
+     * @param compiled entries of the compiled rules
+     * @return reserved flow rules
+     */
+    private List<FlowRule> reserve(Collection<RuleEntries> compiled) {
+        List<FlowRule> additions = Lists.newArrayList();
+        compiled.forEach(entries -> {
+            additions.addAll(entries.getBatch().rules());
+            entries.getCreatedEntries().forEach(entry -> additions.add(entry.getFlowRule()));
+        });
+        try {
+            occupancy.reserve(TableOccupancy.countByTable(additions));
+        } catch (RuntimeException e) {
+            compiled.forEach(RuleEntries::discard);
+            throw e;
         }
+        return additions;
+    }
 
-        if (stage.isMatchStdMetadata()) {
-            FlowRuleHelper flowRuleHelper = new FlowRuleHelper(this.applicationId,
-                    this.deviceId,
-                    Vp4Interpreter.getTableId(Vp4Interpreter.STD_META_MATCH,
-                            "stage" + stage.getId()));
-            TrafficSelectorHelper selectorHelper = new TrafficSelectorHelper(configuration);
-
-            int matchBitMap = 0;
-            Short ingressPort = rule.getOrDefault(INGRESS_PORT_KEY, (short) -1);
+    /**
+     * Free the match results and the table entries once the flow rule
+     * subsystem reports the result of a batch.
+     *
+     * @param report    result of the batch
+     * @param batch     installed batch
+     * @param additions flow rules reserved for the batch
+     * @param retired   match entries removed by the batch
+     */
+    private void settle(InstallReport<FlowRule> report, FlowRuleBatch batch, List<FlowRule> additions,
+                        Map<MatchEntry, Stage> retired) {
+        /*
+         * A match result is only reused once the entry setting it is
+         * removed, otherwise a new rule could hit the stale entry.
+         */
+        retired.forEach((entry, stage) -> {
+            if (!report.failed().contains(entry.getFlowRule())) {
+                stage.freeMatchEntry(entry);
+            }
+        });
 
-            if (ingressPort >= 0) {
-                matchBitMap |= 1;
+        /* Entries are freed once removed, or if they failed to be installed. */
+        List<FlowRule> released = Lists.newArrayList();
+        additions.forEach(flowRule -> {
+            if (report.failed().contains(flowRule)) {
+                released.add(flowRule);
             }
+        });
+        batch.rules(FlowRuleOperation.Type.REMOVE).forEach(flowRule -> {
+            if (!report.failed().contains(flowRule)) {
+                released.add(flowRule);
+            }
+        });
+        occupancy.release(TableOccupancy.countByTable(released));
+    }
 
-            Integer packetLength = rule.getOrDefault(PACKET_LENGTH_KEY, -1);
+    /**
+     * Build the report of the rules of a batch. A rule fails if one of its
+     * flow rules fails.
+     *
+     * @param report   result of the batch
+     * @param owners   owner of each flow rule of the batch
+     * @param rules    rules of the batch
+     * @param rejected rules which failed before the batch
+     * @return report of the rules
+     */
+    private static InstallReport<InstanceRule> ruleReport(InstallReport<FlowRule> report,
+                                                          Map<FlowRule, InstanceRule> owners,
+                                                          List<InstanceRule> rules,
+                                                          List<InstanceRule> rejected) {
+        Set<InstanceRule> failed = Sets.newHashSet(rejected);
+        report.failed().forEach(flowRule -> {
+            InstanceRule owner = owners.get(flowRule);
+            if (owner != null) {
+                failed.add(owner);
+            }
+        });
+        List<InstanceRule> succeeded = Lists.newArrayList();
+        rules.forEach(rule -> {
+            if (!failed.contains(rule)) {
+                succeeded.add(rule);
+            }
+        });
+        return new InstallReport<>(succeeded, failed);
+    }
 
-            matchBitMap <<= 1;
-            if (packetLength >= 0) {
-                matchBitMap |= 1;
+    /**
+     * Remove the entries of an installed rule. The shared match entries are
+     * only removed with the last rule referencing them.
+     *
+     * @param rule        instance rule
+     * @param stale       entries of the rule
+     * @param batch       batch receiving the removals
+     * @param stageOffset first batch stage of the removals
+     * @param owners      owner of each flow rule of the batch
+     * @param retired     receives the match entries to free once removed
+     */
+    private void retire(InstanceRule rule, RuleEntries stale, FlowRuleBatch batch, int stageOffset,
+                        Map<FlowRule, InstanceRule> owners, Map<MatchEntry, Stage> retired) {
+        batch.mergeRemoval(stale.getBatch(), stageOffset);
+        stale.getBatch().rules().forEach(flowRule -> owners.put(flowRule, rule));
+        stale.getMatchEntries().forEach(entry -> {
+            if (stale.getStage().releaseMatchEntry(entry)) {
+                batch.remove(stageOffset + BATCH_MATCH_STAGE, entry.getFlowRule());
+                owners.put(entry.getFlowRule(), rule);
+                retired.put(entry, stale.getStage());
             }
+        });
+    }
 
-            Short egressSpec = rule.getOrDefault(EGRESS_SPEC_KEY, (short) -1);
+    private static void addGroup(Set<MatchGroup> groups, RuleEntries entries) {
+        if (entries != null && entries.getGroup() != null) {
+            groups.add(entries.getGroup());
+        }
+    }
 
+    /**
+     * Remove the entries of a group whose rules are installed again as plain
+     * rules, or removed.
+     *
+     * @param group       match group
+     * @param batch       batch receiving the removals
+     * @param stageOffset first batch stage of the removals
+     * @param retired     receives the match result of the group to free once removed
+     */
+    private void dissolve(MatchGroup group, FlowRuleBatch batch, int stageOffset, Map<MatchEntry, Stage> retired) {
+        if (!group.getStage().removeGroup(group)) {
+            return;
+        }
+        group.getStage().releasePriority(group.getEntry().getRegion(), group.getRank());
+        batch.mergeRemoval(group.getBatch(), stageOffset);
+        group.getMatchRules().forEach(flowRule -> batch.remove(stageOffset + BATCH_MATCH_STAGE, flowRule));
+        retired.put(group.getEntry(), group.getStage());
+    }
 
-            matchBitMap <<= 1;
-            if (egressSpec >= 0) {
-                matchBitMap |= 1;
+    /**
+     * Drop the removals of the flow rules the batch adds again. An added flow
+     * rule with the selector of an installed one replaces it, so it is
+     * neither removed nor counted twice.
+     *
+     * @param batch     flow rule batch
+     * @param additions flow rules reserved for the batch, the replacing ones are dropped
+     */
+    private void dropReplaced(FlowRuleBatch batch, List<FlowRule> additions) {
+        Set<FlowRule> removals = Sets.newHashSet(batch.rules(FlowRuleOperation.Type.REMOVE));
+        List<FlowRule> replacing = Lists.newArrayList();
+        additions.forEach(flowRule -> {
+            if (removals.contains(flowRule)) {
+                replacing.add(flowRule);
             }
+        });
+        additions.removeAll(replacing);
+        occupancy.release(TableOccupancy.countByTable(replacing));
+        batch.dropOverriddenRemovals();
+    }
 
-            Short egressPort = rule.getOrDefault(EGRESS_PORT_KEY, (short) -1);
+    /**
+     * Replace the program of the instance without stopping it. The tables
+     * are compared with the running program: the rules of the tables which
+     * are unchanged, stay on their VP4 stage and keep their next stage are
+     * left alone. The other rules are compiled against the new program, and
+     * their entries are installed before the old ones are removed, actions
+     * first and match entries last, so packets keep hitting complete entries
+     * during the swap. Rules keep the table id they were created with, their
+     * table is found by name in the new program.
+     *
+     * @param newProgram new program model
+     * @return future of the report of the rules compiled again, the rules
+     * whose table is removed or which cannot be compiled are reported as
+     * failed and dropped. Completed exceptionally if a table is full.
+     */
+    public CompletableFuture<InstallReport<InstanceRule>> swapProgram(ProgramModel newProgram) {
+        CompletableFuture<InstallReport<InstanceRule>> future = new CompletableFuture<>();
+        lock.writeLock().lock();
+        try {
+            swap(newProgram, future::complete);
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return future;
+    }
 
+    private void swap(ProgramModel newProgram, Consumer<InstallReport<InstanceRule>> callback) {
+        ProgramDiff diff = ProgramDiff.between(program, newProgram);
+        StagePlacement newPlacement = compiler.getPlacement(newProgram);
+        int[] newPassIds = Arrays.copyOf(passIds, Math.max(passIds.length, newPlacement.getPassCount()));
+        for (int pass = passIds.length; pass < newPassIds.length; pass++) {
+            newPassIds[pass] = compiler.newInstanceId();
+        }
 
-            matchBitMap <<= 1;
-            if (egressPort >= 0) {
-                matchBitMap |= 1;
+        /* Unchanged tables which stay on their VP4 stage keep their stage, and their entries. */
+        DualKeyMap<Stage> newStages = new DualKeyMap<>();
+        Stage newInitialStage = null;
+        for (TableModel table : newPlacement.getOrder()) {
+            byte stageId = (byte) newPlacement.getStage(table.getName());
+            int programId = newPassIds[newPlacement.getPass(table.getName())];
+            Stage stage = stageMap.get(table.getName());
+            if (stage == null || !diff.isUnchanged(table.getName())
+                    || stage.getId() != stageId || stage.getProgramId() != (byte) programId) {
+                stage = new Stage(stageId, programId, table, compiler.getMatchResultAllocator(deviceId, stageId));
+            }
+            newStages.put(table.getName(), table.getId(), stage);
+            if (newInitialStage == null) {
+                newInitialStage = stage;
             }
+        }
 
-            Integer egressInstance = rule.getOrDefault(EGRESS_INSTANCE_KEY, -1);
+        /* A kept stage still rewrites its match results if one of its next stages moved. */
+        Set<Stage> rewired = Sets.newHashSet();
+        newStages.values().forEach(stage -> {
+            if (stage != stageMap.get(stage.getName())) {
+                return;
+            }
+            for (String next : stage.getNextStages()) {
+                if (nextStage(next, newStages, newPlacement) != nextStage(next, stageMap, placement)) {
+                    rewired.add(stage);
+                    return;
+                }
+            }
+        });
 
-            matchBitMap <<= 1;
-            if (egressInstance >= 0) {
-                matchBitMap |= 1;
+        Map<InstanceRule, RuleEntries> compiled = Maps.newLinkedHashMap();
+        List<InstanceRule> dropped = Lists.newArrayList();
+        ruleEntries.forEach((rule, entries) -> {
+            Stage stage = newStages.get(entries.getStage().getName());
+            if (stage == entries.getStage() && !rewired.contains(stage)) {
+                return;
+            }
+            if (stage == null) {
+                dropped.add(rule);
+                return;
+            }
+            try {
+                compiled.put(rule, compileRule(rule, stage, newStages, newPlacement, newProgram));
+            } catch (RuntimeException e) {
+                dropped.add(rule);
             }
+        });
+        List<FlowRule> additions = reserve(compiled.values());
+
+        /* Nothing can fail from here, the instance switches to the new program. */
+        List<FlowRule> oldConfigRules = buildConfigRules();
+        this.program = newProgram;
+        this.placement = newPlacement;
+        this.passIds = newPassIds;
+        this.stageMap = newStages;
+        this.initialStage = newInitialStage;
+        List<FlowRule> newConfigRules = buildConfigRules();
+
+        /* Make before break: actions, match results and match entries, then the removals. */
+        FlowRuleBatch batch = new FlowRuleBatch(2 * BATCH_STAGE_NUM);
+        Map<FlowRule, InstanceRule> owners = Maps.newHashMap();
+        Map<MatchEntry, Stage> retired = Maps.newHashMap();
+        Set<MatchGroup> split = Sets.newLinkedHashSet();
+        compiled.forEach((rule, entries) -> {
+            entries.getBatch().rules(BATCH_ACTION_STAGE).forEach(flowRule -> batch.add(0, flowRule));
+            entries.getBatch().rules(BATCH_MATCH_RESULT_STAGE).forEach(flowRule -> batch.add(1, flowRule));
+            entries.getBatch().rules().forEach(flowRule -> owners.put(flowRule, rule));
+            entries.getCreatedEntries().forEach(entry -> {
+                batch.add(2, entry.getFlowRule());
+                owners.put(entry.getFlowRule(), rule);
+            });
+            RuleEntries stale = ruleEntries.put(rule, entries);
+            addGroup(split, stale);
+            retire(rule, stale, batch, BATCH_STAGE_NUM, owners, retired);
+        });
+        dropped.forEach(rule -> {
+            RuleEntries stale = ruleEntries.remove(rule);
+            addGroup(split, stale);
+            retire(rule, stale, batch, BATCH_STAGE_NUM, owners, retired);
+        });
+        split.forEach(group -> dissolve(group, batch, BATCH_STAGE_NUM, retired));
+        newConfigRules.forEach(flowRule -> batch.add(2, flowRule));
+        oldConfigRules.forEach(flowRule -> batch.remove(BATCH_STAGE_NUM + BATCH_MATCH_STAGE, flowRule));
+        dropReplaced(batch, additions);
+
+        List<InstanceRule> rules = Lists.newArrayList(compiled.keySet());
+        compiler.installRules(withMoves(newStages.values(), batch), report -> {
+            settle(report, batch, additions, retired);
+            callback.accept(ruleReport(report, owners, rules, dropped));
+        });
+    }
+
+    /**
+     * Minimise the ternary match entries of a stage. The rules of the stage
+     * which only differ by their header keys, or by their metadata keys if
+     * the stage does not match the header, are grouped: their keys are
+     * minimised into fewer match entries, which share one match result, one
+     * match result entry and one set of actions. Packets get the same actions
+     * as before. A group is split back into plain rules when one of its rules
+     * is updated, or when a new rule comes with one of its keys.
+     *
+     * @param tableName table of the stage
+     * @return future of the report of the grouped rules, completed
+     * exceptionally if the tables cannot hold the minimised entries
+     */
+    public CompletableFuture<InstallReport<InstanceRule>> minimize(String tableName) {
+        CompletableFuture<InstallReport<InstanceRule>> future = new CompletableFuture<>();
+        lock.writeLock().lock();
+        try {
+            doMinimize(tableName, future::complete);
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return future;
+    }
 
-            Integer instanceType = rule.getOrDefault(INSTANCE_TYPE_KEY, -1);
+    private void doMinimize(String tableName, Consumer<InstallReport<InstanceRule>> callback) {
+        Stage stage = stageMap.get(tableName);
+        if (stage == null) {
+            throw new RuntimeException("Cannot find the stage of the table " + tableName);
+        }
+        Region region = stage.isMatchHeader() ? Region.HEADER
+                : stage.isMatchMetadata() ? Region.METADATA : null;
+        if (region == null) {
+            callback.accept(new InstallReport<>(ImmutableList.of(), ImmutableList.of()));
+            return;
+        }
 
-            matchBitMap <<= 1;
-            if (instanceType >= 0) {
-                matchBitMap |= 1;
+        /* Rules with the same signature only differ by their entry of the region. */
+        Map<String, List<InstanceRule>> signatures = Maps.newLinkedHashMap();
+        Map<MatchEntry, String> entrySignatures = Maps.newHashMap();
+        Set<MatchEntry> shared = Sets.newHashSet();
+        ruleEntries.forEach((rule, entries) -> {
+            if (entries.getStage() != stage || entries.getGroup() != null) {
+                return;
             }
+            String signature = signature(rule, entries, region);
+            signatures.computeIfAbsent(signature, key -> Lists.newArrayList()).add(rule);
+            String previous = entrySignatures.put(regionEntry(entries, region), signature);
+            if (previous != null && !previous.equals(signature)) {
+                shared.add(regionEntry(entries, region));
+            }
+        });
+
+        List<MatchGroup> groups = Lists.newArrayList();
+        Map<InstanceRule, RuleEntries> grouped = Maps.newLinkedHashMap();
+        try {
+            signatures.values().forEach(rules -> {
+                MatchGroup group = buildGroup(stage, region, rules, shared);
+                if (group == null) {
+                    return;
+                }
+                groups.add(group);
+                group.getMembers().forEach(rule -> {
+                    List<MatchEntry> kept = Lists.newArrayList();
+                    ruleEntries.get(rule).getMatchEntries().forEach(entry -> {
+                        if (entry.getRegion() != region) {
+                            stage.retainMatchEntry(entry);
+                            kept.add(entry);
+                        }
+                    });
+                    grouped.put(rule, new RuleEntries(stage, group.getMatchResult(), kept, ImmutableList.of(),
+                            new FlowRuleBatch(BATCH_STAGE_NUM), group));
+                });
+            });
+        } catch (RuntimeException e) {
+            grouped.values().forEach(RuleEntries::discard);
+            groups.forEach(group -> {
+                stage.releasePriority(region, group.getRank());
+                stage.freeMatchEntry(group.getEntry());
+            });
+            throw e;
+        }
 
-            Integer cloneSpec = rule.getOrDefault(CLONE_SPEC_KEY, -1);
+        List<FlowRule> additions = Lists.newArrayList();
+        groups.forEach(group -> {
+            additions.addAll(group.getMatchRules());
+            additions.addAll(group.getBatch().rules());
+        });
+        try {
+            occupancy.reserve(TableOccupancy.countByTable(additions));
+        } catch (RuntimeException e) {
+            grouped.values().forEach(RuleEntries::discard);
+            groups.forEach(group -> {
+                stage.releasePriority(region, group.getRank());
+                stage.freeMatchEntry(group.getEntry());
+            });
+            throw e;
+        }
 
-            matchBitMap <<= 1;
-            if (cloneSpec >= 0) {
-                matchBitMap |= 1;
+        /* Make before break, as a program swap does. */
+        FlowRuleBatch batch = new FlowRuleBatch(2 * BATCH_STAGE_NUM);
+        Map<FlowRule, InstanceRule> owners = Maps.newHashMap();
+        Map<MatchEntry, Stage> retired = Maps.newHashMap();
+        groups.forEach(group -> {
+            stage.addGroup(group);
+            group.getBatch().rules(BATCH_ACTION_STAGE).forEach(flowRule -> batch.add(0, flowRule));
+            group.getBatch().rules(BATCH_MATCH_RESULT_STAGE).forEach(flowRule -> batch.add(1, flowRule));
+            group.getMatchRules().forEach(flowRule -> batch.add(2, flowRule));
+        });
+        grouped.forEach((rule, entries) ->
+                retire(rule, ruleEntries.put(rule, entries), batch, BATCH_STAGE_NUM, owners, retired));
+        dropReplaced(batch, additions);
+
+        List<InstanceRule> rules = Lists.newArrayList(grouped.keySet());
+        compiler.installRules(withMoves(ImmutableList.of(stage), batch), report -> {
+            settle(report, batch, additions, retired);
+
+            /* A group fails as a whole if one of its entries fails. */
+            List<InstanceRule> rejected = Lists.newArrayList();
+            groups.forEach(group -> {
+                List<FlowRule> flowRules = Lists.newArrayList(group.getMatchRules());
+                flowRules.addAll(group.getBatch().rules());
+                for (FlowRule flowRule : flowRules) {
+                    if (report.failed().contains(flowRule)) {
+                        rejected.addAll(group.getMembers());
+                        break;
+                    }
+                }
+            });
+            callback.accept(ruleReport(report, owners, rules, rejected));
+        });
+    }
+
+    /**
+     * Build the group of rules with the same signature, if their keys can be
+     * minimised. Entries of the region shared with rules of another signature
+     * are left alone.
+     *
+     * @param stage  stage of the rules
+     * @param region minimised region
+     * @param rules  rules with the same signature
+     * @param shared entries of the region shared with other signatures
+     * @return match group, or null if the keys cannot be minimised
+     */
+    private MatchGroup buildGroup(Stage stage, Region region, List<InstanceRule> rules, Set<MatchEntry> shared) {
+        KeyLayout layout = stage.getLayout();
+        List<KeyLayout.Slot> slots = region == Region.HEADER ? layout.getHeaderSlots() : layout.getMetadataSlots();
+        BitVector fullMask = region == Region.HEADER ? layout.getHeaderMask() : layout.getMetadataMask();
+
+        Map<MatchEntry, TernaryMinimizer.Key> keys = Maps.newLinkedHashMap();
+        List<InstanceRule> members = Lists.newArrayList();
+        rules.forEach(rule -> {
+            MatchEntry entry = regionEntry(ruleEntries.get(rule), region);
+            if (shared.contains(entry)) {
+                return;
             }
+            members.add(rule);
+            if (!keys.containsKey(entry)) {
+                BitVector value = new BitVector(fullMask.getBitWidth());
+                BitVector mask = buildKey(slots, rule.getValues(layout), value, fullMask);
+                keys.put(entry, new TernaryMinimizer.Key(value, mask));
+            }
+        });
+        if (keys.size() < 2) {
+            return null;
+        }
+        List<TernaryMinimizer.Key> minimized = TernaryMinimizer.minimize(keys.values());
+        if (minimized.size() >= keys.size()) {
+            return null;
+        }
 
-            selectorHelper.withProgramId(getInstanceId())
-                    .withStageId(stageId)
-                    .withStandardMetadata(ingressPort,
-                            packetLength,
-                            egressSpec,
-                            egressPort,
-                            egressInstance,
-                            instanceType,
-                            cloneSpec,
-                            matchBitMap);
-            flowRuleHelper.withSelector(selectorHelper);
+        InstanceRule first = members.get(0);
+        int priority = stage.acquirePriority(region, first.getPriority());
+        short id;
+        try {
+            id = stage.allocateMatchResult(region);
+        } catch (RuntimeException e) {
+            stage.releasePriority(region, first.getPriority());
+            throw e;
+        }
+        try {
+            long result = region.toMatchResult(id);
+            List<Bmv2ExtensionSelector> selectors = Lists.newArrayList();
+            List<FlowRule> matchRules = Lists.newArrayList();
+            for (TernaryMinimizer.Key key : minimized) {
+                Bmv2ExtensionSelector selector;
+                if (region == Region.HEADER) {
+                    selector = headerSelector(stage, key.getValue(), key.getMask(), false);
+                    matchRules.add(buildMatchRule(headerTable(stage, false), stage, selector, result, priority));
+                } else {
+                    selector = templates.userMetadataMatch(stage.getProgramId(), stage.getId(),
+                            key.getValue(), key.getMask());
+                    matchRules.add(buildMatchRule(Vp4Interpreter.META_MATCH, stage, selector, result, priority));
+                }
+                selectors.add(selector);
+            }
+
+            MatchResult previous = ruleEntries.get(first).getMatchResult();
+            MatchResult matchResult = region == Region.HEADER
+                    ? new MatchResult(previous.getStdMetadata(), previous.getMetadata(), id)
+                    : new MatchResult(previous.getStdMetadata(), id, previous.getHeader());
+            FlowRuleBatch batch = new FlowRuleBatch(BATCH_STAGE_NUM);
+            String actionName = first.getAction().getName();
+            compileEntries(first, stage, nextStage(stage.getNextStage(actionName), stageMap, placement),
+                    program.getActionModel(actionName), matchResult, batch);
+
+            List<Bmv2ExtensionSelector> memberKeys = Lists.newArrayList();
+            keys.keySet().forEach(entry -> memberKeys.add(entry.getSelector()));
+            return new MatchGroup(stage, new MatchEntry(region, selectors.get(0), id, matchRules.get(0)),
+                    first.getPriority(), matchRules, matchResult, batch, members, memberKeys);
+        } catch (RuntimeException e) {
+            stage.freeMatchResult(region, id);
+            stage.releasePriority(region, first.getPriority());
+            throw e;
+        }
+    }
+
+    /**
+     * Get what the entries of a rule depend on, except its key in a region:
+     * its priority, its action, the parameters of the action and the match
+     * results of the other regions.
+     *
+     * @param rule    instance rule
+     * @param entries entries of the rule
+     * @param region  region left out
+     * @return signature of the rule
+     */
+    private static String signature(InstanceRule rule, RuleEntries entries, Region region) {
+        StringBuilder signature = new StringBuilder(rule.getAction().getName());
+        signature.append(" priority=").append(rule.getPriority());
+        rule.getAction().getParameters().forEach(data -> {
+            signature.append(' ').append(data.getName()).append('=');
+            if (data.getValue() != null) {
+                signature.append(BaseEncoding.base16().encode(data.getValue().getValue()));
+            }
+        });
+        entries.getMatchEntries().forEach(entry -> {
+            if (entry.getRegion() != region) {
+                signature.append(' ').append(entry.getRegion()).append('=').append(entry.getId());
+            }
+        });
+        return signature.toString();
+    }
+
+    private static MatchEntry regionEntry(RuleEntries entries, Region region) {
+        for (MatchEntry entry : entries.getMatchEntries()) {
+            if (entry.getRegion() == region) {
+                return entry;
+            }
+        }
+        throw new RuntimeException("The rule does not match the region " + region);
+    }
+
+    /**
+     * Remove and install rules with one batch.
+     *
+     * @param removed rules to remove
+     * @param added   rules to install
+     * @return future of the report, completed exceptionally if a rule cannot be compiled
+     */
+    private CompletableFuture<InstallReport<InstanceRule>> updateAsync(Collection<InstanceRule> removed,
+                                                                       Collection<InstanceRule> added) {
+        CompletableFuture<InstallReport<InstanceRule>> future = new CompletableFuture<>();
+        try {
+            update(removed, added, future::complete);
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
 
+    /**
+     * Compile a rule into the entries of the VP4 tables.
+     *
+     * @param rule instance rule
+     * @return entries of the instance rule
+     */
+    private RuleEntries compileRule(InstanceRule rule) {
+        Stage stage = stageMap.get(rule.getStageId());
 
-            TrafficTreatmentHelper treatmentHelper = new TrafficTreatmentHelper(configuration);
+        if (stage == null) {
+            throw new RuntimeException("Cannot find the stage.");
+        }
 
-            CompoundAction action = new CompoundAction(ACTION_SET_MATCH_RESULT);
-            action.addParameter(Data.createLongData("match_result", matchResult.getStdMetadataMatchResult()));
-            treatmentHelper.withCoumpoundAction(action);
+        return compileRule(rule, stage, stageMap, placement, program);
+    }
 
-            treatmentHelper.withCoumpoundAction(action);
+    /**
+     * Get the stage packets go to after a component of the control flow.
+     *
+     * @param component table or condition, null at the end of the pipeline
+     * @param stages    stages of the program
+     * @param placement placement of the program
+     * @return next stage, or null at the end of the pipeline
+     */
+    private static Stage nextStage(String component, DualKeyMap<Stage> stages, StagePlacement placement) {
+        String next = placement.getNextTable(component);
+        return next == null ? null : stages.get(next);
+    }
 
-            flowRuleHelper.withTreatment(treatmentHelper);
+    /**
+     * Compile a rule into the entries of a stage.
+     *
+     * @param rule      instance rule
+     * @param stage     stage of the rule
+     * @param stages    stages of the program
+     * @param placement placement of the program
+     * @param program   program model
+     * @return entries of the instance rule
+     */
+    private RuleEntries compileRule(InstanceRule rule, Stage stage, DualKeyMap<Stage> stages,
+                                    StagePlacement placement, ProgramModel program) {
+        FlowRuleBatch batch = new FlowRuleBatch(BATCH_STAGE_NUM);
+        Stage nextStage = nextStage(stage.getNextStage(rule.getAction().getName()), stages, placement);
+        ActionModel actionModel = program.getActionModel(rule.getAction().getName());
 
-            compiler.installRule(flowRuleHelper.build());
+        if (actionModel == null) {
+            throw new RuntimeException("Cannot find the action model");
         }
 
-        /* Match result table. */
+        List<MatchEntry> matchEntries = Lists.newArrayList();
+        List<MatchEntry> createdEntries = Lists.newArrayList();
         try {
-            TrafficSelectorHelper selectorHelper = new TrafficSelectorHelper(configuration);
-            selectorHelper.withMatchResult(matchResult);
+            MatchResult matchResult = acquireMatchEntries(rule, stage, matchEntries, createdEntries);
+            compileEntries(rule, stage, nextStage, actionModel, matchResult, batch);
+            return new RuleEntries(stage, matchResult, matchEntries, createdEntries, batch);
+        } catch (RuntimeException e) {
+            RuleEntries.discard(stage, matchEntries);
+            throw e;
+        }
+    }
 
-            TrafficTreatmentHelper treatmentHelper = new TrafficTreatmentHelper(configuration);
-            CompoundAction action = new CompoundAction(ACTION_SET_STAGE_AND_BITMAP);
-            action.addParameter(Data.createLongData("action_bitmap", actionModel.getActionBitMap()))
-                    .addParameter(Data.createByteData("macth_bitmap", nextStage.getMatchBitmap()))
-                    .addParameter(Data.createByteData("next_satge", nextStage.getId()))
-                    .addParameter(Data.createByteData("next_prog", getInstanceId()));
-            treatmentHelper.withCoumpoundAction(action);
+    /**
+     * Acquire the header, metadata and standard metadata match entries of a
+     * rule. Rules with the same keys in a region share the entry of the region.
+     * Entries are ranked by the priority of their rules. A key setting every
+     * bit of its region goes to the exact table while no ternary entry of the
+     * region outranks it.
+     *
+     * @param rule           instance rule
+     * @param stage          stage of the rule
+     * @param matchEntries   receives the entries referenced by the rule
+     * @param createdEntries receives the entries created for the rule
+     * @return match result of the rule
+     */
+    private MatchResult acquireMatchEntries(InstanceRule rule, Stage stage,
+                                            List<MatchEntry> matchEntries,
+                                            List<MatchEntry> createdEntries) {
+        short headerId = 0;
+        short metadataId = 0;
+        short stdMetadataId = 0;
+        KeyLayout layout = stage.getLayout();
+        Value[] values = rule.getValues(layout);
 
-            FlowRuleHelper ruleHelper = new FlowRuleHelper(this.applicationId, this.deviceId,
-                    Vp4Interpreter.getTableId(TABLE_MATCH_RESULT, "stage" + stage.getId()));
+        /* Match header */
+        if (stage.isMatchHeader()) {
+            BitVector headerValue = new BitVector(layout.getHeaderBitLength());
+            BitVector maskValue = buildKey(layout.getHeaderSlots(), values, headerValue, layout.getHeaderMask());
+
+            /* A key setting every header bit of the stage may go to the exact table, looked up first. */
+            boolean exact = maskValue == layout.getHeaderMask() && templates.hasExactMatch();
+            Bmv2ExtensionSelector selector = headerSelector(stage, headerValue, maskValue, false);
+            String table = headerTable(stage, false);
+            Function<Long, FlowRule> exactFactory = exact ? result -> buildMatchRule(headerTable(stage, true),
+                    stage, headerSelector(stage, headerValue, maskValue, true), result) : null;
+
+            MatchEntry entry = stage.acquireMatchEntry(Region.HEADER, selector, rule.getPriority(),
+                    (result, priority) -> buildMatchRule(table, stage, selector, result, priority),
+                    exactFactory, createdEntries);
+            matchEntries.add(entry);
+            headerId = entry.getId();
+        }
 
-            compiler.installRule(ruleHelper.build());
-        } finally {
-            // TODO
+        /* Match metadata */
+        if (stage.isMatchMetadata()) {
+            BitVector metadataValue = new BitVector(layout.getMetadataBitLength());
+            BitVector maskValue = buildKey(layout.getMetadataSlots(), values, metadataValue,
+                    layout.getMetadataMask());
+
+            boolean exact = maskValue == layout.getMetadataMask() && templates.hasExactMatch();
+            Bmv2ExtensionSelector selector = templates.userMetadataMatch(stage.getProgramId(), stage.getId(),
+                    metadataValue, maskValue);
+            Function<Long, FlowRule> exactFactory = exact ? result -> buildMatchRule(Vp4Interpreter.META_MATCH_EXACT,
+                    stage, templates.userMetadataExactMatch(stage.getProgramId(), stage.getId(), metadataValue),
+                    result) : null;
+
+            MatchEntry entry = stage.acquireMatchEntry(Region.METADATA, selector, rule.getPriority(),
+                    (result, priority) -> buildMatchRule(Vp4Interpreter.META_MATCH, stage, selector,
+                            result, priority),
+                    exactFactory, createdEntries);
+            matchEntries.add(entry);
+            metadataId = entry.getId();
+        }
+
+        if (stage.isMatchStdMetadata()) {
+            int matchBitMap = 0;
+            long[] stdValues = new long[KeyLayout.STD_METADATA_KEYS.size()];
+            for (KeyLayout.Slot slot : layout.getStdMetadataSlots()) {
+                Value value = values[slot.getIndex()];
+                if (value != null) {
+                    stdValues[slot.getStdMetadataBit()] = toLong(value.getValue());
+                    matchBitMap |= 1 << slot.getStdMetadataBit();
+                }
+            }
+
+            Bmv2ExtensionSelector selector = templates.stdMetadataMatch(stage.getProgramId(), stage.getId(),
+                    (short) stdValues[0],
+                    (int) stdValues[1],
+                    (short) stdValues[2],
+                    (short) stdValues[3],
+                    (int) stdValues[4],
+                    (int) stdValues[5],
+                    matchBitMap);
+
+            MatchEntry entry = stage.acquireMatchEntry(Region.STD_METADATA, selector, rule.getPriority(),
+                    (result, priority) -> buildMatchRule(Vp4Interpreter.STD_META_MATCH, stage, selector,
+                            result, priority),
+                    null, createdEntries);
+            matchEntries.add(entry);
+            stdMetadataId = entry.getId();
+        }
+
+        return new MatchResult(stdMetadataId, metadataId, headerId);
+    }
+
+    /**
+     * Whether the header keys of a stage fit in the header window, which VP4
+     * loads instead of the whole header for the window tables.
+     *
+     * @param stage stage matching the header
+     * @return true if the stage matches the header window, otherwise false
+     */
+    private boolean inHeaderWindow(Stage stage) {
+        return stage.getLayout().getHeaderWindowBytes() <= templates.getHeaderWindowBytes();
+    }
+
+    /**
+     * Build the selector of a header match entry, in the header window if
+     * the stage fits in it.
+     *
+     * @param stage stage of the entry
+     * @param value header value
+     * @param mask  header mask
+     * @param exact true for the exact table, if the mask is the header mask of the stage
+     * @return extension selector
+     */
+    private Bmv2ExtensionSelector headerSelector(Stage stage, BitVector value, BitVector mask, boolean exact) {
+        if (inHeaderWindow(stage)) {
+            return exact
+                    ? templates.headerWindowExactMatch(stage.getProgramId(), stage.getId(), value)
+                    : templates.headerWindowMatch(stage.getProgramId(), stage.getId(), value, mask);
+        }
+        return exact
+                ? templates.headerExactMatch(stage.getProgramId(), stage.getId(), value)
+                : templates.headerMatch(stage.getProgramId(), stage.getId(), value, mask);
+    }
+
+    /**
+     * Get the table of the header match entries of a stage.
+     *
+     * @param stage stage of the entries
+     * @param exact true for the exact table
+     * @return match table name without the stage
+     */
+    private String headerTable(Stage stage, boolean exact) {
+        if (inHeaderWindow(stage)) {
+            return exact ? Vp4Interpreter.HEADER_WINDOW_EXACT : Vp4Interpreter.HEADER_WINDOW;
+        }
+        return exact ? Vp4Interpreter.HEADER_MATCH_EXACT : Vp4Interpreter.HEADER_MATCH;
+    }
+
+    /**
+     * Write the values of the header or metadata keys of a rule into the key
+     * of the region.
+     *
+     * @param slots    slots of the region
+     * @param values   values of the rule, indexed by slot
+     * @param key      key of the region
+     * @param fullMask mask of the region when every key is set
+     * @return mask of the keys set by the rule
+     */
+    private static BitVector buildKey(List<KeyLayout.Slot> slots, Value[] values, BitVector key,
+                                      BitVector fullMask) {
+        boolean full = true;
+        for (KeyLayout.Slot slot : slots) {
+            Value value = values[slot.getIndex()];
+            if (value != null) {
+                key.setBits(slot.getBitOffset(), slot.getBitWidth(), value.getValue());
+            } else {
+                full = false;
+            }
+        }
+        if (full) {
+            return fullMask;
+        }
+
+        BitVector mask = new BitVector(key.getBitWidth());
+        for (KeyLayout.Slot slot : slots) {
+            if (values[slot.getIndex()] != null) {
+                mask.setOnes(slot.getBitOffset(), slot.getBitWidth());
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Get the lowest 64 bits of a big-endian value.
+     *
+     * @param data big-endian value
+     * @return value
+     */
+    private static long toLong(byte[] data) {
+        long value = 0;
+        for (int i = Math.max(0, data.length - Long.BYTES); i < data.length; i++) {
+            value = (value << 8) | (data[i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * Build the flow rule of a match entry, which sets its part of the match
+     * result.
+     *
+     * @param table       match table name without the stage
+     * @param stage       stage of the entry
+     * @param selector    selector of the entry
+     * @param matchResult shifted match result of the region
+     * @return flow rule
+     */
+    private FlowRule buildMatchRule(String table, Stage stage, Bmv2ExtensionSelector selector, long matchResult) {
+        return new FlowRuleHelper(this.applicationId, this.deviceId, templates.getTableId(table, stage.getId()))
+                .withSelector(selector)
+                .withTreatment(templates.setMatchResult(matchResult))
+                .build();
+    }
+
+    /**
+     * Build the flow rule of a ternary match entry, with the priority of its
+     * rank.
+     *
+     * @param table       match table name without the stage
+     * @param stage       stage of the entry
+     * @param selector    selector of the entry
+     * @param matchResult shifted match result of the region
+     * @param priority    flow rule priority
+     * @return flow rule
+     */
+    private FlowRule buildMatchRule(String table, Stage stage, Bmv2ExtensionSelector selector, long matchResult,
+                                    int priority) {
+        return new FlowRuleHelper(this.applicationId, this.deviceId, templates.getTableId(table, stage.getId()))
+                .withSelector(selector)
+                .withTreatment(templates.setMatchResult(matchResult))
+                .withPriority(priority)
+                .build();
+    }
+
+    /**
+     * Compile the entries owned by a rule: its match result entry and its
+     * actions.
+     *
+     * @param rule        instance rule
+     * @param stage       stage of the rule
+     * @param nextStage   next stage, null at the end of the pipeline
+     * @param actionModel action of the rule
+     * @param matchResult match result of the rule
+     * @param batch       entries of the rule
+     */
+    private void compileEntries(InstanceRule rule, Stage stage, Stage nextStage, ActionModel actionModel,
+                                MatchResult matchResult, FlowRuleBatch batch) {
+        /* Match result table. */
+        FlowRuleHelper resultRuleHelper = new FlowRuleHelper(this.applicationId, this.deviceId,
+                templates.getTableId(TABLE_MATCH_RESULT, stage.getId()));
+        resultRuleHelper.withSelector(templates.matchResult(matchResult));
+        if (nextStage == null) {
+            /* The packet leaves the pipeline: no stage and nothing to match. */
+            resultRuleHelper.withTreatment(templates.setStageAndBitmap(actionModel.getActionBitMap(),
+                    (byte) 0, (byte) 0, (byte) 0));
+        } else {
+            resultRuleHelper.withTreatment(templates.setStageAndBitmap(actionModel.getActionBitMap(),
+                    nextStage.getMatchBitmap(), nextStage.getId(), nextStage.getProgramId()));
         }
 
+        batch.add(BATCH_MATCH_RESULT_STAGE, resultRuleHelper.build());
+
         /* Actions. */
+        List<PrimitiveModel> modifyFields = Lists.newArrayList();
         actionModel.getPrimitiveModels().forEach(primitive -> {
             switch (primitive.getType()) {
                 case MODIFY_FIELD:
-                    installModifyFieldPrimitive(stage, primitive, matchResult, rule);
+                    modifyFields.add(primitive);
                     break;
                 case DROP:
                 case NO_OP:
@@ -341,12 +1518,9 @@ public class Instance {
 
             }
         });
-
-        return this;
-    }
-
-    public void delRule(InstanceRule rule) {
-        // TODO
+        if (!modifyFields.isEmpty()) {
+            installModifyFieldPrimitives(stage, modifyFields, matchResult, rule, batch);
+        }
     }
 
     /**
@@ -368,93 +1542,130 @@ public class Instance {
     }
 
     /**
-     * Install modify_field primitive action.
+     * Install the modify_field primitives of an action. The primitives
+     * writing to the same table share the entry of the rule in it: the
+     * constants are merged into one value and mask, and the copies of fields
+     * fill the 1 to 3 copies of one action. Fields are placed in the header
+     * and the user metadata as the match keys of the stage are.
      *
-     * @param stage     current stage.
-     * @param primitive the primitive
-     * @param rule      runtime rule
+     * @param stage       current stage
+     * @param primitives  primitives of the action
+     * @param matchResult match result of the rule
+     * @param rule        runtime rule
+     * @param batch       entries of the rule
      */
-    private void installModifyFieldPrimitive(Stage stage, PrimitiveModel primitive, MatchResult matchResult, InstanceRule rule) {
-        List<ParameterModel> parameters = primitive.getParameterModels();
-
-        if (parameters.size() != 2) {
-            throw new RuntimeException("Cannot install modify field primitive due to the wrong " +
-                    "number of the parameters " + parameters.size());
-        }
-
-        ParameterModel firstParam = parameters.get(0);
-        ParameterModel secondParam = parameters.get(1);
-
-        String tableName = "table_mod_";
-        String stageName = "stage" + stage.getId();
+    private void installModifyFieldPrimitives(Stage stage, List<PrimitiveModel> primitives, MatchResult matchResult,
+                                              InstanceRule rule, FlowRuleBatch batch) {
+        Map<String, BitVector[]> constants = Maps.newLinkedHashMap();
+        Map<String, List<Integer>> shifts = Maps.newLinkedHashMap();
+        Map<String, List<BitVector>> masks = Maps.newLinkedHashMap();
+
+        for (PrimitiveModel primitive : primitives) {
+            List<ParameterModel> parameters = primitive.getParameterModels();
+            if (parameters.size() != 2) {
+                throw new RuntimeException("Cannot install modify field primitive due to the wrong " +
+                        "number of the parameters " + parameters.size());
+            }
 
-        if (firstParam.getType() == ParameterModel.ParameterModelType.METADATA_FIELD) {
-            tableName += "meta_with_";
-        } else if (firstParam.getType() == ParameterModel.ParameterModelType.PACKET_FIELD) {
-            tableName += "header_with_";
-        } else {
-            throw new RuntimeException("Wrong modify_field fisrt parameter.");
-        }
+            ParameterModel dst = parameters.get(0);
+            ParameterModel src = parameters.get(1);
+            String prefix;
+            if (dst.getType() == ParameterModel.ParameterModelType.METADATA_FIELD) {
+                if (dst.getFieldModel().getHeaderName().equals(STD_META)) {
+                    throw new RuntimeException("Cannot modify the standard metadata "
+                            + dst.getFieldModel().getName() + " with modify_field");
+                }
+                prefix = "table_mod_meta_with_";
+            } else if (dst.getType() == ParameterModel.ParameterModelType.PACKET_FIELD) {
+                prefix = "table_mod_header_with_";
+            } else {
+                throw new RuntimeException("Wrong modify_field first parameter.");
+            }
 
-        switch (secondParam.getType()) {
-            case CONST:
-                tableName += "const";
-                break;
-            case METADATA_FIELD:
-                tableName += "meta";
-                break;
-            case PACKET_FIELD:
-                tableName += "header";
-                break;
-            default:
-                throw new RuntimeException("Wrong modify_field second parameter.");
+            FieldModel dstField = dst.getFieldModel();
+            int dstWidth = regionBitLength(stage, dstField);
+            int dstOffset = fieldOffset(dstField);
+
+            switch (src.getType()) {
+                case CONST:
+                case RUNTIME_DATA: {
+                    byte[] value = src.getType() == ParameterModel.ParameterModelType.CONST
+                            ? Value.createIntValue(src.getConstData()).getValue()
+                            : runtimeData(rule, src.getRuntimedata());
+                    BitVector[] entry = constants.computeIfAbsent(prefix + "const",
+                            table -> new BitVector[]{new BitVector(dstWidth), new BitVector(dstWidth)});
+                    entry[0].setBits(dstOffset, dstField.getLength(), value);
+                    entry[1].setOnes(dstOffset, dstField.getLength());
+                    break;
+                }
+                case METADATA_FIELD:
+                case PACKET_FIELD: {
+                    FieldModel srcField = src.getFieldModel();
+                    String table = prefix + (src.getType() == ParameterModel.ParameterModelType.METADATA_FIELD
+                            ? "meta" : "header");
+                    /* The lowest bits of the source are copied, the bits of a longer destination cleared. */
+                    int width = Math.min(dstField.getLength(), srcField.getLength());
+                    int dstLow = dstWidth - dstOffset - dstField.getLength();
+                    int srcLow = regionBitLength(stage, srcField) - fieldOffset(srcField) - srcField.getLength();
+                    shifts.computeIfAbsent(table, t -> Lists.newArrayList()).add(dstLow - srcLow);
+                    masks.computeIfAbsent(table, t -> Lists.newArrayList())
+                            .add(new BitVector(dstWidth).setOnes(dstOffset + dstField.getLength() - width, width));
+                    if (width < dstField.getLength()) {
+                        BitVector[] entry = constants.computeIfAbsent(prefix + "const",
+                                t -> new BitVector[]{new BitVector(dstWidth), new BitVector(dstWidth)});
+                        entry[1].setOnes(dstOffset, dstField.getLength() - width);
+                    }
+                    break;
+                }
+                default:
+                    throw new RuntimeException("Wrong modify_field second parameter.");
+            }
         }
 
-        FlowRuleHelper flowRuleHelper = new FlowRuleHelper(this.applicationId, this.deviceId, Vp4Interpreter.getTableId(tableName, stageName));
-
-        TrafficSelectorHelper selectorHelper = new TrafficSelectorHelper(this.configuration);
-        selectorHelper.withMatchResult(matchResult);
-
-        TrafficTreatmentHelper treatmentHelper = new TrafficTreatmentHelper(this.configuration);
-
+        constants.forEach((table, entry) ->
+                batch.add(BATCH_ACTION_STAGE, buildActionRule(table, stage, matchResult,
+                        templates.modifyWithConst(table, entry[0], entry[1]))));
+        shifts.forEach((table, tableShifts) -> {
+            if (tableShifts.size() > Vp4Templates.MAX_FIELD_COPIES) {
+                throw new RuntimeException("Cannot copy more than " + Vp4Templates.MAX_FIELD_COPIES
+                        + " fields with " + table + " in one action");
+            }
+            int[] shiftArray = tableShifts.stream().mapToInt(Integer::intValue).toArray();
+            BitVector[] maskArray = masks.get(table).toArray(new BitVector[0]);
+            batch.add(BATCH_ACTION_STAGE, buildActionRule(table, stage, matchResult,
+                    templates.modifyWithField(table, shiftArray, maskArray)));
+        });
+    }
 
-        switch (tableName) {
-            case TABLE_MOD_HEADER_WITH_CONST: {
-                CompoundAction action = new CompoundAction(ACTION_MOD_HEADER_WITH_CONST);
-                FieldModel fieldModel = firstParam.getFieldModel();
-                Value headerValue = Value.createValue(stage.getMaxHeaderBitLength());
-                Value maskValue = Value.createValue(stage.getMaxHeaderBitLength());
+    private FlowRule buildActionRule(String table, Stage stage, MatchResult matchResult,
+                                     Bmv2ExtensionTreatment treatment) {
+        return new FlowRuleHelper(this.applicationId, this.deviceId, templates.getTableId(table, stage.getId()))
+                .withSelector(templates.actionChain(matchResult))
+                .withTreatment(treatment)
+                .build();
+    }
 
-                byte[] data = new byte[(fieldModel.getLength() + 7) / 8];
+    private static int fieldOffset(FieldModel field) {
+        return field.getHeader().getBitOffset() + field.getBitOffset();
+    }
 
-                Value value = Value.createArrayValue(data);
-                // TODO
+    /**
+     * Get the bit length of the header or the user metadata of a stage,
+     * extended to a field written or read by an action.
+     */
+    private static int regionBitLength(Stage stage, FieldModel field) {
+        int length = field.isMetadata() ? stage.getMaxMetadataBitLength() : stage.getMaxHeaderBitLength();
+        return Math.max(length, fieldOffset(field) + field.getLength());
+    }
 
-                break;
-            }
-            case TABLE_MOD_HEADER_WITH_HEADER: {
-                CompoundAction action = new CompoundAction(ACTION_MOD_HEADER_WITH_HEADER);
-                break;
-            }
-            case TABLE_MOD_HEADER_WITH_META: {
-                CompoundAction action = new CompoundAction(ACTION_MOD_HEADER_WITH_META);
-                break;
-            }
-            case TABLE_MOD_META_WITH_CONST: {
-                CompoundAction action = new CompoundAction(ACTION_MOD_META_WITH_CONST);
-                break;
-            }
-            case TABLE_MOD_META_WITH_HEADER: {
-                CompoundAction action = new CompoundAction(ACTION_MOD_META_WITH_HEADER);
-                break;
-            }
-            case TABLE_MOD_META_WITH_META: {
-                CompoundAction action = new CompoundAction(ACTION_MOD_META_WITH_META);
-                break;
+    private static byte[] runtimeData(InstanceRule rule, String name) {
+        for (Data data : rule.getAction().getParameters()) {
+            if (data.getName().equals(name)) {
+                return data.getValue().getValue();
             }
-            default:
-                throw new RuntimeException("can not find the table with the name : " + tableName);
         }
+        throw new RuntimeException("The action " + rule.getAction().getName()
+                + " of the rule has no parameter " + name);
     }
 
 }
@@ -1,5 +1,6 @@
 package org.netarch.odb.runtime;
 
+import com.google.common.collect.Collections2;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import org.netarch.odb.compiler.Vp4Interpreter;
@@ -9,29 +10,49 @@ import java.util.List;
 import java.util.Map;
 
 public class InstanceRule {
+    /**
+     * Priority of the rules which do not set one.
+     */
+    public static final int DEFAULT_PRIORITY = 0;
+
     private int stageId;
+    private int priority;
     private List<FlowKey> keys;
-    private Map<String, FlowKey> headerKeys;
-    private Map<String, FlowKey> metadataKeys;
-    private Map<String, FlowKey> stdMetadataKeys;
+    private Map<String, FlowKey> keyMap;
     private CompoundAction action;
+    private KeyLayout layout;
+    private Value[] values;
 
     /**
-     * Create a Instance rule with specific stage id.
+     * Create a Instance rule with specific stage id. The keys are placed
+     * into the slots of the stage when the rule is compiled.
      *
-     * @param stageId
+     * @param stageId id of the logical table of the rule, not its VP4 stage
      */
     public InstanceRule(int stageId) {
         this.stageId = stageId;
+        this.priority = DEFAULT_PRIORITY;
         this.keys = Lists.newArrayList();
-        this.headerKeys = Maps.newHashMap();
-        this.metadataKeys = Maps.newHashMap();
-        this.stdMetadataKeys = Maps.newHashMap();
+        this.keyMap = Maps.newHashMap();
         this.action = null;
+        this.layout = null;
+        this.values = null;
+    }
+
+    /**
+     * Create a Instance rule of a stage. The keys are placed into the slots
+     * of the stage as they are added.
+     *
+     * @param stage stage of the rule
+     */
+    public InstanceRule(Stage stage) {
+        this(stage.getTableId());
+        this.layout = stage.getLayout();
+        this.values = new Value[layout.size()];
     }
 
     /**
-     * Get stage id.
+     * Get stage id, i.e. the id of the logical table of the rule.
      *
      * @return stage id
      */
@@ -39,6 +60,27 @@ public class InstanceRule {
         return stageId;
     }
 
+    /**
+     * Get the priority of the rule.
+     *
+     * @return priority
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Set the priority of the rule. When the ternary keys of rules of a
+     * stage overlap, the packets get the rule with the highest priority.
+     *
+     * @param priority priority
+     * @return this
+     */
+    public InstanceRule setPriority(int priority) {
+        this.priority = priority;
+        return this;
+    }
+
     /**
      * Get the compound action of the instance rule.
      *
@@ -76,18 +118,38 @@ public class InstanceRule {
      */
     public InstanceRule addKey(FlowKey key) {
         this.keys.add(key);
-        if (key.getType() == FlowKeyType.METADATA_TYPE) {
-            if (key.getHeaderName().equals(Vp4Interpreter.STD_META)) {
-                this.stdMetadataKeys.put(key.getKeyName(), key);
-            } else {
-                this.metadataKeys.put(key.getKeyName(), key);
-            }
-        } else {
-            this.headerKeys.put(key.getKeyName(), key);
+        this.keyMap.put(key.getKeyName(), key);
+        if (layout != null) {
+            values[slotOf(layout, key).getIndex()] = key.getValue();
         }
         return this;
     }
 
+    /**
+     * Get the key values placed into the slots of a key layout. The values
+     * are placed once per layout.
+     *
+     * @param layout key layout of the stage
+     * @return values indexed by slot, null for the keys which are not set
+     */
+    synchronized Value[] getValues(KeyLayout layout) {
+        if (this.layout != layout) {
+            Value[] placed = new Value[layout.size()];
+            keys.forEach(key -> placed[slotOf(layout, key).getIndex()] = key.getValue());
+            this.values = placed;
+            this.layout = layout;
+        }
+        return values;
+    }
+
+    private static KeyLayout.Slot slotOf(KeyLayout layout, FlowKey key) {
+        KeyLayout.Slot slot = layout.getSlot(key.getKeyName());
+        if (slot == null) {
+            throw new RuntimeException("Can't find the match key model " + key.getKeyName());
+        }
+        return slot;
+    }
+
     /**
      * Get key values.
      *
@@ -96,22 +158,10 @@ public class InstanceRule {
      * @return key value if the key exists, otherwise default value
      */
     public Short getOrDefault(String keyName, Short defaultValue) {
-        FlowKey key = null;
-        key = headerKeys.getOrDefault(keyName, null);
-        if (key != null) {
-            return key.getValue().getShort();
-        }
-
-        key = metadataKeys.getOrDefault(keyName, null);
-        if (key != null) {
-            return key.getValue().getShort();
-        }
-
-        key = stdMetadataKeys.getOrDefault(keyName, null);
+        FlowKey key = keyMap.get(keyName);
         if (key != null) {
             return key.getValue().getShort();
         }
-
         return defaultValue;
     }
 
@@ -123,21 +173,10 @@ public class InstanceRule {
      * @return key value if the key exists, otherwise default value
      */
     public Integer getOrDefault(String keyName, Integer defaultValue) {
-        FlowKey key = headerKeys.getOrDefault(keyName, null);
-        if (key != null) {
-            return key.getValue().getInt();
-        }
-
-        key = metadataKeys.getOrDefault(keyName, null);
+        FlowKey key = keyMap.get(keyName);
         if (key != null) {
             return key.getValue().getInt();
         }
-
-        key = stdMetadataKeys.getOrDefault(keyName, null);
-        if (key != null) {
-            return key.getValue().getInt();
-        }
-
         return defaultValue;
     }
 
@@ -150,22 +189,10 @@ public class InstanceRule {
      * @return key value if the key exists, otherwise default value
      */
     public Long getOrDefault(String keyName, Long defaultValue) {
-        FlowKey key = null;
-        key = headerKeys.getOrDefault(keyName, null);
-        if (key != null) {
-            return key.getValue().getLong();
-        }
-
-        key = metadataKeys.getOrDefault(keyName, null);
+        FlowKey key = keyMap.get(keyName);
         if (key != null) {
             return key.getValue().getLong();
         }
-
-        key = stdMetadataKeys.getOrDefault(keyName, null);
-        if (key != null) {
-            return key.getValue().getLong();
-        }
-
         return defaultValue;
     }
 
@@ -176,7 +203,7 @@ public class InstanceRule {
      * @return header match keys
      */
     public Collection<FlowKey> getHeaderKeys() {
-        return this.headerKeys.values();
+        return Collections2.filter(keyMap.values(), key -> key.getType() != FlowKeyType.METADATA_TYPE);
     }
 
     /**
@@ -185,7 +212,8 @@ public class InstanceRule {
      * @return metadata match keys
      */
     public Collection<FlowKey> getMetadataKeys() {
-        return this.metadataKeys.values();
+        return Collections2.filter(keyMap.values(), key -> key.getType() == FlowKeyType.METADATA_TYPE &&
+                !key.getHeaderName().equals(Vp4Interpreter.STD_META));
     }
 
     /**
@@ -194,6 +222,7 @@ public class InstanceRule {
      * @return std metadata keys
      */
     public Collection<FlowKey> getStdMetadataKeys() {
-        return this.stdMetadataKeys.values();
+        return Collections2.filter(keyMap.values(), key -> key.getType() == FlowKeyType.METADATA_TYPE &&
+                key.getHeaderName().equals(Vp4Interpreter.STD_META));
     }
 }
@@ -0,0 +1,290 @@
+package org.netarch.odb.runtime;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.netarch.odb.compiler.Vp4Interpreter;
+import org.netarch.odb.model.FieldModel;
+import org.netarch.odb.model.MatchKeyModel;
+import org.netarch.odb.model.TableModel;
+import org.netarch.odb.runtime.MatchResultAllocator.Region;
+
+import java.util.List;
+
+import static org.netarch.odb.compiler.Vp4Interpreter.EGRESS_INSTANCE_KEY;
+import static org.netarch.odb.compiler.Vp4Interpreter.EGRESS_PORT_KEY;
+import static org.netarch.odb.compiler.Vp4Interpreter.EGRESS_SPEC_KEY;
+import static org.netarch.odb.compiler.Vp4Interpreter.INGRESS_PORT_KEY;
+import static org.netarch.odb.compiler.Vp4Interpreter.INSTANCE_TYPE_KEY;
+import static org.netarch.odb.compiler.Vp4Interpreter.PACKET_LENGTH_KEY;
+
+/**
+ * Key layout of a stage, compiled once from the table model. Every match key
+ * gets a slot, which records where the key is written in the VP4 match
+ * entries: the region, the bit offset and width in the header or metadata
+ * key, or the bit of the standard metadata match bitmap. Rules keep their
+ * values in an array indexed by slot.
+ */
+public final class KeyLayout {
+    /**
+     * Standard metadata fields matched by VP4, in the order of the bits of
+     * the match bitmap of Vp4Templates.stdMetadataMatch.
+     */
+    public static final ImmutableList<String> STD_METADATA_KEYS = ImmutableList.of(
+            INGRESS_PORT_KEY, PACKET_LENGTH_KEY, EGRESS_SPEC_KEY,
+            EGRESS_PORT_KEY, EGRESS_INSTANCE_KEY, INSTANCE_TYPE_KEY);
+
+    private final ImmutableList<Slot> slots;
+    private final ImmutableMap<String, Slot> slotMap;
+    private final ImmutableList<Slot> headerSlots;
+    private final ImmutableList<Slot> metadataSlots;
+    private final ImmutableList<Slot> stdMetadataSlots;
+    private final int headerBitLength;
+    private final int metadataBitLength;
+    private final int headerWindowBytes;
+    private final BitVector headerMask;
+    private final BitVector metadataMask;
+
+    /**
+     * Compile the key layout of a table.
+     *
+     * @param table table model
+     */
+    public KeyLayout(TableModel table) {
+        ImmutableList.Builder<Slot> slots = ImmutableList.builder();
+        ImmutableMap.Builder<String, Slot> slotMap = ImmutableMap.builder();
+        ImmutableList.Builder<Slot> headerSlots = ImmutableList.builder();
+        ImmutableList.Builder<Slot> metadataSlots = ImmutableList.builder();
+        ImmutableList.Builder<Slot> stdMetadataSlots = ImmutableList.builder();
+        int headerBitLength = 0;
+        int metadataBitLength = 0;
+        int headerStart = Integer.MAX_VALUE;
+
+        List<MatchKeyModel> keys = table.getKeys();
+        for (int i = 0; i < keys.size(); i++) {
+            MatchKeyModel key = keys.get(i);
+            FieldModel field = key.field();
+            Slot slot;
+            if (field.isMetadata() && field.getHeaderName().equals(Vp4Interpreter.STD_META)) {
+                int bit = STD_METADATA_KEYS.indexOf(key.getName());
+                if (bit < 0) {
+                    throw new RuntimeException("Can't match the standard metadata " + key.getName() +
+                            " in the table " + table.getName());
+                }
+                slot = new Slot(i, key, Region.STD_METADATA, 0, field.getLength(), bit);
+                stdMetadataSlots.add(slot);
+            } else {
+                int offset = field.getHeader().getBitOffset() + field.getBitOffset();
+                if (field.isMetadata()) {
+                    slot = new Slot(i, key, Region.METADATA, offset, field.getLength(), -1);
+                    metadataBitLength = Math.max(metadataBitLength, offset + field.getLength());
+                    metadataSlots.add(slot);
+                } else {
+                    slot = new Slot(i, key, Region.HEADER, offset, field.getLength(), -1);
+                    headerBitLength = Math.max(headerBitLength, offset + field.getLength());
+                    headerStart = Math.min(headerStart, offset);
+                    headerSlots.add(slot);
+                }
+            }
+            slots.add(slot);
+            slotMap.put(key.getName(), slot);
+        }
+
+        this.slots = slots.build();
+        this.slotMap = slotMap.build();
+        this.headerSlots = headerSlots.build();
+        this.metadataSlots = metadataSlots.build();
+        this.stdMetadataSlots = stdMetadataSlots.build();
+        this.headerBitLength = headerBitLength;
+        this.metadataBitLength = metadataBitLength;
+        this.headerWindowBytes = headerStart == Integer.MAX_VALUE ? 0 : (headerBitLength + 7) / 8 - headerStart / 8;
+        this.headerMask = buildMask(this.headerSlots, headerBitLength);
+        this.metadataMask = buildMask(this.metadataSlots, metadataBitLength);
+    }
+
+    private static BitVector buildMask(List<Slot> slots, int bitLength) {
+        BitVector mask = new BitVector(bitLength);
+        slots.forEach(slot -> mask.setOnes(slot.getBitOffset(), slot.getBitWidth()));
+        return mask;
+    }
+
+    /**
+     * Get the number of slots, i.e. the number of match keys of the stage.
+     *
+     * @return number of slots
+     */
+    public int size() {
+        return slots.size();
+    }
+
+    /**
+     * Get the slot of a match key.
+     *
+     * @param keyName match key name, header.field
+     * @return slot, or null if the stage does not match the key
+     */
+    public Slot getSlot(String keyName) {
+        return slotMap.get(keyName);
+    }
+
+    /**
+     * Get all the slots, indexed by slot.
+     *
+     * @return slots
+     */
+    public List<Slot> getSlots() {
+        return slots;
+    }
+
+    /**
+     * Get the slots of the header keys.
+     *
+     * @return header slots
+     */
+    public List<Slot> getHeaderSlots() {
+        return headerSlots;
+    }
+
+    /**
+     * Get the slots of the user metadata keys.
+     *
+     * @return metadata slots
+     */
+    public List<Slot> getMetadataSlots() {
+        return metadataSlots;
+    }
+
+    /**
+     * Get the slots of the standard metadata keys.
+     *
+     * @return standard metadata slots
+     */
+    public List<Slot> getStdMetadataSlots() {
+        return stdMetadataSlots;
+    }
+
+    /**
+     * Get the bit length of the header key, up to the end of the last field.
+     *
+     * @return header bit length
+     */
+    public int getHeaderBitLength() {
+        return headerBitLength;
+    }
+
+    /**
+     * Get the bit length of the user metadata key, up to the end of the last
+     * field.
+     *
+     * @return metadata bit length
+     */
+    public int getMetadataBitLength() {
+        return metadataBitLength;
+    }
+
+    /**
+     * Get the number of bytes of the header key holding header keys, from
+     * the byte of the first key to the end of the key. The bytes before are
+     * always zero in the values and masks of the stage.
+     *
+     * @return header window length in bytes
+     */
+    public int getHeaderWindowBytes() {
+        return headerWindowBytes;
+    }
+
+    /**
+     * Get the mask of the header key when all the header keys are set. It
+     * must not be modified.
+     *
+     * @return header mask
+     */
+    BitVector getHeaderMask() {
+        return headerMask;
+    }
+
+    /**
+     * Get the mask of the user metadata key when all the metadata keys are
+     * set. It must not be modified.
+     *
+     * @return metadata mask
+     */
+    BitVector getMetadataMask() {
+        return metadataMask;
+    }
+
+    /**
+     * Match key of a stage, placed in the VP4 match entries.
+     */
+    public static final class Slot {
+        private final int index;
+        private final MatchKeyModel key;
+        private final Region region;
+        private final int bitOffset;
+        private final int bitWidth;
+        private final int stdMetadataBit;
+
+        private Slot(int index, MatchKeyModel key, Region region, int bitOffset, int bitWidth,
+                     int stdMetadataBit) {
+            this.index = index;
+            this.key = key;
+            this.region = region;
+            this.bitOffset = bitOffset;
+            this.bitWidth = bitWidth;
+            this.stdMetadataBit = stdMetadataBit;
+        }
+
+        /**
+         * Get the index of the slot in the values of a rule.
+         *
+         * @return slot index
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * Get the match key of the slot.
+         *
+         * @return match key model
+         */
+        public MatchKeyModel getKey() {
+            return key;
+        }
+
+        /**
+         * Get the match region of the key.
+         *
+         * @return region
+         */
+        public Region getRegion() {
+            return region;
+        }
+
+        /**
+         * Get the bit offset of the key in the header or metadata key.
+         *
+         * @return bit offset
+         */
+        public int getBitOffset() {
+            return bitOffset;
+        }
+
+        /**
+         * Get the bit width of the key.
+         *
+         * @return bit width
+         */
+        public int getBitWidth() {
+            return bitWidth;
+        }
+
+        /**
+         * Get the bit of a standard metadata key in the match bitmap.
+         *
+         * @return bit, or -1 for header and metadata keys
+         */
+        public int getStdMetadataBit() {
+            return stdMetadataBit;
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package org.netarch.odb.runtime;
+
+import org.netarch.odb.runtime.MatchResultAllocator.Region;
+import org.onosproject.bmv2.api.runtime.Bmv2ExtensionSelector;
+import org.onosproject.net.flow.FlowRule;
+
+import java.util.function.BiFunction;
+
+class MatchEntry {
+    private final Region region;
+    private final Bmv2ExtensionSelector selector;
+    private final short id;
+    private final BiFunction<Long, Integer, FlowRule> factory;
+    private FlowRule flowRule;
+    private FlowRule moved;
+    private int rank;
+    private boolean exact;
+    private int refCount;
+
+    /**
+     * Create a match entry shared by the rules of a stage with the same keys.
+     *
+     * @param region   match region
+     * @param selector selector of the entry
+     * @param id       match result of the region
+     * @param flowRule flow rule of the entry
+     */
+    MatchEntry(Region region, Bmv2ExtensionSelector selector, short id, FlowRule flowRule) {
+        this.region = region;
+        this.selector = selector;
+        this.id = id;
+        this.factory = null;
+        this.flowRule = flowRule;
+        this.refCount = 0;
+    }
+
+    /**
+     * Create a ternary match entry, whose flow rule priority follows its rank
+     * among the entries of the table.
+     *
+     * @param region   match region
+     * @param selector selector of the entry
+     * @param id       match result of the region
+     * @param rank     rank of the entry
+     * @param priority flow rule priority of the rank
+     * @param factory  builds the flow rule from the shifted match result and the priority
+     */
+    MatchEntry(Region region, Bmv2ExtensionSelector selector, short id, int rank, int priority,
+               BiFunction<Long, Integer, FlowRule> factory) {
+        this.region = region;
+        this.selector = selector;
+        this.id = id;
+        this.factory = factory;
+        this.flowRule = factory.apply(region.toMatchResult(id), priority);
+        this.rank = rank;
+        this.refCount = 0;
+    }
+
+    /**
+     * Create an entry in the exact table, whose key sets every bit of the
+     * region. The entry goes to the ternary table with the priority of its
+     * rank once a ternary entry of a higher rank comes.
+     *
+     * @param region    match region
+     * @param selector  ternary selector of the entry
+     * @param id        match result of the region
+     * @param rank      rank of the entry
+     * @param factory   builds the ternary flow rule from the shifted match result and the priority
+     * @param flowRule  flow rule of the entry in the exact table
+     */
+    MatchEntry(Region region, Bmv2ExtensionSelector selector, short id, int rank,
+               BiFunction<Long, Integer, FlowRule> factory, FlowRule flowRule) {
+        this.region = region;
+        this.selector = selector;
+        this.id = id;
+        this.factory = factory;
+        this.flowRule = flowRule;
+        this.rank = rank;
+        this.exact = true;
+        this.refCount = 0;
+    }
+
+    /**
+     * Get the match region.
+     *
+     * @return match region
+     */
+    Region getRegion() {
+        return region;
+    }
+
+    /**
+     * Get the selector, which identifies the entry in the stage.
+     *
+     * @return selector
+     */
+    Bmv2ExtensionSelector getSelector() {
+        return selector;
+    }
+
+    /**
+     * Get the match result of the region.
+     *
+     * @return match result
+     */
+    short getId() {
+        return id;
+    }
+
+    /**
+     * Get the flow rule of the entry, as it is installed.
+     *
+     * @return flow rule
+     */
+    FlowRule getFlowRule() {
+        return flowRule;
+    }
+
+    /**
+     * Whether the priority of the entry follows its rank.
+     *
+     * @return true if the entry has a rank, otherwise false
+     */
+    boolean isRanked() {
+        return factory != null && !exact;
+    }
+
+    /**
+     * Whether the entry is in the exact table.
+     *
+     * @return true if the entry is exact, otherwise false
+     */
+    boolean isExact() {
+        return exact;
+    }
+
+    /**
+     * Raise the rank of an exact entry, which has no priority.
+     *
+     * @param rank rank of the entry
+     */
+    void raise(int rank) {
+        this.rank = rank;
+    }
+
+    /**
+     * Take an exact entry as a ternary one. Its flow rule is then relabelled
+     * or moved with the priority of its rank.
+     */
+    void demote() {
+        this.exact = false;
+    }
+
+    /**
+     * Get the rank of the entry, the highest priority of the rules which
+     * referenced it.
+     *
+     * @return rank
+     */
+    int getRank() {
+        return rank;
+    }
+
+    /**
+     * Change the rank and the priority of an entry which is not installed
+     * yet.
+     *
+     * @param rank     rank of the entry
+     * @param priority flow rule priority of the rank
+     */
+    void relabel(int rank, int priority) {
+        this.rank = rank;
+        this.flowRule = factory.apply(region.toMatchResult(id), priority);
+    }
+
+    /**
+     * Change the rank and the priority of an installed entry. The flow rule
+     * with the new priority is kept aside until it replaces the installed one.
+     *
+     * @param rank     rank of the entry
+     * @param priority flow rule priority of the rank
+     */
+    void move(int rank, int priority) {
+        this.rank = rank;
+        this.moved = factory.apply(region.toMatchResult(id), priority);
+    }
+
+    /**
+     * Get the flow rule replacing the installed one.
+     *
+     * @return flow rule with the new priority, or null if the entry did not move
+     */
+    FlowRule getMoved() {
+        return moved;
+    }
+
+    /**
+     * Take the flow rule with the new priority as the installed one.
+     */
+    void commitMove() {
+        if (moved != null) {
+            flowRule = moved;
+            moved = null;
+        }
+    }
+
+    /**
+     * Forget the flow rule with the new priority, the installed one is removed.
+     */
+    void dropMove() {
+        moved = null;
+    }
+
+    /**
+     * Add a rule referencing the entry.
+     *
+     * @return number of references
+     */
+    int retain() {
+        return ++refCount;
+    }
+
+    /**
+     * Remove a rule referencing the entry.
+     *
+     * @return number of references left
+     */
+    int unref() {
+        return --refCount;
+    }
+}
@@ -0,0 +1,127 @@
+package org.netarch.odb.runtime;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.netarch.odb.utils.FlowRuleBatch;
+import org.onosproject.bmv2.api.runtime.Bmv2ExtensionSelector;
+import org.onosproject.net.flow.FlowRule;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Rules of a stage with minimised keys in one match region. The rules only
+ * differ by their keys in the region, so they share one match result of the
+ * region, written by the minimised match entries, and one match result
+ * entry with its actions.
+ */
+class MatchGroup {
+    private final Stage stage;
+    private final MatchEntry entry;
+    private final int rank;
+    private final List<FlowRule> matchRules;
+    private final MatchResult matchResult;
+    private final FlowRuleBatch batch;
+    private final Set<InstanceRule> members;
+    private final Set<Bmv2ExtensionSelector> keys;
+
+    /**
+     * Create a group of rules.
+     *
+     * @param stage       stage of the rules
+     * @param entry       holds the match result of the region, with the first minimised entry
+     * @param rank        rank of the minimised entries, the priority of the rules
+     * @param matchRules  flow rules of the minimised match entries
+     * @param matchResult match result shared by the rules
+     * @param batch       match result entry and actions shared by the rules
+     * @param members     rules of the group
+     * @param keys        selectors of the match entries the rules had before
+     */
+    MatchGroup(Stage stage, MatchEntry entry, int rank, List<FlowRule> matchRules, MatchResult matchResult,
+               FlowRuleBatch batch, Collection<InstanceRule> members, Collection<Bmv2ExtensionSelector> keys) {
+        this.stage = stage;
+        this.entry = entry;
+        this.rank = rank;
+        this.matchRules = ImmutableList.copyOf(matchRules);
+        this.matchResult = matchResult;
+        this.batch = batch;
+        this.members = ImmutableSet.copyOf(members);
+        this.keys = ImmutableSet.copyOf(keys);
+    }
+
+    /**
+     * Get the stage of the rules.
+     *
+     * @return stage
+     */
+    Stage getStage() {
+        return stage;
+    }
+
+    /**
+     * Get the entry holding the match result of the region, which is freed
+     * once the group is removed.
+     *
+     * @return match entry
+     */
+    MatchEntry getEntry() {
+        return entry;
+    }
+
+    /**
+     * Get the rank of the minimised entries, whose priority the group holds
+     * in the region until it is removed.
+     *
+     * @return rank
+     */
+    int getRank() {
+        return rank;
+    }
+
+    /**
+     * Get the flow rules of the minimised match entries.
+     *
+     * @return flow rules
+     */
+    List<FlowRule> getMatchRules() {
+        return matchRules;
+    }
+
+    /**
+     * Get the match result shared by the rules.
+     *
+     * @return match result
+     */
+    MatchResult getMatchResult() {
+        return matchResult;
+    }
+
+    /**
+     * Get the match result entry and the actions shared by the rules.
+     *
+     * @return flow rule batch
+     */
+    FlowRuleBatch getBatch() {
+        return batch;
+    }
+
+    /**
+     * Get the rules of the group.
+     *
+     * @return instance rules
+     */
+    Set<InstanceRule> getMembers() {
+        return members;
+    }
+
+    /**
+     * Get the selectors of the match entries the rules had before they were
+     * grouped. A new rule with one of them splits the group.
+     *
+     * @return selectors
+     */
+    Set<Bmv2ExtensionSelector> getKeys() {
+        return keys;
+    }
+}
@@ -18,12 +18,9 @@ public class MatchResult {
         this.stdMetadataMatchResult = std;
         this.headerMatchResult = header;
 
-        this.matchResult = Long.valueOf(0);
-        this.matchResult &= (short) headerMatchResult;
-        this.matchResult <<= 16;
-        this.matchResult &= (short) metadataMatchResult;
-        this.matchResult <<= 16;
-        this.matchResult &= (short) stdMetadataMatchResult;
+        this.matchResult = ((header & 0xFFFFL) << 32)
+                | ((meta & 0xFFFFL) << 16)
+                | (std & 0xFFFFL);
     }
 
     /**
@@ -0,0 +1,95 @@
+package org.netarch.odb.runtime;
+
+import org.netarch.odb.utils.IdAllocator;
+
+public class MatchResultAllocator {
+    /**
+     * Each part of the 48-bit pmi_match_chain_result is 16 bits wide, and 0
+     * means that the part is not matched.
+     */
+    public static final int MAX_ID = 0xFFFF;
+
+    private final IdAllocator stdMetadata;
+    private final IdAllocator metadata;
+    private final IdAllocator header;
+
+    /**
+     * Create a match result allocator of one VP4 stage on one device.
+     *
+     * @param name name of the stage and the device
+     */
+    public MatchResultAllocator(String name) {
+        this.stdMetadata = new IdAllocator(name + " std metadata match results", MAX_ID);
+        this.metadata = new IdAllocator(name + " metadata match results", MAX_ID);
+        this.header = new IdAllocator(name + " header match results", MAX_ID);
+    }
+
+    /**
+     * Allocate the match result of a region.
+     *
+     * @param region match region
+     * @return match result of the region, never 0
+     */
+    public short allocate(Region region) {
+        return (short) allocator(region).allocate();
+    }
+
+    /**
+     * Release the match result of a region, so that it can be reused.
+     *
+     * @param region match region
+     * @param id     match result of the region
+     */
+    public void release(Region region, short id) {
+        allocator(region).release(Short.toUnsignedInt(id));
+    }
+
+    /**
+     * Get number of allocated match results of a region.
+     *
+     * @param region match region
+     * @return number of match results
+     */
+    public int getCount(Region region) {
+        return allocator(region).size();
+    }
+
+    private IdAllocator allocator(Region region) {
+        switch (region) {
+            case STD_METADATA:
+                return stdMetadata;
+            case METADATA:
+                return metadata;
+            case HEADER:
+                return header;
+            default:
+                throw new RuntimeException("Wrong match region " + region);
+        }
+    }
+
+    /**
+     * Regions of the match result, from the lowest 16 bits to the highest.
+     */
+    public enum Region {
+        STD_METADATA(0),
+        METADATA(16),
+        HEADER(32);
+
+        private final int shift;
+
+        Region(int shift) {
+            this.shift = shift;
+        }
+
+        /**
+         * Get the value written into pmi_match_chain_result by the match
+         * entry of the region.
+         *
+         * @param id match result of the region
+         * @return shifted match result
+         */
+        public long toMatchResult(short id) {
+            return (id & 0xFFFFL) << shift;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package org.netarch.odb.runtime;
+
+import com.google.common.collect.Maps;
+import org.onosproject.net.flow.FlowRule;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Flow rule priorities of the ranks used in one ternary VP4 table. Entries
+ * of a higher rank get a higher priority, entries of the same rank share
+ * theirs. A new rank takes a priority in the gap between the priorities of
+ * its neighbours, so the installed entries keep theirs. Only when the gap is
+ * empty are the ranks around spread again, over the smallest range around
+ * the new rank with enough room, and the entries of the moved ranks have to
+ * be installed again with their new priority.
+ */
+public final class PriorityAllocator {
+    public static final int MIN_PRIORITY = FlowRule.MIN_PRIORITY + 1;
+    public static final int MAX_PRIORITY = FlowRule.MAX_PRIORITY;
+
+    /* Gap left after the highest rank and before the lowest one, as ranks often come in order. */
+    private static final int GAP = 64;
+    /* Smallest gap between two ranks a spread range is left with, unless every rank is spread. */
+    private static final int MIN_SPREAD = 4;
+
+    private final TreeMap<Integer, Label> labels;
+
+    /**
+     * Create an allocator without any rank.
+     */
+    public PriorityAllocator() {
+        this.labels = Maps.newTreeMap();
+    }
+
+    /**
+     * Acquire the priority of a rank, for one more entry.
+     *
+     * @param rank  rank of the entry
+     * @param moved receives the ranks whose priority changed, with their new priority
+     * @return priority of the rank
+     * @throws RuntimeException if every priority is used
+     */
+    public int acquire(int rank, Map<Integer, Integer> moved) {
+        Label label = labels.get(rank);
+        if (label != null) {
+            label.refs++;
+            return label.priority;
+        }
+
+        Map.Entry<Integer, Label> lower = labels.lowerEntry(rank);
+        Map.Entry<Integer, Label> higher = labels.higherEntry(rank);
+        int low = lower == null ? MIN_PRIORITY - 1 : lower.getValue().priority;
+        int high = higher == null ? MAX_PRIORITY + 1 : higher.getValue().priority;
+        int priority;
+        if (high - low < 2) {
+            priority = spread(rank, moved);
+        } else if (lower == null && higher == null) {
+            priority = low + (high - low) / 2;
+        } else if (higher == null) {
+            priority = Math.min(low + GAP, low + (high - low) / 2);
+        } else if (lower == null) {
+            priority = Math.max(high - GAP, low + (high - low) / 2);
+        } else {
+            priority = low + (high - low) / 2;
+        }
+
+        label = labels.computeIfAbsent(rank, key -> new Label());
+        label.priority = priority;
+        label.refs++;
+        return priority;
+    }
+
+    /*
+     * The range around the new rank doubles until its priorities leave
+     * MIN_SPREAD between the ranks spread over it. Ranks mostly come with
+     * room left around them, so a spread usually moves a few ranks.
+     */
+    private int spread(int rank, Map<Integer, Integer> moved) {
+        Label added = new Label();
+        labels.put(rank, added);
+        Iterator<Map.Entry<Integer, Label>> down = labels.headMap(rank, false).descendingMap().entrySet().iterator();
+        Iterator<Map.Entry<Integer, Label>> up = labels.tailMap(rank, false).entrySet().iterator();
+        Deque<Map.Entry<Integer, Label>> window = new ArrayDeque<>();
+        window.add(Maps.immutableEntry(rank, added));
+        Map.Entry<Integer, Label> below = down.hasNext() ? down.next() : null;
+        Map.Entry<Integer, Label> above = up.hasNext() ? up.next() : null;
+        int lowerCount = 0;
+        int upperCount = 0;
+        for (int half = 1; ; half *= 2) {
+            while (lowerCount < half && below != null) {
+                window.addFirst(below);
+                below = down.hasNext() ? down.next() : null;
+                lowerCount++;
+            }
+            while (upperCount < half && above != null) {
+                window.addLast(above);
+                above = up.hasNext() ? up.next() : null;
+                upperCount++;
+            }
+            int low = below == null ? MIN_PRIORITY - 1 : below.getValue().priority;
+            int high = above == null ? MAX_PRIORITY + 1 : above.getValue().priority;
+            int count = window.size();
+            boolean all = below == null && above == null;
+            int spread = (high - low) / (count + 1);
+            if (spread >= MIN_SPREAD || all && spread >= 1) {
+                int i = 1;
+                for (Map.Entry<Integer, Label> entry : window) {
+                    int priority = low + (int) ((long) (high - low) * i++ / (count + 1));
+                    if (entry.getValue() != added && entry.getValue().priority != priority) {
+                        moved.put(entry.getKey(), priority);
+                    }
+                    entry.getValue().priority = priority;
+                }
+                return added.priority;
+            }
+            if (all) {
+                labels.remove(rank);
+                throw new RuntimeException("No free priority for the rank " + rank + ", " +
+                        (count - 1) + " ranks are used");
+            }
+        }
+    }
+
+    /**
+     * Release the priority of a rank, for one entry. The priority of a rank
+     * without entries is free again.
+     *
+     * @param rank rank of the entry
+     */
+    public void release(int rank) {
+        Label label = labels.get(rank);
+        if (label == null) {
+            throw new RuntimeException("The rank " + rank + " has no priority");
+        }
+        if (--label.refs == 0) {
+            labels.remove(rank);
+        }
+    }
+
+    /**
+     * Whether entries of a rank hold a priority.
+     *
+     * @param rank rank
+     * @return true if the rank has a priority, otherwise false
+     */
+    public boolean contains(int rank) {
+        return labels.containsKey(rank);
+    }
+
+    /**
+     * Get the highest rank with a priority.
+     *
+     * @return highest rank, or Integer.MIN_VALUE if no rank has a priority
+     */
+    public int getHighestRank() {
+        return labels.isEmpty() ? Integer.MIN_VALUE : labels.lastKey();
+    }
+
+    /**
+     * Get the priority of a rank.
+     *
+     * @param rank rank
+     * @return priority of the rank
+     */
+    public int getPriority(int rank) {
+        Label label = labels.get(rank);
+        if (label == null) {
+            throw new RuntimeException("The rank " + rank + " has no priority");
+        }
+        return label.priority;
+    }
+
+    /**
+     * Get the number of ranks with a priority.
+     *
+     * @return number of ranks
+     */
+    public int size() {
+        return labels.size();
+    }
+
+    private static final class Label {
+        private int priority;
+        private int refs;
+    }
+}
@@ -0,0 +1,127 @@
+package org.netarch.odb.runtime;
+
+import com.google.common.collect.ImmutableList;
+import org.netarch.odb.utils.FlowRuleBatch;
+
+import java.util.List;
+
+class RuleEntries {
+    private final Stage stage;
+    private final MatchResult matchResult;
+    private final List<MatchEntry> matchEntries;
+    private final List<MatchEntry> createdEntries;
+    private final FlowRuleBatch batch;
+    private final MatchGroup group;
+
+    /**
+     * Create the entries installed for an instance rule.
+     *
+     * @param stage          stage of the rule
+     * @param matchResult    match result of the rule
+     * @param matchEntries   match entries referenced by the rule
+     * @param createdEntries match entries created for the rule
+     * @param batch          flow rules owned by the rule, staged as they are installed
+     */
+    RuleEntries(Stage stage, MatchResult matchResult, List<MatchEntry> matchEntries,
+                List<MatchEntry> createdEntries, FlowRuleBatch batch) {
+        this(stage, matchResult, matchEntries, createdEntries, batch, null);
+    }
+
+    /**
+     * Create the entries of an instance rule, which may belong to a group.
+     * The entries of the group are owned by the group, not by the rule.
+     *
+     * @param stage          stage of the rule
+     * @param matchResult    match result of the rule
+     * @param matchEntries   match entries referenced by the rule
+     * @param createdEntries match entries created for the rule
+     * @param batch          flow rules owned by the rule, staged as they are installed
+     * @param group          group of the rule, may be null
+     */
+    RuleEntries(Stage stage, MatchResult matchResult, List<MatchEntry> matchEntries,
+                List<MatchEntry> createdEntries, FlowRuleBatch batch, MatchGroup group) {
+        this.stage = stage;
+        this.matchResult = matchResult;
+        this.matchEntries = ImmutableList.copyOf(matchEntries);
+        this.createdEntries = ImmutableList.copyOf(createdEntries);
+        this.batch = batch;
+        this.group = group;
+    }
+
+    /**
+     * Get the stage of the rule.
+     *
+     * @return stage
+     */
+    Stage getStage() {
+        return stage;
+    }
+
+    /**
+     * Get the match result of the rule.
+     *
+     * @return match result
+     */
+    MatchResult getMatchResult() {
+        return matchResult;
+    }
+
+    /**
+     * Get the match entries referenced by the rule, which may be shared with
+     * other rules of the stage.
+     *
+     * @return match entries
+     */
+    List<MatchEntry> getMatchEntries() {
+        return matchEntries;
+    }
+
+    /**
+     * Get the match entries which did not exist before the rule was compiled,
+     * and have to be installed with it.
+     *
+     * @return created match entries
+     */
+    List<MatchEntry> getCreatedEntries() {
+        return createdEntries;
+    }
+
+    /**
+     * Get flow rules owned by the rule.
+     *
+     * @return flow rule batch
+     */
+    FlowRuleBatch getBatch() {
+        return batch;
+    }
+
+    /**
+     * Get the group of the rule.
+     *
+     * @return match group, or null if the rule is not grouped
+     */
+    MatchGroup getGroup() {
+        return group;
+    }
+
+    /**
+     * Drop the references of a rule which has never been installed.
+     */
+    void discard() {
+        discard(stage, matchEntries);
+    }
+
+    /**
+     * Drop references of match entries which have never been installed.
+     *
+     * @param stage   stage of the entries
+     * @param entries match entries
+     */
+    static void discard(Stage stage, List<MatchEntry> entries) {
+        entries.forEach(entry -> {
+            if (stage.releaseMatchEntry(entry)) {
+                stage.freeMatchEntry(entry);
+            }
+        });
+    }
+}
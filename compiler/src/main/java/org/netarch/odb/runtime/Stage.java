@@ -1,25 +1,35 @@
 package org.netarch.odb.runtime;
 
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import org.netarch.odb.compiler.Vp4Interpreter;
-import org.netarch.odb.model.FieldModel;
+import com.google.common.collect.Sets;
 import org.netarch.odb.model.MatchKeyModel;
 import org.netarch.odb.model.TableModel;
+import org.netarch.odb.runtime.MatchResultAllocator.Region;
+import org.onosproject.bmv2.api.runtime.Bmv2ExtensionSelector;
+import org.onosproject.net.flow.FlowRule;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
 public class Stage {
-    private static Short stdMatchResultCounter = 1;
-    private static Short metadataMatchResultCounter = 1;
-    private static Short headerMatchResultCounter = 1;
     private int stageId;
+    private int programId;
     private TableModel model;
-    private int maxHeaderBitLength;
-    private int maxMetadataBitLength;
+    private MatchResultAllocator allocator;
+    private Map<Region, Map<Bmv2ExtensionSelector, MatchEntry>> matchEntries;
+    private Map<Region, PriorityAllocator> priorities;
+    private Set<MatchEntry> unsent;
+    private Set<MatchEntry> moves;
+    private Map<Bmv2ExtensionSelector, MatchGroup> groups;
     private String nextStage;
-    private Map<String, MatchKeyModel> matchKeys;
+    private KeyLayout layout;
     private List<MatchKeyModel> headerMatchKeys;
     private List<MatchKeyModel> metadataMatchKeys;
     private List<MatchKeyModel> stdMetatdataKeys;
@@ -27,54 +37,68 @@ public class Stage {
     /**
      * Create a stage with stage id and logical table model.
      *
-     * @param stageId    stage id
+     * @param stageId    VP4 stage id the table is placed on
+     * @param programId  program id of the pass of the table
      * @param tableModel table model
+     * @param allocator  match result allocator of the stage on the device
      */
-    public Stage(int stageId, TableModel tableModel) {
+    public Stage(int stageId, int programId, TableModel tableModel, MatchResultAllocator allocator) {
         this.stageId = stageId;
+        this.programId = programId;
         this.model = tableModel;
-        this.maxHeaderBitLength = 0;
-        this.maxMetadataBitLength = 0;
-        this.nextStage = null;
-        this.matchKeys = Maps.newHashMap();
-        this.headerMatchKeys = Lists.newArrayList();
-        this.metadataMatchKeys = Lists.newArrayList();
-        this.stdMetatdataKeys = Lists.newArrayList();
-
-        tableModel.getKeys().forEach(key -> {
-            matchKeys.put(key.getName(), key);
-            FieldModel field = key.field();
-            if (field.isMetadata()) {
-                if (field.getHeaderName().equals(Vp4Interpreter.STD_META)) {
-                    this.stdMetatdataKeys.add(key);
-                } else {
-                    if (field.getBitOffset() + field.getHeader().getBitOffset() > this.maxMetadataBitLength) {
-                        this.maxMetadataBitLength = field.getBitOffset() + field.getHeader().getBitOffset();
-                    }
-                    metadataMatchKeys.add(key);
-                }
-            } else {
-                if (field.getBitOffset() + field.getHeader().getBitOffset() > this.maxMetadataBitLength) {
-                    this.maxHeaderBitLength = field.getBitOffset() + field.getHeader().getBitOffset();
-                }
-                headerMatchKeys.add(key);
-            }
-        });
-
-
+        this.allocator = allocator;
+        this.matchEntries = Maps.newEnumMap(Region.class);
+        for (Region region : Region.values()) {
+            this.matchEntries.put(region, Maps.newHashMap());
+        }
+        this.priorities = Maps.newEnumMap(Region.class);
+        for (Region region : Region.values()) {
+            this.priorities.put(region, new PriorityAllocator());
+        }
+        this.unsent = Sets.newHashSet();
+        this.moves = Sets.newLinkedHashSet();
+        this.groups = Maps.newHashMap();
+        this.layout = new KeyLayout(tableModel);
+        this.headerMatchKeys = keysOf(layout.getHeaderSlots());
+        this.metadataMatchKeys = keysOf(layout.getMetadataSlots());
+        this.stdMetatdataKeys = keysOf(layout.getStdMetadataSlots());
         this.nextStage = tableModel.getNext();
+    }
 
+    private static List<MatchKeyModel> keysOf(List<KeyLayout.Slot> slots) {
+        List<MatchKeyModel> keys = Lists.newArrayListWithCapacity(slots.size());
+        slots.forEach(slot -> keys.add(slot.getKey()));
+        return Collections.unmodifiableList(keys);
     }
 
     /**
      * Get the stage id.
      *
-     * @return stage id
+     * @return VP4 stage id
      */
     public byte getId() {
         return (byte) stageId;
     }
 
+    /**
+     * Get the program id the entries of the stage match, which is the
+     * instance id in the first pass of the program.
+     *
+     * @return program id
+     */
+    public byte getProgramId() {
+        return (byte) programId;
+    }
+
+    /**
+     * Get the id of the logical table of the stage.
+     *
+     * @return table id
+     */
+    public int getTableId() {
+        return model.getId();
+    }
+
     /**
      * Get the table model of the stage
      *
@@ -100,23 +124,16 @@ public class Stage {
      * @return true if it belongs to the stage otherwise false
      */
     public boolean isTableKey(FlowKey key) {
-        boolean isTbalekey = false;
-        for (String name : matchKeys.keySet()) {
-            if (name.equals(key.getKeyName())) {
-                return true;
-            }
-        }
-        return false;
+        return layout.getSlot(key.getKeyName()) != null;
     }
 
     /**
-     * Get match key model from the stage.
+     * Get the key layout of the stage.
      *
-     * @param keyName match key name
-     * @return match key model
+     * @return key layout
      */
-    MatchKeyModel getMatchKey(String keyName) {
-        return matchKeys.get(keyName);
+    public KeyLayout getLayout() {
+        return layout;
     }
 
     /**
@@ -179,7 +196,7 @@ public class Stage {
      * @return get max header bit length
      */
     int getMaxHeaderBitLength() {
-        return maxHeaderBitLength;
+        return layout.getHeaderBitLength();
     }
 
     /**
@@ -188,7 +205,7 @@ public class Stage {
      * @return metadata bit length
      */
     int getMaxMetadataBitLength() {
-        return maxMetadataBitLength;
+        return layout.getMetadataBitLength();
     }
 
     /**
@@ -207,85 +224,325 @@ public class Stage {
      * @return this
      */
     public Stage setNextStage(String next) {
-        this.nextStage = nextStage;
+        this.nextStage = next;
         return this;
     }
 
     /**
-     * Compute the match result from the stage key.
+     * Get the next component after an action of the stage, the next stage if
+     * the table has no next component for the action.
      *
-     * @return match result
+     * @param actionName action name
+     * @return next table or condition, null at the end of the pipeline
      */
-    public MatchResult computeMatchResult(List<FlowKey> flowKeys) {
-        return new MatchResult(createStdMetadataMatchResult(),
-                createMetadataMatchResult(),
-                createHeaderMatchResult());
+    public String getNextStage(String actionName) {
+        Map<String, String> nextTables = model.getNextTables();
+        return nextTables.containsKey(actionName) ? nextTables.get(actionName) : nextStage;
     }
 
     /**
-     * Get match bitmap.
+     * Get the next components after the actions of the stage.
      *
-     * @return match bitmap
+     * @return next tables or conditions, with null at the end of the pipeline
      */
-    public Byte getMatchBitmap() {
-        byte matchType = 0;
+    public Set<String> getNextStages() {
+        Set<String> next = Sets.newHashSet(model.getNextTables().values());
+        next.add(nextStage);
+        return next;
+    }
 
-        if (isMatchHeader()) {
-            matchType |= 4;
+    /**
+     * Acquire the match entry of a region, for a rule of a rank. The rules of
+     * the stage with the same keys in the region share one entry and one
+     * match result, which takes the highest of their ranks. A key setting
+     * every bit of the region goes to the exact table, unless a ternary entry
+     * of the region has a higher rank: the exact table is looked up first,
+     * so its entries hide the overlapping ternary ones. A new rank may move
+     * the priority of other ranks of the region, or send the exact entries of
+     * lower ranks to the ternary table, the installed entries then wait in
+     * drainMoves to be installed again.
+     *
+     * @param region       match region
+     * @param selector     ternary selector of the entry, which identifies it
+     * @param rank         rank of the rule
+     * @param factory      builds the ternary flow rule of the entry from its shifted match result and its priority
+     * @param exactFactory builds the exact flow rule of the entry from its shifted match result,
+     *                     or null if the key does not set every bit of the region
+     * @param created      receives the entry if it has been created
+     * @return match entry
+     */
+    synchronized MatchEntry acquireMatchEntry(Region region,
+                                              Bmv2ExtensionSelector selector,
+                                              int rank,
+                                              BiFunction<Long, Integer, FlowRule> factory,
+                                              Function<Long, FlowRule> exactFactory,
+                                              Collection<MatchEntry> created) {
+        Map<Bmv2ExtensionSelector, MatchEntry> entries = matchEntries.get(region);
+        MatchEntry entry = entries.get(selector);
+        if (entry == null) {
+            short id = allocator.allocate(region);
+            try {
+                if (exactFactory != null && rank >= priorities.get(region).getHighestRank()) {
+                    entry = new MatchEntry(region, selector, id, rank, factory,
+                            exactFactory.apply(region.toMatchResult(id)));
+                } else {
+                    int priority = acquirePriority(region, rank);
+                    try {
+                        entry = new MatchEntry(region, selector, id, rank, priority, factory);
+                    } catch (RuntimeException e) {
+                        priorities.get(region).release(rank);
+                        throw e;
+                    }
+                }
+            } catch (RuntimeException e) {
+                allocator.release(region, id);
+                throw e;
+            }
+            entries.put(selector, entry);
+            unsent.add(entry);
+            created.add(entry);
+        } else if (entry.isExact() && entry.getRank() < rank) {
+            entry.raise(rank);
+        } else if (entry.isRanked() && entry.getRank() < rank) {
+            int priority = acquirePriority(region, rank);
+            priorities.get(region).release(entry.getRank());
+            relabel(entry, rank, priority);
         }
+        entry.retain();
+        return entry;
+    }
 
-        if (isMatchMetadata()) {
-            matchType |= 2;
+    /**
+     * Acquire the priority of a rank in a region, and move the entries of
+     * the ranks whose priority changed. The exact entries of lower ranks go
+     * to the ternary table, so that they do not hide the entries of the rank.
+     *
+     * @param region match region
+     * @param rank   rank
+     * @return flow rule priority of the rank
+     */
+    synchronized int acquirePriority(Region region, int rank) {
+        allocatePriority(region, rank);
+        List<MatchEntry> hidden = Lists.newArrayList();
+        matchEntries.get(region).values().forEach(entry -> {
+            if (entry.isExact() && entry.getRank() < rank) {
+                hidden.add(entry);
+            }
+        });
+        for (MatchEntry entry : hidden) {
+            int priority = allocatePriority(region, entry.getRank());
+            entry.demote();
+            relabel(entry, entry.getRank(), priority);
         }
+        /* The ranks of the demoted entries may have spread the rank again. */
+        return priorities.get(region).getPriority(rank);
+    }
 
-        if (isMatchStdMetadata()) {
-            matchType |= 1;
+    private int allocatePriority(Region region, int rank) {
+        Map<Integer, Integer> moved = Maps.newHashMap();
+        int priority = priorities.get(region).acquire(rank, moved);
+        if (!moved.isEmpty()) {
+            matchEntries.get(region).values().forEach(entry -> {
+                Integer newPriority = entry.isRanked() ? moved.get(entry.getRank()) : null;
+                if (newPriority != null) {
+                    relabel(entry, entry.getRank(), newPriority);
+                }
+            });
         }
-        return matchType;
+        return priority;
     }
 
     /**
-     * Allocate a new standard metadata match result
+     * Release the priority of a rank in a region.
      *
-     * @return new std if match standard metadata
+     * @param region match region
+     * @param rank   rank
      */
-    private Short createStdMetadataMatchResult() {
-        if (isMatchStdMetadata()) {
-            Short ret = stdMatchResultCounter;
-            stdMatchResultCounter = (short) ((ret + 1) % 20000);
-            return ret;
+    synchronized void releasePriority(Region region, int rank) {
+        priorities.get(region).release(rank);
+    }
+
+    private void relabel(MatchEntry entry, int rank, int priority) {
+        if (unsent.contains(entry)) {
+            entry.relabel(rank, priority);
         } else {
-            return 0;
+            entry.move(rank, priority);
+            moves.add(entry);
         }
     }
 
     /**
-     * Allocate a new metadata match result.
+     * Whether the entries of every ternary region the stage matches already
+     * have a rank, so that acquiring it moves no entry.
      *
-     * @return new metadata match result
+     * @param rank rank
+     * @return true if every region has the rank, otherwise false
      */
-    private Short createMetadataMatchResult() {
-        if (isMatchMetadata()) {
-            Short ret = metadataMatchResultCounter;
-            metadataMatchResultCounter = (short) ((ret + 1) % 20000);
-            return ret;
-        } else {
-            return 0;
+    synchronized boolean hasRank(int rank) {
+        return (!isMatchHeader() || priorities.get(Region.HEADER).contains(rank))
+                && (!isMatchMetadata() || priorities.get(Region.METADATA).contains(rank))
+                && (!isMatchStdMetadata() || priorities.get(Region.STD_METADATA).contains(rank));
+    }
+
+    /**
+     * Take the entries which moved to a new priority since the last call.
+     * The entries created since then are now taken as installed.
+     *
+     * @return installed flow rules, with the flow rules replacing them
+     */
+    synchronized Map<FlowRule, FlowRule> drainMoves() {
+        Map<FlowRule, FlowRule> drained = Maps.newLinkedHashMap();
+        moves.forEach(entry -> {
+            drained.put(entry.getFlowRule(), entry.getMoved());
+            entry.commitMove();
+        });
+        moves.clear();
+        unsent.clear();
+        return drained;
+    }
+
+    /**
+     * Release a match entry acquired by a rule.
+     *
+     * @param entry match entry
+     * @return true if no rule references the entry any more, so it has to be removed
+     */
+    synchronized boolean releaseMatchEntry(MatchEntry entry) {
+        if (entry.unref() > 0) {
+            return false;
+        }
+        matchEntries.get(entry.getRegion()).remove(entry.getSelector(), entry);
+        if (entry.isRanked()) {
+            priorities.get(entry.getRegion()).release(entry.getRank());
+        }
+        unsent.remove(entry);
+        if (moves.remove(entry)) {
+            entry.dropMove();
         }
+        return true;
     }
 
     /**
-     * Allocate a new header match hresult.
+     * Free the match result of an unreferenced entry once its flow rule is
+     * removed, so that it can be reused.
      *
-     * @return new header match result
+     * @param entry match entry
      */
-    private Short createHeaderMatchResult() {
+    void freeMatchEntry(MatchEntry entry) {
+        allocator.release(entry.getRegion(), entry.getId());
+    }
+
+    /**
+     * Add a reference to a match entry already referenced by a rule.
+     *
+     * @param entry match entry
+     */
+    synchronized void retainMatchEntry(MatchEntry entry) {
+        entry.retain();
+    }
+
+    /**
+     * Allocate a match result of a region which is not bound to a key, for
+     * the minimised entries of a group.
+     *
+     * @param region match region
+     * @return match result of the region
+     */
+    short allocateMatchResult(Region region) {
+        return allocator.allocate(region);
+    }
+
+    /**
+     * Free a match result allocated for a group which is never installed.
+     *
+     * @param region match region
+     * @param id     match result of the region
+     */
+    void freeMatchResult(Region region, short id) {
+        allocator.release(region, id);
+    }
+
+    /**
+     * Add a group of rules. The keys the rules had before point to the group,
+     * until the group is removed.
+     *
+     * @param group match group
+     */
+    synchronized void addGroup(MatchGroup group) {
+        group.getKeys().forEach(key -> groups.put(key, group));
+    }
+
+    /**
+     * Get the group which took over a match entry key.
+     *
+     * @param key selector of a match entry
+     * @return match group, or null if the key is not grouped
+     */
+    synchronized MatchGroup getGroup(Bmv2ExtensionSelector key) {
+        return groups.get(key);
+    }
+
+    /**
+     * Remove a group of rules.
+     *
+     * @param group match group
+     * @return true if the group was in the stage, otherwise false
+     */
+    synchronized boolean removeGroup(MatchGroup group) {
+        boolean removed = false;
+        for (Bmv2ExtensionSelector key : group.getKeys()) {
+            removed |= groups.remove(key, group);
+        }
+        return removed;
+    }
+
+    /**
+     * Get the groups of the stage.
+     *
+     * @return match groups
+     */
+    synchronized Set<MatchGroup> getGroups() {
+        return ImmutableSet.copyOf(groups.values());
+    }
+
+    /**
+     * Whether some rules of the stage are grouped.
+     *
+     * @return true if the stage has groups, otherwise false
+     */
+    synchronized boolean hasGroups() {
+        return !groups.isEmpty();
+    }
+
+    /**
+     * Get number of match entries of a region.
+     *
+     * @param region match region
+     * @return number of match entries
+     */
+    public synchronized int getMatchEntryCount(Region region) {
+        return matchEntries.get(region).size();
+    }
+
+    /**
+     * Get match bitmap.
+     *
+     * @return match bitmap
+     */
+    public Byte getMatchBitmap() {
+        byte matchType = 0;
+
         if (isMatchHeader()) {
-            Short ret = headerMatchResultCounter;
-            headerMatchResultCounter = (short) ((ret + 1) % 20000);
-            return ret;
-        } else {
-            return 0;
+            matchType |= 4;
+        }
+
+        if (isMatchMetadata()) {
+            matchType |= 2;
+        }
+
+        if (isMatchStdMetadata()) {
+            matchType |= 1;
         }
+        return matchType;
     }
 }
@@ -0,0 +1,82 @@
+package org.netarch.odb.runtime;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+
+/**
+ * Occupancy of a VP4 table on a device.
+ */
+public class TableHeadroom {
+    private final int tableId;
+    private final String tableName;
+    private final int used;
+    private final int capacity;
+
+    /**
+     * Create the headroom of a table.
+     *
+     * @param tableId   VP4 table id
+     * @param tableName VP4 table name
+     * @param used      entries installed or being installed
+     * @param capacity  max size of the table, 0 if unbounded
+     */
+    public TableHeadroom(int tableId, String tableName, int used, int capacity) {
+        this.tableId = tableId;
+        this.tableName = tableName;
+        this.used = used;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Get the VP4 table id.
+     *
+     * @return table id
+     */
+    public int getTableId() {
+        return tableId;
+    }
+
+    /**
+     * Get the VP4 table name.
+     *
+     * @return table name
+     */
+    public String getTableName() {
+        return tableName;
+    }
+
+    /**
+     * Get the number of entries installed or being installed.
+     *
+     * @return used entries
+     */
+    public int getUsed() {
+        return used;
+    }
+
+    /**
+     * Get the max size of the table.
+     *
+     * @return capacity, 0 if unbounded
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Get the number of entries which can still be installed.
+     *
+     * @return headroom, Integer.MAX_VALUE if unbounded
+     */
+    public int getHeadroom() {
+        return capacity <= 0 ? Integer.MAX_VALUE : capacity - used;
+    }
+
+    @Override
+    public String toString() {
+        return toStringHelper(this)
+                .add("table", tableName)
+                .add("used", used)
+                .add("capacity", capacity)
+                .toString();
+    }
+}
@@ -0,0 +1,130 @@
+package org.netarch.odb.runtime;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import org.netarch.odb.compiler.Vp4Interpreter;
+import org.onosproject.bmv2.api.context.Bmv2Configuration;
+import org.onosproject.bmv2.api.context.Bmv2TableModel;
+import org.onosproject.net.flow.FlowRule;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Live entry count of the VP4 tables of one device. Entries are reserved
+ * before their flow rules are applied, so a batch which would overflow a
+ * table is rejected before any of it reaches the device.
+ */
+public class TableOccupancy {
+    private final String name;
+    private final Bmv2Configuration configuration;
+    private final Map<Integer, Integer> capacities;
+    private final Map<Integer, Integer> used;
+
+    /**
+     * Create the occupancy of the tables of a device.
+     *
+     * @param name          name of the device
+     * @param configuration bmv2 configuration of VP4, giving the table sizes
+     */
+    public TableOccupancy(String name, Bmv2Configuration configuration) {
+        this.name = name;
+        this.configuration = configuration;
+        this.capacities = Maps.newHashMap();
+        this.used = Maps.newTreeMap();
+    }
+
+    /**
+     * Count the flow rules of each table.
+     *
+     * @param rules flow rules
+     * @return number of rules per table id
+     */
+    public static Map<Integer, Integer> countByTable(Collection<FlowRule> rules) {
+        Map<Integer, Integer> counts = Maps.newHashMap();
+        rules.forEach(rule -> counts.merge(rule.tableId(), 1, Integer::sum));
+        return counts;
+    }
+
+    /**
+     * Reserve entries in the tables. Nothing is reserved if one of the tables
+     * does not have enough room.
+     *
+     * @param entries number of entries per table id
+     */
+    public synchronized void reserve(Map<Integer, Integer> entries) {
+        entries.forEach((tableId, count) -> {
+            int capacity = capacity(tableId);
+            int current = used.getOrDefault(tableId, 0);
+            if (capacity > 0 && current + count > capacity) {
+                throw new RuntimeException("Table " + Vp4Interpreter.getTableName(tableId) + " of " + name +
+                        " is full: " + current + " of " + capacity + " entries used, " + count + " more requested");
+            }
+        });
+        entries.forEach((tableId, count) -> used.merge(tableId, count, Integer::sum));
+    }
+
+    /**
+     * Count entries which move from another table without checking the room
+     * left, since the entries they replace are already installed.
+     *
+     * @param entries number of entries per table id
+     */
+    public synchronized void claim(Map<Integer, Integer> entries) {
+        entries.forEach((tableId, count) -> used.merge(tableId, count, Integer::sum));
+    }
+
+    /**
+     * Release entries which are removed, or which failed to be installed.
+     *
+     * @param entries number of entries per table id
+     */
+    public synchronized void release(Map<Integer, Integer> entries) {
+        entries.forEach((tableId, count) -> {
+            int remaining = used.getOrDefault(tableId, 0) - count;
+            if (remaining > 0) {
+                used.put(tableId, remaining);
+            } else {
+                used.remove(tableId);
+            }
+        });
+    }
+
+    /**
+     * Get the number of entries used in a table.
+     *
+     * @param tableId VP4 table id
+     * @return used entries
+     */
+    public synchronized int getUsed(int tableId) {
+        return used.getOrDefault(tableId, 0);
+    }
+
+    /**
+     * Get the headroom of every VP4 table of the device, in table id order.
+     *
+     * @return headroom of the tables
+     */
+    public synchronized List<TableHeadroom> getHeadroom() {
+        ImmutableList.Builder<TableHeadroom> builder = ImmutableList.builder();
+        Vp4Interpreter.getTableIds().forEach(tableId -> builder.add(
+                new TableHeadroom(tableId, Vp4Interpreter.getTableName(tableId),
+                        used.getOrDefault(tableId, 0), capacity(tableId))));
+        return builder.build();
+    }
+
+    /**
+     * Get the max size of a table.
+     *
+     * @param tableId VP4 table id
+     * @return max size, 0 if unbounded
+     */
+    private int capacity(int tableId) {
+        return capacities.computeIfAbsent(tableId, id -> {
+            String tableName = Vp4Interpreter.getTableName(id);
+            Bmv2TableModel table = tableName == null ? null : configuration.table(tableName);
+            return table == null ? 0 : table.maxSize();
+        });
+    }
+}
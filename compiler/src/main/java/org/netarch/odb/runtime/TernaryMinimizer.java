@@ -0,0 +1,165 @@
+package org.netarch.odb.runtime;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Sets;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Minimisation of ternary keys which lead to the same match result. Keys
+ * with the same mask whose values only differ in one bit of the mask are
+ * merged into one key without the bit, as aligned prefixes and ranges are,
+ * and keys covered by another key are dropped. The minimised keys match the
+ * same values as the given keys, and are never more numerous.
+ */
+public final class TernaryMinimizer {
+
+    private TernaryMinimizer() {
+    }
+
+    /**
+     * Minimise ternary keys.
+     *
+     * @param keys ternary keys of the same width
+     * @return minimised keys
+     */
+    public static List<Key> minimize(Collection<Key> keys) {
+        Set<Key> current = Sets.newLinkedHashSet(keys);
+        int size;
+        do {
+            size = current.size();
+            current = mergeAdjacent(dropCovered(current));
+        } while (current.size() < size);
+        return ImmutableList.copyOf(current);
+    }
+
+    private static Set<Key> dropCovered(Set<Key> keys) {
+        Set<Key> kept = Sets.newLinkedHashSet();
+        for (Key key : keys) {
+            boolean covered = false;
+            for (Key other : keys) {
+                if (other != key && other.covers(key)) {
+                    covered = true;
+                    break;
+                }
+            }
+            if (!covered) {
+                kept.add(key);
+            }
+        }
+        return kept;
+    }
+
+    /*
+     * Each key is merged at most once a round, starting from its lowest
+     * masked bit, so a round never adds keys. A key left alone has no free
+     * partner, otherwise it would have found it.
+     */
+    private static Set<Key> mergeAdjacent(Set<Key> keys) {
+        Set<Key> merged = Sets.newLinkedHashSet();
+        Set<Key> used = Sets.newHashSet();
+        for (Key key : keys) {
+            if (used.contains(key)) {
+                continue;
+            }
+            used.add(key);
+            Key widened = key;
+            for (int bit = key.mask.getBitWidth() - 1; bit >= 0; bit--) {
+                if (!key.mask.getBit(bit)) {
+                    continue;
+                }
+                Key partner = key.flip(bit);
+                if (!used.contains(partner) && keys.contains(partner)) {
+                    used.add(partner);
+                    widened = key.widen(bit);
+                    break;
+                }
+            }
+            merged.add(widened);
+        }
+        return merged;
+    }
+
+    /**
+     * Value and mask of a ternary match. The bits of the value outside the
+     * mask are cleared.
+     */
+    public static final class Key {
+        private final BitVector value;
+        private final BitVector mask;
+
+        /**
+         * Create a ternary key.
+         *
+         * @param value value, not modified
+         * @param mask  mask of the same width, not modified
+         */
+        public Key(BitVector value, BitVector mask) {
+            this.value = value.copy().and(mask);
+            this.mask = mask.copy();
+        }
+
+        /**
+         * Get the value of the key.
+         *
+         * @return value, must not be modified
+         */
+        public BitVector getValue() {
+            return value;
+        }
+
+        /**
+         * Get the mask of the key.
+         *
+         * @return mask, must not be modified
+         */
+        public BitVector getMask() {
+            return mask;
+        }
+
+        /**
+         * Whether the key matches every value another key matches.
+         *
+         * @param other ternary key
+         * @return true if the key covers the other key, otherwise false
+         */
+        boolean covers(Key other) {
+            return other.mask.copy().and(mask).equals(mask)
+                    && other.value.copy().and(mask).equals(value);
+        }
+
+        private Key flip(int bit) {
+            BitVector flipped = value.copy();
+            if (value.getBit(bit)) {
+                flipped.clearBits(bit, 1);
+            } else {
+                flipped.setOnes(bit, 1);
+            }
+            return new Key(flipped, mask);
+        }
+
+        private Key widen(int bit) {
+            return new Key(value, mask.copy().clearBits(bit, 1));
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(value, mask);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return value.equals(other.value) && mask.equals(other.mask);
+        }
+    }
+}
@@ -1,13 +1,23 @@
 package org.netarch.odb.service;
 
 import com.eclipsesource.json.JsonObject;
+import org.netarch.odb.compiler.StagePlacement;
 import org.netarch.odb.model.ProgramModel;
+import org.netarch.odb.runtime.DeploymentReport;
+import org.netarch.odb.runtime.InstallReport;
 import org.netarch.odb.runtime.Instance;
+import org.netarch.odb.runtime.InstanceRule;
+import org.netarch.odb.runtime.TableHeadroom;
+import org.netarch.odb.runtime.TableOccupancy;
+import org.netarch.odb.utils.FlowRuleBatch;
 import org.onosproject.bmv2.api.context.Bmv2Configuration;
 import org.onosproject.net.DeviceId;
 import org.onosproject.net.flow.FlowRule;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 public interface CompilerService {
     /**
@@ -28,12 +38,49 @@ public interface CompilerService {
     Instance run(ProgramModel program, DeviceId deviceId, int policyId);
 
     /**
-     * Stop an instance running on the data plane.
+     * Run a program on the data plane. The future completes when the config
+     * entries of the instance are on the device.
+     *
+     * @param program  program model
+     * @param deviceId target device
+     * @param policyId policy id
+     * @return future of the instance running on the data plane
+     */
+    CompletableFuture<Instance> runAsync(ProgramModel program, DeviceId deviceId, int policyId);
+
+    /**
+     * Run a program on several devices concurrently. Each device gets its
+     * own instance, and its operations stay in order. The future completes
+     * when every device has succeeded or failed.
+     *
+     * @param program   program model
+     * @param deviceIds target devices
+     * @param policyId  policy id
+     * @return future of the report with the instance and the time of each device
+     */
+    CompletableFuture<DeploymentReport> runOnDevices(ProgramModel program,
+                                                     Collection<DeviceId> deviceIds,
+                                                     int policyId);
+
+    /**
+     * Stop an instance running on the data plane. Its entries are removed
+     * from the device, and its ids are released once they are removed.
      *
      * @param instance running instance
      */
     void stop(Instance instance);
 
+    /**
+     * Replace the program of a running instance. Only the entries of the
+     * stages which changed are installed or removed, the other stages keep
+     * forwarding during the update.
+     *
+     * @param instance running instance
+     * @param newModel new program model
+     * @return future of the report of the rules moved to the new program
+     */
+    CompletableFuture<InstallReport<InstanceRule>> update(Instance instance, ProgramModel newModel);
+
     /**
      * Install a rule into devices.
      *
@@ -42,6 +89,40 @@ public interface CompilerService {
      */
     CompilerService installRule(FlowRule rule);
 
+    /**
+     * Install rules into devices with a single flow rule operation.
+     *
+     * @param rules flow rules (provided by ONOS)
+     * @return this
+     */
+    CompilerService installRules(Collection<FlowRule> rules);
+
+    /**
+     * Install a batch of rules into devices. Stages of the batch are applied
+     * in order, and the callback is called once with the result of each rule.
+     *
+     * @param batch    flow rule batch
+     * @param callback result callback, may be null
+     * @return this
+     */
+    CompilerService installRules(FlowRuleBatch batch, Consumer<InstallReport<FlowRule>> callback);
+
+    /**
+     * Install a rule into devices.
+     *
+     * @param rule flow rule (provided by ONOS)
+     * @return future completed when the flow rule subsystem reports the result
+     */
+    CompletableFuture<InstallReport<FlowRule>> installRuleAsync(FlowRule rule);
+
+    /**
+     * Install a batch of rules into devices.
+     *
+     * @param batch flow rule batch
+     * @return future completed when the flow rule subsystem reports the result
+     */
+    CompletableFuture<InstallReport<FlowRule>> installRulesAsync(FlowRuleBatch batch);
+
     /**
      * Remove a rule from the device.
      *
@@ -50,6 +131,32 @@ public interface CompilerService {
      */
     CompilerService removeRule(FlowRule rule);
 
+    /**
+     * Get the live entry count of the VP4 tables of a device. Instances
+     * reserve the entries of their rules in it before installing them.
+     *
+     * @param deviceId device id
+     * @return table occupancy of the device
+     */
+    TableOccupancy getTableOccupancy(DeviceId deviceId);
+
+    /**
+     * Get the entries left in each VP4 table of a device.
+     *
+     * @param deviceId device id
+     * @return headroom of the tables
+     */
+    List<TableHeadroom> getHeadroom(DeviceId deviceId);
+
+    /**
+     * Get the placement of the tables of a program on the VP4 stages, with
+     * the number of stages a packet traverses.
+     *
+     * @param program program model
+     * @return stage placement
+     */
+    StagePlacement getPlacement(ProgramModel program);
+
     /**
      * Get all devices.
      *
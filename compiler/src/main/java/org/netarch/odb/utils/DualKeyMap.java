@@ -42,7 +42,8 @@ public class DualKeyMap<T> {
      * @return the object
      */
     public T get(String name) {
-        return get(strToIntMap.get(strToIntMap.getOrDefault(name, null)));
+        Integer id = strToIntMap.get(name);
+        return id == null ? null : get(id);
     }
 
     /**
@@ -0,0 +1,278 @@
+package org.netarch.odb.utils;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.netarch.odb.runtime.InstallReport;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleOperation;
+import org.onosproject.net.flow.FlowRuleOperations;
+import org.onosproject.net.flow.FlowRuleOperationsContext;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+public class FlowRuleBatch {
+    private final List<List<FlowRuleOperation>> stages;
+    private int size;
+
+    /**
+     * Create a batch with a fixed number of ordered stages. All the
+     * operations of a stage are applied before the next stage starts.
+     *
+     * @param stageNum number of stages
+     */
+    public FlowRuleBatch(int stageNum) {
+        this.stages = Lists.newArrayListWithCapacity(stageNum);
+        for (int i = 0; i < stageNum; i++) {
+            this.stages.add(Lists.newArrayList());
+        }
+        this.size = 0;
+    }
+
+    /**
+     * Create a batch with a single stage.
+     */
+    public FlowRuleBatch() {
+        this(1);
+    }
+
+    /**
+     * Add a flow rule into the stage.
+     *
+     * @param stage stage index
+     * @param rule  flow rule
+     * @return this
+     */
+    public FlowRuleBatch add(int stage, FlowRule rule) {
+        return operation(stage, new FlowRuleOperation(rule, FlowRuleOperation.Type.ADD));
+    }
+
+    /**
+     * Remove a flow rule in the stage.
+     *
+     * @param stage stage index
+     * @param rule  flow rule
+     * @return this
+     */
+    public FlowRuleBatch remove(int stage, FlowRule rule) {
+        return operation(stage, new FlowRuleOperation(rule, FlowRuleOperation.Type.REMOVE));
+    }
+
+    /**
+     * Copy the operations of another batch, stage by stage.
+     *
+     * @param other       source batch
+     * @param stageOffset index of the stage receiving the first stage of the source
+     * @return this
+     */
+    public FlowRuleBatch merge(FlowRuleBatch other, int stageOffset) {
+        for (int i = 0; i < other.stages.size(); i++) {
+            for (FlowRuleOperation op : other.stages.get(i)) {
+                operation(stageOffset + i, op);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Remove the rules of another batch, stage by stage.
+     *
+     * @param other       source batch
+     * @param stageOffset index of the stage receiving the first stage of the source
+     * @return this
+     */
+    public FlowRuleBatch mergeRemoval(FlowRuleBatch other, int stageOffset) {
+        for (int i = 0; i < other.stages.size(); i++) {
+            for (FlowRuleOperation op : other.stages.get(i)) {
+                remove(stageOffset + i, op.rule());
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Add an operation into the stage.
+     *
+     * @param stage     stage index
+     * @param operation flow rule operation
+     * @return this
+     */
+    private FlowRuleBatch operation(int stage, FlowRuleOperation operation) {
+        if (stage < 0 || stage >= stages.size()) {
+            throw new RuntimeException("Wrong batch stage " + stage);
+        }
+        stages.get(stage).add(operation);
+        size++;
+        return this;
+    }
+
+    /**
+     * Get the number of stages of the batch, empty ones included.
+     *
+     * @return number of stages
+     */
+    public int getStageNum() {
+        return stages.size();
+    }
+
+    /**
+     * Get number of operations in the batch.
+     *
+     * @return number of operations
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Whether the batch contains no operation.
+     *
+     * @return true if empty, otherwise false
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Get all the flow rules of the batch in stage order.
+     *
+     * @return flow rule list
+     */
+    public List<FlowRule> rules() {
+        ImmutableList.Builder<FlowRule> builder = ImmutableList.builder();
+        stages.forEach(stage -> stage.forEach(op -> builder.add(op.rule())));
+        return builder.build();
+    }
+
+    /**
+     * Get the flow rules of one type of operation in stage order.
+     *
+     * @param type operation type
+     * @return flow rule list
+     */
+    public List<FlowRule> rules(FlowRuleOperation.Type type) {
+        ImmutableList.Builder<FlowRule> builder = ImmutableList.builder();
+        stages.forEach(stage -> stage.forEach(op -> {
+            if (op.type() == type) {
+                builder.add(op.rule());
+            }
+        }));
+        return builder.build();
+    }
+
+    /**
+     * Get the flow rules of one stage.
+     *
+     * @param stage stage index
+     * @return flow rule list
+     */
+    public List<FlowRule> rules(int stage) {
+        if (stage < 0 || stage >= stages.size()) {
+            throw new RuntimeException("Wrong batch stage " + stage);
+        }
+        ImmutableList.Builder<FlowRule> builder = ImmutableList.builder();
+        stages.get(stage).forEach(op -> builder.add(op.rule()));
+        return builder.build();
+    }
+
+    /**
+     * Drop the removals of the flow rules the batch also adds. Flow rules
+     * which only differ by their treatment are equal, and adding one already
+     * modifies the installed rule, which must not be removed afterwards.
+     *
+     * @return this
+     */
+    public FlowRuleBatch dropOverriddenRemovals() {
+        Set<FlowRule> added = Sets.newHashSet(rules(FlowRuleOperation.Type.ADD));
+        stages.forEach(stage -> stage.removeIf(op -> {
+            if (op.type() == FlowRuleOperation.Type.REMOVE && added.contains(op.rule())) {
+                size--;
+                return true;
+            }
+            return false;
+        }));
+        return this;
+    }
+
+    /**
+     * Build the flow rule operations. Empty stages are skipped, so the batch
+     * costs one round trip per non-empty stage.
+     *
+     * @param callback called once with the result of every rule, may be null
+     * @return flow rule operations
+     */
+    public FlowRuleOperations build(Consumer<InstallReport<FlowRule>> callback) {
+        FlowRuleOperations.Builder builder = FlowRuleOperations.builder();
+        boolean first = true;
+        for (List<FlowRuleOperation> stage : stages) {
+            if (stage.isEmpty()) {
+                continue;
+            }
+            if (!first) {
+                builder.newStage();
+            }
+            first = false;
+            stage.forEach(op -> {
+                switch (op.type()) {
+                    case ADD:
+                        builder.add(op.rule());
+                        break;
+                    case MODIFY:
+                        builder.modify(op.rule());
+                        break;
+                    case REMOVE:
+                        builder.remove(op.rule());
+                        break;
+                    default:
+                        break;
+                }
+            });
+        }
+
+        if (callback == null) {
+            return builder.build();
+        }
+        return builder.build(new ReportContext(rules(), callback));
+    }
+
+    /**
+     * Operations context which reports the batch result once. The flow rule
+     * subsystem only reports the failed rules, every other rule of the batch
+     * is considered as installed.
+     */
+    private static final class ReportContext implements FlowRuleOperationsContext {
+        private final List<FlowRule> rules;
+        private final Consumer<InstallReport<FlowRule>> callback;
+        private final AtomicBoolean reported = new AtomicBoolean(false);
+
+        ReportContext(List<FlowRule> rules, Consumer<InstallReport<FlowRule>> callback) {
+            this.rules = rules;
+            this.callback = callback;
+        }
+
+        @Override
+        public void onSuccess(FlowRuleOperations ops) {
+            if (reported.compareAndSet(false, true)) {
+                callback.accept(new InstallReport<>(rules, ImmutableList.of()));
+            }
+        }
+
+        @Override
+        public void onError(FlowRuleOperations ops) {
+            if (reported.compareAndSet(false, true)) {
+                Set<FlowRule> failed = Sets.newHashSet();
+                ops.stages().forEach(stage -> stage.forEach(op -> failed.add(op.rule())));
+                List<FlowRule> succeeded = Lists.newArrayList();
+                rules.forEach(rule -> {
+                    if (!failed.contains(rule)) {
+                        succeeded.add(rule);
+                    }
+                });
+                callback.accept(new InstallReport<>(succeeded, failed));
+            }
+        }
+    }
+}
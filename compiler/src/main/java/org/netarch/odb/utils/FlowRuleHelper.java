@@ -1,6 +1,8 @@
 package org.netarch.odb.utils;
 
 import org.netarch.odb.compiler.Vp4Interpreter;
+import org.onosproject.bmv2.api.runtime.Bmv2ExtensionSelector;
+import org.onosproject.bmv2.api.runtime.Bmv2ExtensionTreatment;
 import org.onosproject.core.ApplicationId;
 import org.onosproject.net.DeviceId;
 import org.onosproject.net.flow.DefaultFlowRule;
@@ -60,9 +62,19 @@ public class FlowRuleHelper {
      * @return this
      */
     public FlowRuleHelper withSelector(TrafficSelectorHelper trafficSelectorHelper) {
+        return withSelector(trafficSelectorHelper.build());
+    }
+
+    /**
+     * Set traffic selector with a built extension selector.
+     *
+     * @param selector extension selector
+     * @return this
+     */
+    public FlowRuleHelper withSelector(Bmv2ExtensionSelector selector) {
         this.builder.withSelector(DefaultTrafficSelector
                 .builder()
-                .extension(trafficSelectorHelper.build(), deviceId)
+                .extension(selector, deviceId)
                 .build());
         return this;
     }
@@ -74,9 +86,19 @@ public class FlowRuleHelper {
      * @return this
      */
     public FlowRuleHelper withTreatment(TrafficTreatmentHelper trafficTreatmentHelper) {
+        return withTreatment(trafficTreatmentHelper.build());
+    }
+
+    /**
+     * Set up traffic treatment with a built extension treatment.
+     *
+     * @param treatment extension treatment
+     * @return this
+     */
+    public FlowRuleHelper withTreatment(Bmv2ExtensionTreatment treatment) {
         this.builder.withTreatment(DefaultTrafficTreatment
                 .builder()
-                .extension(trafficTreatmentHelper.build(), this.deviceId)
+                .extension(treatment, this.deviceId)
                 .build());
         return this;
     }
@@ -0,0 +1,103 @@
+package org.netarch.odb.utils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class IdAllocator {
+    private final String name;
+    private final int capacity;
+    private final AtomicLongArray bitmap;
+    private final AtomicInteger hint;
+    private final AtomicInteger used;
+
+    /**
+     * Create a lock-free allocator of the ids from 1 to capacity. Id 0 is
+     * never allocated.
+     *
+     * @param name     name used in error messages
+     * @param capacity largest id
+     */
+    public IdAllocator(String name, int capacity) {
+        if (capacity <= 0) {
+            throw new RuntimeException("Wrong id allocator capacity " + capacity);
+        }
+        this.name = name;
+        this.capacity = capacity;
+        this.bitmap = new AtomicLongArray((capacity + 63) / 64);
+        this.hint = new AtomicInteger(0);
+        this.used = new AtomicInteger(0);
+
+        /* Mark the tail of the last word, so that it is never allocated. */
+        int tail = capacity % 64;
+        if (tail != 0) {
+            bitmap.set(bitmap.length() - 1, -1L << tail);
+        }
+    }
+
+    /**
+     * Allocate a free id.
+     *
+     * @return id between 1 and capacity
+     * @throws RuntimeException if every id is allocated
+     */
+    public int allocate() {
+        int words = bitmap.length();
+        int start = hint.get();
+        for (int n = 0; n < words; n++) {
+            int word = (start + n) % words;
+            long bits = bitmap.get(word);
+            while (bits != -1L) {
+                int bit = Long.numberOfTrailingZeros(~bits);
+                if (bitmap.compareAndSet(word, bits, bits | (1L << bit))) {
+                    hint.set(word);
+                    used.incrementAndGet();
+                    return word * 64 + bit + 1;
+                }
+                bits = bitmap.get(word);
+            }
+        }
+        throw new RuntimeException("No free id in " + name + ", all " + capacity + " ids are allocated.");
+    }
+
+    /**
+     * Release an allocated id.
+     *
+     * @param id allocated id
+     * @throws RuntimeException if the id is not allocated
+     */
+    public void release(int id) {
+        if (id <= 0 || id > capacity) {
+            throw new RuntimeException("Wrong id " + id + " for " + name);
+        }
+        int word = (id - 1) / 64;
+        long mask = 1L << ((id - 1) % 64);
+        while (true) {
+            long bits = bitmap.get(word);
+            if ((bits & mask) == 0) {
+                throw new RuntimeException("Id " + id + " of " + name + " is not allocated.");
+            }
+            if (bitmap.compareAndSet(word, bits, bits & ~mask)) {
+                used.decrementAndGet();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Get number of allocated ids.
+     *
+     * @return number of allocated ids
+     */
+    public int size() {
+        return used.get();
+    }
+
+    /**
+     * Get the largest id.
+     *
+     * @return capacity
+     */
+    public int capacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,170 @@
+package org.netarch.odb.utils;
+
+import com.google.common.collect.Lists;
+import org.onlab.util.ImmutableByteSequence;
+import org.onosproject.bmv2.api.context.Bmv2Configuration;
+import org.onosproject.bmv2.api.context.Bmv2FieldTypeModel;
+import org.onosproject.bmv2.api.context.Bmv2HeaderModel;
+import org.onosproject.bmv2.api.runtime.Bmv2ExactMatchParam;
+import org.onosproject.bmv2.api.runtime.Bmv2ExtensionSelector;
+import org.onosproject.bmv2.api.runtime.Bmv2MatchParam;
+import org.onosproject.bmv2.api.runtime.Bmv2TernaryMatchParam;
+import org.onosproject.bmv2.api.utils.Bmv2TranslatorUtils;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Selector of a table compiled against the configuration. The fields of the
+ * selector are resolved once into slots, and building a selector only fits
+ * the values into the slots, as Bmv2ExtensionSelector.Builder would do.
+ */
+public class SelectorTemplate {
+    private final Bmv2Configuration configuration;
+    private final List<Slot> slots;
+    private String[] keys;
+
+    /**
+     * Create an empty selector template.
+     *
+     * @param configuration bmv2 configuration
+     */
+    public SelectorTemplate(Bmv2Configuration configuration) {
+        this.configuration = configuration;
+        this.slots = Lists.newArrayList();
+        this.keys = new String[0];
+    }
+
+    /**
+     * Add a field to the selector.
+     *
+     * @param headerName header name
+     * @param fieldName  field name
+     * @return slot of the field
+     */
+    public Slot addSlot(String headerName, String fieldName) {
+        Bmv2HeaderModel header = configuration.header(headerName);
+        if (header == null) {
+            throw new RuntimeException("Can't find the header " + headerName);
+        }
+        Bmv2FieldTypeModel field = header.type().field(fieldName);
+        if (field == null) {
+            throw new RuntimeException("Can't find the field " + headerName + "." + fieldName);
+        }
+        Slot slot = new Slot(headerName + "." + fieldName, field.bitWidth());
+        slots.add(slot);
+        keys = Arrays.copyOf(keys, slots.size());
+        keys[keys.length - 1] = slot.key;
+        return slot;
+    }
+
+    /**
+     * Build a selector. The selector keeps the params array, and shares the
+     * keys of the slots with the other selectors of the template.
+     *
+     * @param params match parameters of the slots, in the order of the slots
+     * @return extension selector
+     */
+    public Bmv2ExtensionSelector build(Bmv2MatchParam... params) {
+        if (params.length != keys.length) {
+            throw new RuntimeException("Wrong number of match parameters " + params.length +
+                    ", expected " + keys.length);
+        }
+        return Bmv2ExtensionSelector.of(keys, params);
+    }
+
+    /**
+     * Field of a selector, with its key and bit width resolved.
+     */
+    public static final class Slot {
+        private final String key;
+        private final int bitWidth;
+
+        private Slot(String key, int bitWidth) {
+            this.key = key;
+            this.bitWidth = bitWidth;
+        }
+
+        /**
+         * Get the key of the field in the selector.
+         *
+         * @return header.field
+         */
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * Get the bit width of the field.
+         *
+         * @return bit width
+         */
+        public int getBitWidth() {
+            return bitWidth;
+        }
+
+        /**
+         * Create an exact match parameter of the field.
+         *
+         * @param value value
+         * @return match parameter
+         */
+        public Bmv2MatchParam exact(byte[] value) {
+            return new Bmv2ExactMatchParam(fit(value));
+        }
+
+        /**
+         * Create an exact match parameter of the field.
+         *
+         * @param value value
+         * @return match parameter
+         */
+        public Bmv2MatchParam exact(short value) {
+            return exact(ByteBuffer.allocate(Short.BYTES).putShort(value).array());
+        }
+
+        /**
+         * Create a ternary match parameter of the field.
+         *
+         * @param value value
+         * @param mask  mask
+         * @return match parameter
+         */
+        public Bmv2MatchParam ternary(byte[] value, byte[] mask) {
+            return new Bmv2TernaryMatchParam(fit(value), fit(mask));
+        }
+
+        /**
+         * Create a ternary match parameter of the field.
+         *
+         * @param value value
+         * @param mask  mask
+         * @return match parameter
+         */
+        public Bmv2MatchParam ternary(short value, short mask) {
+            return ternary(ByteBuffer.allocate(Short.BYTES).putShort(value).array(),
+                    ByteBuffer.allocate(Short.BYTES).putShort(mask).array());
+        }
+
+        /**
+         * Create a ternary match parameter of the field.
+         *
+         * @param value value
+         * @param mask  mask
+         * @return match parameter
+         */
+        public Bmv2MatchParam ternary(int value, int mask) {
+            return ternary(ByteBuffer.allocate(Integer.BYTES).putInt(value).array(),
+                    ByteBuffer.allocate(Integer.BYTES).putInt(mask).array());
+        }
+
+        private ImmutableByteSequence fit(byte[] value) {
+            try {
+                return Bmv2TranslatorUtils.fitByteSequence(ImmutableByteSequence.copyFrom(value), bitWidth);
+            } catch (Bmv2TranslatorUtils.ByteSequenceFitException e) {
+                throw new IllegalArgumentException(e.getMessage() + " [" + key + "]");
+            }
+        }
+    }
+}
@@ -127,9 +127,9 @@ public class TrafficSelectorHelper {
      */
     public TrafficSelectorHelper withMatchResult(MatchResult matchResult) {
         ByteBuffer byteBuffer = ByteBuffer.wrap(new byte[6]);
-        byteBuffer.putShort(matchResult.getStdMetadata());
-        byteBuffer.putShort(matchResult.getMetadata());
         byteBuffer.putShort(matchResult.getHeader());
+        byteBuffer.putShort(matchResult.getMetadata());
+        byteBuffer.putShort(matchResult.getStdMetadata());
         this.builder.matchExact(PMI, MATCH_RESULT, byteBuffer.array());
         return this;
     }
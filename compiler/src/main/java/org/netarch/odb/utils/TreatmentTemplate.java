@@ -0,0 +1,83 @@
+package org.netarch.odb.utils;
+
+import com.google.common.collect.ImmutableList;
+import org.onlab.util.ImmutableByteSequence;
+import org.onosproject.bmv2.api.context.Bmv2ActionModel;
+import org.onosproject.bmv2.api.context.Bmv2Configuration;
+import org.onosproject.bmv2.api.context.Bmv2RuntimeDataModel;
+import org.onosproject.bmv2.api.runtime.Bmv2Action;
+import org.onosproject.bmv2.api.runtime.Bmv2ExtensionTreatment;
+import org.onosproject.bmv2.api.utils.Bmv2TranslatorUtils;
+
+/**
+ * Treatment of an action compiled against the configuration. The runtime
+ * data of the action are resolved once, and building a treatment only fits
+ * the values, as Bmv2ExtensionTreatment.Builder would do.
+ */
+public class TreatmentTemplate {
+    private final String actionName;
+    private final ImmutableList<String> parameterNames;
+    private final int[] bitWidths;
+    private final int[] positions;
+
+    /**
+     * Create the treatment template of an action.
+     *
+     * @param configuration  bmv2 configuration
+     * @param actionName     action name
+     * @param parameterNames names of all the runtime data of the action, in the order of the values
+     */
+    public TreatmentTemplate(Bmv2Configuration configuration, String actionName, String... parameterNames) {
+        Bmv2ActionModel action = configuration.action(actionName);
+        if (action == null) {
+            throw new RuntimeException("Can't find the action " + actionName);
+        }
+        if (action.runtimeDatas().size() != parameterNames.length) {
+            throw new RuntimeException("Wrong number of parameters of the action " + actionName);
+        }
+
+        String[] names = new String[parameterNames.length];
+        this.bitWidths = new int[parameterNames.length];
+        this.positions = new int[parameterNames.length];
+        for (int i = 0; i < parameterNames.length; i++) {
+            Bmv2RuntimeDataModel runtimeData = action.runtimeData(parameterNames[i]);
+            if (runtimeData == null) {
+                throw new RuntimeException("Can't find the parameter " + actionName + "->" + parameterNames[i]);
+            }
+            positions[i] = action.runtimeDatas().indexOf(runtimeData);
+            bitWidths[i] = runtimeData.bitWidth();
+            names[positions[i]] = parameterNames[i];
+        }
+        this.actionName = actionName;
+        this.parameterNames = ImmutableList.copyOf(names);
+    }
+
+    /**
+     * Build a treatment.
+     *
+     * @param values parameter values, in the order of the names of the template
+     * @return extension treatment
+     */
+    public Bmv2ExtensionTreatment build(byte[]... values) {
+        if (values.length != positions.length) {
+            throw new RuntimeException("Wrong number of parameters " + values.length +
+                    ", expected " + positions.length);
+        }
+        ImmutableByteSequence[] parameters = new ImmutableByteSequence[values.length];
+        for (int i = 0; i < values.length; i++) {
+            try {
+                parameters[positions[i]] = Bmv2TranslatorUtils.fitByteSequence(
+                        ImmutableByteSequence.copyFrom(values[i]), bitWidths[i]);
+            } catch (Bmv2TranslatorUtils.ByteSequenceFitException e) {
+                throw new IllegalArgumentException(e.getMessage() +
+                        " [" + actionName + "->" + parameterNames.get(positions[i]) + "]");
+            }
+        }
+
+        Bmv2Action.Builder action = Bmv2Action.builder().withName(actionName);
+        for (ImmutableByteSequence parameter : parameters) {
+            action.addParameter(parameter);
+        }
+        return Bmv2ExtensionTreatment.of(action.build(), parameterNames);
+    }
+}
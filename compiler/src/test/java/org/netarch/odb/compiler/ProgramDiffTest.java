@@ -0,0 +1,87 @@
+package org.netarch.odb.compiler;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+import org.netarch.odb.model.ProgramModel;
+import org.netarch.odb.model.TestProgramBuilder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the comparison of the tables of two versions of a program.
+ */
+public class ProgramDiffTest {
+
+    /**
+     * Tables acl and mac, acl setting the ttl to a constant. An optional
+     * vlan header goes before ipv4, and an optional table counts after mac.
+     */
+    private static ProgramModel program(int ttl, boolean vlan, boolean count) {
+        TestProgramBuilder builder = new TestProgramBuilder("diff")
+                .header("ethernet", false, "dstAddr:48", "srcAddr:48", "etherType:16");
+        if (vlan) {
+            builder.header("vlan", false, "tci:16", "etherType:16");
+        }
+        builder.header("ipv4", false, "ttl:8", "protocol:8", "srcAddr:32", "dstAddr:32")
+                .parserState("start", null, "parse_ethernet")
+                .parserState("parse_ethernet", "ethernet", vlan ? "parse_vlan" : "parse_ipv4");
+        if (vlan) {
+            builder.parserState("parse_vlan", "vlan", "parse_ipv4");
+        }
+        builder.parserState("parse_ipv4", "ipv4")
+                .action("nop");
+        builder.action("set_ttl", builder.setField("ipv4.ttl", ttl))
+                .table("acl", "mac", Lists.newArrayList("ipv4.dstAddr:ternary"), "nop", "set_ttl")
+                .table("mac", count ? "count" : null, Lists.newArrayList("ethernet.dstAddr:exact"), "nop");
+        if (count) {
+            builder.table("count", null, Lists.newArrayList("ethernet.etherType:exact"), "nop");
+        }
+        return builder.init("acl").build();
+    }
+
+    @Test
+    public void testSameProgram() {
+        ProgramDiff diff = ProgramDiff.between(program(64, false, false), program(64, false, false));
+
+        assertTrue(diff.isUnchanged("acl"));
+        assertTrue(diff.isUnchanged("mac"));
+        assertTrue(diff.getAdded().isEmpty());
+        assertTrue(diff.getRemoved().isEmpty());
+        assertTrue(diff.getChanged().isEmpty());
+    }
+
+    @Test
+    public void testChangedAction() {
+        ProgramDiff diff = ProgramDiff.between(program(64, false, false), program(32, false, false));
+
+        assertEquals(ImmutableSet.of("acl"), diff.getChanged());
+        assertTrue(diff.isUnchanged("mac"));
+        assertFalse(diff.isUnchanged("acl"));
+    }
+
+    @Test
+    public void testMovedField() {
+        /* The vlan header moves the ipv4 key of acl, not the ethernet key of mac. */
+        ProgramDiff diff = ProgramDiff.between(program(64, false, false), program(64, true, false));
+
+        assertEquals(ImmutableSet.of("acl"), diff.getChanged());
+        assertTrue(diff.isUnchanged("mac"));
+    }
+
+    @Test
+    public void testAddedAndRemovedTables() {
+        ProgramDiff diff = ProgramDiff.between(program(64, false, false), program(64, false, true));
+
+        assertEquals(ImmutableSet.of("count"), diff.getAdded());
+        /* The next table of mac changed. */
+        assertEquals(ImmutableSet.of("mac"), diff.getChanged());
+        assertTrue(diff.isUnchanged("acl"));
+
+        diff = ProgramDiff.between(program(64, false, true), program(64, false, false));
+        assertEquals(ImmutableSet.of("count"), diff.getRemoved());
+        assertTrue(diff.getAdded().isEmpty());
+    }
+}
@@ -0,0 +1,169 @@
+package org.netarch.odb.compiler;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+import org.netarch.odb.model.ProgramModel;
+import org.netarch.odb.model.TableModel;
+import org.netarch.odb.model.TestProgramBuilder;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the placement of logical tables on VP4 stages, and of the passes
+ * and resubmits of the packet paths it gives.
+ */
+public class StagePlacementTest {
+
+    private static TestProgramBuilder headers(String name) {
+        return new TestProgramBuilder(name)
+                .header("ethernet", false, "dstAddr:48", "srcAddr:48", "etherType:16")
+                .header("meta", true, "x:8", "y:8")
+                .parserState("start", null, "parse_ethernet")
+                .parserState("parse_ethernet", "ethernet")
+                .action("nop");
+    }
+
+    /**
+     * Tables a, b, c and d applied one after the other.
+     */
+    private static ProgramModel chain() {
+        List<String> keys = Lists.newArrayList("ethernet.etherType:exact");
+        return headers("chain")
+                .table("a", "b", keys, "nop")
+                .table("b", "c", keys, "nop")
+                .table("c", "d", keys, "nop")
+                .table("d", null, keys, "nop")
+                .init("a")
+                .build();
+    }
+
+    /**
+     * A condition choosing between the tables left and right, which both go
+     * to the table last.
+     */
+    private static ProgramModel diamond() {
+        List<String> keys = Lists.newArrayList("ethernet.etherType:exact");
+        return headers("diamond")
+                .condition("choose", "left", "right")
+                .table("left", "last", keys, "nop")
+                .table("right", "last", keys, "nop")
+                .table("last", null, keys, "nop")
+                .init("choose")
+                .build();
+    }
+
+    private static List<String> names(List<TableModel> tables) {
+        List<String> names = Lists.newArrayList();
+        tables.forEach(table -> names.add(table.getName()));
+        return names;
+    }
+
+    @Test
+    public void testChainInOnePass() {
+        StagePlacement placement = StagePlacement.place(chain(), 4);
+
+        assertEquals(ImmutableList.of("a", "b", "c", "d"), names(placement.getOrder()));
+        assertEquals(4, placement.getStageCount());
+        assertEquals(1, placement.getPassCount());
+        for (int i = 0; i < 4; i++) {
+            String table = placement.getOrder().get(i).getName();
+            assertEquals(i, placement.getStage(table));
+            assertEquals(0, placement.getPass(table));
+            assertFalse(placement.isResubmitTarget(table));
+        }
+
+        PacketPath common = placement.getCommonPath();
+        assertEquals(ImmutableList.of("a", "b", "c", "d"), common.getTables());
+        assertEquals(1, common.getPasses());
+        assertEquals(0, common.getResubmits());
+        assertEquals(4, common.getStages());
+        assertEquals(1, placement.getPaths().size());
+        assertEquals(1, placement.getMaxPasses());
+        assertEquals(4, placement.getPacketStageCount());
+    }
+
+    @Test
+    public void testChainSplitIntoPasses() {
+        StagePlacement placement = StagePlacement.place(chain(), 2);
+
+        assertEquals(2, placement.getPassCount());
+        assertEquals(0, placement.getStage("a"));
+        assertEquals(1, placement.getStage("b"));
+        assertEquals(0, placement.getStage("c"));
+        assertEquals(1, placement.getStage("d"));
+        assertEquals(0, placement.getPass("b"));
+        assertEquals(1, placement.getPass("c"));
+        assertTrue(placement.isResubmitTarget("c"));
+        assertFalse(placement.isResubmitTarget("b"));
+        assertFalse(placement.isResubmitTarget("d"));
+
+        PacketPath common = placement.getCommonPath();
+        assertEquals(2, common.getPasses());
+        assertEquals(1, common.getResubmits());
+        assertEquals(4, common.getStages());
+        assertEquals(2, placement.getMaxPasses());
+        assertEquals(4, placement.getPacketStageCount());
+
+        placement = StagePlacement.place(chain(), 1);
+        assertEquals(4, placement.getPassCount());
+        assertEquals(3, placement.getCommonPath().getResubmits());
+        assertEquals(4, placement.getMaxPasses());
+    }
+
+    @Test
+    public void testBranchesWaitForTheirJoin() {
+        StagePlacement placement = StagePlacement.place(diamond(), 3);
+
+        assertEquals(ImmutableList.of("left", "right", "last"), names(placement.getOrder()));
+        assertEquals(ImmutableList.of("left", "last"), placement.getCommonPath().getTables());
+        assertEquals(3, placement.getCommonPath().getStages());
+        assertEquals(2, placement.getPaths().size());
+        for (PacketPath path : placement.getPaths()) {
+            assertEquals(1, path.getPasses());
+            assertEquals("last", path.getTables().get(1));
+        }
+        assertEquals(1, placement.getMaxPasses());
+        assertEquals(3, placement.getPacketStageCount());
+
+        /* With two stages, the right branch goes back to stage 0 for the last table. */
+        placement = StagePlacement.place(diamond(), 2);
+        assertTrue(placement.isResubmitTarget("last"));
+        assertEquals(1, placement.getCommonPath().getResubmits());
+        assertEquals(2, placement.getMaxPasses());
+    }
+
+    @Test
+    public void testDependencyDepth() {
+        TestProgramBuilder builder = headers("depth");
+        builder.action("set_x", builder.setField("meta.x", 1))
+                .table("write", "other", Lists.newArrayList("ethernet.etherType:exact"), "set_x")
+                .table("other", "read", Lists.newArrayList("meta.y:exact"), "nop")
+                .table("read", null, Lists.newArrayList("meta.x:exact"), "nop")
+                .init("write");
+        StagePlacement placement = StagePlacement.place(builder.build(), 4);
+
+        assertEquals(3, placement.getPacketStageCount());
+        assertEquals(2, placement.getDependencyDepth());
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testRejectLoop() {
+        List<String> keys = Lists.newArrayList("ethernet.etherType:exact");
+        ProgramModel program = headers("loop")
+                .table("a", "b", keys, "nop")
+                .table("b", "a", keys, "nop")
+                .init("a")
+                .build();
+        StagePlacement.place(program, 4);
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testRejectUnknownTable() {
+        StagePlacement.place(chain(), 4).getStage("missing");
+    }
+}
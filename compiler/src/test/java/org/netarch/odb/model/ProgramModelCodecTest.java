@@ -0,0 +1,105 @@
+package org.netarch.odb.model;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+import org.netarch.odb.primitive.PrimitiveType;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests of the program snapshots, decoded against the program they were
+ * encoded from.
+ */
+public class ProgramModelCodecTest {
+
+    static ProgramModel program() {
+        TestProgramBuilder builder = new TestProgramBuilder("codec")
+                .header("ethernet", false, "dstAddr:48", "srcAddr:48", "etherType:16")
+                .header("ipv4", false, "ttl:8", "protocol:8", "srcAddr:32", "dstAddr:32")
+                .header("meta", true, "port:9", "addr:32")
+                .parserState("start", null, "parse_ethernet")
+                .parserState("parse_ethernet", "ethernet", "parse_ipv4")
+                .parserState("parse_ipv4", "ipv4");
+        builder.action("forward", Lists.newArrayList("port:9"), builder.setFieldToData("meta.port", "port"))
+                .action("rewrite", builder.setField("ipv4.ttl", 64), builder.copyField("meta.addr", "ipv4.srcAddr"))
+                .action("strip", builder.onHeader(PrimitiveType.REMOVE_HEADER, "ipv4"))
+                .action("drop", new PrimitiveModel(PrimitiveType.DROP, Lists.newArrayList()))
+                .condition("is_ipv4", "ipv4_lpm", null)
+                .table("mac", "is_ipv4", Lists.newArrayList("ethernet.dstAddr:exact", "meta.port:ternary"),
+                        "forward", "drop")
+                .table("ipv4_lpm", null, Lists.newArrayList("ipv4.dstAddr:lpm", "ipv4.protocol:ternary"),
+                        "rewrite", "strip", "drop")
+                .init("mac");
+        return builder.build();
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        ProgramModel program = program();
+        byte[] snapshot = ProgramModelCodec.encode(program);
+
+        ProgramModel decoded = ProgramModelCodec.read(new ByteArrayInputStream(snapshot), "decoded", 7);
+        assertEquals("decoded", decoded.getName());
+        assertEquals(7, decoded.getId());
+        assertEquals(program.getContentHash(), decoded.getContentHash());
+        assertNull(decoded.json());
+
+        assertEquals(program.headerTypes(), decoded.headerTypes());
+        for (HeaderModel header : program.headers()) {
+            HeaderModel other = decoded.getHeader(header.getName());
+            assertEquals(header.getId(), other.getId());
+            assertEquals(header.isMetadata(), other.isMetadata());
+            assertEquals(header.getBitOffset(), other.getBitOffset());
+            assertEquals(header.getEndBitOffset(), other.getEndBitOffset());
+        }
+        assertEquals(program.actions(), decoded.actions());
+        assertEquals(program.tables().size(), decoded.tables().size());
+        assertEquals(program.conditions(), decoded.conditions());
+        assertEquals(program.getInitTables(), decoded.getInitTables());
+
+        for (TableModel table : program.tables()) {
+            TableModel other = decoded.table(table.getName());
+            assertEquals(table.getId(), other.getId());
+            assertEquals(table.getMatchType(), other.getMatchType());
+            assertEquals(table.getMaxSize(), other.getMaxSize());
+            assertEquals(table.getActions(), other.getActions());
+            assertEquals(table.getNext(), other.getNext());
+            assertEquals(table.getNextTables(), other.getNextTables());
+            for (int i = 0; i < table.getKeys().size(); i++) {
+                FieldModel field = table.getKeys().get(i).field();
+                FieldModel otherField = other.getKeys().get(i).field();
+                assertEquals(table.getKeys().get(i).matchType(), other.getKeys().get(i).matchType());
+                assertEquals(field.getHeaderName(), otherField.getHeaderName());
+                assertEquals(field.getName(), otherField.getName());
+                assertEquals(field.getHeader().getBitOffset() + field.getBitOffset(),
+                        otherField.getHeader().getBitOffset() + otherField.getBitOffset());
+            }
+        }
+
+        ParameterModel copied = decoded.action("rewrite").getPrimitiveModels().get(1).getParameterModel(1);
+        assertEquals(ParameterModel.ParameterModelType.PACKET_FIELD, copied.getType());
+        assertEquals(decoded.getHeader("ipv4"), copied.getFieldModel().getHeader());
+
+        /* Encoding is deterministic, so a decoded program encodes to the same snapshot. */
+        assertArrayEquals(snapshot, ProgramModelCodec.encode(decoded));
+    }
+
+    @Test
+    public void testReadContentHash() throws IOException {
+        ProgramModel program = program();
+        byte[] snapshot = ProgramModelCodec.encode(program);
+        assertEquals(program.getContentHash(), ProgramModelCodec.readContentHash(new ByteArrayInputStream(snapshot)));
+    }
+
+    @Test(expected = IOException.class)
+    public void testRejectOtherStreams() throws IOException {
+        ProgramModelCodec.read(new ByteArrayInputStream("{\"header_types\": []}".getBytes(StandardCharsets.UTF_8)),
+                "json", 0);
+    }
+}
@@ -0,0 +1,221 @@
+package org.netarch.odb.model;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.netarch.odb.primitive.PrimitiveType;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Builds program models by the construction steps of doParse, without a
+ * json. Fields, match keys and runtime data are written name:width,
+ * header.field and header.field:match_type.
+ */
+public final class TestProgramBuilder {
+    private final ProgramModel program;
+    private int headerId;
+    private int stateId;
+    private int actionId;
+    private int tableId;
+    private int conditionId;
+
+    /**
+     * Start a program. Its content hash is its name.
+     *
+     * @param name program name
+     */
+    public TestProgramBuilder(String name) {
+        this.program = new ProgramModel(name, 0, null, name);
+    }
+
+    /**
+     * Add a header and its header type.
+     *
+     * @param name     header name
+     * @param metadata whether the header is metadata
+     * @param fields   fields, name:width in the order of the header
+     * @return this
+     */
+    public TestProgramBuilder header(String name, boolean metadata, String... fields) {
+        List<FieldTypeModel> fieldTypes = Lists.newArrayList();
+        for (String field : fields) {
+            String[] parts = field.split(":");
+            fieldTypes.add(new FieldTypeModel(parts[0], Integer.parseInt(parts[1])));
+        }
+        program.addHeaderType(name + "_t", headerId, fieldTypes);
+        program.addHeader(name, headerId, name + "_t", metadata);
+        headerId++;
+        return this;
+    }
+
+    /**
+     * Add a parser state.
+     *
+     * @param name       state name
+     * @param header     extracted header, may be null
+     * @param nextStates next states
+     * @return this
+     */
+    public TestProgramBuilder parserState(String name, String header, String... nextStates) {
+        program.addParserState(name, stateId++, header, Arrays.asList(nextStates));
+        return this;
+    }
+
+    /**
+     * Add an action.
+     *
+     * @param name        action name
+     * @param runtimeData runtime data, name:width
+     * @param primitives  primitives of the action
+     * @return this
+     */
+    public TestProgramBuilder action(String name, List<String> runtimeData, PrimitiveModel... primitives) {
+        List<DataModel> datas = Lists.newArrayList();
+        for (String data : runtimeData) {
+            String[] parts = data.split(":");
+            datas.add(new DataModel(parts[0], Integer.parseInt(parts[1])));
+        }
+        program.addAction(new ActionModel(name, actionId++, datas, Arrays.asList(primitives)));
+        return this;
+    }
+
+    /**
+     * Add an action without runtime data.
+     *
+     * @param name       action name
+     * @param primitives primitives of the action
+     * @return this
+     */
+    public TestProgramBuilder action(String name, PrimitiveModel... primitives) {
+        return action(name, Lists.newArrayList(), primitives);
+    }
+
+    /**
+     * Add a table going to the same next component after every action.
+     *
+     * @param name    table name
+     * @param next    next component, null at the end of the pipeline
+     * @param keys    match keys, header.field:match_type
+     * @param actions action names
+     * @return this
+     */
+    public TestProgramBuilder table(String name, String next, List<String> keys, String... actions) {
+        Map<String, String> nextTables = Maps.newLinkedHashMap();
+        for (String action : actions) {
+            nextTables.put(action, next);
+        }
+        return table(name, next, keys, nextTables);
+    }
+
+    /**
+     * Add a table.
+     *
+     * @param name       table name
+     * @param next       base default next component
+     * @param keys       match keys, header.field:match_type
+     * @param nextTables next component of each action
+     * @return this
+     */
+    public TestProgramBuilder table(String name, String next, List<String> keys, Map<String, String> nextTables) {
+        List<MatchKeyModel> keyModels = Lists.newArrayList();
+        for (String key : keys) {
+            String[] parts = key.split("[.:]");
+            keyModels.add(program.matchKey(MatchKeyModel.MatchKeyType.getType(parts[2]), parts[0], parts[1]));
+        }
+        Set<ActionModel> actions = Sets.newHashSet();
+        nextTables.keySet().forEach(action -> actions.add(program.action(action)));
+        program.addTable(new TableModel(name, tableId++, "ternary", "simple", 1024, false, false,
+                keyModels, actions, next, nextTables));
+        return this;
+    }
+
+    /**
+     * Add a condition.
+     *
+     * @param name      condition name
+     * @param trueNext  next component if true
+     * @param falseNext next component if false
+     * @return this
+     */
+    public TestProgramBuilder condition(String name, String trueNext, String falseNext) {
+        program.addCondition(new ConditionModel(name, conditionId++, trueNext, falseNext));
+        return this;
+    }
+
+    /**
+     * Add the first component of a pipeline.
+     *
+     * @param name table or condition name
+     * @return this
+     */
+    public TestProgramBuilder init(String name) {
+        program.addInitTable(name);
+        return this;
+    }
+
+    /**
+     * Build a modify_field primitive setting a field to a constant.
+     *
+     * @param field    header.field
+     * @param constant constant
+     * @return primitive model
+     */
+    public PrimitiveModel setField(String field, int constant) {
+        return new PrimitiveModel(PrimitiveType.MODIFY_FIELD,
+                Lists.newArrayList(new ParameterModel(field(field)), new ParameterModel(constant)));
+    }
+
+    /**
+     * Build a modify_field primitive setting a field to a runtime data.
+     *
+     * @param field       header.field
+     * @param runtimeData runtime data name
+     * @return primitive model
+     */
+    public PrimitiveModel setFieldToData(String field, String runtimeData) {
+        return new PrimitiveModel(PrimitiveType.MODIFY_FIELD,
+                Lists.newArrayList(new ParameterModel(field(field)), new ParameterModel(runtimeData)));
+    }
+
+    /**
+     * Build a modify_field primitive copying a field.
+     *
+     * @param dst header.field written
+     * @param src header.field read
+     * @return primitive model
+     */
+    public PrimitiveModel copyField(String dst, String src) {
+        return new PrimitiveModel(PrimitiveType.MODIFY_FIELD,
+                Lists.newArrayList(new ParameterModel(field(dst)), new ParameterModel(field(src))));
+    }
+
+    /**
+     * Build a primitive on a whole header.
+     *
+     * @param type   primitive type
+     * @param header header name
+     * @return primitive model
+     */
+    public PrimitiveModel onHeader(PrimitiveType type, String header) {
+        return new PrimitiveModel(type, Lists.newArrayList(new ParameterModel(program.getHeader(header))));
+    }
+
+    private FieldModel field(String field) {
+        String[] parts = field.split("\\.");
+        return program.getHeader(parts[0]).getField(parts[1]);
+    }
+
+    /**
+     * Link the parser states and get the program.
+     *
+     * @return program model
+     */
+    public ProgramModel build() {
+        program.linkParserStates();
+        return program;
+    }
+}
@@ -0,0 +1,97 @@
+package org.netarch.odb.runtime;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+import org.netarch.odb.compiler.Compiler;
+import org.netarch.odb.compiler.Vp4Interpreter;
+import org.netarch.odb.compiler.Vp4Templates;
+import org.netarch.odb.model.ProgramModel;
+import org.netarch.odb.model.TestProgramBuilder;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of the admission control of the rules against the size of the VP4
+ * tables of a device.
+ */
+public class AdmissionControlTest {
+    private static final int TABLE_SIZE = 4;
+
+    /**
+     * Table acl matching the ipv4 destination, alone in the pipeline.
+     */
+    private static ProgramModel program() {
+        return new TestProgramBuilder("admission")
+                .header("ethernet", false, "dstAddr:48", "srcAddr:48", "etherType:16")
+                .header("ipv4", false, "ttl:8", "protocol:8", "srcAddr:32", "dstAddr:32")
+                .parserState("start", null, "parse_ethernet")
+                .parserState("parse_ethernet", "ethernet", "parse_ipv4")
+                .parserState("parse_ipv4", "ipv4")
+                .action("nop")
+                .table("acl", null, Lists.newArrayList("ipv4.dstAddr:ternary"), "nop")
+                .init("acl")
+                .build();
+    }
+
+    private static InstanceRule rule(ProgramModel program, int dstAddr) {
+        return new InstanceRule(program.table("acl").getId())
+                .addKey(FlowKey.buildHeaderFieldKey("ipv4", "dstAddr", Value.createIntValue(dstAddr)))
+                .setAction(new CompoundAction("nop"));
+    }
+
+    private static TableHeadroom headroom(Compiler compiler, int tableId) {
+        for (TableHeadroom headroom : compiler.getHeadroom(RecordingFlowRuleService.DEVICE_ID)) {
+            if (headroom.getTableId() == tableId) {
+                return headroom;
+            }
+        }
+        throw new AssertionError("No headroom for the table " + tableId);
+    }
+
+    @Test
+    public void testFullTableRejectsRule() {
+        RecordingFlowRuleService service = new RecordingFlowRuleService();
+        Compiler compiler = service.compiler(RecordingFlowRuleService.vp4(TABLE_SIZE));
+        ProgramModel program = program();
+        Instance instance = compiler.run(program, RecordingFlowRuleService.DEVICE_ID, 1);
+        byte stageId = (byte) instance.getPlacement().getStage("acl");
+        int matchResultTable = new Vp4Templates(RecordingFlowRuleService.vp4())
+                .getTableId(Vp4Interpreter.TABLE_MATCH_RESULT, stageId);
+
+        /* Each rule takes one match result entry. */
+        List<InstanceRule> rules = Lists.newArrayList();
+        for (int i = 0; i < TABLE_SIZE; i++) {
+            rules.add(rule(program, 0x0a000001 + i));
+            instance.addRule(rules.get(i));
+            assertEquals(TABLE_SIZE - i - 1, headroom(compiler, matchResultTable).getHeadroom());
+        }
+
+        /* The overflowing rule is rejected before any of its flow rules is applied. */
+        int before = service.getBatchCount();
+        InstanceRule overflow = rule(program, 0x0b000001);
+        try {
+            instance.addRule(overflow);
+            fail("The rule overflows the match result table");
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("is full"));
+        }
+        assertEquals(before, service.getBatchCount());
+        assertEquals(TABLE_SIZE, instance.getRuleCount());
+        assertEquals(0, headroom(compiler, matchResultTable).getHeadroom());
+
+        /* A removed rule makes room for the next one. */
+        instance.delRule(rules.get(0));
+        assertEquals(1, headroom(compiler, matchResultTable).getHeadroom());
+        instance.addRule(overflow);
+        assertEquals(0, headroom(compiler, matchResultTable).getHeadroom());
+
+        /* A stopped instance frees all its entries. */
+        compiler.stop(instance);
+        compiler.getHeadroom(RecordingFlowRuleService.DEVICE_ID)
+                .forEach(headroom -> assertEquals(headroom.toString(), 0, headroom.getUsed()));
+    }
+}
@@ -0,0 +1,147 @@
+package org.netarch.odb.runtime;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Property tests of the bit vector, against a bit by bit reference and
+ * against Value.mod where Value.mod is defined.
+ */
+public class BitVectorTest {
+    private static final int RUNS = 2000;
+    private static final int MAX_WIDTH = 800;
+
+    private final Random random = new Random(0x0DB);
+
+    @Test
+    public void testSetBitsMatchesReference() {
+        for (int run = 0; run < RUNS; run++) {
+            int bitWidth = 1 + random.nextInt(MAX_WIDTH);
+            BitVector vector = new BitVector(bitWidth);
+            boolean[] reference = new boolean[bitWidth];
+
+            for (int key = 0; key < 4; key++) {
+                int offset = random.nextInt(bitWidth);
+                int width = random.nextInt(bitWidth - offset + 1);
+                byte[] src = randomBytes(random.nextInt((width + 7) / 8 + 2));
+
+                vector.setBits(offset, width, src);
+                referenceSetBits(reference, offset, width, src);
+                assertArrayEquals(toBytes(reference), vector.toByteArray());
+            }
+        }
+    }
+
+    @Test
+    public void testSetLongMatchesSetBytes() {
+        for (int run = 0; run < RUNS; run++) {
+            int bitWidth = 64 + random.nextInt(MAX_WIDTH);
+            int width = random.nextInt(65);
+            int offset = random.nextInt(bitWidth - width + 1);
+            long value = random.nextLong();
+            byte[] src = Value.createLongValue(value).getValue();
+
+            assertEquals(new BitVector(bitWidth).setBits(offset, width, src),
+                    new BitVector(bitWidth).setBits(offset, width, value));
+        }
+    }
+
+    @Test
+    public void testMaskOperationsMatchReference() {
+        for (int run = 0; run < RUNS; run++) {
+            int bitWidth = 1 + random.nextInt(MAX_WIDTH);
+            byte[] src = randomBytes((bitWidth + 7) / 8);
+            BitVector vector = new BitVector(bitWidth).setBits(0, bitWidth, src);
+            BitVector mask = new BitVector(bitWidth);
+            boolean[] reference = new boolean[bitWidth];
+            boolean[] referenceMask = new boolean[bitWidth];
+            referenceSetBits(reference, 0, bitWidth, src);
+
+            int offset = random.nextInt(bitWidth);
+            int width = random.nextInt(bitWidth - offset + 1);
+            mask.setOnes(offset, width);
+            for (int i = offset; i < offset + width; i++) {
+                referenceMask[i] = true;
+            }
+            int clearOffset = random.nextInt(bitWidth);
+            int clearWidth = random.nextInt(bitWidth - clearOffset + 1);
+            mask.clearBits(clearOffset, clearWidth);
+            for (int i = clearOffset; i < clearOffset + clearWidth; i++) {
+                referenceMask[i] = false;
+            }
+            assertArrayEquals(toBytes(referenceMask), mask.toByteArray());
+
+            vector.and(mask);
+            for (int i = 0; i < bitWidth; i++) {
+                reference[i] &= referenceMask[i];
+            }
+            assertArrayEquals(toBytes(reference), vector.toByteArray());
+        }
+    }
+
+    /**
+     * Value.mod is only defined for byte aligned keys of whole bytes lower
+     * than 0x80 written into zeros: it shifts unaligned keys the wrong way
+     * and sign-extends negative bytes into the next one.
+     */
+    @Test
+    public void testMatchesValueModOnAlignedKeys() {
+        for (int run = 0; run < RUNS; run++) {
+            int byteWidth = 1 + random.nextInt(MAX_WIDTH / 8);
+            Value value = Value.createValue(byteWidth * 8);
+            Value mask = Value.createValue(byteWidth * 8);
+            BitVector vector = new BitVector(byteWidth * 8);
+            BitVector maskVector = new BitVector(byteWidth * 8);
+
+            int next = 0;
+            while (next < byteWidth) {
+                int offset = next + random.nextInt(byteWidth - next);
+                int length = 1 + random.nextInt(Math.min(16, byteWidth - offset));
+                byte[] src = randomBytes(length);
+                for (int i = 0; i < length; i++) {
+                    src[i] &= 0x7F;
+                }
+                byte[] ones = new byte[length];
+                for (int i = 0; i < length; i++) {
+                    ones[i] = (byte) 0xFF;
+                }
+
+                value.mod(Value.createArrayValue(src), offset * 8);
+                mask.mod(Value.createArrayValue(ones), offset * 8);
+                vector.setBits(offset * 8, length * 8, src);
+                maskVector.setOnes(offset * 8, length * 8);
+                next = offset + length;
+            }
+            assertArrayEquals(value.getValue(), vector.toByteArray());
+            assertArrayEquals(mask.getValue(), maskVector.toByteArray());
+        }
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static void referenceSetBits(boolean[] bits, int offset, int width, byte[] src) {
+        int srcBits = src.length * 8;
+        for (int i = 0; i < width; i++) {
+            int srcBit = srcBits - width + i;
+            bits[offset + i] = srcBit >= 0 && ((src[srcBit / 8] >> (7 - srcBit % 8)) & 1) != 0;
+        }
+    }
+
+    private static byte[] toBytes(boolean[] bits) {
+        byte[] bytes = new byte[(bits.length + 7) / 8];
+        for (int i = 0; i < bits.length; i++) {
+            if (bits[i]) {
+                bytes[i / 8] |= (byte) (0x80 >>> (i % 8));
+            }
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,116 @@
+package org.netarch.odb.runtime;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.junit.Test;
+import org.netarch.odb.compiler.Vp4Interpreter;
+import org.netarch.odb.model.ProgramModel;
+import org.netarch.odb.model.TestProgramBuilder;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleOperation;
+
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the removal of a rule, against the flow rules installed on the
+ * device.
+ */
+public class DelRuleTest {
+
+    /**
+     * Table acl matching the header, the user metadata and the standard
+     * metadata, setting the ttl to a runtime data.
+     */
+    private static ProgramModel program() {
+        TestProgramBuilder builder = new TestProgramBuilder("del");
+        return builder
+                .header("ethernet", false, "dstAddr:48", "srcAddr:48", "etherType:16")
+                .header("ipv4", false, "ttl:8", "protocol:8", "srcAddr:32", "dstAddr:32")
+                .header("meta", true, "a:8", "b:16")
+                .header("standard_metadata", true, "ingress_port:9", "packet_length:32",
+                        "egress_spec:9", "egress_port:9", "egress_instance:32", "instance_type:32",
+                        "clone_spec:32")
+                .parserState("start", null, "parse_ethernet")
+                .parserState("parse_ethernet", "ethernet", "parse_ipv4")
+                .parserState("parse_ipv4", "ipv4")
+                .action("set_ttl", Lists.newArrayList("ttl:8"), builder.setFieldToData("ipv4.ttl", "ttl"))
+                .table("acl", null, Lists.newArrayList(
+                        "ipv4.dstAddr:ternary",
+                        "meta.b:ternary",
+                        "standard_metadata.ingress_port:exact"), "set_ttl")
+                .init("acl")
+                .build();
+    }
+
+    private static InstanceRule rule(ProgramModel program, int key, byte ttl) {
+        return new InstanceRule(program.table("acl").getId())
+                .addKey(FlowKey.buildHeaderFieldKey("ipv4", "dstAddr", Value.createIntValue(0x0a000000 + key)))
+                .addKey(FlowKey.buildMetadataFieldKey("meta", "b", Value.createShortValue((short) key)))
+                .addKey(FlowKey.buildMetadataFieldKey("standard_metadata", "ingress_port",
+                        Value.createShortValue((short) key)))
+                .setAction(new CompoundAction("set_ttl").addParameter(Data.createByteData("ttl", ttl)));
+    }
+
+    /**
+     * Get the VP4 table of a flow rule, without its stage.
+     */
+    private static String table(FlowRule rule) {
+        String name = Vp4Interpreter.getTableName(rule.tableId());
+        return name.substring(0, name.lastIndexOf("_stage"));
+    }
+
+    private static Set<FlowRule> rules(List<FlowRuleOperation> operations, FlowRuleOperation.Type type) {
+        return operations.stream()
+                .filter(operation -> operation.type() == type)
+                .map(FlowRuleOperation::rule)
+                .collect(Collectors.toSet());
+    }
+
+    @Test
+    public void testDelRuleRemovesOnlyItsEntries() {
+        RecordingFlowRuleService service = new RecordingFlowRuleService();
+        ProgramModel program = program();
+        Instance instance = service.compiler().run(program, RecordingFlowRuleService.DEVICE_ID, 1);
+
+        InstanceRule first = rule(program, 1, (byte) 10);
+        int before = service.getBatchCount();
+        instance.addRule(first);
+        Set<FlowRule> firstRules = rules(service.operationsSince(before), FlowRuleOperation.Type.ADD);
+
+        InstanceRule second = rule(program, 2, (byte) 20);
+        before = service.getBatchCount();
+        instance.addRule(second);
+        Set<FlowRule> secondRules = rules(service.operationsSince(before), FlowRuleOperation.Type.ADD);
+
+        /* Each rule has its header, metadata, standard metadata, match result and action entries. */
+        Set<String> tables = firstRules.stream().map(DelRuleTest::table).collect(Collectors.toSet());
+        assertTrue(tables.toString(), tables.contains(Vp4Interpreter.TABLE_MATCH_RESULT));
+        assertTrue(tables.toString(), tables.stream().anyMatch(table -> table.startsWith("table_header_")));
+        assertTrue(tables.toString(), tables.stream().anyMatch(table -> table.startsWith(Vp4Interpreter.META_MATCH)));
+        assertTrue(tables.toString(), tables.contains(Vp4Interpreter.STD_META_MATCH));
+        assertTrue(tables.toString(), tables.stream().anyMatch(table -> table.startsWith("table_mod_")));
+        assertTrue(Sets.intersection(firstRules, secondRules).isEmpty());
+
+        before = service.getBatchCount();
+        instance.delRule(first);
+        List<FlowRuleOperation> operations = service.operationsSince(before);
+
+        /* Exactly the entries of the deleted rule are removed, nothing is added. */
+        assertTrue(rules(operations, FlowRuleOperation.Type.ADD).isEmpty());
+        assertEquals(firstRules, rules(operations, FlowRuleOperation.Type.REMOVE));
+        assertEquals(1, instance.getRuleCount());
+        for (FlowRule rule : firstRules) {
+            assertNull(rule.toString(), service.getInstalled(rule));
+        }
+        for (FlowRule rule : secondRules) {
+            assertNotNull(rule.toString(), service.getInstalled(rule));
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package org.netarch.odb.runtime;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+import org.netarch.odb.compiler.Vp4Interpreter;
+import org.netarch.odb.model.ProgramModel;
+import org.netarch.odb.model.TestProgramBuilder;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleOperation;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the header match entries of fully specified keys, which go to the
+ * exact table unless a ternary entry of a higher priority could overlap them.
+ */
+public class ExactMatchTest {
+
+    /**
+     * Table acl matching the ipv4 addresses, then table out.
+     */
+    private static ProgramModel program() {
+        return new TestProgramBuilder("exact")
+                .header("ethernet", false, "dstAddr:48", "srcAddr:48", "etherType:16")
+                .header("ipv4", false, "ttl:8", "protocol:8", "srcAddr:32", "dstAddr:32")
+                .parserState("start", null, "parse_ethernet")
+                .parserState("parse_ethernet", "ethernet", "parse_ipv4")
+                .parserState("parse_ipv4", "ipv4")
+                .action("nop")
+                .table("acl", "out", Lists.newArrayList("ipv4.srcAddr:ternary", "ipv4.dstAddr:ternary"), "nop")
+                .table("out", null, Lists.newArrayList("ethernet.etherType:exact"), "nop")
+                .init("acl")
+                .build();
+    }
+
+    private static InstanceRule rule(ProgramModel program, int priority, Integer srcAddr, int dstAddr) {
+        InstanceRule rule = new InstanceRule(program.table("acl").getId())
+                .setPriority(priority)
+                .setAction(new CompoundAction("nop"));
+        if (srcAddr != null) {
+            rule.addKey(FlowKey.buildHeaderFieldKey("ipv4", "srcAddr", Value.createIntValue(srcAddr)));
+        }
+        return rule.addKey(FlowKey.buildHeaderFieldKey("ipv4", "dstAddr", Value.createIntValue(dstAddr)));
+    }
+
+    /**
+     * Get the VP4 table of a flow rule, without its stage.
+     */
+    private static String table(FlowRule rule) {
+        String name = Vp4Interpreter.getTableName(rule.tableId());
+        return name.substring(0, name.lastIndexOf("_stage"));
+    }
+
+    /**
+     * Get the header match entries a batch adds, or removes.
+     */
+    private static List<FlowRule> headerEntries(List<FlowRuleOperation> operations, FlowRuleOperation.Type type) {
+        List<FlowRule> rules = Lists.newArrayList();
+        operations.forEach(operation -> {
+            String table = table(operation.rule());
+            if (operation.type() == type && (table.equals(Vp4Interpreter.HEADER_WINDOW)
+                    || table.equals(Vp4Interpreter.HEADER_WINDOW_EXACT))) {
+                rules.add(operation.rule());
+            }
+        });
+        return rules;
+    }
+
+    private static List<FlowRule> added(RecordingFlowRuleService service, Instance instance, InstanceRule rule) {
+        int before = service.getBatchCount();
+        instance.addRule(rule);
+        return headerEntries(service.operationsSince(before), FlowRuleOperation.Type.ADD);
+    }
+
+    @Test
+    public void testExactKey() {
+        RecordingFlowRuleService service = new RecordingFlowRuleService();
+        ProgramModel program = program();
+        Instance instance = service.compiler().run(program, RecordingFlowRuleService.DEVICE_ID, 1);
+
+        List<FlowRule> ternary = added(service, instance, rule(program, 5, null, 0x0a000001));
+        assertEquals(1, ternary.size());
+        assertEquals(Vp4Interpreter.HEADER_WINDOW, table(ternary.get(0)));
+
+        /* Not outranked by the ternary entry. */
+        List<FlowRule> exact = added(service, instance, rule(program, 5, 0x0a000002, 0x0a000001));
+        assertEquals(1, exact.size());
+        assertEquals(Vp4Interpreter.HEADER_WINDOW_EXACT, table(exact.get(0)));
+    }
+
+    @Test
+    public void testExactKeyBelowTernary() {
+        RecordingFlowRuleService service = new RecordingFlowRuleService();
+        ProgramModel program = program();
+        Instance instance = service.compiler().run(program, RecordingFlowRuleService.DEVICE_ID, 1);
+
+        List<FlowRule> ternary = added(service, instance, rule(program, 10, null, 0x0a000001));
+        List<FlowRule> exact = added(service, instance, rule(program, 1, 0x0a000002, 0x0a000001));
+
+        /* The exact table would hide the ternary entry, both packets hitting it. */
+        assertEquals(1, exact.size());
+        assertEquals(Vp4Interpreter.HEADER_WINDOW, table(exact.get(0)));
+        assertTrue(exact.get(0).priority() < ternary.get(0).priority());
+    }
+
+    @Test
+    public void testTernaryAboveExact() {
+        RecordingFlowRuleService service = new RecordingFlowRuleService();
+        ProgramModel program = program();
+        Instance instance = service.compiler().run(program, RecordingFlowRuleService.DEVICE_ID, 1);
+
+        List<FlowRule> exact = added(service, instance, rule(program, 1, 0x0a000002, 0x0a000001));
+        assertEquals(1, exact.size());
+        assertEquals(Vp4Interpreter.HEADER_WINDOW_EXACT, table(exact.get(0)));
+
+        int before = service.getBatchCount();
+        instance.addRule(rule(program, 10, null, 0x0a000001));
+        List<FlowRuleOperation> operations = service.operationsSince(before);
+
+        /* The exact entry goes to the ternary table, below the new entry. */
+        assertEquals(exact, headerEntries(operations, FlowRuleOperation.Type.REMOVE));
+        assertNull(service.getInstalled(exact.get(0)));
+        FlowRule demoted = null;
+        FlowRule ternary = null;
+        for (FlowRule rule : headerEntries(operations, FlowRuleOperation.Type.ADD)) {
+            assertEquals(Vp4Interpreter.HEADER_WINDOW, table(rule));
+            if (rule.treatment().equals(exact.get(0).treatment())) {
+                demoted = rule;
+            } else {
+                ternary = rule;
+            }
+        }
+        assertNotNull(demoted);
+        assertNotNull(ternary);
+        assertNotNull(service.getInstalled(demoted));
+        assertTrue(demoted.priority() < ternary.priority());
+
+        /* The move goes first in the batch of the rule. */
+        assertEquals(before + 1, service.getBatchCount());
+        List<FlowRule> order = Lists.newArrayList();
+        operations.forEach(operation -> order.add(operation.rule()));
+        assertTrue(order.indexOf(demoted) < order.indexOf(exact.get(0)));
+        assertTrue(order.indexOf(exact.get(0)) < order.indexOf(ternary));
+
+        /* A new rule with the same keys shares the demoted entry. */
+        assertTrue(added(service, instance, rule(program, 1, 0x0a000002, 0x0a000001)).isEmpty());
+    }
+}
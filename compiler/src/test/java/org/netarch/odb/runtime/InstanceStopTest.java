@@ -0,0 +1,56 @@
+package org.netarch.odb.runtime;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+import org.netarch.odb.compiler.Compiler;
+import org.netarch.odb.model.ProgramModel;
+import org.netarch.odb.model.TestProgramBuilder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the removal of a stopped instance from the device.
+ */
+public class InstanceStopTest {
+
+    /**
+     * Table acl, then table mac.
+     */
+    private static ProgramModel program() {
+        return new TestProgramBuilder("stop")
+                .header("ethernet", false, "dstAddr:48", "srcAddr:48", "etherType:16")
+                .header("ipv4", false, "ttl:8", "protocol:8", "srcAddr:32", "dstAddr:32")
+                .parserState("start", null, "parse_ethernet")
+                .parserState("parse_ethernet", "ethernet", "parse_ipv4")
+                .parserState("parse_ipv4", "ipv4")
+                .action("nop")
+                .table("acl", "mac", Lists.newArrayList("ipv4.dstAddr:ternary"), "nop")
+                .table("mac", null, Lists.newArrayList("ethernet.dstAddr:exact"), "nop")
+                .init("acl")
+                .build();
+    }
+
+    @Test
+    public void testStopRemovesEntries() {
+        RecordingFlowRuleService service = new RecordingFlowRuleService();
+        Compiler compiler = service.compiler();
+        ProgramModel program = program();
+        Instance instance = compiler.run(program, RecordingFlowRuleService.DEVICE_ID, 1);
+        instance.addRule(new InstanceRule(program.table("acl").getId())
+                .addKey(FlowKey.buildHeaderFieldKey("ipv4", "dstAddr", Value.createIntValue(0x0a000001)))
+                .setAction(new CompoundAction("nop")));
+        instance.addRule(new InstanceRule(program.table("mac").getId())
+                .addKey(FlowKey.buildHeaderFieldKey("ethernet", "dstAddr", Value.createLongValue(0x0a0b0c0d0e0fL)))
+                .setAction(new CompoundAction("nop")));
+        assertTrue(service.getInstalledCount() > 0);
+
+        compiler.stop(instance);
+
+        /* Nothing of the instance is left on the device, and its id is taken by the next instance. */
+        assertEquals(0, service.getInstalledCount());
+        assertEquals(0, instance.getRuleCount());
+        Instance next = compiler.run(program, RecordingFlowRuleService.DEVICE_ID, 2);
+        assertEquals(instance.getInstanceId(), next.getInstanceId());
+    }
+}
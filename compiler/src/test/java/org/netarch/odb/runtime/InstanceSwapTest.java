@@ -0,0 +1,93 @@
+package org.netarch.odb.runtime;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+import org.netarch.odb.model.ProgramModel;
+import org.netarch.odb.model.TestProgramBuilder;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleOperation;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the hot swap of the program of an instance, against the flow
+ * rules installed on the device.
+ */
+public class InstanceSwapTest {
+
+    /**
+     * Table acl, setting the ttl to a constant, then tables mac and out. The
+     * rules go to acl and mac, which both have a next stage.
+     */
+    private static ProgramModel program(String name, int ttl) {
+        TestProgramBuilder builder = new TestProgramBuilder(name)
+                .header("ethernet", false, "dstAddr:48", "srcAddr:48", "etherType:16")
+                .header("ipv4", false, "ttl:8", "protocol:8", "srcAddr:32", "dstAddr:32")
+                .parserState("start", null, "parse_ethernet")
+                .parserState("parse_ethernet", "ethernet", "parse_ipv4")
+                .parserState("parse_ipv4", "ipv4")
+                .action("nop");
+        return builder.action("set_ttl", builder.setField("ipv4.ttl", ttl))
+                .table("acl", "mac", Lists.newArrayList("ipv4.dstAddr:ternary"), "nop", "set_ttl")
+                .table("mac", "out", Lists.newArrayList("ethernet.dstAddr:exact"), "nop")
+                .table("out", null, Lists.newArrayList("ethernet.etherType:exact"), "nop")
+                .init("acl")
+                .build();
+    }
+
+    private static List<FlowRule> rules(List<FlowRuleOperation> operations) {
+        return operations.stream().map(FlowRuleOperation::rule).collect(Collectors.toList());
+    }
+
+    @Test
+    public void testSwapKeepsUnchangedStages() {
+        RecordingFlowRuleService service = new RecordingFlowRuleService();
+        ProgramModel v1 = program("swap-v1", 64);
+        Instance instance = service.compiler().run(v1, RecordingFlowRuleService.DEVICE_ID, 1);
+
+        InstanceRule mac = new InstanceRule(v1.table("mac").getId())
+                .addKey(FlowKey.buildHeaderFieldKey("ethernet", "dstAddr", Value.createLongValue(0x0a0b0c0d0e0fL)))
+                .setAction(new CompoundAction("nop"));
+        int before = service.getBatchCount();
+        instance.addRule(mac);
+        List<FlowRule> macRules = rules(service.operationsSince(before));
+
+        InstanceRule acl = new InstanceRule(v1.table("acl").getId())
+                .addKey(FlowKey.buildHeaderFieldKey("ipv4", "dstAddr", Value.createIntValue(0x0a000001)))
+                .setAction(new CompoundAction("set_ttl"));
+        before = service.getBatchCount();
+        instance.addRule(acl);
+        List<FlowRule> aclRules = rules(service.operationsSince(before));
+        assertFalse(macRules.isEmpty());
+        assertFalse(aclRules.isEmpty());
+
+        before = service.getBatchCount();
+        InstallReport<InstanceRule> report = instance.swapProgram(program("swap-v2", 32)).join();
+        List<FlowRule> swapRules = rules(service.operationsSince(before));
+
+        /* Only the rule of the changed table is compiled again. */
+        assertTrue(report.isSuccess());
+        assertTrue(report.succeeded().contains(acl));
+        assertFalse(report.succeeded().contains(mac));
+        assertEquals(2, instance.getRuleCount());
+
+        /* The entries of mac are neither touched nor removed. */
+        for (FlowRule rule : macRules) {
+            assertFalse(rule.toString(), swapRules.contains(rule));
+            FlowRule installed = service.getInstalled(rule);
+            assertNotNull(rule.toString(), installed);
+            assertEquals(rule.treatment(), installed.treatment());
+        }
+
+        /* The entries of acl are installed again. */
+        for (FlowRule rule : aclRules) {
+            assertTrue(rule.toString(), swapRules.contains(rule));
+        }
+    }
+}
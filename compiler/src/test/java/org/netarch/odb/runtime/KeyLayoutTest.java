@@ -0,0 +1,132 @@
+package org.netarch.odb.runtime;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+import org.netarch.odb.model.FieldModel;
+import org.netarch.odb.model.MatchKeyModel;
+import org.netarch.odb.model.ProgramModel;
+import org.netarch.odb.model.TableModel;
+import org.netarch.odb.model.TestProgramBuilder;
+import org.netarch.odb.runtime.MatchResultAllocator.Region;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests of the key layout of a stage, against the offsets and the standard
+ * metadata bitmap the rules used to compute for each of their keys.
+ */
+public class KeyLayoutTest {
+
+    private static ProgramModel program() {
+        TestProgramBuilder builder = new TestProgramBuilder("layout");
+        return builder
+                .header("ethernet", false, "dstAddr:48", "srcAddr:48", "etherType:16")
+                .header("ipv4", false, "version:4", "ihl:4", "diffserv:8", "totalLen:16",
+                        "ttl:8", "protocol:8", "srcAddr:32", "dstAddr:32")
+                .header("meta", true, "a:8", "b:16")
+                .header("standard_metadata", true, "ingress_port:9", "packet_length:32",
+                        "egress_spec:9", "egress_port:9", "egress_instance:32", "instance_type:32",
+                        "clone_spec:32")
+                .parserState("start", null, "parse_ethernet")
+                .parserState("parse_ethernet", "ethernet", "parse_ipv4")
+                .parserState("parse_ipv4", "ipv4")
+                .action("drop")
+                .table("acl", null, Lists.newArrayList(
+                        "ipv4.dstAddr:ternary",
+                        "standard_metadata.instance_type:exact",
+                        "ethernet.etherType:exact",
+                        "meta.b:ternary",
+                        "standard_metadata.ingress_port:exact"), "drop")
+                .table("clone", null, Lists.newArrayList("standard_metadata.clone_spec:exact"), "drop")
+                .init("acl")
+                .build();
+    }
+
+    /**
+     * Offset of a key as the rules computed it, from the field of its header.
+     */
+    private static int oldOffset(ProgramModel program, MatchKeyModel key) {
+        FieldModel field = program.getHeader(key.field().getHeaderName()).getField(key.getFieldName());
+        return field.getBitOffset() + field.getHeader().getBitOffset();
+    }
+
+    /**
+     * Standard metadata bitmap as the rules built it, first key in the
+     * highest bit.
+     */
+    private static int oldBitMap(boolean... set) {
+        int bitMap = 0;
+        for (boolean bit : set) {
+            bitMap <<= 1;
+            if (bit) {
+                bitMap |= 1;
+            }
+        }
+        return bitMap;
+    }
+
+    @Test
+    public void testOffsets() {
+        ProgramModel program = program();
+        TableModel table = program.table("acl");
+        KeyLayout layout = new KeyLayout(table);
+
+        assertEquals(5, layout.size());
+        for (MatchKeyModel key : table.getKeys()) {
+            KeyLayout.Slot slot = layout.getSlot(key.getName());
+            assertEquals(key, slot.getKey());
+            assertEquals(key.field().getLength(), slot.getBitWidth());
+            if (slot.getRegion() != Region.STD_METADATA) {
+                assertEquals(key.getName(), oldOffset(program, key), slot.getBitOffset());
+            }
+        }
+
+        KeyLayout.Slot dstAddr = layout.getSlot("ipv4.dstAddr");
+        assertEquals(Region.HEADER, dstAddr.getRegion());
+        assertEquals(112 + 80, dstAddr.getBitOffset());
+        assertEquals(0, dstAddr.getIndex());
+        KeyLayout.Slot etherType = layout.getSlot("ethernet.etherType");
+        assertEquals(Region.HEADER, etherType.getRegion());
+        assertEquals(96, etherType.getBitOffset());
+        KeyLayout.Slot b = layout.getSlot("meta.b");
+        assertEquals(Region.METADATA, b.getRegion());
+        assertEquals(8, b.getBitOffset());
+        assertNull(layout.getSlot("ipv4.srcAddr"));
+
+        assertEquals(224, layout.getHeaderBitLength());
+        assertEquals(24, layout.getMetadataBitLength());
+        assertEquals(28 - 12, layout.getHeaderWindowBytes());
+
+        BitVector headerMask = new BitVector(224);
+        headerMask.setOnes(96, 16);
+        headerMask.setOnes(192, 32);
+        assertEquals(headerMask, layout.getHeaderMask());
+        BitVector metadataMask = new BitVector(24);
+        metadataMask.setOnes(8, 16);
+        assertEquals(metadataMask, layout.getMetadataMask());
+    }
+
+    @Test
+    public void testStdMetadataBits() {
+        KeyLayout layout = new KeyLayout(program().table("acl"));
+
+        assertEquals(2, layout.getStdMetadataSlots().size());
+        assertEquals(0, layout.getSlot("standard_metadata.ingress_port").getStdMetadataBit());
+        assertEquals(5, layout.getSlot("standard_metadata.instance_type").getStdMetadataBit());
+        assertEquals(-1, layout.getSlot("ipv4.dstAddr").getStdMetadataBit());
+
+        int bitMap = 0;
+        for (KeyLayout.Slot slot : layout.getStdMetadataSlots()) {
+            bitMap |= 1 << slot.getStdMetadataBit();
+        }
+        // Same keys as the rules, in the reverse order of their bitmap.
+        int oldBitMap = oldBitMap(true, false, false, false, false, true);
+        assertEquals(Integer.reverse(oldBitMap) >>> (Integer.SIZE - KeyLayout.STD_METADATA_KEYS.size()), bitMap);
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testRejectUnmatchableStdMetadata() {
+        new KeyLayout(program().table("clone"));
+    }
+}
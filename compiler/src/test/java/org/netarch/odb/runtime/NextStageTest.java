@@ -0,0 +1,104 @@
+package org.netarch.odb.runtime;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+import org.netarch.odb.compiler.StagePlacement;
+import org.netarch.odb.compiler.Vp4Interpreter;
+import org.netarch.odb.compiler.Vp4Templates;
+import org.netarch.odb.model.ProgramModel;
+import org.netarch.odb.model.TestProgramBuilder;
+import org.onosproject.bmv2.api.runtime.Bmv2ExtensionTreatment;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleOperation;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests of the next stage set by the match result entries, after a
+ * condition and at the end of the pipeline.
+ */
+public class NextStageTest {
+
+    /**
+     * Table acl, then a condition going to table mac or out, then table out
+     * at the end of the pipeline. Table mac has the longest chain behind it.
+     */
+    private static ProgramModel program() {
+        return new TestProgramBuilder("next")
+                .header("ethernet", false, "dstAddr:48", "srcAddr:48", "etherType:16")
+                .header("ipv4", false, "ttl:8", "protocol:8", "srcAddr:32", "dstAddr:32")
+                .parserState("start", null, "parse_ethernet")
+                .parserState("parse_ethernet", "ethernet", "parse_ipv4")
+                .parserState("parse_ipv4", "ipv4")
+                .action("nop")
+                .table("acl", "_condition_0", Lists.newArrayList("ipv4.dstAddr:ternary"), "nop")
+                .condition("_condition_0", "mac", "out")
+                .table("mac", "out", Lists.newArrayList("ethernet.dstAddr:exact"), "nop")
+                .table("out", null, Lists.newArrayList("ethernet.etherType:exact"), "nop")
+                .init("acl")
+                .build();
+    }
+
+    /**
+     * Get the match result entry a batch adds.
+     */
+    private static FlowRule matchResult(List<FlowRuleOperation> operations) {
+        List<FlowRule> rules = operations.stream()
+                .map(FlowRuleOperation::rule)
+                .filter(rule -> Vp4Interpreter.getTableName(rule.tableId())
+                        .startsWith(Vp4Interpreter.TABLE_MATCH_RESULT))
+                .collect(Collectors.toList());
+        assertEquals(1, rules.size());
+        return rules.get(0);
+    }
+
+    private static void assertTreatment(Bmv2ExtensionTreatment expected, FlowRule rule) {
+        assertEquals(DefaultTrafficTreatment.builder().extension(expected, RecordingFlowRuleService.DEVICE_ID)
+                .build(), rule.treatment());
+    }
+
+    @Test
+    public void testRuleOnLastTable() {
+        RecordingFlowRuleService service = new RecordingFlowRuleService();
+        ProgramModel program = program();
+        Instance instance = service.compiler().run(program, RecordingFlowRuleService.DEVICE_ID, 1);
+
+        InstanceRule out = new InstanceRule(program.table("out").getId())
+                .addKey(FlowKey.buildHeaderFieldKey("ethernet", "etherType", Value.createShortValue((short) 0x0800)))
+                .setAction(new CompoundAction("nop"));
+        int before = service.getBatchCount();
+        instance.addRule(out);
+
+        /* The packet leaves the pipeline: no next stage and nothing to match. */
+        Vp4Templates templates = new Vp4Templates(RecordingFlowRuleService.vp4());
+        assertTreatment(templates.setStageAndBitmap(program.getActionModel("nop").getActionBitMap(),
+                (byte) 0, (byte) 0, (byte) 0), matchResult(service.operationsSince(before)));
+        assertEquals(1, instance.getRuleCount());
+    }
+
+    @Test
+    public void testRuleBeforeCondition() {
+        RecordingFlowRuleService service = new RecordingFlowRuleService();
+        ProgramModel program = program();
+        Instance instance = service.compiler().run(program, RecordingFlowRuleService.DEVICE_ID, 1);
+
+        InstanceRule acl = new InstanceRule(program.table("acl").getId())
+                .addKey(FlowKey.buildHeaderFieldKey("ipv4", "dstAddr", Value.createIntValue(0x0a000001)))
+                .setAction(new CompoundAction("nop"));
+        int before = service.getBatchCount();
+        instance.addRule(acl);
+
+        /* The condition is not evaluated, the packet goes on to the branch with the longest chain. */
+        StagePlacement placement = instance.getPlacement();
+        assertEquals("mac", placement.getNextTable("_condition_0"));
+        Vp4Templates templates = new Vp4Templates(RecordingFlowRuleService.vp4());
+        assertTreatment(templates.setStageAndBitmap(program.getActionModel("nop").getActionBitMap(),
+                (byte) 4, (byte) placement.getStage("mac"),
+                (byte) instance.getPassIds()[placement.getPass("mac")]), matchResult(service.operationsSince(before)));
+        assertEquals(1, instance.getRuleCount());
+    }
+}
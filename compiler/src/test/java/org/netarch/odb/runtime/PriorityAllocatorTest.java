@@ -0,0 +1,84 @@
+package org.netarch.odb.runtime;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the priorities of the ranks of a ternary table, against the
+ * priorities the entries were installed with.
+ */
+public class PriorityAllocatorTest {
+    private static final int RUNS = 20;
+    private static final int OPERATIONS = 2000;
+
+    private final Random random = new Random(0x0DB);
+
+    @Test
+    public void testPrioritiesFollowRanks() {
+        for (int run = 0; run < RUNS; run++) {
+            PriorityAllocator allocator = new PriorityAllocator();
+            TreeMap<Integer, Integer> installed = Maps.newTreeMap();
+            List<Integer> entries = Lists.newArrayList();
+            for (int i = 0; i < OPERATIONS; i++) {
+                if (entries.isEmpty() || random.nextInt(3) != 0) {
+                    int rank = random.nextInt(1000);
+                    Map<Integer, Integer> moved = Maps.newHashMap();
+                    int priority = allocator.acquire(rank, moved);
+                    installed.putAll(moved);
+                    installed.put(rank, priority);
+                    entries.add(rank);
+                } else {
+                    int rank = entries.remove(random.nextInt(entries.size()));
+                    allocator.release(rank);
+                    if (!allocator.contains(rank)) {
+                        installed.remove(rank);
+                    }
+                }
+                assertOrdered(allocator, installed);
+            }
+        }
+    }
+
+    @Test
+    public void testOrderedInsertsKeepPriorities() {
+        PriorityAllocator allocator = new PriorityAllocator();
+        Map<Integer, Integer> moved = Maps.newHashMap();
+        for (int rank = 0; rank < 200; rank++) {
+            allocator.acquire(rank, moved);
+            allocator.acquire(-rank - 1, moved);
+        }
+        assertTrue(moved.isEmpty());
+    }
+
+    @Test
+    public void testMiddleInsertsMoveFewRanks() {
+        PriorityAllocator allocator = new PriorityAllocator();
+        int moves = 0;
+        for (int i = 0; i < OPERATIONS; i++) {
+            Map<Integer, Integer> moved = Maps.newHashMap();
+            allocator.acquire(random.nextInt(), moved);
+            moves += moved.size();
+        }
+        assertTrue("moved " + moves + " ranks for " + OPERATIONS + " inserts", moves < OPERATIONS);
+    }
+
+    private static void assertOrdered(PriorityAllocator allocator, TreeMap<Integer, Integer> installed) {
+        assertEquals(installed.size(), allocator.size());
+        int previous = PriorityAllocator.MIN_PRIORITY - 1;
+        for (Map.Entry<Integer, Integer> entry : installed.entrySet()) {
+            assertEquals(entry.getValue().intValue(), allocator.getPriority(entry.getKey()));
+            assertTrue(entry.getValue() > previous);
+            assertTrue(entry.getValue() <= PriorityAllocator.MAX_PRIORITY);
+            previous = entry.getValue();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package org.netarch.odb.runtime;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import org.netarch.odb.compiler.Compiler;
+import org.onosproject.bmv2.api.context.Bmv2Configuration;
+import org.onosproject.bmv2.api.context.Bmv2DefaultConfiguration;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.core.DefaultApplicationId;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleOperation;
+import org.onosproject.net.flow.FlowRuleOperations;
+import org.onosproject.net.flow.FlowRuleOperationsContext;
+import org.onosproject.net.flow.FlowRuleServiceAdapter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Flow rule service which applies every batch at once to a table of
+ * installed flow rules, and records the batches.
+ */
+class RecordingFlowRuleService extends FlowRuleServiceAdapter {
+    static final ApplicationId APP_ID = new DefaultApplicationId(1, "org.netarch.odb.test");
+    static final DeviceId DEVICE_ID = DeviceId.deviceId("bmv2:127.0.0.1:40123#1");
+
+    private static Bmv2Configuration configuration;
+
+    private final List<List<FlowRuleOperation>> batches = Lists.newArrayList();
+    private final Map<FlowRule, FlowRule> installed = Maps.newHashMap();
+
+    /**
+     * Get the VP4 configuration, parsed once.
+     *
+     * @return VP4 configuration
+     */
+    static synchronized Bmv2Configuration vp4() {
+        if (configuration == null) {
+            try (InputStream in = RecordingFlowRuleService.class.getResourceAsStream("/vp4.json")) {
+                configuration = Bmv2DefaultConfiguration.parse(in);
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to read vp4.json", e);
+            }
+        }
+        return configuration;
+    }
+
+    /**
+     * Get the VP4 configuration with every table limited to a size.
+     *
+     * @param maxSize max size of the tables
+     * @return VP4 configuration
+     */
+    static Bmv2Configuration vp4(int maxSize) {
+        try (InputStream in = RecordingFlowRuleService.class.getResourceAsStream("/vp4.json")) {
+            String json = new String(ByteStreams.toByteArray(in), StandardCharsets.UTF_8);
+            return Bmv2DefaultConfiguration.parse(json.replaceAll("\"max_size\"\\s*:\\s*\\d+",
+                    "\"max_size\": " + maxSize));
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to read vp4.json", e);
+        }
+    }
+
+    /**
+     * Create a compiler for VP4 installing its flow rules with this service.
+     *
+     * @return compiler
+     */
+    Compiler compiler() {
+        return compiler(vp4());
+    }
+
+    /**
+     * Create a compiler for a VP4 configuration installing its flow rules
+     * with this service.
+     *
+     * @param configuration VP4 configuration
+     * @return compiler
+     */
+    Compiler compiler(Bmv2Configuration configuration) {
+        return new Compiler(this, APP_ID, configuration);
+    }
+
+    @Override
+    public synchronized void apply(FlowRuleOperations ops) {
+        List<FlowRuleOperation> batch = Lists.newArrayList();
+        ops.stages().forEach(stage -> stage.forEach(op -> {
+            batch.add(op);
+            if (op.type() == FlowRuleOperation.Type.REMOVE) {
+                installed.remove(op.rule());
+            } else {
+                installed.put(op.rule(), op.rule());
+            }
+        }));
+        batches.add(batch);
+        FlowRuleOperationsContext context = ops.callback();
+        if (context != null) {
+            context.onSuccess(ops);
+        }
+    }
+
+    /**
+     * Get the number of batches applied so far.
+     *
+     * @return number of batches
+     */
+    synchronized int getBatchCount() {
+        return batches.size();
+    }
+
+    /**
+     * Get the operations of the batches applied since a batch, in order.
+     *
+     * @param from index of the first batch
+     * @return flow rule operations
+     */
+    synchronized List<FlowRuleOperation> operationsSince(int from) {
+        List<FlowRuleOperation> operations = Lists.newArrayList();
+        batches.subList(from, batches.size()).forEach(operations::addAll);
+        return operations;
+    }
+
+    /**
+     * Get the installed flow rule equal to a flow rule, i.e. with the same
+     * table, selector and priority, with its current treatment.
+     *
+     * @param rule flow rule
+     * @return installed flow rule, or null
+     */
+    synchronized FlowRule getInstalled(FlowRule rule) {
+        return installed.get(rule);
+    }
+
+    /**
+     * Get the number of flow rules installed.
+     *
+     * @return number of flow rules
+     */
+    synchronized int getInstalledCount() {
+        return installed.size();
+    }
+}
@@ -0,0 +1,111 @@
+package org.netarch.odb.runtime;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+import org.netarch.odb.compiler.Vp4Interpreter;
+import org.netarch.odb.model.ProgramModel;
+import org.netarch.odb.model.TestProgramBuilder;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleOperation;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests of the match entries shared by the rules of a stage with the same
+ * keys in a region.
+ */
+public class SharedMatchEntryTest {
+    /* Header match tables, the header window tables take the headers short enough. */
+    private static final String HEADER_MATCH = "table_header_";
+
+    /**
+     * Table acl matching the ipv4 addresses and the user metadata.
+     */
+    private static ProgramModel program() {
+        return new TestProgramBuilder("shared")
+                .header("ethernet", false, "dstAddr:48", "srcAddr:48", "etherType:16")
+                .header("ipv4", false, "ttl:8", "protocol:8", "srcAddr:32", "dstAddr:32")
+                .header("meta", true, "a:8", "b:16")
+                .parserState("start", null, "parse_ethernet")
+                .parserState("parse_ethernet", "ethernet", "parse_ipv4")
+                .parserState("parse_ipv4", "ipv4")
+                .action("nop")
+                .table("acl", null, Lists.newArrayList("ipv4.srcAddr:ternary", "ipv4.dstAddr:ternary",
+                        "meta.b:exact"), "nop")
+                .init("acl")
+                .build();
+    }
+
+    /**
+     * Rule leaving srcAddr out, so its header entry goes to the ternary table.
+     */
+    private static InstanceRule rule(ProgramModel program, int dstAddr, int b) {
+        return new InstanceRule(program.table("acl").getId())
+                .addKey(FlowKey.buildHeaderFieldKey("ipv4", "dstAddr", Value.createIntValue(dstAddr)))
+                .addKey(FlowKey.buildMetadataFieldKey("meta", "b", Value.createShortValue((short) b)))
+                .setAction(new CompoundAction("nop"));
+    }
+
+    /**
+     * Get the VP4 table of a flow rule, without its stage.
+     */
+    private static String table(FlowRule rule) {
+        String name = Vp4Interpreter.getTableName(rule.tableId());
+        return name.substring(0, name.lastIndexOf("_stage"));
+    }
+
+    /**
+     * Get the flow rules of the tables with a prefix a batch adds, or removes.
+     */
+    private static List<FlowRule> rules(List<FlowRuleOperation> operations, FlowRuleOperation.Type type,
+                                        String prefix) {
+        return operations.stream()
+                .filter(operation -> operation.type() == type && table(operation.rule()).startsWith(prefix))
+                .map(FlowRuleOperation::rule)
+                .collect(Collectors.toList());
+    }
+
+    @Test
+    public void testSharedHeaderEntry() {
+        RecordingFlowRuleService service = new RecordingFlowRuleService();
+        ProgramModel program = program();
+        Instance instance = service.compiler().run(program, RecordingFlowRuleService.DEVICE_ID, 1);
+        InstanceRule first = rule(program, 0x0a000001, 1);
+        InstanceRule second = rule(program, 0x0a000001, 2);
+
+        int before = service.getBatchCount();
+        instance.addRule(first);
+        List<FlowRuleOperation> operations = service.operationsSince(before);
+        List<FlowRule> header = rules(operations, FlowRuleOperation.Type.ADD, HEADER_MATCH);
+        assertEquals(1, header.size());
+        assertEquals(1, rules(operations, FlowRuleOperation.Type.ADD, Vp4Interpreter.TABLE_MATCH_RESULT).size());
+
+        /* The second rule takes the installed header entry, with a match result of its own. */
+        before = service.getBatchCount();
+        instance.addRule(second);
+        operations = service.operationsSince(before);
+        assertEquals(0, rules(operations, FlowRuleOperation.Type.ADD, HEADER_MATCH).size());
+        assertEquals(1, rules(operations, FlowRuleOperation.Type.ADD, Vp4Interpreter.TABLE_MATCH_RESULT).size());
+
+        /* The header entry is kept while a rule still uses it. */
+        before = service.getBatchCount();
+        instance.delRule(first);
+        operations = service.operationsSince(before);
+        assertEquals(0, rules(operations, FlowRuleOperation.Type.REMOVE, HEADER_MATCH).size());
+        assertEquals(1, rules(operations, FlowRuleOperation.Type.REMOVE, Vp4Interpreter.TABLE_MATCH_RESULT).size());
+        assertNotNull(service.getInstalled(header.get(0)));
+
+        /* It is withdrawn with the last one. */
+        before = service.getBatchCount();
+        instance.delRule(second);
+        operations = service.operationsSince(before);
+        assertEquals(header, rules(operations, FlowRuleOperation.Type.REMOVE, HEADER_MATCH));
+        assertNull(service.getInstalled(header.get(0)));
+        assertEquals(0, instance.getRuleCount());
+    }
+}
@@ -0,0 +1,78 @@
+package org.netarch.odb.runtime;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Property tests of the ternary minimisation, against the values matched by
+ * the keys before minimisation.
+ */
+public class TernaryMinimizerTest {
+    private static final int RUNS = 500;
+    private static final int WIDTH = 10;
+
+    private final Random random = new Random(0x0DB);
+
+    @Test
+    public void testMinimizeMatchesSameValues() {
+        for (int run = 0; run < RUNS; run++) {
+            List<TernaryMinimizer.Key> keys = Lists.newArrayList();
+            int count = 1 + random.nextInt(40);
+            for (int i = 0; i < count; i++) {
+                keys.add(key(random.nextInt(1 << WIDTH), random.nextInt(1 << WIDTH)));
+            }
+
+            List<TernaryMinimizer.Key> minimized = TernaryMinimizer.minimize(keys);
+            assertTrue(minimized.size() <= keys.size());
+            assertEquals(matched(keys), matched(minimized));
+        }
+    }
+
+    @Test
+    public void testMinimizeMergesPrefixes() {
+        /* 4 consecutive /8 prefixes of a 10-bit key make one /6 prefix. */
+        List<TernaryMinimizer.Key> keys = Lists.newArrayList();
+        for (int i = 0; i < 4; i++) {
+            keys.add(key(0x140 | (i << 2), 0x3FC));
+        }
+
+        List<TernaryMinimizer.Key> minimized = TernaryMinimizer.minimize(keys);
+        assertEquals(1, minimized.size());
+        assertEquals(key(0x140, 0x3F0), minimized.get(0));
+    }
+
+    @Test
+    public void testMinimizeDropsCoveredKeys() {
+        List<TernaryMinimizer.Key> keys = Lists.newArrayList(
+                key(0x155, 0x3FF), key(0x150, 0x3F0), key(0x2AA, 0x3FF));
+
+        List<TernaryMinimizer.Key> minimized = TernaryMinimizer.minimize(keys);
+        assertEquals(Lists.newArrayList(key(0x150, 0x3F0), key(0x2AA, 0x3FF)), minimized);
+    }
+
+    private static TernaryMinimizer.Key key(int value, int mask) {
+        return new TernaryMinimizer.Key(new BitVector(WIDTH).setBits(0, WIDTH, value),
+                new BitVector(WIDTH).setBits(0, WIDTH, mask));
+    }
+
+    private static BitSet matched(List<TernaryMinimizer.Key> keys) {
+        BitSet matched = new BitSet();
+        for (int value = 0; value < 1 << WIDTH; value++) {
+            BitVector vector = new BitVector(WIDTH).setBits(0, WIDTH, value);
+            for (TernaryMinimizer.Key key : keys) {
+                if (vector.copy().and(key.getMask()).equals(key.getValue())) {
+                    matched.set(value);
+                    break;
+                }
+            }
+        }
+        return matched;
+    }
+}
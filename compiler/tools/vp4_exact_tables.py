@@ -0,0 +1,172 @@
+#!/usr/bin/env python3
+#
+# Add the exact match and header window tables to the BMv2 configuration of
+# VP4, as compiled by p4c-bm from the VP4 program.
+#
+# Every stage of VP4 matches the header key, the user metadata and the
+# standard metadata of a rule in ternary tables. This script adds, per stage:
+#
+#   table_exact_key_stageN          loads the exact keys of the stage, i.e.
+#                                   the header and metadata keys under the
+#                                   masks of the stage, and the header window
+#   table_header_window_exact_stageN
+#   table_header_window_stageN      exact and ternary tables matching the low
+#                                   bytes of the header key
+#   table_header_match_exact_stageN exact table matching the header key
+#   table_user_meta_exact_stageN    exact table matching the user metadata
+#
+# The header of a stage goes through the window tables, then the exact
+# table, then the ternary table, each falling through to the next on a miss.
+# The user metadata goes through the exact table, then the ternary one. The
+# new tables are numbered after the tables of VP4, in the order
+# Vp4Interpreter numbers them.
+#
+# Usage: vp4_exact_tables.py [--window-bytes N] vp4-base.json vp4.json
+
+import argparse
+import copy
+import json
+import re
+import sys
+
+UMI_HEADER_TYPE_FIELD = 'umi_load_header'
+HIT = '__HIT__'
+MISS = '__MISS__'
+
+
+def field(name):
+    return {'type': 'field', 'value': ['umiInstance', name]}
+
+
+def bit_and(dst, src, mask):
+    return {'op': 'bit_and', 'parameters': [field(dst), field(src), mask]}
+
+
+def load_exact_key_action(action_id, window_bytes):
+    window_mask = {'type': 'hexstr', 'value': '0x' + 'ff' * window_bytes}
+    return {
+        'name': 'action_load_exact_key',
+        'id': action_id,
+        'runtime_data': [
+            {'name': 'header_mask', 'bitwidth': 800},
+            {'name': 'metadata_mask', 'bitwidth': 256},
+        ],
+        'primitives': [
+            bit_and('umi_exact_header', 'umi_load_header', {'type': 'runtime_data', 'value': 0}),
+            bit_and('umi_exact_metadata', 'umi_user_metadata', {'type': 'runtime_data', 'value': 1}),
+            bit_and('umi_header_window', 'umi_load_header', window_mask),
+            bit_and('umi_exact_window', 'umi_exact_header', window_mask),
+        ],
+    }
+
+
+def derive(table, name, table_id, key_field, match_type, miss):
+    """Copy a ternary match table of a stage, matching another field and
+    falling through to another table on a miss."""
+    derived = copy.deepcopy(table)
+    derived['name'] = name
+    derived['id'] = table_id
+    derived['match_type'] = match_type
+    derived['key'][-1]['match_type'] = match_type
+    derived['key'][-1]['target'] = ['umiInstance', key_field]
+    derived['next_tables'] = {HIT: table['base_default_next'], MISS: miss}
+    derived['base_default_next'] = miss
+    return derived
+
+
+def exact_key_table(match_table, name, table_id, next_name):
+    table = copy.deepcopy(match_table)
+    table['name'] = name
+    table['id'] = table_id
+    table['match_type'] = 'exact'
+    table['key'] = table['key'][:-1]
+    table['actions'] = ['action_load_exact_key']
+    table['next_tables'] = {'action_load_exact_key': next_name}
+    table['base_default_next'] = next_name
+    return table
+
+
+def conditional_to(conditionals, target):
+    found = [c for c in conditionals if c['true_next'] == target]
+    if len(found) != 1:
+        sys.exit('Expected one conditional applying %s, found %d' % (target, len(found)))
+    return found[0]
+
+
+def patch(config, window_bytes):
+    if any(a['name'] == 'action_load_exact_key' for a in config['actions']):
+        sys.exit('The configuration already has the exact match tables')
+
+    umi = [h for h in config['header_types'] if any(f[0] == UMI_HEADER_TYPE_FIELD for f in h['fields'])]
+    if len(umi) != 1:
+        sys.exit('Cannot find the header type of ' + UMI_HEADER_TYPE_FIELD)
+    umi[0]['fields'] += [
+        ['umi_exact_metadata', 256],
+        ['umi_exact_header', 800],
+        ['umi_header_window', 8 * window_bytes],
+        ['umi_exact_window', 8 * window_bytes],
+    ]
+
+    config['actions'].append(load_exact_key_action(max(a['id'] for a in config['actions']) + 1, window_bytes))
+
+    ingress = config['pipelines'][0]
+    tables = {t['name']: t for t in ingress['tables']}
+    conditionals = ingress['conditionals']
+    stages = sorted(int(m.group(1)) for m in
+                    (re.match(r'table_header_match_stage(\d+)$', name) for name in tables) if m)
+    next_id = max(t['id'] for p in config['pipelines'] for t in p['tables']) + 1
+
+    added = []
+    for stage in stages:
+        header = tables['table_header_match_stage%d' % stage]
+        meta = tables['table_user_meta_stage%d' % stage]
+        header_cond = conditional_to(conditionals, header['name'])
+        meta_cond = conditional_to(conditionals, meta['name'])
+        stage_cond = conditional_to(conditionals, header_cond['name'])
+
+        exact_key = exact_key_table(header, 'table_exact_key_stage%d' % stage, next_id, header_cond['name'])
+        header_exact = derive(header, 'table_header_match_exact_stage%d' % stage, next_id + 1,
+                              'umi_exact_header', 'exact', header['name'])
+        meta_exact = derive(meta, 'table_user_meta_exact_stage%d' % stage, next_id + 2,
+                            'umi_exact_metadata', 'exact', meta['name'])
+        next_id += 3
+        added += [exact_key, header_exact, meta_exact]
+
+        stage_cond['true_next'] = exact_key['name']
+        header_cond['true_next'] = header_exact['name']
+        meta_cond['true_next'] = meta_exact['name']
+
+    for stage in stages:
+        header = tables['table_header_match_stage%d' % stage]
+        header_exact = 'table_header_match_exact_stage%d' % stage
+        window_exact = derive(header, 'table_header_window_exact_stage%d' % stage, next_id,
+                              'umi_exact_window', 'exact', 'table_header_window_stage%d' % stage)
+        window = derive(header, 'table_header_window_stage%d' % stage, next_id + 1,
+                        'umi_header_window', 'ternary', header_exact)
+        next_id += 2
+        added += [window_exact, window]
+
+        conditional_to(conditionals, header_exact)['true_next'] = window_exact['name']
+
+    ingress['tables'] += added
+
+
+def main():
+    parser = argparse.ArgumentParser(description='Add the exact match and header window tables to VP4.')
+    parser.add_argument('--window-bytes', type=int, default=16,
+                        help='length of the header window, in bytes (default 16)')
+    parser.add_argument('input', help='BMv2 configuration of VP4 compiled by p4c-bm')
+    parser.add_argument('output', help='patched configuration')
+    args = parser.parse_args()
+    if not 0 < args.window_bytes <= 100:
+        sys.exit('The header window must be 1 to 100 bytes long')
+
+    with open(args.input) as f:
+        config = json.load(f)
+    patch(config, args.window_bytes)
+    with open(args.output, 'w') as f:
+        f.write(json.dumps(config, indent=4, separators=(',', ': ')))
+
+
+if __name__ == '__main__':
+    main()
@@ -15,8 +15,6 @@
  */
 package org.netarch.odb;
 
-import com.eclipsesource.json.Json;
-import com.eclipsesource.json.JsonObject;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import org.apache.felix.scr.annotations.Activate;
@@ -54,9 +52,8 @@ import org.onosproject.net.topology.TopologyService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.util.List;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
@@ -72,6 +69,7 @@ import static org.onlab.util.Tools.groupedThreads;
 public class AppComponent {
 
     private static final String JSON_PATH = "/router.json";
+    private static final String CONFIG_SNAPSHOT_PATH = "/router.bmv2";
     private static final String CONFIGURATION_NAME = "ROUTER";
     private static final Bmv2Configuration CONFIGURATION = loadConfiguration();
     private static final RouterInterpreter INTERPRETER = new RouterInterpreter();
@@ -116,14 +114,21 @@ public class AppComponent {
     }
 
     /**
-     * Load configuration from the json file.
+     * Load configuration from the snapshot built with the config-snapshot
+     * profile, or from the json file if there is no snapshot.
      *
      * @return BMv2 configuration
      */
     private static Bmv2Configuration loadConfiguration() {
-        try {
-            JsonObject json = Json.parse(new BufferedReader(new InputStreamReader(AppComponent.class.getResourceAsStream(JSON_PATH)))).asObject();
-            return Bmv2DefaultConfiguration.parse(json);
+        try (InputStream snapshot = AppComponent.class.getResourceAsStream(CONFIG_SNAPSHOT_PATH)) {
+            if (snapshot != null) {
+                return Bmv2DefaultConfiguration.readSnapshot(snapshot);
+            }
+        } catch (IOException e) {
+            // Stale snapshot, fall back to the json file.
+        }
+        try (InputStream stream = AppComponent.class.getResourceAsStream(JSON_PATH)) {
+            return Bmv2DefaultConfiguration.parse(stream);
         } catch (IOException e) {
             throw new RuntimeException("Unable to load configuration");
         }